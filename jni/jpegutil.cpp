@@ -15,10 +15,12 @@
  */
 #include "jpegutil.h"
 #include <memory.h>
+#include <algorithm>
 #include <array>
 #include <vector>
 #include <cstring>
 #include <cstdio>
+#include <thread>
 
 #include <setjmp.h>
 
@@ -137,12 +139,21 @@ void jpegutil::Transform::Map(int x, int y, int* x_out, int* y_out) const {
   *y_out = x * mat10_ + y * mat11_ + orig_y_;
 }
 
-int jpegutil::Compress(int img_width, int img_height,
-                       jpegutil::RowIterator<16>& y_row_generator,
-                       jpegutil::RowIterator<8>& cb_row_generator,
-                       jpegutil::RowIterator<8>& cr_row_generator,
-                       unsigned char* out_buf, size_t out_buf_capacity,
-                       std::function<void(size_t)> flush, int quality) {
+namespace {
+
+/**
+ * Compresses rows [first_row, first_row + img_height) of the images produced
+ * by the row generators into a complete JPEG of size img_width x img_height.
+ * If restart_in_rows is positive, a restart marker is emitted every
+ * restart_in_rows MCU-rows.
+ */
+int CompressRows(int img_width, int img_height, int first_row,
+                 int restart_in_rows,
+                 jpegutil::RowIterator<16>& y_row_generator,
+                 jpegutil::RowIterator<8>& cb_row_generator,
+                 jpegutil::RowIterator<8>& cr_row_generator,
+                 unsigned char* out_buf, size_t out_buf_capacity,
+                 std::function<void(size_t)> flush, int quality) {
   // libjpeg requires the use of setjmp/longjmp to recover from errors.  Since
   // this doesn't play well with RAII, we must use pointers and manually call
   // delete. See POSIX documentation for longjmp() for details on why the
@@ -259,6 +270,8 @@ int jpegutil::Compress(int img_width, int img_height,
   cinfo.comp_info[2].h_samp_factor = 1;
   cinfo.comp_info[2].v_samp_factor = 1;
 
+  cinfo.restart_in_rows = restart_in_rows;
+
   jpeg_start_compress(&cinfo, true);
 
   yArr = new JSAMPROW[cinfo.comp_info[0].v_samp_factor * DCTSIZE];
@@ -270,9 +283,10 @@ int jpegutil::Compress(int img_width, int img_height,
   imgArr[2] = const_cast<JSAMPARRAY>(crArr);
 
   for (int y = 0; y < img_height; y += DCTSIZE * 2) {
-    std::array<unsigned char*, 16> yData = y_row_generator.LoadAt(y);
-    std::array<unsigned char*, 8> cbData = cb_row_generator.LoadAt(y / 2);
-    std::array<unsigned char*, 8> crData = cr_row_generator.LoadAt(y / 2);
+    int src_y = first_row + y;
+    std::array<unsigned char*, 16> yData = y_row_generator.LoadAt(src_y);
+    std::array<unsigned char*, 8> cbData = cb_row_generator.LoadAt(src_y / 2);
+    std::array<unsigned char*, 8> crData = cr_row_generator.LoadAt(src_y / 2);
 
     for (int row = 0; row < DCTSIZE * 2; row++) {
       yArr[row] = yData[row];
@@ -302,24 +316,41 @@ int jpegutil::Compress(int img_width, int img_height,
   return clientData.totalOutputBytes;
 }
 
-int jpegutil::Compress(
-    /** Input image dimensions */
-    int width, int height,
-    /** Y Plane */
-    unsigned char* yBuf, int yPStride, int yRStride,
-    /** Cb Plane */
-    unsigned char* cbBuf, int cbPStride, int cbRStride,
-    /** Cr Plane */
-    unsigned char* crBuf, int crPStride, int crRStride,
-    /** Output */
-    unsigned char* outBuf, size_t outBufCapacity,
-    /** Jpeg compression parameters */
-    int quality,
-    /** Crop */
-    int cropLeft, int cropTop, int cropRight, int cropBottom,
-    /** Rotation (multiple of 90).  For example, rot90 = 1 implies a 90 degree
-     * rotation. */
-    int rot90) {
+}  // namespace
+
+int jpegutil::Compress(int img_width, int img_height,
+                       jpegutil::RowIterator<16>& y_row_generator,
+                       jpegutil::RowIterator<8>& cb_row_generator,
+                       jpegutil::RowIterator<8>& cr_row_generator,
+                       unsigned char* out_buf, size_t out_buf_capacity,
+                       std::function<void(size_t)> flush, int quality) {
+  return CompressRows(img_width, img_height, 0, 0, y_row_generator,
+                      cb_row_generator, cr_row_generator, out_buf,
+                      out_buf_capacity, flush, quality);
+}
+
+namespace {
+
+/**
+ * The planes and transforms to compress a cropped and rotated YUV420 image.
+ */
+struct CompressionInput {
+  int width;
+  int height;
+  Plane y_plane;
+  Plane cb_plane;
+  Plane cr_plane;
+  Transform y_transform;
+  Transform chroma_transform;
+  int y_row_length;
+  int chroma_row_length;
+};
+
+CompressionInput MakeCompressionInput(
+    int width, int height, unsigned char* yBuf, int yPStride, int yRStride,
+    unsigned char* cbBuf, int cbPStride, int cbRStride, unsigned char* crBuf,
+    int crPStride, int crRStride, int cropLeft, int cropTop, int cropRight,
+    int cropBottom, int rot90) {
   int finalWidth;
   int finalHeight;
   finalWidth = cropRight - cropLeft;
@@ -339,14 +370,9 @@ int jpegutil::Compress(
   const Plane cbP = {width / 2, height / 2, cbBuf, cbPStride, cbRStride};
   const Plane crP = {width / 2, height / 2, crBuf, crPStride, crRStride};
 
-  auto flush = [](size_t numBytes) {
-    // do nothing
-  };
-
   // Round up to the nearest multiple of 64.
   int y_row_length = (finalWidth + 16 + 63) & ~63;
-  int cb_row_length = (finalWidth / 2 + 16 + 63) & ~63;
-  int cr_row_length = (finalWidth / 2 + 16 + 63) & ~63;
+  int chroma_row_length = (finalWidth / 2 + 16 + 63) & ~63;
 
   Transform yTrans = Transform::ForCropFollowedByRotation(
       cropLeft, cropTop, cropRight, cropBottom, rot90);
@@ -354,10 +380,244 @@ int jpegutil::Compress(
   Transform chromaTrans = Transform::ForCropFollowedByRotation(
       cropLeft / 2, cropTop / 2, cropRight / 2, cropBottom / 2, rot90);
 
-  RowIterator<16> yIter(yP, yTrans, y_row_length);
-  RowIterator<8> cbIter(cbP, chromaTrans, cb_row_length);
-  RowIterator<8> crIter(crP, chromaTrans, cr_row_length);
+  return CompressionInput{finalWidth, finalHeight,  yP,
+                          cbP,        crP,          yTrans,
+                          chromaTrans, y_row_length, chroma_row_length};
+}
+
+// The JPEG markers needed to stitch stripes together.
+const unsigned char kMarkerSOF0 = 0xC0;
+const unsigned char kMarkerSOS = 0xDA;
+const unsigned char kMarkerRST0 = 0xD0;
+const unsigned char kMarkerEOI = 0xD9;
+
+// Restart markers cycle through RST0 - RST7, so a stripe which starts at a
+// multiple of this many MCU-rows uses the same marker numbers whether it is
+// compressed alone or as part of the whole image.
+const int kStripeAlignmentMcuRows = 8;
+
+// The height of an MCU-row, for 2x2 subsampled chroma.
+const int kMcuRowHeight = 16;
+
+/**
+ * Returns the offset of the first marker segment of the given type before the
+ * scan data of a JPEG, or -1 if there is none.
+ */
+int FindMarker(const unsigned char* jpeg, size_t jpeg_size,
+               unsigned char marker) {
+  // Skip the SOI marker.
+  size_t pos = 2;
+  while (pos + 4 <= jpeg_size) {
+    if (jpeg[pos] != 0xFF) {
+      return -1;
+    }
+    unsigned char type = jpeg[pos + 1];
+    if (type == marker) {
+      return pos;
+    }
+    if (type == kMarkerSOS) {
+      return -1;
+    }
+    size_t length = (jpeg[pos + 2] << 8) | jpeg[pos + 3];
+    pos += 2 + length;
+  }
+  return -1;
+}
+
+/**
+ * Joins JPEGs of consecutive horizontal stripes of an image, each compressed
+ * with a restart marker after every MCU-row, into a single baseline JPEG.
+ *
+ * Stripe i was compressed into out_buf at stripe_offsets[i] and is
+ * stripe_sizes[i] bytes long. The stripes are in increasing order of offset,
+ * and the first one is at offset 0.
+ *
+ * The headers of the first stripe are kept, with the image height patched.
+ * Since every stripe uses the same tables and restart interval, the scan data
+ * of the following stripes can be moved down as-is, each preceded by the
+ * restart marker which the encoder would have emitted at that point.
+ *
+ * Returns the size of the joined JPEG, or -1 on failure.
+ */
+int StitchStripes(unsigned char* out_buf, const vector<size_t>& stripe_offsets,
+                  const vector<int>& stripe_sizes,
+                  const vector<int>& stripe_first_mcu_rows, int img_height) {
+  size_t size = 0;
+  for (size_t i = 0; i < stripe_offsets.size(); i++) {
+    const unsigned char* stripe = out_buf + stripe_offsets[i];
+    size_t stripe_size = stripe_sizes[i];
+    if (stripe_size < 4 || stripe[stripe_size - 2] != 0xFF ||
+        stripe[stripe_size - 1] != kMarkerEOI) {
+      return -1;
+    }
+    size_t scan_end = stripe_size - 2;
+    if (i == 0) {
+      int sof = FindMarker(stripe, stripe_size, kMarkerSOF0);
+      if (sof < 0) {
+        return -1;
+      }
+      // The height follows the marker, the segment length and the precision.
+      out_buf[sof + 5] = (img_height >> 8) & 0xFF;
+      out_buf[sof + 6] = img_height & 0xFF;
+      size = scan_end;
+    } else {
+      int sos = FindMarker(stripe, stripe_size, kMarkerSOS);
+      if (sos < 0) {
+        return -1;
+      }
+      size_t scan_start = sos + 2 + ((stripe[sos + 2] << 8) | stripe[sos + 3]);
+      // The joined JPEG ends at or before this stripe, and the stripe's
+      // headers are longer than the restart marker, so neither write below
+      // overwrites scan data which has not been moved yet.
+      out_buf[size] = 0xFF;
+      out_buf[size + 1] = static_cast<unsigned char>(
+          kMarkerRST0 + (stripe_first_mcu_rows[i] - 1) % 8);
+      size += 2;
+      memmove(out_buf + size, stripe + scan_start, scan_end - scan_start);
+      size += scan_end - scan_start;
+    }
+  }
+
+  out_buf[size] = 0xFF;
+  out_buf[size + 1] = kMarkerEOI;
+  return size + 2;
+}
+
+}  // namespace
+
+int jpegutil::Compress(
+    /** Input image dimensions */
+    int width, int height,
+    /** Y Plane */
+    unsigned char* yBuf, int yPStride, int yRStride,
+    /** Cb Plane */
+    unsigned char* cbBuf, int cbPStride, int cbRStride,
+    /** Cr Plane */
+    unsigned char* crBuf, int crPStride, int crRStride,
+    /** Output */
+    unsigned char* outBuf, size_t outBufCapacity,
+    /** Jpeg compression parameters */
+    int quality,
+    /** Crop */
+    int cropLeft, int cropTop, int cropRight, int cropBottom,
+    /** Rotation (multiple of 90).  For example, rot90 = 1 implies a 90 degree
+     * rotation. */
+    int rot90) {
+  CompressionInput input = MakeCompressionInput(
+      width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride, cbRStride,
+      crBuf, crPStride, crRStride, cropLeft, cropTop, cropRight, cropBottom,
+      rot90);
+
+  auto flush = [](size_t numBytes) {
+    // do nothing
+  };
+
+  RowIterator<16> yIter(input.y_plane, input.y_transform, input.y_row_length);
+  RowIterator<8> cbIter(input.cb_plane, input.chroma_transform,
+                        input.chroma_row_length);
+  RowIterator<8> crIter(input.cr_plane, input.chroma_transform,
+                        input.chroma_row_length);
 
-  return Compress(finalWidth, finalHeight, yIter, cbIter, crIter, outBuf,
+  return Compress(input.width, input.height, yIter, cbIter, crIter, outBuf,
                   outBufCapacity, flush, quality);
 }
+
+int jpegutil::CompressParallel(
+    /** Input image dimensions */
+    int width, int height,
+    /** Y Plane */
+    unsigned char* yBuf, int yPStride, int yRStride,
+    /** Cb Plane */
+    unsigned char* cbBuf, int cbPStride, int cbRStride,
+    /** Cr Plane */
+    unsigned char* crBuf, int crPStride, int crRStride,
+    /** Output */
+    unsigned char* outBuf, size_t outBufCapacity,
+    /** Jpeg compression parameters */
+    int quality,
+    /** Crop */
+    int cropLeft, int cropTop, int cropRight, int cropBottom,
+    /** Rotation (multiple of 90). */
+    int rot90,
+    /** The maximum number of threads to compress with */
+    int numThreads) {
+  CompressionInput input = MakeCompressionInput(
+      width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride, cbRStride,
+      crBuf, crPStride, crRStride, cropLeft, cropTop, cropRight, cropBottom,
+      rot90);
+
+  // Split the image into stripes of whole, aligned groups of MCU-rows.
+  int mcuRows = (input.height + kMcuRowHeight - 1) / kMcuRowHeight;
+  int groups =
+      (mcuRows + kStripeAlignmentMcuRows - 1) / kStripeAlignmentMcuRows;
+  int numStripes = min(numThreads, groups);
+  if (numStripes <= 1) {
+    return Compress(width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                    cbRStride, crBuf, crPStride, crRStride, outBuf,
+                    outBufCapacity, quality, cropLeft, cropTop, cropRight,
+                    cropBottom, rot90);
+  }
+
+  vector<int> firstMcuRows(numStripes + 1);
+  for (int i = 0; i <= numStripes; i++) {
+    int firstGroup = groups * i / numStripes;
+    firstMcuRows[i] = min(firstGroup * kStripeAlignmentMcuRows, mcuRows);
+  }
+
+  // Each stripe is compressed directly into its own slice of outBuf, sized
+  // in proportion to the number of rows in the stripe.
+  vector<size_t> offsets(numStripes + 1);
+  for (int i = 0; i <= numStripes; i++) {
+    offsets[i] = static_cast<size_t>(static_cast<double>(outBufCapacity) *
+                                     firstMcuRows[i] / mcuRows);
+  }
+  vector<int> results(numStripes);
+
+  auto compressStripe = [&](int i) {
+    RowIterator<16> yIter(input.y_plane, input.y_transform,
+                          input.y_row_length);
+    RowIterator<8> cbIter(input.cb_plane, input.chroma_transform,
+                          input.chroma_row_length);
+    RowIterator<8> crIter(input.cr_plane, input.chroma_transform,
+                          input.chroma_row_length);
+
+    int firstRow = firstMcuRows[i] * kMcuRowHeight;
+    int lastRow = min(firstMcuRows[i + 1] * kMcuRowHeight, input.height);
+
+    // The final flush reports the bytes left in the slice. Any earlier one
+    // means the slice filled up and is being overwritten.
+    int flushes = 0;
+    auto flush = [&](size_t numBytes) { flushes++; };
+
+    int size = CompressRows(input.width, lastRow - firstRow, firstRow, 1,
+                            yIter, cbIter, crIter, outBuf + offsets[i],
+                            offsets[i + 1] - offsets[i], flush, quality);
+    results[i] = flushes == 1 ? size : -1;
+  };
+
+  // Compress the first stripe on this thread.
+  vector<thread> workers;
+  for (int i = 1; i < numStripes; i++) {
+    workers.push_back(thread(compressStripe, i));
+  }
+  compressStripe(0);
+  for (thread& worker : workers) {
+    worker.join();
+  }
+
+  int stitched = -1;
+  if (find(results.begin(), results.end(), -1) == results.end()) {
+    offsets.pop_back();
+    stitched = StitchStripes(outBuf, offsets, results, firstMcuRows,
+                             input.height);
+  }
+  if (stitched < 0) {
+    // A stripe which compressed worse than the image as a whole overflowed
+    // its slice. Compress the whole image into the whole buffer instead.
+    return Compress(width, height, yBuf, yPStride, yRStride, cbBuf, cbPStride,
+                    cbRStride, crBuf, crPStride, crRStride, outBuf,
+                    outBufCapacity, quality, cropLeft, cropTop, cropRight,
+                    cropBottom, rot90);
+  }
+  return stitched;
+}
@@ -167,6 +167,37 @@ int Compress(
     int cropLeft, int cropTop, int cropRight, int cropBottom,
     /** Rotation */
     int rot90);
+
+/**
+ * Like Compress(), but splits the image into horizontal stripes which are
+ * compressed concurrently on up to numThreads threads.  Each stripe is a
+ * multiple of 128 rows high, with a restart marker after every MCU-row, so
+ * the stripes can be joined into a single baseline JPEG.  Each stripe is
+ * compressed into a slice of outBuf proportional to its height, and the
+ * slices are then joined in place.  Images which are too small to split, or
+ * with a stripe which does not fit its slice, are compressed on the calling
+ * thread.
+ * Returns the number of bytes written, or -1 in case of an error.
+ */
+int CompressParallel(
+    /** Input image dimensions */
+    int width, int height,
+    /** Y Plane */
+    unsigned char* yBuf, int yPStride, int yRStride,
+    /** Cb Plane */
+    unsigned char* cbBuf, int cbPStride, int cbRStride,
+    /** Cr Plane */
+    unsigned char* crBuf, int crPStride, int crRStride,
+    /** Output */
+    unsigned char* outBuf, size_t outBufCapacity,
+    /** Jpeg compression parameters */
+    int quality,
+    /** Crop */
+    int cropLeft, int cropTop, int cropRight, int cropBottom,
+    /** Rotation */
+    int rot90,
+    /** The maximum number of threads to use */
+    int numThreads);
 }
 
 template <unsigned int ROWS>
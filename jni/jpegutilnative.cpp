@@ -100,6 +100,49 @@ Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pNative(
                   rot90);
 }
 
+/**
+ * Like compressJpegFromYUV420pNative, but compresses horizontal stripes of the
+ * image concurrently on up to numThreads threads.
+ *
+ * @param numThreads the maximum number of threads to compress with
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_android_camera_util_JpegUtilNative_compressJpegFromYUV420pParallelNative(
+    JNIEnv* env, jclass clazz,
+    /** Input image dimensions */
+    jint width, jint height,
+    /** Y Plane */
+    jobject yBuf, jint yPStride, jint yRStride,
+    /** Cb Plane */
+    jobject cbBuf, jint cbPStride, jint cbRStride,
+    /** Cr Plane */
+    jobject crBuf, jint crPStride, jint crRStride,
+    /** Output */
+    jobject outBuf, jint outBufCapacity,
+    /** Jpeg compression parameters */
+    jint quality,
+    /** Crop */
+    jint cropLeft, jint cropTop, jint cropRight, jint cropBottom,
+    /** Rotation (multiple of 90). */
+    jint rot90,
+    /** Threads */
+    jint numThreads) {
+  jbyte* y = (jbyte*)env->GetDirectBufferAddress(yBuf);
+  jbyte* cb = (jbyte*)env->GetDirectBufferAddress(cbBuf);
+  jbyte* cr = (jbyte*)env->GetDirectBufferAddress(crBuf);
+  jbyte* out = (jbyte*)env->GetDirectBufferAddress(outBuf);
+
+  return CompressParallel(width, height,                                //
+                          (unsigned char*)y, yPStride, yRStride,        //
+                          (unsigned char*)cb, cbPStride, cbRStride,     //
+                          (unsigned char*)cr, crPStride, crRStride,     //
+                          (unsigned char*)out, (size_t)outBufCapacity,  //
+                          quality,                                      //
+                          cropLeft, cropTop, cropRight, cropBottom,     //
+                          rot90,                                        //
+                          numThreads);
+}
+
 /**
  * Copies the Image.Plane specified by planeBuf, pStride, and rStride to the
  * Bitmap.
@@ -99,6 +99,7 @@ import com.android.camera.data.GlideFilmstripManager;
 import com.android.camera.data.LocalFilmstripDataAdapter;
 import com.android.camera.data.LocalFilmstripDataAdapter.FilmstripItemListener;
 import com.android.camera.data.MediaDetails;
+import com.android.camera.data.MetadataLoadQueue;
 import com.android.camera.data.MetadataLoader;
 import com.android.camera.data.PhotoDataFactory;
 import com.android.camera.data.PhotoItem;
@@ -279,7 +280,7 @@ public class CameraActivity extends QuickActivity
     private long mOnCreateTime;
 
     private Menu mActionBarMenu;
-    private Preloader<Integer, AsyncTask> mPreloader;
+    private Preloader<Integer, MetadataLoadQueue.Request> mPreloader;
 
     /** Can be used to play custom sounds. */
     private SoundPlayer mSoundPlayer;
@@ -783,6 +784,7 @@ public class CameraActivity extends QuickActivity
 
                 @Override
                 public void onDataFocusChanged(final int prevIndex, final int newIndex) {
+                    mDataAdapter.setMetadataFocus(newIndex);
                     if (!mFilmstripVisible) {
                         return;
                     }
@@ -1959,7 +1961,7 @@ public class CameraActivity extends QuickActivity
             mDataAdapter = new CameraFilmstripDataAdapter(mAppContext,
                     mPhotoItemFactory, mVideoItemFactory);
             mDataAdapter.setLocalDataListener(mFilmstripItemListener);
-            mPreloader = new Preloader<Integer, AsyncTask>(FILMSTRIP_PRELOAD_AHEAD_ITEMS, mDataAdapter,
+            mPreloader = new Preloader<Integer, MetadataLoadQueue.Request>(FILMSTRIP_PRELOAD_AHEAD_ITEMS, mDataAdapter,
                     mDataAdapter);
             if (!mSecureCamera) {
                 mFilmstripController.setDataAdapter(mDataAdapter);
@@ -18,8 +18,10 @@ package com.android.camera;
 
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTagIndex;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class Exif {
     private static final Log.Tag TAG = new Log.Tag("CameraExif");
@@ -34,6 +36,20 @@ public class Exif {
         return exif;
     }
 
+    /**
+     * Reads the EXIF data from a JPEG held in a (possibly direct) buffer
+     * without copying it. The buffer's position and limit are not changed.
+     */
+    public static ExifInterface getExif(ByteBuffer jpegData) {
+        ExifInterface exif = new ExifInterface();
+        try {
+            exif.readExif(jpegData);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read EXIF data", e);
+        }
+        return exif;
+    }
+
     // Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
     public static int getOrientation(ExifInterface exif) {
         Integer val = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
@@ -47,7 +63,18 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        // Only decode the orientation tag, the rest of the header is skipped.
+        Integer val = null;
+        try {
+            val = ExifTagIndex.read(jpegData, ExifInterface.TAG_ORIENTATION)
+                    .getTagIntValue(ExifInterface.TAG_ORIENTATION);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read EXIF data", e);
+        }
+        if (val == null) {
+            return 0;
+        } else {
+            return ExifInterface.getRotationForOrientationValue(val.shortValue());
+        }
     }
 }
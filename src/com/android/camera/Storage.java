@@ -39,6 +39,8 @@ import com.google.common.base.Optional;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -282,6 +284,29 @@ public class Storage {
                 width, height, mimeType);
     }
 
+    /**
+     * Like {@link #updateImage(Uri, ContentResolver, String, long, Location,
+     * int, ExifInterface, byte[], int, int, String)}, but takes the JPEG in a
+     * (possibly direct) buffer, which is written to disk without being copied
+     * onto the heap. The buffer must not be modified until onDataWritten has
+     * run, which happens as soon as the file is written (or the write fails),
+     * before the media store is updated.
+     */
+    public static Uri updateImage(Uri imageUri, ContentResolver resolver, String title, long date,
+           Location location, int orientation, ExifInterface exif,
+           ByteBuffer jpeg, int width, int height, String mimeType, Runnable onDataWritten)
+           throws IOException {
+        String path = generateFilepath(title, mimeType);
+        int jpegLength = jpeg.remaining();
+        try {
+            writeFile(path, jpeg, exif);
+        } finally {
+            onDataWritten.run();
+        }
+        return updateImage(imageUri, resolver, title, date, location, orientation, jpegLength,
+                path, width, height, mimeType);
+    }
+
     private static Uri generateUniquePlaceholderUri() {
         Uri.Builder builder = new Uri.Builder();
         String uuid = UUID.randomUUID().toString();
@@ -322,6 +347,30 @@ public class Storage {
 //        return -1;
     }
 
+    /**
+     * Writes the JPEG data held in a (possibly direct) buffer to a file. If
+     * there's EXIF info, a new EXIF header is written in front of the
+     * untouched image data. The buffer's position and limit are not changed.
+     *
+     * @param path The path to the target file.
+     * @param jpeg The JPEG data, between the buffer's position and limit.
+     * @param exif The EXIF info. Can be {@code null}.
+     *
+     * @return The size of the file. -1 if failed.
+     */
+    public static long writeFile(String path, ByteBuffer jpeg, ExifInterface exif)
+            throws IOException {
+        if (!createDirectoryIfNeeded(path)) {
+            Log.e(TAG, "Failed to create parent directory for file: " + path);
+            return -1;
+        }
+        if (exif != null) {
+            return exif.writeExif(jpeg, path);
+        } else {
+            return writeFile(path, jpeg);
+        }
+    }
+
     /**
      * Renames a file.
      *
@@ -375,6 +424,38 @@ public class Storage {
         return -1;
     }
 
+    /**
+     * Writes the data held in a (possibly direct) buffer to a file, without
+     * copying it onto the heap.
+     *
+     * @param path The path to the target file.
+     * @param data The data to save, between the buffer's position and limit.
+     *
+     * @return The size of the file. -1 if failed.
+     */
+    private static long writeFile(String path, ByteBuffer data) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(path);
+            ByteBuffer remaining = data.duplicate();
+            int length = remaining.remaining();
+            FileChannel channel = out.getChannel();
+            while (remaining.hasRemaining()) {
+                channel.write(remaining);
+            }
+            return length;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to write data", e);
+        } finally {
+            try {
+                out.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to close file after write", e);
+            }
+        }
+        return -1;
+    }
+
     /**
      * Given a file path, makes sure the directory it's in exists, and if not
      * that it is created.
@@ -41,7 +41,7 @@ public class CountableBufferQueue<T> implements BufferQueueController<T>, Buffer
         }
     }
 
-    private final ConcurrentBufferQueue<T> mBufferQueue;
+    private final LockFreeBufferQueue<T> mBufferQueue;
     private final Object mCountLock;
     private final Updatable<Integer> mSizeCallback;
     private int mCount;
@@ -54,7 +54,7 @@ public class CountableBufferQueue<T> implements BufferQueueController<T>, Buffer
      */
     public CountableBufferQueue(Updatable<Integer> sizeCallback, ConcurrentBufferQueue
             .UnusedElementProcessor<T> processor) {
-        mBufferQueue = new ConcurrentBufferQueue<T>(new DecrementingProcessor<T>(processor));
+        mBufferQueue = new LockFreeBufferQueue<T>(new DecrementingProcessor<T>(processor));
         mCountLock = new Object();
         mCount = 0;
         mSizeCallback = sizeCallback;
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.async;
+
+import com.android.camera.async.ConcurrentBufferQueue.UnusedElementProcessor;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Like {@link ConcurrentBufferQueue}, but adding and removing elements never
+ * takes a lock and does not allocate a wrapper for each element.
+ * <p/>
+ * Elements are stored in a linked list of fixed-size segments: producers and
+ * consumers claim slots with an atomic increment, and a new segment is only
+ * allocated every {@link #SEGMENT_SIZE} elements. Any number of threads may
+ * add and remove elements concurrently. Consumers only block, on a
+ * {@link Semaphore}, while the queue is empty.
+ * <p/>
+ * Optionally, the queue may be bounded, in which case adding an element to a
+ * full queue discards the oldest element, passing it to the
+ * {@link UnusedElementProcessor}.
+ * <p/>
+ * As with {@link ConcurrentBufferQueue}, closing the queue wakes up all
+ * blocked consumers, and every element which is never retrieved is passed to
+ * the {@link UnusedElementProcessor} exactly once, including elements added
+ * concurrently with, or after, {@link #close}.
+ */
+@ThreadSafe
+public class LockFreeBufferQueue<T> implements BufferQueue<T>, BufferQueueController<T>,
+        SafeCloseable {
+    /**
+     * The number of elements per segment.
+     */
+    private static final int SEGMENT_SIZE = 32;
+
+    /**
+     * Marks a slot whose element has been removed, or which was claimed by a
+     * consumer before its producer could fill it.
+     */
+    private static final Object TAKEN = new Object();
+
+    /**
+     * The number of permits released on close, to wake up every consumer which
+     * is, or will be, blocked.
+     */
+    private static final int CLOSED_PERMITS = Integer.MAX_VALUE / 2;
+
+    private static final class Segment {
+        /** The index of the next slot to fill. */
+        final AtomicInteger enqueueIndex;
+        /** The index of the next slot to read. */
+        final AtomicInteger dequeueIndex;
+        final AtomicReferenceArray<Object> slots;
+        final AtomicReference<Segment> next;
+
+        Segment() {
+            enqueueIndex = new AtomicInteger(0);
+            dequeueIndex = new AtomicInteger(0);
+            slots = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            next = new AtomicReference<>(null);
+        }
+    }
+
+    private final AtomicReference<Segment> mHead;
+    private final AtomicReference<Segment> mTail;
+    /**
+     * The number of elements which may be removed. Consumers block on this
+     * while the queue is empty.
+     */
+    private final Semaphore mAvailable;
+    /**
+     * The number of elements in the queue, only maintained if the queue is
+     * bounded.
+     */
+    private final AtomicInteger mSize;
+    private final AtomicBoolean mClosed;
+    private final int mCapacity;
+    private final UnusedElementProcessor<T> mUnusedElementProcessor;
+
+    /**
+     * @param capacity The maximum number of elements to hold before dropping
+     *            the oldest one, or 0 for no limit.
+     * @param unusedElementProcessor The callback to process elements which
+     *            are never retrieved via {@link #getNext}.
+     */
+    public LockFreeBufferQueue(int capacity, UnusedElementProcessor<T> unusedElementProcessor) {
+        Preconditions.checkArgument(capacity >= 0, "Capacity must not be negative.");
+        mCapacity = capacity;
+        mUnusedElementProcessor = unusedElementProcessor;
+        Segment segment = new Segment();
+        mHead = new AtomicReference<>(segment);
+        mTail = new AtomicReference<>(segment);
+        mAvailable = new Semaphore(0);
+        mSize = new AtomicInteger(0);
+        mClosed = new AtomicBoolean(false);
+    }
+
+    public LockFreeBufferQueue(UnusedElementProcessor<T> unusedElementProcessor) {
+        this(0, unusedElementProcessor);
+    }
+
+    public LockFreeBufferQueue() {
+        this(0, new UnusedElementProcessor<T>() {
+            @Override
+            public void process(T element) {
+            }
+        });
+    }
+
+    private void enqueue(T element) {
+        while (true) {
+            Segment tail = mTail.get();
+            int index = tail.enqueueIndex.getAndIncrement();
+            if (index < SEGMENT_SIZE) {
+                if (tail.slots.compareAndSet(index, null, element)) {
+                    return;
+                }
+                // A consumer gave up on this slot, so try the next one.
+                continue;
+            }
+            Segment next = tail.next.get();
+            if (next == null) {
+                Segment segment = new Segment();
+                segment.slots.lazySet(0, element);
+                segment.enqueueIndex.lazySet(1);
+                if (tail.next.compareAndSet(null, segment)) {
+                    mTail.compareAndSet(tail, segment);
+                    return;
+                }
+            } else {
+                mTail.compareAndSet(tail, next);
+            }
+        }
+    }
+
+    /**
+     * @return The oldest element, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    private T dequeue() {
+        while (true) {
+            Segment head = mHead.get();
+            if (head.dequeueIndex.get() >= head.enqueueIndex.get() && head.next.get() == null) {
+                return null;
+            }
+            int index = head.dequeueIndex.getAndIncrement();
+            if (index >= SEGMENT_SIZE) {
+                Segment next = head.next.get();
+                if (next == null) {
+                    return null;
+                }
+                mHead.compareAndSet(head, next);
+                continue;
+            }
+            Object element = head.slots.getAndSet(index, TAKEN);
+            if (element != null) {
+                return (T) element;
+            }
+            // The producer of this slot has not filled it yet, and will retry
+            // with another slot.
+        }
+    }
+
+    /**
+     * Removes an element for which a permit has been acquired.
+     *
+     * @return The element, or null if the queue was drained by close().
+     */
+    private T takeAcquired() {
+        while (true) {
+            T element = dequeue();
+            if (element != null) {
+                if (mCapacity > 0) {
+                    mSize.decrementAndGet();
+                }
+                return element;
+            }
+            if (mClosed.get()) {
+                return null;
+            }
+            // The element is being added and will be visible momentarily.
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Discards every remaining element, once the queue is closed.
+     */
+    private void drainClosed() {
+        T element;
+        while ((element = dequeue()) != null) {
+            mUnusedElementProcessor.process(element);
+        }
+    }
+
+    @Override
+    public void update(@Nonnull T element) {
+        if (mClosed.get()) {
+            mUnusedElementProcessor.process(element);
+            return;
+        }
+        // Release the permit before the element becomes visible, so that
+        // once peekNext() returns an element, discardNext() can take it.
+        // Consumers which acquire the permit first wait in takeAcquired().
+        mAvailable.release();
+        enqueue(element);
+        if (mCapacity > 0 && mSize.incrementAndGet() > mCapacity) {
+            // Drop the oldest element, unless consumers are about to take
+            // all of them.
+            if (mAvailable.tryAcquire()) {
+                T oldest = takeAcquired();
+                if (oldest != null) {
+                    mUnusedElementProcessor.process(oldest);
+                }
+            }
+        }
+        if (mClosed.get()) {
+            // close() may have missed the element.
+            drainClosed();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mClosed.getAndSet(true)) {
+            return;
+        }
+        drainClosed();
+        // Wake up all blocked consumers.
+        mAvailable.release(CLOSED_PERMITS);
+    }
+
+    private T onAcquired() throws BufferQueueClosedException {
+        T element = null;
+        if (!mClosed.get()) {
+            element = takeAcquired();
+        }
+        if (element == null) {
+            // Leave the permit for the next consumer, which will also find
+            // the queue closed.
+            mAvailable.release();
+            throw new BufferQueueClosedException();
+        }
+        return element;
+    }
+
+    @Override
+    public T getNext() throws InterruptedException, BufferQueueClosedException {
+        mAvailable.acquire();
+        return onAcquired();
+    }
+
+    @Override
+    public T getNext(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException,
+            BufferQueueClosedException {
+        if (!mAvailable.tryAcquire(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return onAcquired();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T peekNext() {
+        while (!mClosed.get()) {
+            Segment head = mHead.get();
+            int index = head.dequeueIndex.get();
+            if (index >= SEGMENT_SIZE) {
+                Segment next = head.next.get();
+                if (next == null) {
+                    return null;
+                }
+                mHead.compareAndSet(head, next);
+                continue;
+            }
+            Object element = head.slots.get(index);
+            if (element == null) {
+                // Empty, or the next element is still being added.
+                return null;
+            }
+            if (element != TAKEN) {
+                return (T) element;
+            }
+            // Removed concurrently, so look at the next slot.
+        }
+        return null;
+    }
+
+    /**
+     * Discards the next available element. Since the permit of every element
+     * is released before the element can be seen, this discards the element
+     * last returned by {@link #peekNext}, unless another consumer removes it
+     * first.
+     */
+    @Override
+    public void discardNext() {
+        if (mClosed.get() || !mAvailable.tryAcquire()) {
+            return;
+        }
+        T element = takeAcquired();
+        if (element == null) {
+            mAvailable.release();
+            return;
+        }
+        mUnusedElementProcessor.process(element);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+}
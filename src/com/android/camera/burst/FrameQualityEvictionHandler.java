@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.burst;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.Face;
+import android.support.v4.util.LongSparseArray;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * An {@link EvictionHandler} which drops the lowest quality frame instead of
+ * the oldest one.
+ * <p/>
+ * Every frame is scored from its capture result: focus and exposure
+ * convergence, faces in the scene and the expected motion blur, which is
+ * estimated from the exposure time and the gyroscope readings fed in via
+ * {@link #onGyroUpdate(long, float, float, float)} during the exposure of the
+ * frame. Scores are kept ordered, so both updating a score and selecting the
+ * frame to drop take O(log n).
+ * <p/>
+ * Frames whose capture result has not arrived yet are ranked above every
+ * scored frame, so a frame is never dropped only because its metadata is
+ * late. If no frame has been scored, the oldest frame is dropped.
+ */
+class FrameQualityEvictionHandler implements EvictionHandler {
+    /** The score of a frame whose capture result is not available yet. */
+    private static final float UNSCORED = Float.MAX_VALUE;
+
+    /** Relative weights of the individual quality measures. */
+    private static final float FOCUS_WEIGHT = 0.3f;
+    private static final float EXPOSURE_WEIGHT = 0.2f;
+    private static final float SHARPNESS_WEIGHT = 0.35f;
+    private static final float FACES_WEIGHT = 0.15f;
+
+    /** The number of faces at which the face score saturates. */
+    private static final int MAX_SCORED_FACES = 3;
+
+    /**
+     * The camera rotation during the exposure, in radians, at which a frame
+     * is considered to be half as sharp as a still one.
+     */
+    private static final float BLUR_TOLERANCE_RAD = 0.002f;
+
+    /** Exposure time to assume when the capture result does not report one. */
+    private static final long DEFAULT_EXPOSURE_TIME_NS = 33333333L;
+
+    /**
+     * The number of capture results kept for frames which have not been
+     * inserted yet.
+     */
+    private static final int MAX_PENDING_SCORES = 16;
+
+    /** The number of gyroscope readings kept, about 2.5s at 50Hz. */
+    private static final int GYRO_HISTORY_SIZE = 128;
+
+    /**
+     * How far outside of the exposure of a frame a gyroscope reading may be
+     * taken and still be used for it, about one sensor period.
+     */
+    private static final long GYRO_WINDOW_SLACK_NS = 20000000L;
+
+    private static class ScoredFrame {
+        final long timestamp;
+        float score = UNSCORED;
+
+        ScoredFrame(long timestamp) {
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** Orders frames from worst to best, breaking ties by age. */
+    private static final Comparator<ScoredFrame> WORST_FIRST = new Comparator<ScoredFrame>() {
+        @Override
+        public int compare(ScoredFrame lhs, ScoredFrame rhs) {
+            int byScore = Float.compare(lhs.score, rhs.score);
+            if (byScore != 0) {
+                return byScore;
+            }
+            return Long.compare(lhs.timestamp, rhs.timestamp);
+        }
+    };
+
+    /** Frames in the image buffer, ordered by their score. */
+    private final TreeSet<ScoredFrame> mRanking = new TreeSet<>(WORST_FIRST);
+
+    /** Frames in the image buffer, indexed by their timestamp. */
+    private final LongSparseArray<ScoredFrame> mFrames = new LongSparseArray<>();
+
+    /** Scores of capture results which arrived before their frame. */
+    private final LongSparseArray<Float> mPendingScores = new LongSparseArray<>();
+
+    /** Guards the gyroscope history, which is written from the sensor thread. */
+    private final Object mGyroLock = new Object();
+
+    /** Timestamps of the latest gyroscope readings, in a circular buffer. */
+    private final long[] mGyroTimestamps = new long[GYRO_HISTORY_SIZE];
+
+    /** Angular speeds of the latest gyroscope readings, in radians per second. */
+    private final float[] mGyroSpeeds = new float[GYRO_HISTORY_SIZE];
+
+    /** The number of gyroscope readings received so far. */
+    private int mGyroCount;
+
+    /**
+     * Records a gyroscope reading used to estimate motion blur.
+     * <p/>
+     * May be called from any thread, typically from a gyroscope sensor
+     * listener.
+     *
+     * @param t the time of the reading, in nanoseconds, in the time base of
+     *            the frame timestamps.
+     * @param x rotation rate around the x axis, in radians per second.
+     * @param y rotation rate around the y axis, in radians per second.
+     * @param z rotation rate around the z axis, in radians per second.
+     */
+    public void onGyroUpdate(long t, float x, float y, float z) {
+        float speed = (float) Math.sqrt(x * x + y * y + z * z);
+        synchronized (mGyroLock) {
+            int index = mGyroCount % GYRO_HISTORY_SIZE;
+            mGyroTimestamps[index] = t;
+            mGyroSpeeds[index] = speed;
+            mGyroCount++;
+        }
+    }
+
+    /**
+     * Returns the mean angular speed of the device during an exposure.
+     * <p/>
+     * If no gyroscope reading was taken close to the exposure, for example
+     * because the gyroscope and the camera use different clocks, the latest
+     * reading is used instead.
+     *
+     * @param startNs the start of the exposure.
+     * @param exposureNs the duration of the exposure.
+     * @return the angular speed in radians per second, or 0 if there are no
+     *         gyroscope readings.
+     */
+    float getAngularSpeed(long startNs, long exposureNs) {
+        long windowStart = startNs - GYRO_WINDOW_SLACK_NS;
+        long windowEnd = startNs + exposureNs + GYRO_WINDOW_SLACK_NS;
+        synchronized (mGyroLock) {
+            int count = Math.min(mGyroCount, GYRO_HISTORY_SIZE);
+            if (count == 0) {
+                return 0f;
+            }
+            float sum = 0f;
+            int samples = 0;
+            for (int i = 0; i < count; i++) {
+                long t = mGyroTimestamps[i];
+                if (t >= windowStart && t <= windowEnd) {
+                    sum += mGyroSpeeds[i];
+                    samples++;
+                }
+            }
+            if (samples > 0) {
+                return sum / samples;
+            }
+            return mGyroSpeeds[(mGyroCount - 1) % GYRO_HISTORY_SIZE];
+        }
+    }
+
+    @Override
+    public synchronized long selectFrameToDrop() {
+        Preconditions.checkState(!mRanking.isEmpty(), "No frame to drop.");
+        return mRanking.first().timestamp;
+    }
+
+    @Override
+    public void onFrameCaptureResultAvailable(long timestamp,
+            TotalCaptureResult captureResult) {
+        Long exposureTimeNs = captureResult.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        long exposureNs = exposureTimeNs != null ? exposureTimeNs : DEFAULT_EXPOSURE_TIME_NS;
+        Face[] faces = captureResult.get(CaptureResult.STATISTICS_FACES);
+        onFrameScoreAvailable(timestamp, scoreFrame(
+                captureResult.get(CaptureResult.CONTROL_AF_STATE),
+                captureResult.get(CaptureResult.LENS_STATE),
+                captureResult.get(CaptureResult.CONTROL_AE_STATE),
+                exposureNs,
+                faces != null ? faces.length : 0,
+                getAngularSpeed(timestamp, exposureNs)));
+    }
+
+    /**
+     * Sets the score of a frame, which may or may not have been inserted yet.
+     */
+    synchronized void onFrameScoreAvailable(long timestamp, float score) {
+        ScoredFrame frame = mFrames.get(timestamp);
+        if (frame == null) {
+            mPendingScores.put(timestamp, score);
+            if (mPendingScores.size() > MAX_PENDING_SCORES) {
+                mPendingScores.removeAt(0);
+            }
+            return;
+        }
+        mRanking.remove(frame);
+        frame.score = score;
+        mRanking.add(frame);
+    }
+
+    @Override
+    public synchronized void onFrameInserted(long timestamp) {
+        ScoredFrame frame = new ScoredFrame(timestamp);
+        int pendingIndex = mPendingScores.indexOfKey(timestamp);
+        if (pendingIndex >= 0) {
+            frame.score = mPendingScores.valueAt(pendingIndex);
+            mPendingScores.removeAt(pendingIndex);
+        }
+        mFrames.put(timestamp, frame);
+        mRanking.add(frame);
+    }
+
+    @Override
+    public synchronized void onFrameDropped(long timestamp) {
+        ScoredFrame frame = mFrames.get(timestamp);
+        if (frame != null) {
+            mFrames.remove(timestamp);
+            mRanking.remove(frame);
+        }
+    }
+
+    /**
+     * Returns the score of a frame in the image buffer.
+     *
+     * @param timestamp the timestamp of the frame.
+     * @return the score of the frame, between 0 and 1, or a negative value if
+     *         the frame is not in the buffer or has not been scored.
+     */
+    public synchronized float getFrameScore(long timestamp) {
+        ScoredFrame frame = mFrames.get(timestamp);
+        if (frame == null || frame.score == UNSCORED) {
+            return -1f;
+        }
+        return frame.score;
+    }
+
+    /**
+     * Scores a frame from the state reported in its capture result.
+     *
+     * @param afState the AF state, or null if not reported.
+     * @param lensState the lens state, or null if not reported.
+     * @param aeState the AE state, or null if not reported.
+     * @param exposureNs the exposure time in nanoseconds.
+     * @param faceCount the number of faces detected.
+     * @param angularSpeed the angular speed of the device, in radians per
+     *            second, during the exposure.
+     * @return the score of the frame, between 0 and 1, higher is better.
+     */
+    static float scoreFrame(Integer afState, Integer lensState, Integer aeState,
+            long exposureNs, int faceCount, float angularSpeed) {
+        float focus = scoreFocus(afState);
+        if (lensState != null && lensState == CaptureResult.LENS_STATE_MOVING) {
+            focus *= 0.5f;
+        }
+
+        float exposure = scoreExposure(aeState);
+
+        float blurRad = angularSpeed * exposureNs / 1e9f;
+        float sharpness = 1f / (1f + blurRad / BLUR_TOLERANCE_RAD);
+
+        float faceScore = (float) Math.min(faceCount, MAX_SCORED_FACES) / MAX_SCORED_FACES;
+
+        return FOCUS_WEIGHT * focus + EXPOSURE_WEIGHT * exposure
+                + SHARPNESS_WEIGHT * sharpness + FACES_WEIGHT * faceScore;
+    }
+
+    private static float scoreFocus(Integer afState) {
+        if (afState == null) {
+            return 0.5f;
+        }
+        switch (afState) {
+            case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+            case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
+                return 1f;
+            case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
+            case CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED:
+                return 0f;
+            default:
+                // Inactive or still scanning.
+                return 0.5f;
+        }
+    }
+
+    private static float scoreExposure(Integer aeState) {
+        if (aeState == null) {
+            return 0.5f;
+        }
+        switch (aeState) {
+            case CaptureResult.CONTROL_AE_STATE_CONVERGED:
+            case CaptureResult.CONTROL_AE_STATE_LOCKED:
+            case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED:
+                return 1f;
+            case CaptureResult.CONTROL_AE_STATE_SEARCHING:
+            case CaptureResult.CONTROL_AE_STATE_PRECAPTURE:
+                return 0.25f;
+            default:
+                return 0.5f;
+        }
+    }
+}
@@ -33,6 +33,8 @@ import com.google.common.base.Optional;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnull;
 
 /**
@@ -153,6 +155,16 @@ public class CaptureIntentSession implements CaptureSession {
         return Futures.immediateFuture(Optional.<Uri> absent());
     }
 
+    @Override
+    public synchronized ListenableFuture<Optional<Uri>> saveAndFinish(ByteBuffer data, int width,
+            int height, int orientation, ExifInterface exif, Runnable releaseData) {
+        // The picture data is handed to the intent's caller as an array.
+        byte[] jpeg = new byte[data.remaining()];
+        data.duplicate().get(jpeg);
+        releaseData.run();
+        return saveAndFinish(jpeg, width, height, orientation, exif);
+    }
+
     @Override
     public StackSaver getStackSaver() {
         return null;
@@ -23,12 +23,16 @@ import android.os.AsyncTask;
 import android.view.View;
 
 import com.android.camera.Storage;
+import com.android.camera.data.FilmstripContentQueries.PagedQuery;
 import com.android.camera.data.FilmstripItem.VideoClickedCallback;
+import com.android.camera.data.FilmstripPageLoader.Delta;
 import com.android.camera.debug.Log;
 import com.android.camera.util.Callback;
 import com.google.common.base.Optional;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
@@ -41,9 +45,21 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
 
+    /** The number of items to load before the filmstrip is first shown. */
+    private static final int FIRST_PAGE_SIZE = 50;
+    /** The number of items to load at a time after the first page. */
+    private static final int PAGE_SIZE = 500;
+    /**
+     * How close to the end of the loaded items a view may be requested before
+     * the next page is loaded.
+     */
+    private static final int PREFETCH_DISTANCE = 100;
+
     private final Context mContext;
     private final PhotoItemFactory mPhotoItemFactory;
     private final VideoItemFactory mVideoItemFactory;
+    private final FilmstripPageLoader mPageLoader;
+    private final MetadataLoadQueue mMetadataQueue;
 
     private FilmstripItemList mFilmstripItems;
 
@@ -57,12 +73,32 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     private FilmstripItem mFilmstripItemToDelete;
 
+    /**
+     * Incremented whenever the items are reloaded or cleared, so that pages
+     * and refreshes which were requested before are dropped.
+     */
+    private int mLoadGeneration;
+    /** Whether the first page was loaded, so that a refresh can be incremental. */
+    private boolean mFirstPageLoaded;
+    /** The directory the loaded items are in. */
+    private String mLoadedDirectory;
+    private boolean mPageLoading;
+    private boolean mHasMorePages;
+
     public CameraFilmstripDataAdapter(Context context,
             PhotoItemFactory photoItemFactory, VideoItemFactory videoItemFactory) {
         mContext = context;
         mFilmstripItems = new FilmstripItemList();
         mPhotoItemFactory = photoItemFactory;
         mVideoItemFactory = videoItemFactory;
+        mPageLoader = new FilmstripPageLoader(Arrays.<PagedQuery<? extends FilmstripItem>>asList(
+                photoItemFactory, videoItemFactory));
+        mMetadataQueue = new MetadataLoadQueue(context, new MetadataLoadQueue.Listener() {
+            @Override
+            public void onMetadataLoaded(FilmstripItem item, int index, boolean updated) {
+                onItemMetadataLoaded(item, index, updated);
+            }
+        });
     }
 
     @Override
@@ -78,19 +114,32 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public void requestLoad(Callback<Void> onDone) {
+        if (mFirstPageLoaded && Storage.generateDirectory().equals(mLoadedDirectory)) {
+            // Only load what changed since the items were loaded.
+            RefreshTask rtask = new RefreshTask(onDone, mFilmstripItems.snapshot());
+            rtask.execute();
+            return;
+        }
+        mLoadGeneration++;
         QueryTask qtask = new QueryTask(onDone);
         qtask.execute(mContext);
     }
 
     @Override
-    public AsyncTask updateMetadataAt(int index) {
+    public MetadataLoadQueue.Request updateMetadataAt(int index) {
         return updateMetadataAt(index, false);
     }
 
-    private AsyncTask updateMetadataAt(int index, boolean forceItemUpdate) {
-        MetadataUpdateTask result = new MetadataUpdateTask(forceItemUpdate);
-        result.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, index);
-        return result;
+    private MetadataLoadQueue.Request updateMetadataAt(int index, boolean forceItemUpdate) {
+        if (index < 0 || index >= mFilmstripItems.size()) {
+            return null;
+        }
+        return mMetadataQueue.request(index, mFilmstripItems.get(index), forceItemUpdate);
+    }
+
+    @Override
+    public void setMetadataFocus(int index) {
+        mMetadataQueue.setFocus(index);
     }
 
     @Override
@@ -143,6 +192,7 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
         FilmstripItem item = mFilmstripItems.get(index);
         item.setSuggestedSize(mSuggestedWidth, mSuggestedHeight);
+        loadMoreIfNeeded(index);
 
         return item.getView(Optional.fromNullable(recycled), this, /* inProgress */ false,
               videoClickedCallback);
@@ -187,9 +237,7 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public int findByContentUri(Uri uri) {
-        // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // FilmstripItemList indexes its items by uri, so this is O(log n).
         return mFilmstripItems.indexOf(uri);
     }
 
@@ -218,6 +266,9 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
 
     @Override
     public void clear() {
+        mLoadGeneration++;
+        mFirstPageLoaded = false;
+        mHasMorePages = false;
         replaceItemList(new FilmstripItemList());
     }
 
@@ -246,26 +297,51 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     }
 
     private void insertItem(FilmstripItem item) {
-        // Since this function is mostly for adding the newest data,
-        // a simple linear search should yield the best performance over a
-        // binary search.
-        int pos = 0;
-        Comparator<FilmstripItem> comp = new NewestFirstComparator(
-                new Date());
-        for (; pos < mFilmstripItems.size()
-                && comp.compare(item, mFilmstripItems.get(pos)) > 0; pos++) {
-        }
-        mFilmstripItems.add(pos, item);
+        int pos = mFilmstripItems.add(item, new NewestFirstComparator(new Date()));
         if (mListener != null) {
             mListener.onFilmstripItemInserted(pos, item);
         }
     }
 
+    /**
+     * Loads the next page in the background if the given index is close to
+     * the end of the loaded items.
+     */
+    private void loadMoreIfNeeded(int index) {
+        if (!mFirstPageLoaded || mPageLoading || !mHasMorePages
+                || index < mFilmstripItems.size() - PREFETCH_DISTANCE) {
+            return;
+        }
+        mPageLoading = true;
+        LoadPageTask ptask = new LoadPageTask();
+        ptask.execute();
+    }
+
+    /**
+     * Adds items which are older than the loaded items. Items which were
+     * already added, e.g. because they were captured in the meantime, are
+     * skipped.
+     */
+    private void appendItems(List<FilmstripItem> items) {
+        Comparator<FilmstripItem> comp = new NewestFirstComparator(new Date());
+        for (FilmstripItem item : items) {
+            if (mFilmstripItems.indexOf(item.getData().getUri()) != -1) {
+                continue;
+            }
+            int pos = mFilmstripItems.add(item, comp);
+            if (mListener != null) {
+                mListener.onFilmstripItemInserted(pos, item);
+            }
+        }
+    }
+
     /** Update all the data */
     private void replaceItemList(FilmstripItemList list) {
         if (list.size() == 0 && mFilmstripItems.size() == 0) {
             return;
         }
+        // The indexes of the waiting loads refer to the old items.
+        mMetadataQueue.cancelAll();
         mFilmstripItems = list;
         if (mListener != null) {
             mListener.onFilmstripItemLoaded();
@@ -273,25 +349,68 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     }
 
     @Override
-    public List<AsyncTask> preloadItems(List<Integer> items) {
-        List<AsyncTask> result = new ArrayList<>();
+    public List<MetadataLoadQueue.Request> preloadItems(List<Integer> items) {
+        List<MetadataLoadQueue.Request> result = new ArrayList<>();
         for (Integer id : items) {
             if (!isMetadataUpdatedAt(id)) {
-                result.add(updateMetadataAt(id));
+                MetadataLoadQueue.Request request = updateMetadataAt(id);
+                if (request != null) {
+                    result.add(request);
+                }
             }
         }
         return result;
     }
 
     @Override
-    public void cancelItems(List<AsyncTask> loadTokens) {
-        for (AsyncTask asyncTask : loadTokens) {
-            if (asyncTask != null) {
-                asyncTask.cancel(false);
+    public void cancelItems(List<MetadataLoadQueue.Request> loadTokens) {
+        for (MetadataLoadQueue.Request request : loadTokens) {
+            if (request != null) {
+                request.cancel();
             }
         }
     }
 
+    /**
+     * Notifies the listeners that the metadata of an item was loaded, at the
+     * index it has now.
+     */
+    private void onItemMetadataLoaded(FilmstripItem item, int requestedIndex, boolean updated) {
+        if (!updated) {
+            return;
+        }
+        int index = requestedIndex;
+        if (index >= mFilmstripItems.size() || mFilmstripItems.get(index) != item) {
+            // Items were added or removed since the load was requested.
+            index = mFilmstripItems.indexOf(item.getData().getUri());
+            if (index == -1 || mFilmstripItems.get(index) != item) {
+                return;
+            }
+        }
+        final List<Integer> updatedData = Collections.singletonList(index);
+        // Since the metadata will affect the width and height of the data
+        // if it's a video, we need to notify the DataAdapter listener
+        // because ImageData.getWidth() and ImageData.getHeight() now may
+        // return different values due to the metadata.
+        if (mListener != null) {
+            mListener.onFilmstripItemUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int index) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int index) {
+                    return updatedData.contains(index);
+                }
+            });
+        }
+        if (mFilmstripItemListener == null) {
+            return;
+        }
+        mFilmstripItemListener.onMetadataUpdated(updatedData);
+    }
+
     @Override
     public List<Integer> getItemsInRange(int startPosition, int endPosition) {
         List<Integer> result = new ArrayList<>();
@@ -362,10 +481,13 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
     private class QueryTaskResult {
         public FilmstripItemList mFilmstripItemList;
         public long mLastPhotoId;
+        public boolean mHasMore;
 
-        public QueryTaskResult(FilmstripItemList filmstripItemList, long lastPhotoId) {
+        public QueryTaskResult(FilmstripItemList filmstripItemList, long lastPhotoId,
+                boolean hasMore) {
             mFilmstripItemList = filmstripItemList;
             mLastPhotoId = lastPhotoId;
+            mHasMore = hasMore;
         }
     }
 
@@ -374,65 +496,61 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         private static final int MAX_METADATA = 5;
 
         private final Callback<Void> mDoneCallback;
+        private final int mGeneration;
+        private final String mDirectory;
 
         public QueryTask(Callback<Void> doneCallback) {
             mDoneCallback = doneCallback;
+            mGeneration = mLoadGeneration;
+            mDirectory = Storage.generateDirectory();
         }
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads the newest photo and video data in the camera folder in
+         * background and combine them into one single list. The rest is loaded
+         * a page at a time as the filmstrip is scrolled.
          *
          * @param contexts {@link Context} to load all the data.
          * @return An {@link CameraFilmstripDataAdapter.QueryTaskResult} containing
-         *  all loaded data and the highest photo id in the dataset.
+         *  the first page and the highest photo id in the dataset.
          */
         @Override
         protected QueryTaskResult doInBackground(Context... contexts) {
             final Context context = contexts[0];
             FilmstripItemList l = new FilmstripItemList();
-            // Photos and videos
-            List<PhotoItem> photoData = mPhotoItemFactory.queryAll();
-            List<VideoItem> videoData = mVideoItemFactory.queryAll();
-
-            long lastPhotoId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
-            if (photoData != null && !photoData.isEmpty()) {
-                // This relies on {@link LocalMediaData.QUERY_ORDER} returning
-                // items sorted descending by ID, as such we can just pull the
-                // ID from the first item in the result to establish the last
-                // (max) photo ID.
-                FilmstripItemData firstPhotoData = photoData.get(0).getData();
-
-                if(firstPhotoData != null) {
-                    lastPhotoId = firstPhotoData.getContentId();
-                }
-            }
-
-            if (photoData != null) {
-                Log.v(TAG, "retrieved photo metadata, number of items: " + photoData.size());
-                l.addAll(photoData);
-            }
-            if (videoData != null) {
-                Log.v(TAG, "retrieved video metadata, number of items: " + videoData.size());
-                l.addAll(videoData);
-            }
-            Log.v(TAG, "sorting video/photo metadata");
-            // Photos should be sorted within photo/video by ID, which in most
-            // cases should correlate well to the date taken/modified. This sort
-            // operation makes all photos/videos sorted by date in one list.
+            // Photos and videos, merged newest first.
+            mPageLoader.reset();
+            List<FilmstripItem> firstPage = mPageLoader.loadNextPage(FIRST_PAGE_SIZE);
+            Log.v(TAG, "retrieved first page of metadata, number of items: "
+                    + firstPage.size());
+            l.addAll(firstPage);
+            // The page is sorted by date taken, which is almost always the
+            // order of the comparator. This sort operation makes sure the
+            // list is in the order in which new items are inserted.
             l.sort(new NewestFirstComparator(new Date()));
-            Log.v(TAG, "sorted video/photo metadata");
+
+            // The watermark is the max photo id at the time of the query, as
+            // opposed to the max id in the first page.
+            long lastPhotoId = mPageLoader.getWatermark(mPhotoItemFactory).maxId;
 
             // Load enough metadata so it's already loaded when we open the filmstrip.
             for (int i = 0; i < MAX_METADATA && i < l.size(); i++) {
                 FilmstripItem data = l.get(i);
                 MetadataLoader.loadMetadata(context, data);
             }
-            return new QueryTaskResult(l, lastPhotoId);
+            return new QueryTaskResult(l, lastPhotoId, mPageLoader.hasMore());
         }
 
         @Override
         protected void onPostExecute(QueryTaskResult result) {
+            if (mGeneration != mLoadGeneration) {
+                Log.v(TAG, "dropping stale query result");
+                return;
+            }
+            mFirstPageLoaded = true;
+            mLoadedDirectory = mDirectory;
+            mPageLoading = false;
+            mHasMorePages = result.mHasMore;
             // Since we're wiping away all of our data, we should always replace any existing last
             // photo id with the new one we just obtained so it matches the data we're showing.
             mLastPhotoId = result.mLastPhotoId;
@@ -446,70 +564,98 @@ public class CameraFilmstripDataAdapter implements LocalFilmstripDataAdapter {
         }
     }
 
-    private class DeletionTask extends AsyncTask<FilmstripItem, Void, Void> {
+    private class LoadPageTask extends AsyncTask<Void, Void, List<FilmstripItem>> {
+        private final int mGeneration;
+        private boolean mHasMore;
+
+        public LoadPageTask() {
+            mGeneration = mLoadGeneration;
+        }
+
         @Override
-        protected Void doInBackground(FilmstripItem... items) {
-            for (FilmstripItem item : items) {
-                if (!item.getAttributes().canDelete()) {
-                    Log.v(TAG, "Deletion is not supported:" + item);
-                    continue;
-                }
-                item.delete();
+        protected List<FilmstripItem> doInBackground(Void... params) {
+            List<FilmstripItem> page = mPageLoader.loadNextPage(PAGE_SIZE);
+            mHasMore = mPageLoader.hasMore();
+            Log.v(TAG, "retrieved page of metadata, number of items: " + page.size());
+            return page;
+        }
+
+        @Override
+        protected void onPostExecute(List<FilmstripItem> page) {
+            if (mGeneration != mLoadGeneration) {
+                Log.v(TAG, "dropping stale page");
+                return;
             }
-            return null;
+            mPageLoading = false;
+            mHasMorePages = mHasMore;
+            appendItems(page);
         }
     }
 
-    private class MetadataUpdateTask extends AsyncTask<Integer, Void, List<Integer> > {
-        private final boolean mForceUpdate;
+    /**
+     * Applies the changes since the items were loaded, instead of loading
+     * them all again.
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, Delta> {
+        private final Callback<Void> mDoneCallback;
+        private final List<FilmstripItem> mLoadedItems;
+        private final int mGeneration;
+        private long mLastPhotoIdSeen;
 
-        MetadataUpdateTask(boolean forceUpdate) {
-            super();
-            mForceUpdate = forceUpdate;
+        public RefreshTask(Callback<Void> doneCallback, List<FilmstripItem> loadedItems) {
+            mDoneCallback = doneCallback;
+            mLoadedItems = loadedItems;
+            mGeneration = mLoadGeneration;
         }
 
-        MetadataUpdateTask() {
-            this(false);
+        @Override
+        protected Delta doInBackground(Void... params) {
+            Delta delta = mPageLoader.loadChanges(mLoadedItems);
+            mLastPhotoIdSeen = mPageLoader.getWatermark(mPhotoItemFactory).maxId;
+            return delta;
         }
 
         @Override
-        protected List<Integer> doInBackground(Integer... dataId) {
-            List<Integer> updatedList = new ArrayList<>();
-            for (Integer id : dataId) {
-                if (id < 0 || id >= mFilmstripItems.size()) {
+        protected void onPostExecute(Delta delta) {
+            if (mGeneration != mLoadGeneration) {
+                Log.v(TAG, "dropping stale refresh");
+                return;
+            }
+            for (FilmstripItem item : delta.removed) {
+                int pos = mFilmstripItems.indexOf(item.getData().getUri());
+                if (pos == -1) {
                     continue;
                 }
-                final FilmstripItem data = mFilmstripItems.get(id);
-                if (MetadataLoader.loadMetadata(mContext, data) || mForceUpdate) {
-                    updatedList.add(id);
+                mFilmstripItems.remove(pos);
+                if (mListener != null) {
+                    mListener.onFilmstripItemRemoved(pos, item);
                 }
             }
-            return updatedList;
+            // As with new photos, session items are left to the session.
+            for (FilmstripItem item : delta.changed) {
+                Uri sessionUri = Storage.getSessionUriFromContentUri(item.getData().getUri());
+                if (sessionUri == null) {
+                    addOrUpdate(item);
+                }
+            }
+            mLastPhotoId = Math.max(mLastPhotoId, mLastPhotoIdSeen);
+            if (mDoneCallback != null) {
+                mDoneCallback.onCallback(null);
+            }
         }
+    }
 
+    private class DeletionTask extends AsyncTask<FilmstripItem, Void, Void> {
         @Override
-        protected void onPostExecute(final List<Integer> updatedData) {
-            // Since the metadata will affect the width and height of the data
-            // if it's a video, we need to notify the DataAdapter listener
-            // because ImageData.getWidth() and ImageData.getHeight() now may
-            // return different values due to the metadata.
-            if (mListener != null) {
-                mListener.onFilmstripItemUpdated(new UpdateReporter() {
-                    @Override
-                    public boolean isDataRemoved(int index) {
-                        return false;
-                    }
-
-                    @Override
-                    public boolean isDataUpdated(int index) {
-                        return updatedData.contains(index);
-                    }
-                });
-            }
-            if (mFilmstripItemListener == null) {
-                return;
+        protected Void doInBackground(FilmstripItem... items) {
+            for (FilmstripItem item : items) {
+                if (!item.getAttributes().canDelete()) {
+                    Log.v(TAG, "Deletion is not supported:" + item);
+                    continue;
+                }
+                item.delete();
             }
-            mFilmstripItemListener.onMetadataUpdated(updatedData);
+            return null;
         }
     }
 }
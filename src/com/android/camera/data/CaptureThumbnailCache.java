@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Process;
+
+import com.android.camera.async.AndroidPriorityThread;
+import com.android.camera.debug.Log;
+import com.android.camera.util.Size;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A disk cache of thumbnails of the images captured by the camera, keyed by
+ * their content URI. The filmstrip shows these until the media store has a
+ * thumbnail of its own, instead of decoding the full image.
+ * <p>
+ * Each image is cached at every {@link Level} as a small JPEG. When the cache
+ * grows past its maximum size, the least recently used thumbnails are
+ * removed. The order of use is kept in the modification time of the files,
+ * so that it survives the process.
+ */
+@ThreadSafe
+public class CaptureThumbnailCache {
+    private static final Log.Tag TAG = new Log.Tag("CaptureThumbCache");
+
+    private static final String DIRECTORY_NAME = "capture_thumbnails";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAX_SIZE_BYTES = 8 * 1024 * 1024;
+    private static final int WORKER_KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * The resolutions thumbnails are cached at.
+     */
+    public enum Level {
+        TINY(GlideFilmstripManager.TINY_THUMB_SIZE),
+        THUMB(GlideFilmstripManager.MEDIASTORE_THUMB_SIZE);
+
+        private final int mLongEdge;
+        private final int mShortEdge;
+
+        private Level(Size size) {
+            mLongEdge = Math.max(size.getWidth(), size.getHeight());
+            mShortEdge = Math.min(size.getWidth(), size.getHeight());
+        }
+
+        /**
+         * @return The smallest level which is at least as large as the
+         *         requested size in either orientation, or null if the
+         *         requested size is larger than all levels.
+         */
+        public static Level forSize(int width, int height) {
+            int longEdge = Math.max(width, height);
+            int shortEdge = Math.min(width, height);
+            for (Level level : values()) {
+                if (longEdge <= level.mLongEdge && shortEdge <= level.mShortEdge) {
+                    return level;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return The size an image of the given size is scaled to for this
+         *         level, keeping its aspect ratio. Images are never scaled
+         *         up.
+         */
+        Size scale(int width, int height) {
+            int longEdge = Math.max(width, height);
+            int shortEdge = Math.min(width, height);
+            double ratio = Math.min(1.0, Math.min((double) mLongEdge / longEdge,
+                    (double) mShortEdge / shortEdge));
+            return new Size(Math.max(1, (int) Math.round(width * ratio)),
+                    Math.max(1, (int) Math.round(height * ratio)));
+        }
+    }
+
+    private static CaptureThumbnailCache sInstance;
+
+    /**
+     * @return The cache in the app's cache directory. Its index is loaded in
+     *         the background; until then it appears empty.
+     */
+    public static synchronized CaptureThumbnailCache instance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CaptureThumbnailCache(
+                    new File(context.getCacheDir(), DIRECTORY_NAME), MAX_SIZE_BYTES,
+                    createWorkerExecutor());
+            final CaptureThumbnailCache cache = sInstance;
+            cache.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    cache.loadIndex();
+                }
+            });
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return A single background thread, so that thumbnails of a burst of
+     *         captures are encoded one at a time.
+     */
+    private static Executor createWorkerExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new AndroidPriorityThread(
+                                Process.THREAD_PRIORITY_BACKGROUND, runnable);
+                        thread.setName("CaptureThumbCache");
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final Object mLock = new Object();
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final Executor mExecutor;
+
+    /**
+     * The names of the files in {@link #mEntries}, which
+     * {@link #contains(Uri, Level)} reads without taking the lock, so that the
+     * main thread does not wait while the index is loaded or trimmed.
+     */
+    private final Set<String> mNames =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** The sizes of the files by name, least recently used first. */
+    @GuardedBy("mLock")
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(16, 0.75f, true /* accessOrder */);
+    @GuardedBy("mLock")
+    private long mSizeBytes;
+    @GuardedBy("mLock")
+    private boolean mIndexLoaded;
+
+    /**
+     * @param executor Runs {@link #putInBackground(Uri, Bitmap)}.
+     */
+    CaptureThumbnailCache(File directory, long maxSizeBytes, Executor executor) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mExecutor = executor;
+    }
+
+    /**
+     * Caches a thumbnail of an image at every level on a background thread,
+     * so that compressing and writing the thumbnails does not delay saving
+     * the image. Until that is done, the image is not cached.
+     *
+     * @param contentUri The content URI of the image.
+     * @param thumbnail An upright thumbnail of the image, which is scaled
+     *            down for each level. It must not be modified afterwards.
+     */
+    public void putInBackground(final Uri contentUri, final Bitmap thumbnail) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                put(contentUri, thumbnail);
+            }
+        });
+    }
+
+    /**
+     * Caches a thumbnail of an image at every level. This compresses the
+     * thumbnails and writes them to disk.
+     */
+    private void put(Uri contentUri, Bitmap thumbnail) {
+        for (Level level : Level.values()) {
+            Size size = level.scale(thumbnail.getWidth(), thumbnail.getHeight());
+            Bitmap scaled = thumbnail;
+            if (size.getWidth() != thumbnail.getWidth()
+                    || size.getHeight() != thumbnail.getHeight()) {
+                scaled = Bitmap.createScaledBitmap(thumbnail, size.getWidth(), size.getHeight(),
+                        true /* filter */);
+            }
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            scaled.compress(Bitmap.CompressFormat.JPEG,
+                    GlideFilmstripManager.JPEG_COMPRESS_QUALITY, jpeg);
+            if (scaled != thumbnail) {
+                scaled.recycle();
+            }
+            put(contentUri, level, jpeg.toByteArray());
+        }
+    }
+
+    /**
+     * Caches the encoded thumbnail of an image at one level.
+     */
+    void put(Uri contentUri, Level level, byte[] jpeg) {
+        String name = fileName(contentUri, level);
+        File file = new File(mDirectory, name);
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Could not create " + mDirectory);
+            return;
+        }
+        // Written outside of the lock, so that lookups on the main thread
+        // don't wait for the disk.
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(jpeg);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache thumbnail of " + contentUri, e);
+            closeSilently(out);
+            temp.delete();
+            return;
+        }
+        synchronized (mLock) {
+            loadIndexLocked();
+            removeEntryLocked(name);
+            mEntries.put(name, (long) jpeg.length);
+            mNames.add(name);
+            mSizeBytes += jpeg.length;
+            trimLocked();
+        }
+    }
+
+    /**
+     * Returns whether a thumbnail of an image is cached at a level. This
+     * only checks the index in memory, without waiting for other calls, so it
+     * can be called on the main thread. The thumbnail may be removed before
+     * it is opened.
+     */
+    public boolean contains(Uri contentUri, Level level) {
+        return mNames.contains(fileName(contentUri, level));
+    }
+
+    /**
+     * Opens the cached thumbnail of an image at a level, and marks it as
+     * recently used.
+     *
+     * @throws FileNotFoundException if it is not cached.
+     */
+    public InputStream open(Uri contentUri, Level level) throws FileNotFoundException {
+        String name = fileName(contentUri, level);
+        File file = new File(mDirectory, name);
+        synchronized (mLock) {
+            loadIndexLocked();
+            if (mEntries.get(name) == null) {
+                throw new FileNotFoundException(name);
+            }
+            try {
+                InputStream stream = new FileInputStream(file);
+                file.setLastModified(System.currentTimeMillis());
+                return stream;
+            } catch (FileNotFoundException e) {
+                removeEntryLocked(name);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Removes the thumbnails of an image, e.g. because it was deleted.
+     */
+    public void remove(Uri contentUri) {
+        synchronized (mLock) {
+            loadIndexLocked();
+            for (Level level : Level.values()) {
+                String name = fileName(contentUri, level);
+                if (removeEntryLocked(name)) {
+                    new File(mDirectory, name).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The total size of the cached thumbnails.
+     */
+    public long getSizeBytes() {
+        synchronized (mLock) {
+            return mSizeBytes;
+        }
+    }
+
+    void loadIndex() {
+        synchronized (mLock) {
+            loadIndexLocked();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void loadIndexLocked() {
+        if (mIndexLoaded) {
+            return;
+        }
+        mIndexLoaded = true;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // Least recently used first.
+        final Map<File, Long> lastModified = new HashMap<>();
+        List<File> thumbnails = new ArrayList<>(files.length);
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // Left over from a write which did not complete.
+                file.delete();
+            } else {
+                thumbnails.add(file);
+                lastModified.put(file, file.lastModified());
+            }
+        }
+        Collections.sort(thumbnails, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lastModified.get(lhs), lastModified.get(rhs));
+            }
+        });
+        for (File file : thumbnails) {
+            long length = file.length();
+            mEntries.put(file.getName(), length);
+            mSizeBytes += length;
+        }
+        trimLocked();
+        mNames.addAll(mEntries.keySet());
+        Log.v(TAG, "loaded " + mEntries.size() + " thumbnails, " + mSizeBytes + " bytes");
+    }
+
+    @GuardedBy("mLock")
+    private boolean removeEntryLocked(String name) {
+        Long length = mEntries.remove(name);
+        if (length == null) {
+            return false;
+        }
+        mNames.remove(name);
+        mSizeBytes -= length;
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void trimLocked() {
+        Iterator<Map.Entry<String, Long>> eldest = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(mDirectory, entry.getKey()).delete();
+            mNames.remove(entry.getKey());
+            mSizeBytes -= entry.getValue();
+            eldest.remove();
+        }
+    }
+
+    private static String fileName(Uri contentUri, Level level) {
+        return level.name().toLowerCase() + "_" + Uri.encode(contentUri.toString());
+    }
+
+    private static void closeSilently(FileOutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.net.Uri;
+
+import com.android.camera.debug.Log;
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.stream.StreamModelLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A Glide model loader which loads thumbnails sized images from the
+ * {@link CaptureThumbnailCache} if they are cached there, and otherwise from
+ * another loader, e.g. one which uses the media store thumbnails.
+ */
+class CaptureThumbnailLoader implements StreamModelLoader<Uri> {
+    private static final Log.Tag TAG = new Log.Tag("CaptureThumbLoader");
+
+    private final CaptureThumbnailCache mCache;
+    private final ModelLoader<Uri, InputStream> mFallbackLoader;
+
+    public CaptureThumbnailLoader(CaptureThumbnailCache cache,
+            ModelLoader<Uri, InputStream> fallbackLoader) {
+        mCache = cache;
+        mFallbackLoader = fallbackLoader;
+    }
+
+    @Override
+    public DataFetcher<InputStream> getResourceFetcher(Uri model, int width, int height) {
+        DataFetcher<InputStream> fallback = mFallbackLoader.getResourceFetcher(model, width,
+                height);
+        CaptureThumbnailCache.Level level = CaptureThumbnailCache.Level.forSize(width, height);
+        if (level == null || !mCache.contains(model, level)) {
+            return fallback;
+        }
+        return new CachedThumbnailFetcher(model, level, fallback);
+    }
+
+    /**
+     * Reads a cached thumbnail, or falls back to another fetcher if it was
+     * removed from the cache in the meantime.
+     */
+    private class CachedThumbnailFetcher implements DataFetcher<InputStream> {
+        private final Uri mUri;
+        private final CaptureThumbnailCache.Level mLevel;
+        private final DataFetcher<InputStream> mFallback;
+        private InputStream mStream;
+        private boolean mUsedFallback;
+
+        public CachedThumbnailFetcher(Uri uri, CaptureThumbnailCache.Level level,
+                DataFetcher<InputStream> fallback) {
+            mUri = uri;
+            mLevel = level;
+            mFallback = fallback;
+        }
+
+        @Override
+        public InputStream loadData(Priority priority) throws Exception {
+            try {
+                mStream = mCache.open(mUri, mLevel);
+                return mStream;
+            } catch (IOException e) {
+                Log.v(TAG, "thumbnail no longer cached: " + mUri);
+                mUsedFallback = true;
+                return mFallback.loadData(priority);
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+            if (mUsedFallback) {
+                mFallback.cleanup();
+            }
+        }
+
+        @Override
+        public String getId() {
+            return "capture_thumbnail_" + mLevel.name() + ":" + mUri;
+        }
+
+        @Override
+        public void cancel() {
+            mFallback.cancel();
+        }
+    }
+}
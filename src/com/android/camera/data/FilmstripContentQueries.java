@@ -25,8 +25,11 @@ import com.android.camera.Storage;
 import com.android.camera.debug.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A set of queries for loading data from a content resolver.
  */
@@ -35,6 +38,24 @@ public class FilmstripContentQueries {
     private static final String CAMERA_PATH = Storage.generateDirectory() + "%";
     private static final String SELECT_BY_PATH = MediaStore.MediaColumns.DATA + " LIKE ?";
 
+    /**
+     * The date taken of a row, where a missing date sorts as the oldest.
+     * Images and videos share the column name.
+     */
+    private static final String DATE_TAKEN = "IFNULL("
+            + MediaStore.Images.ImageColumns.DATE_TAKEN + ", 0)";
+    private static final String DATE_TAKEN_COLUMN = "date_taken_or_zero";
+    private static final String SELECT_AFTER_POSITION = "(" + DATE_TAKEN + " < ? OR ("
+            + DATE_TAKEN + " = ? AND " + MediaStore.MediaColumns._ID + " < ?))";
+    private static final String SELECT_THROUGH_POSITION = "(" + DATE_TAKEN + " > ? OR ("
+            + DATE_TAKEN + " = ? AND " + MediaStore.MediaColumns._ID + " >= ?))";
+
+    /**
+     * Orders rows newest first, in the order in which they are paged through.
+     */
+    public static final String NEWEST_FIRST_ORDER = DATE_TAKEN + " DESC, "
+            + MediaStore.MediaColumns._ID + " DESC";
+
     public interface CursorToFilmstripItemFactory<I extends FilmstripItem> {
 
         /**
@@ -46,6 +67,117 @@ public class FilmstripContentQueries {
         public I get(Cursor cursor);
     }
 
+    /**
+     * The position of a row in {@link #NEWEST_FIRST_ORDER}. A paged query
+     * continues after the position of the last row of the previous page.
+     */
+    public static class PagePosition {
+        public final long dateTaken;
+        public final long id;
+
+        public PagePosition(long dateTaken, long id) {
+            this.dateTaken = dateTaken;
+            this.id = id;
+        }
+
+        public static PagePosition of(FilmstripItem item) {
+            FilmstripItemData data = item.getData();
+            return new PagePosition(data.getCreationDate().getTime(), data.getContentId());
+        }
+
+        /**
+         * @return Whether the given position comes after this one, i.e. is
+         *         older.
+         */
+        public boolean precedes(PagePosition other) {
+            if (dateTaken != other.dateTaken) {
+                return dateTaken > other.dateTaken;
+            }
+            return id > other.id;
+        }
+
+        @Override
+        public String toString() {
+            return "PagePosition{dateTaken=" + dateTaken + ", id=" + id + "}";
+        }
+    }
+
+    /**
+     * A page of items read from a query in {@link #NEWEST_FIRST_ORDER}.
+     */
+    public static class Page<I extends FilmstripItem> {
+        public final List<I> items;
+        /**
+         * The position of the last row read, which may be later than the last
+         * item if rows could not be converted. Null if no rows were read.
+         */
+        @Nullable
+        public final PagePosition end;
+        /** Whether there may be rows after this page. */
+        public final boolean hasMore;
+
+        public Page(List<I> items, @Nullable PagePosition end, boolean hasMore) {
+            this.items = items;
+            this.end = end;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * The newest id and modification date in a table, used to query only
+     * the rows which were added or changed since.
+     */
+    public static class Watermark {
+        public static final Watermark NONE = new Watermark(
+                FilmstripItemBase.QUERY_ALL_MEDIA_ID, 0);
+
+        public final long maxId;
+        public final long maxDateModifiedSeconds;
+
+        public Watermark(long maxId, long maxDateModifiedSeconds) {
+            this.maxId = maxId;
+            this.maxDateModifiedSeconds = maxDateModifiedSeconds;
+        }
+
+        @Override
+        public String toString() {
+            return "Watermark{maxId=" + maxId + ", maxDateModified=" + maxDateModifiedSeconds
+                    + "}";
+        }
+    }
+
+    /**
+     * A media store table which the filmstrip can load a page at a time, and
+     * refresh incrementally.
+     */
+    public interface PagedQuery<I extends FilmstripItem> {
+        /**
+         * @param after The position to continue after, or null to start with
+         *            the newest row.
+         * @param limit The maximum number of rows to read.
+         */
+        public Page<I> queryPage(@Nullable PagePosition after, int limit);
+
+        /**
+         * @return The items added after, or modified since, the watermark.
+         */
+        public List<I> queryChangedSince(Watermark watermark);
+
+        /**
+         * @param through The position of the oldest row to include, or null
+         *            for all rows.
+         * @return The sorted ids of the rows up to and including the position.
+         */
+        public long[] queryIds(@Nullable PagePosition through);
+
+        public Watermark queryWatermark();
+
+        /**
+         * @return Whether the item was created by this query.
+         */
+        public boolean isResultOf(FilmstripItem item);
+    }
+
     /**
      * Query the camera storage directory and convert it to local data
      * objects.
@@ -69,17 +201,179 @@ public class FilmstripContentQueries {
         List<I> result = new ArrayList<>();
         if (cursor != null) {
             while (cursor.moveToNext()) {
-                I item = factory.get(cursor);
-                if (item != null) {
-                    result.add(item);
-                } else {
-                    final int dataIndex = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
-                    Log.e(TAG, "Error loading data:" + cursor.getString(dataIndex));
-                }
+                addItem(cursor, factory, result);
             }
+            cursor.close();
+        }
+        return result;
+    }
 
+    /**
+     * Query the camera storage directory for the items added after, or
+     * modified since, a watermark.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @param projection the columns to extract
+     * @param watermark the newest id and modification date already loaded
+     * @param orderBy the order by clause
+     * @param factory an object that can turn a given cursor into a LocalData object.
+     * @return A list of LocalData objects that satisfy the query.
+     */
+    public static <I extends FilmstripItem> List<I> forCameraPathChangedSince(
+          ContentResolver contentResolver, Uri contentUri, String[] projection,
+          Watermark watermark, String orderBy, CursorToFilmstripItemFactory<I> factory) {
+        String selection = SELECT_BY_PATH + " AND (" + MediaStore.MediaColumns._ID + " > ? OR "
+              + MediaStore.MediaColumns.DATE_MODIFIED + " > ?)";
+        String[] selectionArgs = new String[] { CAMERA_PATH, Long.toString(watermark.maxId),
+              Long.toString(watermark.maxDateModifiedSeconds) };
+
+        Cursor cursor = contentResolver.query(contentUri, projection,
+              selection, selectionArgs, orderBy);
+        List<I> result = new ArrayList<>();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                addItem(cursor, factory, result);
+            }
             cursor.close();
         }
         return result;
     }
-}
\ No newline at end of file
+
+    /**
+     * Query one page of the camera storage directory in
+     * {@link #NEWEST_FIRST_ORDER}, continuing after the given position. This
+     * only reads the rows of the page, however many items the directory holds.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @param projection the columns to extract
+     * @param after the position of the last row of the previous page, or null
+     *            for the first page
+     * @param limit the maximum number of rows to read
+     * @param factory an object that can turn a given cursor into a LocalData object.
+     * @return The page of LocalData objects.
+     */
+    public static <I extends FilmstripItem> Page<I> forCameraPathPage(
+          ContentResolver contentResolver, Uri contentUri, String[] projection,
+          @Nullable PagePosition after, int limit, CursorToFilmstripItemFactory<I> factory) {
+        String selection = SELECT_BY_PATH;
+        String[] selectionArgs;
+        if (after == null) {
+            selectionArgs = new String[] { CAMERA_PATH };
+        } else {
+            selection += " AND " + SELECT_AFTER_POSITION;
+            selectionArgs = new String[] { CAMERA_PATH, Long.toString(after.dateTaken),
+                  Long.toString(after.dateTaken), Long.toString(after.id) };
+        }
+        // The date taken is read back from its own column, since the factory
+        // may not keep a missing date as 0.
+        String[] pageProjection = Arrays.copyOf(projection, projection.length + 1);
+        pageProjection[projection.length] = DATE_TAKEN + " AS " + DATE_TAKEN_COLUMN;
+
+        Cursor cursor = contentResolver.query(contentUri, pageProjection,
+              selection, selectionArgs, NEWEST_FIRST_ORDER + " LIMIT " + limit);
+        List<I> result = new ArrayList<>();
+        PagePosition end = null;
+        int rowCount = 0;
+        if (cursor != null) {
+            int idIndex = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
+            int dateTakenIndex = cursor.getColumnIndexOrThrow(DATE_TAKEN_COLUMN);
+            long dateTaken = 0;
+            long id = 0;
+            while (cursor.moveToNext()) {
+                rowCount++;
+                dateTaken = cursor.getLong(dateTakenIndex);
+                id = cursor.getLong(idIndex);
+                addItem(cursor, factory, result);
+            }
+            if (rowCount > 0) {
+                end = new PagePosition(dateTaken, id);
+            }
+            cursor.close();
+        }
+        return new Page<>(result, end, rowCount == limit);
+    }
+
+    /**
+     * Query the ids in the camera storage directory, without loading any other
+     * columns.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @param through the position of the oldest row to include, or null for
+     *            all rows
+     * @return The ids, in ascending order.
+     */
+    public static long[] idsForCameraPath(ContentResolver contentResolver, Uri contentUri,
+          @Nullable PagePosition through) {
+        String selection = SELECT_BY_PATH;
+        String[] selectionArgs;
+        if (through == null) {
+            selectionArgs = new String[] { CAMERA_PATH };
+        } else {
+            selection += " AND " + SELECT_THROUGH_POSITION;
+            selectionArgs = new String[] { CAMERA_PATH, Long.toString(through.dateTaken),
+                  Long.toString(through.dateTaken), Long.toString(through.id) };
+        }
+
+        Cursor cursor = contentResolver.query(contentUri,
+              new String[] { MediaStore.MediaColumns._ID }, selection, selectionArgs,
+              MediaStore.MediaColumns._ID + " ASC");
+        if (cursor == null) {
+            return new long[0];
+        }
+        long[] ids = new long[cursor.getCount()];
+        int count = 0;
+        while (cursor.moveToNext() && count < ids.length) {
+            ids[count++] = cursor.getLong(0);
+        }
+        cursor.close();
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Query the newest id and modification date in the camera storage
+     * directory.
+     *
+     * @param contentResolver to resolve content with.
+     * @param contentUri to resolve an item at
+     * @return The watermark, or {@link Watermark#NONE} if there are no rows.
+     */
+    public static Watermark watermarkForCameraPath(ContentResolver contentResolver,
+          Uri contentUri) {
+        long maxId = queryMaxForCameraPath(contentResolver, contentUri,
+              MediaStore.MediaColumns._ID);
+        long maxDateModified = queryMaxForCameraPath(contentResolver, contentUri,
+              MediaStore.MediaColumns.DATE_MODIFIED);
+        if (maxId == FilmstripItemBase.QUERY_ALL_MEDIA_ID) {
+            return Watermark.NONE;
+        }
+        return new Watermark(maxId, Math.max(0, maxDateModified));
+    }
+
+    private static long queryMaxForCameraPath(ContentResolver contentResolver, Uri contentUri,
+          String column) {
+        Cursor cursor = contentResolver.query(contentUri, new String[] { column },
+              SELECT_BY_PATH, new String[] { CAMERA_PATH }, column + " DESC LIMIT 1");
+        long max = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                max = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        return max;
+    }
+
+    private static <I extends FilmstripItem> void addItem(Cursor cursor,
+          CursorToFilmstripItemFactory<I> factory, List<I> result) {
+        I item = factory.get(cursor);
+        if (item != null) {
+            result.add(item);
+        } else {
+            final int dataIndex = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+            Log.e(TAG, "Error loading data:" + cursor.getString(dataIndex));
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.android.camera.data;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 
 import com.android.camera.util.Callback;
 
@@ -109,22 +108,27 @@ public abstract class FilmstripDataAdapterProxy implements
     }
 
     @Override
-    public AsyncTask updateMetadataAt(int index) {
+    public MetadataLoadQueue.Request updateMetadataAt(int index) {
         return mAdapter.updateMetadataAt(index);
     }
 
+    @Override
+    public void setMetadataFocus(int index) {
+        mAdapter.setMetadataFocus(index);
+    }
+
     @Override
     public boolean isMetadataUpdatedAt(int index) {
         return mAdapter.isMetadataUpdatedAt(index);
     }
 
     @Override
-    public List<AsyncTask> preloadItems(List<Integer> items) {
+    public List<MetadataLoadQueue.Request> preloadItems(List<Integer> items) {
         return mAdapter.preloadItems(items);
     }
 
     @Override
-    public void cancelItems(List<AsyncTask> loadTokens) {
+    public void cancelItems(List<MetadataLoadQueue.Request> loadTokens) {
         mAdapter.cancelItems(loadTokens);
     }
 
@@ -21,42 +21,46 @@ import android.net.Uri;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ * <p>
+ * The items are kept in a balanced tree (a treap) in which every node knows
+ * the size of its subtree, so that getting, adding and removing the item at
+ * an index are O(log n). Each node is also indexed by the Uri of its item,
+ * and knows its parent, so that finding the index of a Uri is O(log n) too.
+ * Adding an item to the filmstrip therefore doesn't get slower as the
+ * filmstrip grows.
  */
 public class FilmstripItemList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
-
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
+    private static class Node {
+        private FilmstripItem mItem;
+        private final int mPriority;
+        private Node mParent;
+        private Node mLeft;
+        private Node mRight;
+        /** The number of nodes in the subtree of this node. */
+        private int mSize = 1;
 
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof FilmstripItem)) {
-                return false;
-            }
-            return mUri.equals(((FilmstripItem) o).getData().getUri());
+        public Node(FilmstripItem item, int priority) {
+            mItem = item;
+            mPriority = priority;
         }
     }
 
     private static final Tag TAG = new Tag("LocalDataList");
-    private final LinkedList<FilmstripItem> mList = new LinkedList<FilmstripItem>();
-    private final HashMap<Uri, FilmstripItem> mUriMap = new HashMap<Uri, FilmstripItem>();
+    private final HashMap<Uri, Node> mUriMap = new HashMap<Uri, Node>();
+    private final Random mRandom = new Random();
+    private Node mRoot;
 
     public FilmstripItem get(int index) {
-        return mList.get(index);
+        return nodeAt(index).mItem;
     }
 
     /**
@@ -68,9 +72,10 @@ public class FilmstripItemList {
      */
     public synchronized FilmstripItem remove(int index) {
         try {
-            FilmstripItem removedItem = mList.remove(index);
-            mUriMap.remove(removedItem);
-            return removedItem;
+            Node node = nodeAt(index);
+            removeNode(node);
+            unmapUri(node);
+            return node.mItem;
         } catch (IndexOutOfBoundsException ex) {
             Log.w(TAG, "Could not remove item. Not found: " + index, ex);
             return null;
@@ -78,22 +83,49 @@ public class FilmstripItemList {
     }
 
     public FilmstripItem get(Uri uri) {
-        return mUriMap.get(uri);
+        Node node = mUriMap.get(uri);
+        return node == null ? null : node.mItem;
     }
 
     public void set(int pos, FilmstripItem data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getData().getUri(), data);
+        Node node = nodeAt(pos);
+        unmapUri(node);
+        node.mItem = data;
+        mUriMap.put(data.getData().getUri(), node);
     }
 
     public void add(FilmstripItem data) {
-        mList.add(data);
-        mUriMap.put(data.getData().getUri(), data);
+        add(size(), data);
     }
 
     public void add(int pos, FilmstripItem data) {
-        mList.add(pos, data);
-        mUriMap.put(data.getData().getUri(), data);
+        if (pos < 0 || pos > size()) {
+            throw new IndexOutOfBoundsException("Index: " + pos + ", Size: " + size());
+        }
+        Node node = new Node(data, mRandom.nextInt());
+        insertNode(pos, node);
+        mUriMap.put(data.getData().getUri(), node);
+    }
+
+    /**
+     * Adds an item before the first item which it does not sort after. If
+     * the list is sorted by the comparator, it stays sorted.
+     *
+     * @return The index the item was added at.
+     */
+    public int add(FilmstripItem data, Comparator<FilmstripItem> comparator) {
+        int pos = 0;
+        Node node = mRoot;
+        while (node != null) {
+            if (comparator.compare(data, node.mItem) > 0) {
+                pos += size(node.mLeft) + 1;
+                node = node.mRight;
+            } else {
+                node = node.mLeft;
+            }
+        }
+        add(pos, data);
+        return pos;
     }
 
     public void addAll(List<? extends FilmstripItem> filmstripItemList) {
@@ -102,23 +134,180 @@ public class FilmstripItemList {
         }
     }
 
+    /**
+     * @return A copy of the items, which is not affected by later changes to
+     *         this list.
+     */
+    public List<FilmstripItem> snapshot() {
+        List<FilmstripItem> items = new ArrayList<FilmstripItem>(size());
+        // In order, without recursion.
+        Node node = mRoot;
+        List<Node> stack = new ArrayList<Node>();
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.add(node);
+                node = node.mLeft;
+            }
+            node = stack.remove(stack.size() - 1);
+            items.add(node.mItem);
+            node = node.mRight;
+        }
+        return items;
+    }
+
     public int size() {
-        return mList.size();
+        return size(mRoot);
     }
 
     public void sort(Comparator<FilmstripItem> comparator) {
-        Collections.sort(mList, comparator);
+        List<FilmstripItem> items = snapshot();
+        Collections.sort(items, comparator);
+        mRoot = null;
+        mUriMap.clear();
+        addAll(items);
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Looks up the node of the uri and counts the items before it on the way
+     * up to the root, so performs in O(log n), and immediately returns -1 if
+     * the uri is not contained in the list.
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        Node node = mUriMap.get(uri);
+        if (node == null) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        int index = size(node.mLeft);
+        for (; node.mParent != null; node = node.mParent) {
+            if (node == node.mParent.mRight) {
+                index += size(node.mParent.mLeft) + 1;
+            }
+        }
+        return index;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.mSize;
+    }
+
+    private static void updateSize(Node node) {
+        node.mSize = size(node.mLeft) + size(node.mRight) + 1;
+    }
+
+    private Node nodeAt(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        Node node = mRoot;
+        while (true) {
+            int leftSize = size(node.mLeft);
+            if (index < leftSize) {
+                node = node.mLeft;
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = node.mRight;
+            }
+        }
+    }
+
+    /**
+     * Removes the uri of a node from the index, unless another node has been
+     * added for the same uri since.
+     */
+    private void unmapUri(Node node) {
+        Uri uri = node.mItem.getData().getUri();
+        if (mUriMap.get(uri) == node) {
+            mUriMap.remove(uri);
+        }
+    }
+
+    private void insertNode(int pos, Node node) {
+        if (mRoot == null) {
+            mRoot = node;
+            return;
+        }
+        // Add it as a leaf at the index,
+        Node parent = mRoot;
+        while (true) {
+            int leftSize = size(parent.mLeft);
+            if (pos <= leftSize) {
+                if (parent.mLeft == null) {
+                    parent.mLeft = node;
+                    break;
+                }
+                parent = parent.mLeft;
+            } else {
+                pos -= leftSize + 1;
+                if (parent.mRight == null) {
+                    parent.mRight = node;
+                    break;
+                }
+                parent = parent.mRight;
+            }
+        }
+        node.mParent = parent;
+        for (Node ancestor = parent; ancestor != null; ancestor = ancestor.mParent) {
+            ancestor.mSize++;
+        }
+        // then rotate it up until the priorities are in heap order again.
+        while (node.mParent != null && node.mPriority > node.mParent.mPriority) {
+            rotateUp(node);
+        }
+    }
+
+    private void removeNode(Node node) {
+        // Rotate it down until it has at most one child,
+        while (node.mLeft != null && node.mRight != null) {
+            rotateUp(node.mLeft.mPriority > node.mRight.mPriority ? node.mLeft : node.mRight);
+        }
+        // then replace it with that child.
+        Node child = node.mLeft != null ? node.mLeft : node.mRight;
+        Node parent = node.mParent;
+        replaceChild(parent, node, child);
+        for (Node ancestor = parent; ancestor != null; ancestor = ancestor.mParent) {
+            ancestor.mSize--;
+        }
+        node.mParent = null;
+        node.mLeft = null;
+        node.mRight = null;
+    }
+
+    /**
+     * Swaps a node with its parent, keeping the order of the items.
+     */
+    private void rotateUp(Node node) {
+        Node parent = node.mParent;
+        if (node == parent.mLeft) {
+            parent.mLeft = node.mRight;
+            if (node.mRight != null) {
+                node.mRight.mParent = parent;
+            }
+            node.mRight = parent;
+        } else {
+            parent.mRight = node.mLeft;
+            if (node.mLeft != null) {
+                node.mLeft.mParent = parent;
+            }
+            node.mLeft = parent;
+        }
+        replaceChild(parent.mParent, parent, node);
+        parent.mParent = node;
+        updateSize(parent);
+        updateSize(node);
+    }
+
+    private void replaceChild(Node parent, Node child, Node replacement) {
+        if (replacement != null) {
+            replacement.mParent = parent;
+        }
+        if (parent == null) {
+            mRoot = replacement;
+        } else if (parent.mLeft == child) {
+            parent.mLeft = replacement;
+        } else {
+            parent.mRight = replacement;
+        }
     }
 }
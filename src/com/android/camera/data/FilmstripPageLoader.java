@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import com.android.camera.data.FilmstripContentQueries.Page;
+import com.android.camera.data.FilmstripContentQueries.PagePosition;
+import com.android.camera.data.FilmstripContentQueries.PagedQuery;
+import com.android.camera.data.FilmstripContentQueries.Watermark;
+import com.android.camera.debug.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Loads the items of several {@link PagedQuery}s a page at a time, merged
+ * newest first, so that the filmstrip can show the newest items without
+ * reading the whole media store.
+ * <p/>
+ * The loader remembers how far each query has been read, and the newest id
+ * and modification date it has seen, so that a refresh only reads the rows
+ * which changed instead of reloading everything.
+ * <p/>
+ * The watermarks are kept in memory only, so a new process loads the first
+ * page again. Persisting them would not avoid that: only the items loaded in
+ * this process can be refreshed with a delta, and the first page is a single
+ * keyset query per media type. The costly part of showing an item, parsing
+ * its file for {@link Metadata}, is persisted by {@link MetadataIndex}.
+ */
+@ThreadSafe
+public class FilmstripPageLoader {
+    private static final Log.Tag TAG = new Log.Tag("FilmstripPageLdr");
+
+    /**
+     * The items which changed since the last load or refresh.
+     */
+    public static class Delta {
+        /** Loaded items which are no longer in the media store. */
+        public final List<FilmstripItem> removed;
+        /** Items which were added or modified within the loaded range. */
+        public final List<FilmstripItem> changed;
+
+        public Delta(List<FilmstripItem> removed, List<FilmstripItem> changed) {
+            this.removed = removed;
+            this.changed = changed;
+        }
+
+        public boolean isEmpty() {
+            return removed.isEmpty() && changed.isEmpty();
+        }
+    }
+
+    private static class Stream {
+        final PagedQuery<? extends FilmstripItem> query;
+        /** Items which were read, but not yet returned. */
+        final ArrayDeque<FilmstripItem> buffer = new ArrayDeque<>();
+        /** The position of the last row read, or null to start at the top. */
+        @Nullable
+        PagePosition queryPosition;
+        /** The position of the last item returned, or null if none was. */
+        @Nullable
+        PagePosition emittedPosition;
+        boolean exhausted;
+        Watermark watermark = Watermark.NONE;
+
+        Stream(PagedQuery<? extends FilmstripItem> query) {
+            this.query = query;
+        }
+
+        boolean isFullyEmitted() {
+            return exhausted && buffer.isEmpty();
+        }
+
+        /**
+         * @return Whether the item is at or before the last item returned,
+         *         and so should already be shown.
+         */
+        boolean isInLoadedRange(FilmstripItem item) {
+            if (isFullyEmitted()) {
+                return true;
+            }
+            return emittedPosition != null
+                    && !emittedPosition.precedes(PagePosition.of(item));
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final List<Stream> mStreams;
+    @GuardedBy("mLock")
+    private boolean mStarted;
+
+    public FilmstripPageLoader(List<? extends PagedQuery<? extends FilmstripItem>> queries) {
+        mStreams = new ArrayList<>(queries.size());
+        for (PagedQuery<? extends FilmstripItem> query : queries) {
+            mStreams.add(new Stream(query));
+        }
+    }
+
+    /**
+     * Forgets everything which was loaded, so that the next page is the
+     * first one.
+     */
+    public void reset() {
+        synchronized (mLock) {
+            for (int i = 0; i < mStreams.size(); i++) {
+                mStreams.set(i, new Stream(mStreams.get(i).query));
+            }
+            mStarted = false;
+        }
+    }
+
+    /**
+     * Loads the next items, newest first. This must not be called on the
+     * main thread.
+     *
+     * @param count The maximum number of items to return.
+     * @return The items following those returned by the previous call, in
+     *         order. This is empty once every item was returned.
+     */
+    public List<FilmstripItem> loadNextPage(int count) {
+        synchronized (mLock) {
+            if (!mStarted) {
+                // Read the watermarks first, so that rows added while paging
+                // through are picked up by the next refresh.
+                for (Stream stream : mStreams) {
+                    stream.watermark = stream.query.queryWatermark();
+                }
+                mStarted = true;
+            }
+            List<FilmstripItem> result = new ArrayList<>(count);
+            while (result.size() < count) {
+                Stream newest = null;
+                PagePosition newestPosition = null;
+                for (Stream stream : mStreams) {
+                    fill(stream, count);
+                    FilmstripItem head = stream.buffer.peekFirst();
+                    if (head == null) {
+                        continue;
+                    }
+                    PagePosition position = PagePosition.of(head);
+                    if (newest == null || position.precedes(newestPosition)) {
+                        newest = stream;
+                        newestPosition = position;
+                    }
+                }
+                if (newest == null) {
+                    break;
+                }
+                result.add(newest.buffer.pollFirst());
+                newest.emittedPosition = newestPosition;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @return Whether {@link #loadNextPage} may return more items.
+     */
+    public boolean hasMore() {
+        synchronized (mLock) {
+            if (!mStarted) {
+                return true;
+            }
+            for (Stream stream : mStreams) {
+                if (!stream.isFullyEmitted()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return The newest id and modification date seen for the query, or
+     *         {@link Watermark#NONE} if it is not loaded.
+     */
+    public Watermark getWatermark(PagedQuery<? extends FilmstripItem> query) {
+        synchronized (mLock) {
+            for (Stream stream : mStreams) {
+                if (stream.query == query) {
+                    return stream.watermark;
+                }
+            }
+            return Watermark.NONE;
+        }
+    }
+
+    /**
+     * Finds the items which were added, modified or removed since they were
+     * loaded, reading only the changed rows and the ids of the loaded range.
+     * Changes beyond the loaded range are left to later pages. This must not
+     * be called on the main thread.
+     *
+     * @param loaded The items currently shown.
+     */
+    public Delta loadChanges(List<FilmstripItem> loaded) {
+        synchronized (mLock) {
+            List<FilmstripItem> removed = new ArrayList<>();
+            List<FilmstripItem> changed = new ArrayList<>();
+            if (!mStarted) {
+                return new Delta(removed, changed);
+            }
+            for (Stream stream : mStreams) {
+                PagePosition through = stream.isFullyEmitted() ? null : stream.emittedPosition;
+                if (through != null || stream.isFullyEmitted()) {
+                    long[] ids = stream.query.queryIds(through);
+                    for (FilmstripItem item : loaded) {
+                        if (stream.query.isResultOf(item) && stream.isInLoadedRange(item)
+                                && Arrays.binarySearch(ids, item.getData().getContentId()) < 0) {
+                            removed.add(item);
+                        }
+                    }
+                }
+
+                long maxId = stream.watermark.maxId;
+                long maxDateModified = stream.watermark.maxDateModifiedSeconds;
+                for (FilmstripItem item : stream.query.queryChangedSince(stream.watermark)) {
+                    FilmstripItemData data = item.getData();
+                    maxId = Math.max(maxId, data.getContentId());
+                    maxDateModified = Math.max(maxDateModified,
+                            data.getLastModifiedDate().getTime() / 1000);
+                    if (stream.isInLoadedRange(item)) {
+                        changed.add(item);
+                    }
+                }
+                stream.watermark = new Watermark(maxId, maxDateModified);
+
+                if (!stream.isFullyEmitted()) {
+                    // Re-read the rest from the last item shown, since rows may
+                    // have been added or removed after it.
+                    stream.buffer.clear();
+                    stream.queryPosition = stream.emittedPosition;
+                    stream.exhausted = false;
+                }
+            }
+            Log.v(TAG, "loaded changes, removed: " + removed.size() + ", changed: "
+                    + changed.size());
+            return new Delta(removed, changed);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private static void fill(Stream stream, int limit) {
+        while (stream.buffer.isEmpty() && !stream.exhausted) {
+            Page<? extends FilmstripItem> page = stream.query.queryPage(stream.queryPosition,
+                    limit);
+            stream.buffer.addAll(page.items);
+            if (page.end != null) {
+                stream.queryPosition = page.end;
+            }
+            stream.exhausted = !page.hasMore;
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.android.camera.data;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.view.View;
 
 import com.android.camera.data.FilmstripItem.VideoClickedCallback;
@@ -190,7 +189,7 @@ public class FixedFirstProxyAdapter extends FilmstripDataAdapterProxy
     }
 
     @Override
-    public AsyncTask updateMetadataAt(int index) {
+    public MetadataLoadQueue.Request updateMetadataAt(int index) {
         if (index > 0) {
             return mAdapter.updateMetadataAt(index - 1);
         } else {
@@ -199,6 +198,11 @@ public class FixedFirstProxyAdapter extends FilmstripDataAdapterProxy
         return null;
     }
 
+    @Override
+    public void setMetadataFocus(int index) {
+        mAdapter.setMetadataFocus(Math.max(0, index - 1));
+    }
+
     @Override
     public boolean isMetadataUpdatedAt(int index) {
         if (index > 0) {
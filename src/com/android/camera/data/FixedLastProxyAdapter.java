@@ -18,7 +18,6 @@ package com.android.camera.data;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.view.View;
 
 import com.android.camera.data.FilmstripItem.VideoClickedCallback;
@@ -149,7 +148,7 @@ public class FixedLastProxyAdapter extends FilmstripDataAdapterProxy {
     }
 
     @Override
-    public AsyncTask updateMetadataAt(int index) {
+    public MetadataLoadQueue.Request updateMetadataAt(int index) {
         if (index < mAdapter.getTotalNumber()) {
             return mAdapter.updateMetadataAt(index);
         } else {
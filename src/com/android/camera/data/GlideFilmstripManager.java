@@ -35,6 +35,7 @@ import com.bumptech.glide.GenericRequestBuilder;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.RequestManager;
 import com.bumptech.glide.load.Key;
+import com.bumptech.glide.load.model.stream.MediaStoreStreamLoader;
 import com.bumptech.glide.load.resource.bitmap.BitmapEncoder;
 import com.bumptech.glide.load.resource.drawable.GlideDrawable;
 import com.bumptech.glide.load.resource.gif.GifResourceEncoder;
@@ -95,6 +96,7 @@ public final class GlideFilmstripManager {
     public static final int JPEG_COMPRESS_QUALITY = 90;
 
     private final GenericRequestBuilder<Uri, ?, ?, GlideDrawable> mTinyImageBuilder;
+    private final GenericRequestBuilder<Uri, ?, ?, GlideDrawable> mTinyCapturedImageBuilder;
     private final DrawableRequestBuilder<Uri> mLargeImageBuilder;
 
     public GlideFilmstripManager(Context context) {
@@ -106,6 +108,13 @@ public final class GlideFilmstripManager {
               new GifResourceEncoder(glide.getBitmapPool()));
         RequestManager request = Glide.with(context);
 
+        // Tiny thumbnails of freshly captured images come from the camera's own
+        // cache, as the media store has none yet.
+        CaptureThumbnailLoader thumbnailLoader = new CaptureThumbnailLoader(
+              CaptureThumbnailCache.instance(context),
+              new MediaStoreStreamLoader(context, Glide.buildStreamModelLoader(Uri.class,
+                    context)));
+
         mTinyImageBuilder = request
               .fromMediaStore()
               .asBitmap() // This prevents gifs from animating at tiny sizes.
@@ -114,6 +123,16 @@ public final class GlideFilmstripManager {
               .placeholder(DEFAULT_PLACEHOLDER_RESOURCE)
               .dontAnimate();
 
+        // Only images are cached, so this can't decode video frames.
+        mTinyCapturedImageBuilder = request
+              .using(thumbnailLoader)
+              .from(Uri.class)
+              .asBitmap() // This prevents gifs from animating at tiny sizes.
+              .transcode(new BitmapToGlideDrawableTranscoder(context), GlideDrawable.class)
+              .fitCenter()
+              .placeholder(DEFAULT_PLACEHOLDER_RESOURCE)
+              .dontAnimate();
+
         mLargeImageBuilder = request
               .fromMediaStore()
               .encoder(drawableEncoder)
@@ -168,14 +187,33 @@ public final class GlideFilmstripManager {
     }
 
     /**
-     * Create very tiny thumbnail request that should complete as fast
-     * as possible.
+     * Create a thumbnail request of an image with the same bounds as the
+     * media store thumbnail images. Images captured by the camera are loaded
+     * from the {@link CaptureThumbnailCache}, if they are still cached, as
+     * the media store may not have a thumbnail for them yet.
+     *
+     * If the Uri points at an animated gif, the gif will not play.
+     */
+    public GenericRequestBuilder<Uri, ?, ?, GlideDrawable> loadImageThumb(Uri uri, Key key) {
+        Size size = clampSize(MEDIASTORE_THUMB_SIZE, MAXIMUM_SMOOTH_PIXELS,
+              getMaxImageDisplaySize());
+        return mTinyCapturedImageBuilder
+              .clone()
+              .load(uri)
+              .signature(key)
+              .override(size.width(), size.height());
+    }
+
+    /**
+     * Create very tiny thumbnail request of an image that should complete as
+     * fast as possible. Images captured by the camera are loaded from the
+     * {@link CaptureThumbnailCache}, if they are still cached.
      *
      * If the Uri points at an animated gif, the gif will not play.
      */
     public GenericRequestBuilder<Uri, ?, ?, GlideDrawable> loadTinyThumb(Uri uri, Key key) {
         Size size = clampSize(TINY_THUMB_SIZE, MAXIMUM_SMOOTH_PIXELS,  getMaxImageDisplaySize());
-        return mTinyImageBuilder
+        return mTinyCapturedImageBuilder
               .clone()
               .load(uri)
               .signature(key)
@@ -17,7 +17,6 @@
 package com.android.camera.data;
 
 import android.net.Uri;
-import android.os.AsyncTask;
 
 import com.android.camera.filmstrip.FilmstripDataAdapter;
 import com.android.camera.util.Callback;
@@ -30,7 +29,7 @@ import java.util.List;
  * and defines operations on the data in the local camera folder.
  */
 public interface LocalFilmstripDataAdapter extends FilmstripDataAdapter,
-        Preloader.ItemLoader<Integer, AsyncTask>, Preloader.ItemSource<Integer> {
+        Preloader.ItemLoader<Integer, MetadataLoadQueue.Request>, Preloader.ItemSource<Integer> {
 
     public interface FilmstripItemListener {
         /**
@@ -131,10 +130,16 @@ public interface LocalFilmstripDataAdapter extends FilmstripDataAdapter,
      * {@link LocalFilmstripDataAdapter.FilmstripItemListener}.
      *
      * @param index The ID of the data to update the metadata for.
-     * @return An {@link android.os.AsyncTask} performing the background load
-     *      that can be used to cancel the load if it's no longer needed.
+     * @return The queued background load that can be used to cancel the
+     *      load if it's no longer needed, or null if there is nothing to load.
      */
-    public AsyncTask updateMetadataAt(int index);
+    public MetadataLoadQueue.Request updateMetadataAt(int index);
+
+    /**
+     * Sets the index of the data which is shown. The metadata of the data
+     * closest to it is loaded first.
+     */
+    public void setMetadataFocus(int index);
 
     /**
      * @return whether the metadata is already updated.
@@ -22,6 +22,7 @@ import android.util.SparseIntArray;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.ExifTagIndex;
 import com.android.camera2.R;
 
 import java.io.FileNotFoundException;
@@ -135,13 +136,20 @@ public class MediaDetails implements Iterable<Entry<Integer, Object>> {
      * MediaDetails instance.
      */
     public static void extractExifInfo(MediaDetails details, String filePath) {
-        ExifInterface exif = new ExifInterface();
+        ExifTagIndex exif;
         try {
-            exif.readExif(filePath);
+            exif = ExifTagIndex.read(filePath, ExifInterface.TAG_FLASH,
+                    ExifInterface.TAG_IMAGE_WIDTH, ExifInterface.TAG_IMAGE_LENGTH,
+                    ExifInterface.TAG_MAKE, ExifInterface.TAG_MODEL,
+                    ExifInterface.TAG_APERTURE_VALUE, ExifInterface.TAG_ISO_SPEED_RATINGS,
+                    ExifInterface.TAG_WHITE_BALANCE, ExifInterface.TAG_EXPOSURE_TIME,
+                    ExifInterface.TAG_FOCAL_LENGTH);
         } catch (FileNotFoundException e) {
             Log.w(TAG, "Could not find file to read exif: " + filePath, e);
+            return;
         } catch (IOException e) {
             Log.w(TAG, "Could not read exif from file: " + filePath, e);
+            return;
         }
 
         setExifData(details, exif.getTag(ExifInterface.TAG_FLASH),
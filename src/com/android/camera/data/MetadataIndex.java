@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.Context;
+
+import com.android.camera.debug.Log;
+import com.google.common.base.Optional;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A persistent index of the {@link Metadata} of filmstrip items, so that
+ * their files are not parsed again on every launch.
+ * <p/>
+ * Entries are keyed by content id, and are only used while the date modified
+ * and size of the item are unchanged. They are appended to a memory-mapped
+ * file of fixed-size records, so that storing an entry is a few writes to
+ * memory. An entry for an item which changed supersedes the older one, and
+ * superseded records are dropped when the file is opened.
+ */
+@ThreadSafe
+public class MetadataIndex {
+    private static final Log.Tag TAG = new Log.Tag("MetadataIndex");
+
+    private static final String FILE_NAME = "filmstrip_metadata.idx";
+
+    private static final int MAGIC = 0x464d4958; // "FMIX"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_COUNT = 8;
+
+    private static final int RECORD_SIZE = 48;
+    private static final int RECORD_CONTENT_ID = 0;
+    private static final int RECORD_DATE_MODIFIED = 8;
+    private static final int RECORD_SIZE_IN_BYTES = 16;
+    private static final int RECORD_FLAGS = 24;
+    private static final int RECORD_VIDEO_ORIENTATION = 28;
+    private static final int RECORD_VIDEO_WIDTH = 32;
+    private static final int RECORD_VIDEO_HEIGHT = 36;
+    private static final int RECORD_CHECKSUM = 40;
+
+    private static final int FLAG_METADATA_ADDED = 1;
+    private static final int FLAG_PANORAMA = 1 << 1;
+    private static final int FLAG_PANORAMA_360 = 1 << 2;
+    private static final int FLAG_USE_PANORAMA_VIEWER = 1 << 3;
+    private static final int FLAG_HAS_RGBZ_DATA = 1 << 4;
+
+    /** Stored video orientations which are not a number of degrees. */
+    private static final int ORIENTATION_NULL = -1;
+    private static final int ORIENTATION_EMPTY = -2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Past this many records, which is about 6MB, the index starts over. */
+    private static final int MAX_CAPACITY = 1 << 17;
+
+    private static MetadataIndex sInstance;
+
+    private final Object mLock = new Object();
+    private final File mFile;
+    @GuardedBy("mLock")
+    private FileChannel mChannel;
+    /** The mapped file, or null if it could not be opened. */
+    @GuardedBy("mLock")
+    private MappedByteBuffer mBuffer;
+    @GuardedBy("mLock")
+    private int mCapacity;
+    @GuardedBy("mLock")
+    private int mCount;
+    /** The index of the newest record of each content id. */
+    @GuardedBy("mLock")
+    private final Map<Long, Integer> mRecords = new HashMap<>();
+
+    /**
+     * @return The index in the cache directory of the app, which is opened on
+     *         first use.
+     */
+    public static synchronized MetadataIndex instance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MetadataIndex(new File(context.getCacheDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Opens the index in the given file, creating it if needed. If the file
+     * can't be opened, the index stays empty and nothing is stored.
+     */
+    public MetadataIndex(File file) {
+        mFile = file;
+        synchronized (mLock) {
+            try {
+                open();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open metadata index: " + file, e);
+                closeQuietly();
+            }
+        }
+    }
+
+    /**
+     * Fills in the metadata of an item from the index.
+     *
+     * @return Whether any metadata was added when the entry was stored, or
+     *         absent if there is no valid entry for the item.
+     */
+    public Optional<Boolean> restore(FilmstripItemData data, Metadata metadata) {
+        synchronized (mLock) {
+            if (mBuffer == null) {
+                return Optional.absent();
+            }
+            Integer record = mRecords.get(data.getContentId());
+            if (record == null) {
+                return Optional.absent();
+            }
+            int offset = offsetOf(record);
+            if (mBuffer.getLong(offset + RECORD_DATE_MODIFIED)
+                    != data.getLastModifiedDate().getTime()
+                    || mBuffer.getLong(offset + RECORD_SIZE_IN_BYTES) != data.getSizeInBytes()) {
+                // The file changed since.
+                return Optional.absent();
+            }
+            int flags = mBuffer.getInt(offset + RECORD_FLAGS);
+            metadata.setPanorama((flags & FLAG_PANORAMA) != 0);
+            metadata.setPanorama360((flags & FLAG_PANORAMA_360) != 0);
+            metadata.setUsePanoramaViewer((flags & FLAG_USE_PANORAMA_VIEWER) != 0);
+            metadata.setHasRgbzData((flags & FLAG_HAS_RGBZ_DATA) != 0);
+            metadata.setVideoOrientation(
+                    decodeOrientation(mBuffer.getInt(offset + RECORD_VIDEO_ORIENTATION)));
+            metadata.setVideoWidth(mBuffer.getInt(offset + RECORD_VIDEO_WIDTH));
+            metadata.setVideoHeight(mBuffer.getInt(offset + RECORD_VIDEO_HEIGHT));
+            return Optional.of((flags & FLAG_METADATA_ADDED) != 0);
+        }
+    }
+
+    /**
+     * Stores the loaded metadata of an item, superseding any older entry.
+     *
+     * @param metadataAdded Whether loading added any metadata.
+     */
+    public void store(FilmstripItemData data, Metadata metadata, boolean metadataAdded) {
+        long contentId = data.getContentId();
+        if (contentId <= 0) {
+            // Not in the media store yet.
+            return;
+        }
+        Integer orientation = encodeOrientation(metadata.getVideoOrientation());
+        if (orientation == null) {
+            return;
+        }
+        int flags = (metadataAdded ? FLAG_METADATA_ADDED : 0)
+                | (metadata.isPanorama() ? FLAG_PANORAMA : 0)
+                | (metadata.isPanorama360() ? FLAG_PANORAMA_360 : 0)
+                | (metadata.isUsePanoramaViewer() ? FLAG_USE_PANORAMA_VIEWER : 0)
+                | (metadata.isHasRgbzData() ? FLAG_HAS_RGBZ_DATA : 0);
+
+        synchronized (mLock) {
+            if (mBuffer == null) {
+                return;
+            }
+            try {
+                if (mCount == mCapacity) {
+                    grow();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not grow metadata index", e);
+                closeQuietly();
+                return;
+            }
+            int offset = offsetOf(mCount);
+            mBuffer.putLong(offset + RECORD_CONTENT_ID, contentId);
+            mBuffer.putLong(offset + RECORD_DATE_MODIFIED, data.getLastModifiedDate().getTime());
+            mBuffer.putLong(offset + RECORD_SIZE_IN_BYTES, data.getSizeInBytes());
+            mBuffer.putInt(offset + RECORD_FLAGS, flags);
+            mBuffer.putInt(offset + RECORD_VIDEO_ORIENTATION, orientation);
+            mBuffer.putInt(offset + RECORD_VIDEO_WIDTH, metadata.getVideoWidth());
+            mBuffer.putInt(offset + RECORD_VIDEO_HEIGHT, metadata.getVideoHeight());
+            mBuffer.putInt(offset + RECORD_CHECKSUM, checksumOf(offset));
+            // The count is written last, so that a partly written record is
+            // never read.
+            mRecords.put(contentId, mCount);
+            mCount++;
+            mBuffer.putInt(HEADER_COUNT, mCount);
+        }
+    }
+
+    /**
+     * @return The number of items with an entry.
+     */
+    public int size() {
+        synchronized (mLock) {
+            return mRecords.size();
+        }
+    }
+
+    /**
+     * Writes the index to disk and closes it. Nothing is restored or stored
+     * afterwards.
+     */
+    public void close() {
+        synchronized (mLock) {
+            if (mBuffer != null) {
+                mBuffer.force();
+            }
+            closeQuietly();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void open() throws IOException {
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        int count = readValidCount();
+        if (count < 0) {
+            Log.v(TAG, "Creating metadata index");
+            mChannel.truncate(0);
+            count = 0;
+        }
+        map(Math.max(INITIAL_CAPACITY, count * 2));
+        if (count == 0) {
+            mBuffer.putInt(HEADER_MAGIC, MAGIC);
+            mBuffer.putInt(HEADER_VERSION, VERSION);
+            mBuffer.putInt(HEADER_COUNT, 0);
+        }
+        mCount = count;
+        compact();
+        Log.v(TAG, "Opened metadata index with " + mCount + " entries");
+    }
+
+    /**
+     * @return The number of records in the file, or -1 if it is not a valid
+     *         index.
+     */
+    @GuardedBy("mLock")
+    private int readValidCount() throws IOException {
+        long length = mChannel.size();
+        if (length < HEADER_SIZE) {
+            return -1;
+        }
+        MappedByteBuffer header = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        header.order(ByteOrder.nativeOrder());
+        int count = header.getInt(HEADER_COUNT);
+        if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION
+                || count < 0 || count > MAX_CAPACITY
+                || HEADER_SIZE + (long) count * RECORD_SIZE > length) {
+            Log.w(TAG, "Discarding invalid metadata index");
+            return -1;
+        }
+        return count;
+    }
+
+    /**
+     * Keeps only the newest valid record of each content id, moving them to
+     * the front of the file.
+     */
+    @GuardedBy("mLock")
+    private void compact() {
+        mRecords.clear();
+        for (int i = 0; i < mCount; i++) {
+            int offset = offsetOf(i);
+            long contentId = mBuffer.getLong(offset + RECORD_CONTENT_ID);
+            if (contentId > 0 && mBuffer.getInt(offset + RECORD_CHECKSUM) == checksumOf(offset)) {
+                mRecords.put(contentId, i);
+            }
+        }
+        if (mRecords.size() == mCount) {
+            return;
+        }
+        // Every record is moved to an index which is at most its own, and
+        // only over records which were already moved or are dropped, so
+        // records are never lost if this is interrupted.
+        byte[] record = new byte[RECORD_SIZE];
+        int live = 0;
+        for (int i = 0; i < mCount; i++) {
+            int offset = offsetOf(i);
+            long contentId = mBuffer.getLong(offset + RECORD_CONTENT_ID);
+            Integer newest = mRecords.get(contentId);
+            if (newest == null || newest != i) {
+                continue;
+            }
+            if (live != i) {
+                mBuffer.position(offset);
+                mBuffer.get(record);
+                mBuffer.position(offsetOf(live));
+                mBuffer.put(record);
+            }
+            mRecords.put(contentId, live);
+            live++;
+        }
+        Log.v(TAG, "Dropped " + (mCount - live) + " superseded entries");
+        mCount = live;
+        mBuffer.putInt(HEADER_COUNT, mCount);
+    }
+
+    @GuardedBy("mLock")
+    private void grow() throws IOException {
+        compact();
+        if (mCount < mCapacity) {
+            return;
+        }
+        if (mCapacity >= MAX_CAPACITY) {
+            Log.v(TAG, "Metadata index is full, starting over");
+            mRecords.clear();
+            mCount = 0;
+            mBuffer.putInt(HEADER_COUNT, 0);
+            return;
+        }
+        map(Math.min(MAX_CAPACITY, mCapacity * 2));
+    }
+
+    @GuardedBy("mLock")
+    private void map(int capacity) throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.nativeOrder());
+        mCapacity = capacity;
+    }
+
+    @GuardedBy("mLock")
+    private void closeQuietly() {
+        mBuffer = null;
+        mRecords.clear();
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close metadata index", e);
+            }
+            mChannel = null;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private int checksumOf(int offset) {
+        int checksum = 17;
+        for (int i = 0; i < RECORD_CHECKSUM; i += 4) {
+            checksum = 31 * checksum + mBuffer.getInt(offset + i);
+        }
+        return checksum;
+    }
+
+    private static int offsetOf(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * @return The orientation as stored, or null if it can't be stored.
+     */
+    private static Integer encodeOrientation(String orientation) {
+        if (orientation == null) {
+            return ORIENTATION_NULL;
+        }
+        if (orientation.isEmpty()) {
+            return ORIENTATION_EMPTY;
+        }
+        try {
+            int degrees = Integer.parseInt(orientation);
+            return degrees >= 0 ? degrees : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String decodeOrientation(int orientation) {
+        switch (orientation) {
+            case ORIENTATION_NULL:
+                return null;
+            case ORIENTATION_EMPTY:
+                return "";
+            default:
+                return Integer.toString(orientation);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.android.camera.async.AndroidPriorityThread;
+import com.android.camera.async.MainThread;
+import com.android.camera.debug.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Loads the metadata of filmstrip items in the background, the items closest
+ * to the focused item first.
+ * <p>
+ * There is at most one waiting load per index: requesting an index again
+ * updates the waiting request instead of adding another. At most a fixed
+ * number of loads wait at a time; beyond that the load farthest from the
+ * focus is dropped, so a fast fling can't pile up loads for items which have
+ * long scrolled off screen. Cancelling a waiting load removes it.
+ * <p>
+ * Loads run on a few background priority threads of their own, so that they
+ * neither wait behind nor slow down the other users of the shared AsyncTask
+ * pool, such as image decodes.
+ */
+@ThreadSafe
+public class MetadataLoadQueue {
+    private static final Log.Tag TAG = new Log.Tag("MetadataLoadQueue");
+
+    /** The maximum number of loads which wait at a time. */
+    private static final int DEFAULT_CAPACITY = 32;
+    private static final int WORKER_COUNT = 2;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 2;
+
+    /**
+     * Notified on the callback executor when the metadata of an item has
+     * been loaded.
+     */
+    public interface Listener {
+        /**
+         * @param item The item whose metadata was loaded.
+         * @param index The index the item had when the load was requested.
+         *            Items may have been added or removed since.
+         * @param updated Whether metadata was added, or the load was forced.
+         */
+        public void onMetadataLoaded(FilmstripItem item, int index, boolean updated);
+    }
+
+    /**
+     * Loads the metadata of an item, on a worker thread.
+     */
+    interface Loader {
+        /**
+         * @return Whether any metadata was added to the item.
+         */
+        public boolean load(FilmstripItem item);
+    }
+
+    /**
+     * A requested load, which can be used to cancel it while it waits.
+     */
+    public final class Request {
+        private final int mIndex;
+        private final long mSequence;
+        private final long mRequestNanos;
+        @GuardedBy("mLock")
+        private FilmstripItem mItem;
+        @GuardedBy("mLock")
+        private boolean mForceUpdate;
+        @GuardedBy("mLock")
+        private boolean mCancelled;
+
+        private Request(int index, FilmstripItem item, boolean forceUpdate, long sequence) {
+            mIndex = index;
+            mItem = item;
+            mForceUpdate = forceUpdate;
+            mSequence = sequence;
+            mRequestNanos = System.nanoTime();
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * Removes the load from the queue if it hasn't started yet. A load
+         * which has started is completed.
+         */
+        public void cancel() {
+            MetadataLoadQueue.this.cancel(this);
+        }
+
+        /**
+         * @return Whether the load was removed from the queue before it
+         *         started.
+         */
+        public boolean isCancelled() {
+            synchronized (mLock) {
+                return mCancelled;
+            }
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Loader mLoader;
+    private final Executor mWorkerExecutor;
+    private final Executor mCallbackExecutor;
+    private final Listener mListener;
+    private final int mCapacity;
+    private final int mWorkerCount;
+
+    /** The waiting loads by index. */
+    @GuardedBy("mLock")
+    private final Map<Integer, Request> mWaiting = new HashMap<>();
+    /** The running loads by index. */
+    @GuardedBy("mLock")
+    private final Map<Integer, Request> mRunning = new HashMap<>();
+    @GuardedBy("mLock")
+    private int mFocusIndex;
+    @GuardedBy("mLock")
+    private int mActiveWorkers;
+    @GuardedBy("mLock")
+    private long mNextSequence;
+
+    @GuardedBy("mLock")
+    private int mMaxQueueDepth;
+    @GuardedBy("mLock")
+    private int mDroppedCount;
+    @GuardedBy("mLock")
+    private int mFocusedLoadCount;
+    @GuardedBy("mLock")
+    private long mFocusedLoadTotalNanos;
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final Request request;
+                final FilmstripItem item;
+                final boolean forceUpdate;
+                synchronized (mLock) {
+                    request = takeClosestLocked();
+                    if (request == null) {
+                        mActiveWorkers--;
+                        return;
+                    }
+                    item = request.mItem;
+                    forceUpdate = request.mForceUpdate;
+                    mRunning.put(request.mIndex, request);
+                }
+                final boolean updated = mLoader.load(item) || forceUpdate;
+                synchronized (mLock) {
+                    if (mRunning.get(request.mIndex) == request) {
+                        mRunning.remove(request.mIndex);
+                    }
+                }
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(request, item, updated);
+                    }
+                });
+            }
+        }
+    };
+
+    /**
+     * Creates a queue which loads metadata with {@link MetadataLoader} and
+     * notifies the listener on the main thread.
+     */
+    public MetadataLoadQueue(final Context context, Listener listener) {
+        this(new Loader() {
+            @Override
+            public boolean load(FilmstripItem item) {
+                return MetadataLoader.loadMetadata(context, item);
+            }
+        }, createWorkerExecutor(), MainThread.create(), listener, DEFAULT_CAPACITY, WORKER_COUNT);
+    }
+
+    MetadataLoadQueue(Loader loader, Executor workerExecutor, Executor callbackExecutor,
+            Listener listener, int capacity, int workerCount) {
+        mLoader = loader;
+        mWorkerExecutor = workerExecutor;
+        mCallbackExecutor = callbackExecutor;
+        mListener = listener;
+        mCapacity = capacity;
+        mWorkerCount = workerCount;
+    }
+
+    private static Executor createWorkerExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new AndroidPriorityThread(
+                                Process.THREAD_PRIORITY_BACKGROUND, runnable);
+                        thread.setName("MetadataLoader");
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Requests the metadata of the item at an index to be loaded.
+     *
+     * @param index The index of the item, which decides when it is loaded.
+     * @param item The item.
+     * @param forceUpdate Whether the listener should be told the item was
+     *            updated even if no metadata was added.
+     * @return The request, which is the same as the waiting or running one
+     *         if the same load was requested before.
+     */
+    public Request request(int index, FilmstripItem item, boolean forceUpdate) {
+        Request request;
+        boolean startWorker = false;
+        synchronized (mLock) {
+            request = mWaiting.get(index);
+            if (request != null) {
+                request.mItem = item;
+                request.mForceUpdate |= forceUpdate;
+                return request;
+            }
+            request = mRunning.get(index);
+            if (request != null && request.mItem == item && !forceUpdate) {
+                return request;
+            }
+
+            request = new Request(index, item, forceUpdate, mNextSequence++);
+            mWaiting.put(index, request);
+            if (mWaiting.size() > mCapacity) {
+                Request farthest = findFarthestLocked();
+                mWaiting.remove(farthest.mIndex);
+                farthest.mCancelled = true;
+                mDroppedCount++;
+            }
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mWaiting.size());
+            if (!request.mCancelled && mActiveWorkers < mWorkerCount) {
+                mActiveWorkers++;
+                startWorker = true;
+            }
+        }
+        if (startWorker) {
+            mWorkerExecutor.execute(mWorker);
+        }
+        return request;
+    }
+
+    /**
+     * Sets the index of the item which is shown, around which the items are
+     * loaded first.
+     */
+    public void setFocus(int index) {
+        synchronized (mLock) {
+            mFocusIndex = index;
+        }
+    }
+
+    /**
+     * Removes a load from the queue if it hasn't started yet.
+     */
+    public void cancel(Request request) {
+        synchronized (mLock) {
+            if (mWaiting.get(request.mIndex) == request) {
+                mWaiting.remove(request.mIndex);
+                request.mCancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Removes all loads which haven't started yet.
+     */
+    public void cancelAll() {
+        synchronized (mLock) {
+            for (Request request : mWaiting.values()) {
+                request.mCancelled = true;
+            }
+            mWaiting.clear();
+        }
+    }
+
+    /**
+     * @return The number of loads which are waiting to start.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mWaiting.size();
+        }
+    }
+
+    /**
+     * @return The largest number of loads which waited at a time.
+     */
+    public int getMaxQueueDepth() {
+        synchronized (mLock) {
+            return mMaxQueueDepth;
+        }
+    }
+
+    /**
+     * @return The number of loads which were dropped because they were the
+     *         farthest from the focus when the queue was full.
+     */
+    public int getDroppedCount() {
+        synchronized (mLock) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * @return The average time from requesting the metadata of the focused
+     *         item to it being loaded, or 0 if none was loaded yet.
+     */
+    public long getMeanTimeToFocusedMillis() {
+        synchronized (mLock) {
+            if (mFocusedLoadCount == 0) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(mFocusedLoadTotalNanos / mFocusedLoadCount);
+        }
+    }
+
+    private void onLoaded(Request request, FilmstripItem item, boolean updated) {
+        synchronized (mLock) {
+            if (request.mIndex == mFocusIndex) {
+                long nanos = System.nanoTime() - request.mRequestNanos;
+                mFocusedLoadCount++;
+                mFocusedLoadTotalNanos += nanos;
+                Log.v(TAG, "focused metadata loaded in " + TimeUnit.NANOSECONDS.toMillis(nanos)
+                        + " ms, queue depth " + mWaiting.size() + " (max " + mMaxQueueDepth
+                        + "), dropped " + mDroppedCount);
+            }
+        }
+        mListener.onMetadataLoaded(item, request.mIndex, updated);
+    }
+
+    @GuardedBy("mLock")
+    private Request takeClosestLocked() {
+        Request closest = null;
+        for (Request request : mWaiting.values()) {
+            if (closest == null || isCloserLocked(request, closest)) {
+                closest = request;
+            }
+        }
+        if (closest != null) {
+            mWaiting.remove(closest.mIndex);
+        }
+        return closest;
+    }
+
+    @GuardedBy("mLock")
+    private Request findFarthestLocked() {
+        Request farthest = null;
+        for (Request request : mWaiting.values()) {
+            if (farthest == null || isCloserLocked(farthest, request)) {
+                farthest = request;
+            }
+        }
+        return farthest;
+    }
+
+    /**
+     * @return Whether a request is closer to the focus than another, or as
+     *         close and older.
+     */
+    @GuardedBy("mLock")
+    private boolean isCloserLocked(Request request, Request other) {
+        int distance = Math.abs(request.mIndex - mFocusIndex);
+        int otherDistance = Math.abs(other.mIndex - mFocusIndex);
+        if (distance != otherDistance) {
+            return distance < otherDistance;
+        }
+        return request.mSequence < other.mSequence;
+    }
+}
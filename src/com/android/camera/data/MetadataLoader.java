@@ -18,6 +18,8 @@ package com.android.camera.data;
 
 import android.content.Context;
 
+import com.google.common.base.Optional;
+
 /**
  * A helper class to load the metadata of
  * {@link FilmstripItem}.
@@ -28,7 +30,9 @@ public class MetadataLoader {
      * Adds information to the data's metadata bundle if any is available and returns
      * true if metadata was added and false otherwise. In either case, sets
      * a flag indicating that we've cached any available metadata and don't need to
-     * load metadata again for this particular item.
+     * load metadata again for this particular item. Metadata which was loaded
+     * before, even by an earlier launch, is restored from the
+     * {@link MetadataIndex} instead of parsing the file again.
      *
      * TODO: Replace with more explicit polymorphism.
      *
@@ -37,6 +41,13 @@ public class MetadataLoader {
      * @return true if any metadata was added to the data, false otherwise.
      */
     public static boolean loadMetadata(final Context context, final FilmstripItem data) {
+        MetadataIndex index = MetadataIndex.instance(context);
+        Optional<Boolean> indexed = index.restore(data.getData(), data.getMetadata());
+        if (indexed.isPresent()) {
+            data.getMetadata().setLoaded(true);
+            return indexed.get();
+        }
+
         boolean metadataAdded = false;
         if (data.getAttributes().isImage()) {
             metadataAdded |= PanoramaMetadataLoader.loadPanoramaMetadata(
@@ -47,6 +58,7 @@ public class MetadataLoader {
             metadataAdded = VideoRotationMetadataLoader.loadRotationMetadata(data);
         }
         data.getMetadata().setLoaded(true);
+        index.store(data.getData(), data.getMetadata(), metadataAdded);
         return metadataAdded;
     }
 }
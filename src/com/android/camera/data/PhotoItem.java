@@ -92,6 +92,7 @@ public class PhotoItem extends FilmstripItemBase<FilmstripItemData> {
         ContentResolver cr = mContext.getContentResolver();
         cr.delete(PhotoDataQuery.CONTENT_URI,
               MediaStore.Images.ImageColumns._ID + "=" + mData.getContentId(), null);
+        CaptureThumbnailCache.instance(mContext).remove(mData.getUri());
         return super.delete();
     }
 
@@ -207,7 +208,7 @@ public class PhotoItem extends FilmstripItemBase<FilmstripItemData> {
         // If we do not have a placeholder bitmap, render a thumbnail with
         // the default placeholder resource like normal.
         return request
-              .thumbnail(renderTinySize(uri));
+              .thumbnail(mGlideManager.loadImageThumb(uri, generateSignature(mData)));
     }
 
     private DrawableRequestBuilder<Uri> renderFullSize(Uri uri) {
@@ -22,11 +22,18 @@ import android.database.Cursor;
 import android.net.Uri;
 
 import com.android.camera.data.FilmstripContentQueries.CursorToFilmstripItemFactory;
+import com.android.camera.data.FilmstripContentQueries.Page;
+import com.android.camera.data.FilmstripContentQueries.PagePosition;
+import com.android.camera.data.FilmstripContentQueries.PagedQuery;
+import com.android.camera.data.FilmstripContentQueries.Watermark;
 import com.android.camera.debug.Log;
 
 import java.util.List;
 
-public class PhotoItemFactory implements CursorToFilmstripItemFactory<PhotoItem> {
+import javax.annotation.Nullable;
+
+public class PhotoItemFactory implements CursorToFilmstripItemFactory<PhotoItem>,
+      PagedQuery<PhotoItem> {
     private static final Log.Tag TAG = new Log.Tag("PhotoItemFact");
 
     private final Context mContext;
@@ -88,4 +95,35 @@ public class PhotoItemFactory implements CursorToFilmstripItemFactory<PhotoItem>
         }
         return newPhotos.get(0);
     }
+
+    @Override
+    public Page<PhotoItem> queryPage(@Nullable PagePosition after, int limit) {
+        return FilmstripContentQueries
+              .forCameraPathPage(mContentResolver, PhotoDataQuery.CONTENT_URI,
+                    PhotoDataQuery.QUERY_PROJECTION, after, limit, this);
+    }
+
+    @Override
+    public List<PhotoItem> queryChangedSince(Watermark watermark) {
+        return FilmstripContentQueries
+              .forCameraPathChangedSince(mContentResolver, PhotoDataQuery.CONTENT_URI,
+                    PhotoDataQuery.QUERY_PROJECTION, watermark, PhotoDataQuery.QUERY_ORDER, this);
+    }
+
+    @Override
+    public long[] queryIds(@Nullable PagePosition through) {
+        return FilmstripContentQueries.idsForCameraPath(mContentResolver,
+              PhotoDataQuery.CONTENT_URI, through);
+    }
+
+    @Override
+    public Watermark queryWatermark() {
+        return FilmstripContentQueries.watermarkForCameraPath(mContentResolver,
+              PhotoDataQuery.CONTENT_URI);
+    }
+
+    @Override
+    public boolean isResultOf(FilmstripItem item) {
+        return item instanceof PhotoItem;
+    }
 }
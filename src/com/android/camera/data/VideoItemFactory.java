@@ -23,11 +23,18 @@ import android.net.Uri;
 import android.provider.MediaStore;
 
 import com.android.camera.data.FilmstripContentQueries.CursorToFilmstripItemFactory;
+import com.android.camera.data.FilmstripContentQueries.Page;
+import com.android.camera.data.FilmstripContentQueries.PagePosition;
+import com.android.camera.data.FilmstripContentQueries.PagedQuery;
+import com.android.camera.data.FilmstripContentQueries.Watermark;
 import com.android.camera.debug.Log;
 
 import java.util.List;
 
-public class VideoItemFactory implements CursorToFilmstripItemFactory<VideoItem> {
+import javax.annotation.Nullable;
+
+public class VideoItemFactory implements CursorToFilmstripItemFactory<VideoItem>,
+      PagedQuery<VideoItem> {
     private static final Log.Tag TAG = new Log.Tag("VideoItemFact");
     private static final String QUERY_ORDER = MediaStore.Video.VideoColumns.DATE_TAKEN
           + " DESC, " + MediaStore.Video.VideoColumns._ID + " DESC";
@@ -94,4 +101,35 @@ public class VideoItemFactory implements CursorToFilmstripItemFactory<VideoItem>
         }
         return videos.get(0);
     }
+
+    @Override
+    public Page<VideoItem> queryPage(@Nullable PagePosition after, int limit) {
+        return FilmstripContentQueries
+              .forCameraPathPage(mContentResolver, VideoDataQuery.CONTENT_URI,
+                    VideoDataQuery.QUERY_PROJECTION, after, limit, this);
+    }
+
+    @Override
+    public List<VideoItem> queryChangedSince(Watermark watermark) {
+        return FilmstripContentQueries
+              .forCameraPathChangedSince(mContentResolver, VideoDataQuery.CONTENT_URI,
+                    VideoDataQuery.QUERY_PROJECTION, watermark, QUERY_ORDER, this);
+    }
+
+    @Override
+    public long[] queryIds(@Nullable PagePosition through) {
+        return FilmstripContentQueries.idsForCameraPath(mContentResolver,
+              VideoDataQuery.CONTENT_URI, through);
+    }
+
+    @Override
+    public Watermark queryWatermark() {
+        return FilmstripContentQueries.watermarkForCameraPath(mContentResolver,
+              VideoDataQuery.CONTENT_URI);
+    }
+
+    @Override
+    public boolean isResultOf(FilmstripItem item) {
+        return item instanceof VideoItem;
+    }
 }
@@ -38,6 +38,10 @@ public class DebugPropertyHelper {
     private static final String PROP_WRITE_CAPTURE_DATA = PREFIX + ".capture_write";
     /** Is RAW support enabled. */
     private static final String PROP_CAPTURE_DNG = PREFIX + ".capture_dng";
+    /** Enable burst capture, which keeps the best frames of a burst. */
+    private static final String PROP_BURST = PREFIX + ".burst";
+    /** Compress each JPEG with several threads. */
+    private static final String PROP_PARALLEL_JPEG = PREFIX + ".parallel_jpeg";
 
     private static boolean isPropertyOn(String property) {
         return ON_VALUE.equals(SystemProperties.get(property, OFF_VALUE));
@@ -58,4 +62,12 @@ public class DebugPropertyHelper {
     public static boolean isCaptureDngEnabled() {
         return isPropertyOn(PROP_CAPTURE_DNG);
     }
+
+    public static boolean isBurstEnabled() {
+        return isPropertyOn(PROP_BURST);
+    }
+
+    public static boolean isParallelJpegEnabled() {
+        return isPropertyOn(PROP_PARALLEL_JPEG);
+    }
 }
@@ -19,7 +19,11 @@ package com.android.camera.exif;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
-class ByteBufferInputStream extends InputStream {
+/**
+ * An InputStream which reads the remaining bytes of a (possibly direct)
+ * ByteBuffer without copying them, advancing the buffer's position.
+ */
+public class ByteBufferInputStream extends InputStream {
 
     private ByteBuffer mBuf;
 
@@ -35,6 +35,7 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -709,7 +710,7 @@ public class ExifInterface {
         public static final short DIFFERENTIAL_CORRECTION_APPLIED = 1;
     }
 
-    private static final String NULL_ARGUMENT_STRING = "Argument is null";
+    static final String NULL_ARGUMENT_STRING = "Argument is null";
     private ExifData mData = new ExifData(DEFAULT_BYTE_ORDER);
     public static final ByteOrder DEFAULT_BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
@@ -748,6 +749,22 @@ public class ExifInterface {
         mData = d;
     }
 
+    /**
+     * Reads the exif tags from a ByteBuffer, clearing this ExifInterface
+     * object's existing exif tags. The buffer may be direct, its position and
+     * limit are left unchanged.
+     *
+     * @param jpeg a ByteBuffer containing a jpeg compressed image between its
+     *            position and limit.
+     * @throws IOException
+     */
+    public void readExif(ByteBuffer jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        readExif(new ByteBufferInputStream(jpeg.duplicate()));
+    }
+
     /**
      * Reads the exif tags from a file, clearing this ExifInterface object's
      * existing exif tags.
@@ -855,11 +872,78 @@ public class ExifInterface {
         if (jpeg == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        OutputStream s = null;
-        s = getExifWriterStream(exifOutFileName);
-        s.write(jpeg, 0, jpeg.length);
-        s.flush();
-        s.close();
+        // Only the leading marker segments are rewritten, the scan data is
+        // written straight to the file without going through the exif stream.
+        long headerLength = ExifOutputStream.getRewrittenHeaderLength(
+                new ByteArrayInputStream(jpeg));
+        if (headerLength < 0 || headerLength > jpeg.length) {
+            headerLength = jpeg.length;
+        }
+        FileOutputStream out = new FileOutputStream(exifOutFileName);
+        try {
+            OutputStream s = getExifWriterStream(out);
+            s.write(jpeg, 0, (int) headerLength);
+            s.flush();
+            out.write(jpeg, (int) headerLength, jpeg.length - (int) headerLength);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image held in
+     * a (possibly direct) ByteBuffer, removing prior exif tags. Only the
+     * leading marker segments are copied and rewritten; the new header and
+     * the untouched remainder of the buffer are written to the file with a
+     * single gathering write, so the image data is never copied onto the
+     * heap. The buffer's position and limit are not changed.
+     *
+     * @param jpeg a ByteBuffer containing a jpeg compressed image between its
+     *            position and limit.
+     * @param exifOutFileName a String containing the filepath to which the jpeg
+     *            image with added exif tags will be written.
+     * @return the number of bytes written.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public long writeExif(ByteBuffer jpeg, String exifOutFileName) throws FileNotFoundException,
+            IOException {
+        if (jpeg == null || exifOutFileName == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        ByteBuffer data = jpeg.duplicate();
+        long headerLength = ExifOutputStream.getRewrittenHeaderLength(
+                new ByteBufferInputStream(data.duplicate()));
+        FileOutputStream out = new FileOutputStream(exifOutFileName);
+        try {
+            if (headerLength < 0 || headerLength > data.remaining()) {
+                // The header could not be delimited, so the whole image has
+                // to go through the exif stream.
+                OutputStream s = getExifWriterStream(out);
+                doExifStreamIO(new ByteBufferInputStream(data), s);
+                s.flush();
+                return out.getChannel().size();
+            }
+
+            byte[] header = new byte[(int) headerLength];
+            data.get(header);
+            ByteArrayOutputStream rewritten = new ByteArrayOutputStream(header.length);
+            OutputStream s = getExifWriterStream(rewritten);
+            s.write(header);
+            s.flush();
+
+            ByteBuffer[] buffers = new ByteBuffer[] {
+                    ByteBuffer.wrap(rewritten.toByteArray()), data
+            };
+            long length = buffers[0].remaining() + buffers[1].remaining();
+            FileChannel channel = out.getChannel();
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            return length;
+        } finally {
+            out.close();
+        }
     }
 
     /**
@@ -924,12 +1008,87 @@ public class ExifInterface {
         if (jpegFileName == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        InputStream is = null;
+        writeExif(new File(jpegFileName), new File(exifOutFileName));
+    }
 
-        is = new FileInputStream(jpegFileName);
-        writeExif(is, exifOutFileName);
+    /**
+     * Rewrites the exif header of a jpeg file with the tags in this
+     * ExifInterface object, removing prior exif tags. Only the marker segments
+     * up to the existing exif header are parsed and rewritten, the compressed
+     * image data is transferred between file channels, so memory use does not
+     * depend on the image size. The image is written to a temporary file next
+     * to the original, which is then renamed over it.
+     *
+     * @param filename a String containing a filepath for a jpeg file.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public void streamRewriteExif(String filename) throws FileNotFoundException, IOException {
+        if (filename == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        File target = new File(filename);
+        File temp = File.createTempFile(target.getName(), ".tmp",
+                target.getAbsoluteFile().getParentFile());
+        boolean renamed = false;
+        try {
+            writeExif(target, temp);
+            renamed = temp.renameTo(target);
+            if (!renamed) {
+                throw new IOException("Failed to replace " + filename);
+            }
+        } finally {
+            if (!renamed) {
+                temp.delete();
+            }
+        }
+    }
 
-        is.close();
+    private void writeExif(File jpegFile, File exifOutFile) throws IOException {
+        FileInputStream is = null;
+        FileOutputStream os = null;
+        try {
+            is = new FileInputStream(jpegFile);
+            FileChannel in = is.getChannel();
+            long size = in.size();
+            long headerLength = ExifOutputStream.getRewrittenHeaderLength(
+                    new BufferedInputStream(is));
+            in.position(0);
+
+            os = new FileOutputStream(exifOutFile);
+            OutputStream s = getExifWriterStream(os);
+            if (headerLength < 0 || headerLength > size) {
+                doExifStreamIO(is, s);
+                s.flush();
+            } else {
+                byte[] buf = new byte[1024];
+                long remaining = headerLength;
+                while (remaining > 0) {
+                    int ret = is.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (ret == -1) {
+                        throw new IOException("File truncated during operation");
+                    }
+                    s.write(buf, 0, ret);
+                    remaining -= ret;
+                }
+                s.flush();
+
+                FileChannel out = os.getChannel();
+                long position = headerLength;
+                while (position < size) {
+                    long transferred = in.transferTo(position, size - position, out);
+                    if (transferred <= 0) {
+                        throw new IOException("Filesize changed during operation");
+                    }
+                    position += transferred;
+                }
+            }
+            os.getFD().sync();
+            os.close();
+        } finally {
+            closeSilently(is);
+            closeSilently(os);
+        }
     }
 
     /**
@@ -1077,21 +1236,13 @@ public class ExifInterface {
             IOException {
         // Attempt in-place write
         if (!rewriteExif(filename, tags)) {
-            // Fall back to doing a copy
+            // Fall back to streaming a copy
             ExifData tempData = mData;
-            mData = new ExifData(DEFAULT_BYTE_ORDER);
-            FileInputStream is = null;
-            ByteArrayOutputStream bytes = null;
             try {
-                is = new FileInputStream(filename);
-                bytes = new ByteArrayOutputStream();
-                doExifStreamIO(is, bytes);
-                byte[] imageBytes = bytes.toByteArray();
-                readExif(imageBytes);
+                readExif(filename);
                 setTags(tags);
-                writeExif(imageBytes, filename);
+                streamRewriteExif(filename);
             } finally {
-                is.close();
                 // Prevent clobbering of mData
                 mData = tempData;
             }
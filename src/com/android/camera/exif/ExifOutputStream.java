@@ -19,8 +19,10 @@ package com.android.camera.exif;
 import com.android.camera.debug.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -206,6 +208,45 @@ class ExifOutputStream extends FilterOutputStream {
         write(buffer, 0, buffer.length);
     }
 
+    /**
+     * Scans the marker segments at the start of a JPEG stream and returns the
+     * number of leading bytes this class rewrites. All data after this offset
+     * (the remaining headers and the entropy-coded scan data) is copied
+     * through unchanged, so callers may transfer it without going through this
+     * stream.
+     *
+     * @return the length of the rewritten header, or -1 if the header could
+     *         not be delimited and the whole image should be written through
+     *         this stream.
+     */
+    protected static long getRewrittenHeaderLength(InputStream jpegStream) throws IOException {
+        CountedDataInputStream dataStream = new CountedDataInputStream(jpegStream);
+        if (dataStream.readShort() != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+
+        try {
+            short marker = dataStream.readShort();
+            while (marker != JpegHeader.EOI) {
+                int length = dataStream.readUnsignedShort();
+                if (JpegHeader.isSofMarker(marker)) {
+                    return dataStream.getReadByteCount();
+                }
+                if (length < 2) {
+                    return -1;
+                }
+                dataStream.skipOrThrow(length - 2);
+                if (marker == JpegHeader.APP1) {
+                    return dataStream.getReadByteCount();
+                }
+                marker = dataStream.readShort();
+            }
+        } catch (EOFException e) {
+            // Truncated header, let the stream handle whatever is there.
+        }
+        return -1;
+    }
+
     private void writeExifData() throws IOException {
         if (mExifData == null) {
             return;
@@ -0,0 +1,515 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.camera.debug.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A read-only, lazily decoded view of the EXIF header of a JPEG image.
+ * <p>
+ * Unlike {@link ExifInterface#readExif}, which builds an {@link ExifTag} for
+ * every tag of every IFD and copies the thumbnail, this class walks the IFDs
+ * once to record where each tag entry is, and only decodes a tag when it is
+ * asked for. Callers that need a handful of tags can name them up front, in
+ * which case only the IFDs holding those tags are walked and only those tags
+ * are indexed.
+ * <p>
+ * When reading from a byte array or a ByteBuffer the index refers to the
+ * caller's data, which must not be modified while the index is in use. When
+ * reading from a stream or file only the EXIF segment is read into memory.
+ *
+ * <pre>
+ * ExifTagIndex exif = ExifTagIndex.read(jpeg, ExifInterface.TAG_ORIENTATION,
+ *         ExifInterface.TAG_PIXEL_X_DIMENSION, ExifInterface.TAG_PIXEL_Y_DIMENSION);
+ * Integer orientation = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+ * </pre>
+ */
+public final class ExifTagIndex {
+    private static final Log.Tag TAG = new Log.Tag("ExifTagIndex");
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int IFD_0_MASK = 1 << IfdId.TYPE_IFD_0;
+    private static final int IFD_1_MASK = 1 << IfdId.TYPE_IFD_1;
+    private static final int IFD_EXIF_MASK = 1 << IfdId.TYPE_IFD_EXIF;
+    private static final int IFD_INTEROPERABILITY_MASK = 1 << IfdId.TYPE_IFD_INTEROPERABILITY;
+    private static final int IFD_GPS_MASK = 1 << IfdId.TYPE_IFD_GPS;
+    private static final int ALL_IFDS_MASK = IFD_0_MASK | IFD_1_MASK | IFD_EXIF_MASK
+            | IFD_INTEROPERABILITY_MASK | IFD_GPS_MASK;
+
+    private static final short TAG_EXIF_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+
+    private static final int EXIF_HEADER_SIZE = 6;
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    /** The TIFF data of the EXIF segment, positions are relative to it. */
+    private final ByteBuffer mTiff;
+    /** Sorted defined tags to index, or null to index every tag. */
+    private final int[] mRequestedTags;
+    /** Maps a defined tag to the position of its IFD entry. */
+    private final SparseIntArray mEntries = new SparseIntArray();
+    /** Tags that have been decoded so far. */
+    private final SparseArray<ExifTag> mDecodedTags = new SparseArray<ExifTag>();
+
+    /**
+     * Indexes the EXIF header of a JPEG image in a byte array.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param tagIds the defined tag constants to index, e.g.
+     *            {@link ExifInterface#TAG_ORIENTATION}. If none are given,
+     *            every tag is indexed.
+     * @throws IOException if the data is not a JPEG image.
+     */
+    public static ExifTagIndex read(byte[] jpeg, int... tagIds) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(ExifInterface.NULL_ARGUMENT_STRING);
+        }
+        return read(ByteBuffer.wrap(jpeg), tagIds);
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG image held between the position and
+     * limit of a (possibly direct) ByteBuffer. The buffer's position and limit
+     * are left unchanged.
+     *
+     * @see #read(byte[], int...)
+     */
+    public static ExifTagIndex read(ByteBuffer jpeg, int... tagIds) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(ExifInterface.NULL_ARGUMENT_STRING);
+        }
+        CountedDataInputStream dataStream = new CountedDataInputStream(
+                new ByteBufferInputStream(jpeg.duplicate()));
+        int tiffLength = seekTiffData(dataStream);
+        if (tiffLength <= 0) {
+            return new ExifTagIndex(null, tagIds);
+        }
+        ByteBuffer tiff = jpeg.duplicate();
+        int tiffStart = jpeg.position() + dataStream.getReadByteCount();
+        tiffLength = Math.min(tiffLength, jpeg.limit() - tiffStart);
+        tiff.position(tiffStart);
+        tiff.limit(tiffStart + tiffLength);
+        return new ExifTagIndex(tiff.slice(), tagIds);
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG image read from a stream. Only the
+     * marker segments up to and including the EXIF segment are read.
+     *
+     * @see #read(byte[], int...)
+     */
+    public static ExifTagIndex read(InputStream jpegStream, int... tagIds) throws IOException {
+        if (jpegStream == null) {
+            throw new IllegalArgumentException(ExifInterface.NULL_ARGUMENT_STRING);
+        }
+        CountedDataInputStream dataStream = new CountedDataInputStream(jpegStream);
+        int tiffLength = seekTiffData(dataStream);
+        if (tiffLength <= 0) {
+            return new ExifTagIndex(null, tagIds);
+        }
+        byte[] tiff = new byte[tiffLength];
+        dataStream.readOrThrow(tiff);
+        return new ExifTagIndex(ByteBuffer.wrap(tiff), tagIds);
+    }
+
+    /**
+     * Indexes the EXIF header of a JPEG file.
+     *
+     * @see #read(byte[], int...)
+     */
+    public static ExifTagIndex read(String jpegFileName, int... tagIds)
+            throws FileNotFoundException, IOException {
+        if (jpegFileName == null) {
+            throw new IllegalArgumentException(ExifInterface.NULL_ARGUMENT_STRING);
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(jpegFileName));
+        try {
+            return read(is, tagIds);
+        } finally {
+            ExifInterface.closeSilently(is);
+        }
+    }
+
+    private ExifTagIndex(ByteBuffer tiff, int[] tagIds) throws IOException {
+        mTiff = tiff;
+        if (tagIds == null || tagIds.length == 0) {
+            mRequestedTags = null;
+        } else {
+            mRequestedTags = Arrays.copyOf(tagIds, tagIds.length);
+            Arrays.sort(mRequestedTags);
+        }
+        if (mTiff != null) {
+            indexTiff();
+        }
+    }
+
+    /**
+     * Returns true if the image has an EXIF header.
+     */
+    public boolean hasExif() {
+        return mTiff != null;
+    }
+
+    /**
+     * Returns the ExifTag in that tag's default IFD for a defined tag
+     * constant, or null if the tag is not present or was not requested.
+     */
+    public ExifTag getTag(int tagId) {
+        return getTag(tagId, ExifInterface.getTrueIfd(tagId));
+    }
+
+    /**
+     * Returns the ExifTag for a defined tag constant in the given IFD, or
+     * null if the tag is not present or was not requested. The tag is decoded
+     * on the first call.
+     */
+    public ExifTag getTag(int tagId, int ifdId) {
+        if (!ExifTag.isValidIfd(ifdId)) {
+            return null;
+        }
+        int key = ExifInterface.defineTag(ifdId, ExifInterface.getTrueTagKey(tagId));
+        ExifTag tag = mDecodedTags.get(key);
+        if (tag == null) {
+            int entry = mEntries.get(key, -1);
+            if (entry < 0) {
+                return null;
+            }
+            tag = decodeTag(entry, ifdId);
+            if (tag == null) {
+                // Do not try to decode a broken tag again.
+                mEntries.delete(key);
+                return null;
+            }
+            mDecodedTags.put(key, tag);
+        }
+        return tag;
+    }
+
+    /**
+     * @see ExifInterface#getTagIntValue(int)
+     */
+    public Integer getTagIntValue(int tagId) {
+        ExifTag tag = getTag(tagId);
+        if (tag == null) {
+            return null;
+        }
+        int[] l = tag.getValueAsInts();
+        if (l == null || l.length <= 0) {
+            return null;
+        }
+        return Integer.valueOf(l[0]);
+    }
+
+    /**
+     * @see ExifInterface#getTagLongValue(int)
+     */
+    public Long getTagLongValue(int tagId) {
+        ExifTag tag = getTag(tagId);
+        if (tag == null) {
+            return null;
+        }
+        long[] l = tag.getValueAsLongs();
+        if (l == null || l.length <= 0) {
+            return null;
+        }
+        return Long.valueOf(l[0]);
+    }
+
+    /**
+     * @see ExifInterface#getTagStringValue(int)
+     */
+    public String getTagStringValue(int tagId) {
+        ExifTag tag = getTag(tagId);
+        if (tag == null) {
+            return null;
+        }
+        return tag.getValueAsString();
+    }
+
+    /**
+     * @see ExifInterface#getTagRationalValue(int)
+     */
+    public Rational getTagRationalValue(int tagId) {
+        ExifTag tag = getTag(tagId);
+        if (tag == null) {
+            return null;
+        }
+        Rational[] l = tag.getValueAsRationals();
+        if (l == null || l.length == 0) {
+            return null;
+        }
+        return new Rational(l[0]);
+    }
+
+    /**
+     * Returns a copy of the compressed thumbnail, or null if there is none.
+     * The thumbnail is only located if no tag set was given, or if the tag
+     * set includes {@link ExifInterface#TAG_JPEG_INTERCHANGE_FORMAT} and
+     * {@link ExifInterface#TAG_JPEG_INTERCHANGE_FORMAT_LENGTH}.
+     */
+    public byte[] getThumbnailBytes() {
+        Long offset = getTagLongValue(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT);
+        Long length = getTagLongValue(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (offset == null || length == null || offset < 0 || length <= 0
+                || offset + length > mTiff.limit()) {
+            return null;
+        }
+        byte[] thumbnail = new byte[length.intValue()];
+        ByteBuffer data = mTiff.duplicate();
+        data.position(offset.intValue());
+        data.get(thumbnail);
+        return thumbnail;
+    }
+
+    private void indexTiff() throws IOException {
+        if (mTiff.limit() < TIFF_HEADER_SIZE) {
+            throw new IOException("Invalid TIFF header");
+        }
+        short byteOrder = mTiff.getShort(0);
+        if (byteOrder == ExifParser.LITTLE_ENDIAN_TAG) {
+            mTiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder == ExifParser.BIG_ENDIAN_TAG) {
+            mTiff.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            throw new IOException("Invalid TIFF header");
+        }
+        if (mTiff.getShort(2) != ExifParser.TIFF_HEADER_TAIL) {
+            throw new IOException("Invalid TIFF header");
+        }
+
+        int ifdMask = getRequestedIfds();
+        int ifd0Offset = mTiff.getInt(4);
+        int ifd1Offset = indexIfd(IfdId.TYPE_IFD_0, ifd0Offset, ifdMask);
+        if ((ifdMask & IFD_1_MASK) != 0 && ifd1Offset > 0) {
+            indexIfd(IfdId.TYPE_IFD_1, ifd1Offset, ifdMask);
+        }
+    }
+
+    private int getRequestedIfds() {
+        if (mRequestedTags == null) {
+            return ALL_IFDS_MASK;
+        }
+        int mask = IFD_0_MASK;
+        for (int tagId : mRequestedTags) {
+            int ifd = ExifInterface.getTrueIfd(tagId);
+            if (ExifTag.isValidIfd(ifd)) {
+                mask |= 1 << ifd;
+            }
+        }
+        // The interoperability IFD is linked from the Exif IFD.
+        if ((mask & IFD_INTEROPERABILITY_MASK) != 0) {
+            mask |= IFD_EXIF_MASK;
+        }
+        return mask;
+    }
+
+    private boolean isRequested(int key) {
+        return mRequestedTags == null || Arrays.binarySearch(mRequestedTags, key) >= 0;
+    }
+
+    /**
+     * Records the entries of an IFD and follows the links to the requested
+     * sub IFDs.
+     *
+     * @return the offset of the next IFD, or 0 if there is none.
+     */
+    private int indexIfd(int ifd, int offset, int ifdMask) {
+        int limit = mTiff.limit();
+        if (offset < TIFF_HEADER_SIZE || offset + 2 > limit) {
+            Log.w(TAG, "Invalid offset of IFD " + ifd + ": " + offset);
+            return 0;
+        }
+        int entryCount = mTiff.getShort(offset) & 0xffff;
+        int entriesStart = offset + 2;
+        if (entriesStart + entryCount * IFD_ENTRY_SIZE > limit) {
+            Log.w(TAG, "Invalid size of IFD " + ifd);
+            return 0;
+        }
+
+        for (int i = 0; i < entryCount; i++) {
+            int entry = entriesStart + i * IFD_ENTRY_SIZE;
+            short tagId = mTiff.getShort(entry);
+            short type = mTiff.getShort(entry + 2);
+            int count = mTiff.getInt(entry + 4);
+            if (!ExifTag.isValidType(type)) {
+                Log.w(TAG, String.format("Tag %04x: Invalid data type %d", tagId, type));
+                continue;
+            }
+            if (count < 0 || (long) count * ExifTag.getElementSize(type) > limit) {
+                Log.w(TAG, String.format("Tag %04x: Invalid count %d", tagId, count));
+                continue;
+            }
+            int key = ExifInterface.defineTag(ifd, tagId);
+            if (isRequested(key)) {
+                mEntries.put(key, entry);
+            }
+            if (count == 0) {
+                continue;
+            }
+            if (ifd == IfdId.TYPE_IFD_0) {
+                if (tagId == TAG_EXIF_IFD && (ifdMask & IFD_EXIF_MASK) != 0) {
+                    indexIfd(IfdId.TYPE_IFD_EXIF, mTiff.getInt(entry + 8), ifdMask);
+                } else if (tagId == TAG_GPS_IFD && (ifdMask & IFD_GPS_MASK) != 0) {
+                    indexIfd(IfdId.TYPE_IFD_GPS, mTiff.getInt(entry + 8), ifdMask);
+                }
+            } else if (ifd == IfdId.TYPE_IFD_EXIF && tagId == TAG_INTEROPERABILITY_IFD
+                    && (ifdMask & IFD_INTEROPERABILITY_MASK) != 0) {
+                indexIfd(IfdId.TYPE_IFD_INTEROPERABILITY, mTiff.getInt(entry + 8), ifdMask);
+            }
+        }
+
+        int linkPosition = entriesStart + entryCount * IFD_ENTRY_SIZE;
+        if (ifd != IfdId.TYPE_IFD_0 || linkPosition + 4 > limit) {
+            return 0;
+        }
+        return mTiff.getInt(linkPosition);
+    }
+
+    private ExifTag decodeTag(int entry, int ifd) {
+        short tagId = mTiff.getShort(entry);
+        short type = mTiff.getShort(entry + 2);
+        int count = mTiff.getInt(entry + 4);
+        ExifTag tag = new ExifTag(tagId, type, count, ifd, count != ExifTag.SIZE_UNDEFINED);
+        int dataSize = tag.getDataSize();
+        int position = dataSize > 4 ? mTiff.getInt(entry + 8) : entry + 8;
+        if (position < 0 || position + dataSize > mTiff.limit()) {
+            Log.w(TAG, "Invalid value offset for tag: \n" + tag.toString());
+            return null;
+        }
+
+        boolean defCount = tag.hasDefinedCount();
+        // Set defined count to 0 so we can add \0 to non-terminated strings
+        tag.setHasDefinedCount(false);
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED: {
+                byte[] buf = new byte[count];
+                ByteBuffer data = mTiff.duplicate();
+                data.position(position);
+                data.get(buf);
+                tag.setValue(buf);
+            }
+                break;
+            case ExifTag.TYPE_ASCII: {
+                byte[] buf = new byte[count];
+                ByteBuffer data = mTiff.duplicate();
+                data.position(position);
+                data.get(buf);
+                tag.setValue(new String(buf, US_ASCII));
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_LONG: {
+                long[] value = new long[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = mTiff.getInt(position + 4 * i) & 0xffffffffL;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_RATIONAL: {
+                Rational[] value = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = new Rational(mTiff.getInt(position + 8 * i) & 0xffffffffL,
+                            mTiff.getInt(position + 8 * i + 4) & 0xffffffffL);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_UNSIGNED_SHORT: {
+                int[] value = new int[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = mTiff.getShort(position + 2 * i) & 0xffff;
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_LONG: {
+                int[] value = new int[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = mTiff.getInt(position + 4 * i);
+                }
+                tag.setValue(value);
+            }
+                break;
+            case ExifTag.TYPE_RATIONAL: {
+                Rational[] value = new Rational[count];
+                for (int i = 0; i < count; i++) {
+                    value[i] = new Rational(mTiff.getInt(position + 8 * i),
+                            mTiff.getInt(position + 8 * i + 4));
+                }
+                tag.setValue(value);
+            }
+                break;
+        }
+        tag.setHasDefinedCount(defCount);
+        tag.setOffset(position);
+        return tag;
+    }
+
+    /**
+     * Skips the marker segments before the EXIF segment.
+     *
+     * @return the length of the TIFF data that follows the EXIF header, or -1
+     *         if the image has no EXIF segment.
+     */
+    private static int seekTiffData(CountedDataInputStream dataStream) throws IOException {
+        if (dataStream.readShort() != JpegHeader.SOI) {
+            throw new IOException("Invalid JPEG format");
+        }
+
+        short marker = dataStream.readShort();
+        while (marker != JpegHeader.EOI
+                && !JpegHeader.isSofMarker(marker)) {
+            int length = dataStream.readUnsignedShort();
+            // Some invalid formatted image contains multiple APP1,
+            // try to find the one with Exif data.
+            if (marker == JpegHeader.APP1 && length >= 8) {
+                int header = dataStream.readInt();
+                short headerTail = dataStream.readShort();
+                length -= EXIF_HEADER_SIZE;
+                if (header == ExifParser.EXIF_HEADER
+                        && headerTail == ExifParser.EXIF_HEADER_TAIL) {
+                    return length - 2;
+                }
+            }
+            if (length < 2 || (length - 2) != dataStream.skip(length - 2)) {
+                Log.w(TAG, "Invalid JPEG format.");
+                return -1;
+            }
+            marker = dataStream.readShort();
+        }
+        return -1;
+    }
+}
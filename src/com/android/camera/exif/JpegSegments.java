@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The APP1 segments of a JPEG image, found with a single pass over the marker
+ * segments before the image data, for reading the XMP packet of an image.
+ * <p>
+ * Only the APP1 segments are read into memory, into one array, and the XMP
+ * packet is exposed as a read-only slice of it rather than as a copy.
+ *
+ * <pre>
+ * JpegSegments segments = JpegSegments.read(fileName);
+ * ByteBuffer xmp = segments.getXmp();
+ * </pre>
+ */
+public final class JpegSegments {
+    private static final Log.Tag TAG = new Log.Tag("JpegSegments");
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int SOI = 0xd8;
+    private static final int APP1 = 0xe1;
+    private static final int SOS = 0xda;
+    private static final int EOI = 0xd9;
+
+    private static final byte[] XMP_IDENTIFIER =
+            "http://ns.adobe.com/xap/1.0/\0".getBytes(US_ASCII);
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    /** The data of each APP1 segment, after its length. */
+    private final List<ByteBuffer> mApp1Segments;
+
+    private JpegSegments(List<ByteBuffer> app1Segments) {
+        mApp1Segments = app1Segments;
+    }
+
+    /**
+     * Finds the APP1 segments of a JPEG image read from a stream. Only the
+     * marker segments before the image data are read, and only the APP1
+     * segments are kept. The stream is not closed.
+     *
+     * @throws IOException if the data is not a JPEG image, or could not be
+     *             read.
+     */
+    public static JpegSegments read(InputStream jpegStream) throws IOException {
+        if (jpegStream == null) {
+            throw new IllegalArgumentException(ExifInterface.NULL_ARGUMENT_STRING);
+        }
+        if (jpegStream.read() != 0xff || jpegStream.read() != SOI) {
+            throw new IOException("Invalid JPEG format");
+        }
+        byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        int size = 0;
+        // Pairs of offset and length.
+        int[] entries = new int[2 * 8];
+        int count = 0;
+        while (true) {
+            int c = jpegStream.read();
+            if (c != 0xff) {
+                if (c != -1) {
+                    Log.w(TAG, "Invalid JPEG format.");
+                }
+                break;
+            }
+            int marker = jpegStream.read();
+            while (marker == 0xff) {
+                // Fill bytes may precede a marker.
+                marker = jpegStream.read();
+            }
+            if (marker == -1 || marker == SOS || marker == EOI) {
+                break;
+            }
+            int lengthHigh = jpegStream.read();
+            int lengthLow = jpegStream.read();
+            if (lengthHigh == -1 || lengthLow == -1) {
+                break;
+            }
+            int length = (lengthHigh << 8 | lengthLow) - 2;
+            if (length < 0) {
+                Log.w(TAG, "Invalid JPEG format.");
+                break;
+            }
+            if (marker != APP1) {
+                if (!skipFully(jpegStream, length)) {
+                    break;
+                }
+                continue;
+            }
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+            }
+            if (!readFully(jpegStream, buffer, size, length)) {
+                Log.w(TAG, "Truncated JPEG segment.");
+                break;
+            }
+            if (2 * count + 2 > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[2 * count] = size;
+            entries[2 * count + 1] = length;
+            count++;
+            size += length;
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, size).asReadOnlyBuffer();
+        List<ByteBuffer> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(slice(data, entries[2 * i], entries[2 * i + 1]));
+        }
+        return new JpegSegments(segments);
+    }
+
+    /**
+     * Finds the APP1 segments of a JPEG file.
+     *
+     * @see #read(InputStream)
+     */
+    public static JpegSegments read(String jpegFileName) throws IOException {
+        if (jpegFileName == null) {
+            throw new IllegalArgumentException(ExifInterface.NULL_ARGUMENT_STRING);
+        }
+        InputStream is = new BufferedInputStream(new FileInputStream(jpegFileName));
+        try {
+            return read(is);
+        } finally {
+            ExifInterface.closeSilently(is);
+        }
+    }
+
+    /**
+     * @return A read-only view of the serialized standard XMP packet, or null
+     *         if there is none.
+     */
+    public ByteBuffer getXmp() {
+        for (ByteBuffer segment : mApp1Segments) {
+            if (startsWith(segment, XMP_IDENTIFIER)) {
+                return slice(segment, XMP_IDENTIFIER.length,
+                        segment.limit() - XMP_IDENTIFIER.length);
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(ByteBuffer data, byte[] identifier) {
+        if (data.limit() < identifier.length) {
+            return false;
+        }
+        for (int i = 0; i < identifier.length; i++) {
+            if (data.get(i) != identifier[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        return slice.slice();
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+            length -= read;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                // skip() may stop early without reaching the end.
+                if (in.read() < 0) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        return true;
+    }
+}
@@ -31,10 +31,10 @@ import android.util.Pair;
 
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
-import com.android.camera.util.ConcurrentSharedRingBuffer;
 import com.android.camera.util.ConcurrentSharedRingBuffer.PinStateListener;
 import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
 import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+import com.android.camera.util.LockFreeSharedRingBuffer;
 import com.android.camera.util.Task;
 
 import java.util.Collections;
@@ -266,9 +266,10 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
     /**
      * Stores the ring-buffer of captured images.<br>
      * Note that this takes care of thread-safe reference counting of images to
-     * ensure that they are never leaked by the app.
+     * ensure that they are never leaked by the app. Pinning images from
+     * capture threads never blocks the frame callbacks swapping images in.
      */
-    private final ConcurrentSharedRingBuffer<CapturedImage> mCapturedImageBuffer;
+    private final LockFreeSharedRingBuffer<CapturedImage> mCapturedImageBuffer;
 
     /** Track the number of open images for debugging purposes. */
     private final AtomicInteger mNumOpenImages = new AtomicInteger(0);
@@ -331,7 +332,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
         // Ensure that there are always 2 images available for the framework to
         // continue processing frames.
         // TODO Could we make this tighter?
-        mCapturedImageBuffer = new ConcurrentSharedRingBuffer<ImageCaptureManager.CapturedImage>(
+        mCapturedImageBuffer = new LockFreeSharedRingBuffer<ImageCaptureManager.CapturedImage>(
                 maxImages - 2);
 
         mListenerHandler = listenerHandler;
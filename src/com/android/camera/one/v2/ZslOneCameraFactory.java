@@ -24,11 +24,14 @@ import android.util.Range;
 import android.view.Surface;
 
 import com.android.camera.FatalErrorHandler;
+import com.android.camera.app.CameraServicesImpl;
+import com.android.camera.app.MemoryManager;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
 import com.android.camera.async.MainThread;
 import com.android.camera.async.Observable;
 import com.android.camera.async.Observables;
+import com.android.camera.async.SafeCloseable;
 import com.android.camera.async.Updatable;
 import com.android.camera.burst.BurstFacade;
 import com.android.camera.burst.BurstTaker;
@@ -61,6 +64,7 @@ import com.android.camera.one.v2.initialization.CameraStarter;
 import com.android.camera.one.v2.initialization.InitializedOneCameraFactory;
 import com.android.camera.one.v2.photo.ZslPictureTakerFactory;
 import com.android.camera.one.v2.sharedimagereader.ZslSharedImageReaderFactory;
+import com.android.camera.one.v2.sharedimagereader.ringbuffer.AdaptiveTicketBudget;
 import com.android.camera.stats.UsageStatistics;
 import com.android.camera.util.AndroidContext;
 import com.android.camera.util.ApiHelper;
@@ -82,6 +86,7 @@ public class ZslOneCameraFactory implements OneCameraFactory {
     private final Logger mLogger;
     private final int mImageFormat;
     private final int mMaxImageCount;
+    private final int minRingBufferSize;
     private final int maxRingBufferSize;
 
     public ZslOneCameraFactory(int imageFormat, int maxImageCount) {
@@ -102,11 +107,14 @@ public class ZslOneCameraFactory implements OneCameraFactory {
         // places no additional constraints on ring-buffer size. That is,
         // the ring-buffer will expand to fill the entire capacity of the
         // ImageReader whenever possible.
-
-        // A value of 1 here is adequate for single-frame ZSL capture, but
-        // *must* be increased to support multi-frame burst capture with
-        // zero-shutter-lag.
-        maxRingBufferSize = 1;
+        // Within these bounds, the AdaptiveTicketBudget sizes the ring-buffer
+        // at runtime from the look-back ZSL captures actually need, the
+        // capture rate and memory pressure.
+
+        // A value of 1 is adequate for single-frame ZSL capture, so that is
+        // the size the ring-buffer falls back to under memory pressure.
+        minRingBufferSize = 1;
+        maxRingBufferSize = mMaxImageCount - 2;
     }
 
     /**
@@ -180,7 +188,22 @@ public class ZslOneCameraFactory implements OneCameraFactory {
                 // Create the shared image reader.
                 ZslSharedImageReaderFactory sharedImageReaderFactory =
                         new ZslSharedImageReaderFactory(new Lifetime(cameraLifetime),
-                                imageReader, new HandlerFactory(), maxRingBufferSize);
+                                imageReader, new HandlerFactory(), minRingBufferSize,
+                                maxRingBufferSize);
+
+                // Let the ticket budget shrink the ring-buffer under memory
+                // pressure.
+                final AdaptiveTicketBudget ticketBudget =
+                        sharedImageReaderFactory.provideTicketBudget();
+                final MemoryManager memoryManager =
+                        CameraServicesImpl.instance().getMemoryManager();
+                memoryManager.addListener(ticketBudget);
+                cameraLifetime.add(new SafeCloseable() {
+                    @Override
+                    public void close() {
+                        memoryManager.removeListener(ticketBudget);
+                    }
+                });
 
                 CameraCommandExecutor cameraCommandExecutor = new CameraCommandExecutor(
                         Loggers.tagFactory(),
@@ -256,7 +279,8 @@ public class ZslOneCameraFactory implements OneCameraFactory {
                         sharedImageReaderFactory.provideZSLStream(),
                         sharedImageReaderFactory.provideMetadataPool(),
                         flashSetting,
-                        zslAndPreviewTemplate);
+                        zslAndPreviewTemplate,
+                        ticketBudget.provideLookBackCallback());
 
                 BurstTaker burstTaker = new BurstTakerImpl(cameraCommandExecutor,
                         frameServer,
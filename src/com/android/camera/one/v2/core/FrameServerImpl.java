@@ -20,9 +20,12 @@ import static com.google.common.base.Preconditions.checkState;
 
 import android.hardware.camera2.CameraAccessException;
 
+import com.android.camera.debug.Log;
 import com.android.camera.one.v2.camera2proxy.CameraCaptureSessionClosedException;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nonnull;
@@ -31,8 +34,20 @@ import javax.annotation.Nullable;
 /**
  * Implements a FrameServer by managing exclusive access to a single
  * {@link FrameServer.Session}.
+ * <p>
+ * Only the holder of the exclusive session submits requests, so submissions
+ * never overlap and there is nothing to coalesce at this level. Contention
+ * shows up instead as threads queued on the session, which is reported by
+ * {@link #getQueueDepth} and {@link #getTotalLockWaitNanos}.
  */
 public final class FrameServerImpl implements FrameServer {
+    private static final Log.Tag TAG = new Log.Tag("FrameServerImpl");
+
+    /**
+     * Waits for an exclusive session at least this long are logged.
+     */
+    private static final long LOCK_WAIT_LOG_THRESHOLD_MS = 100;
+
     public class Session implements FrameServer.Session {
         private final Object mLock;
         private boolean mClosed;
@@ -75,6 +90,8 @@ public final class FrameServerImpl implements FrameServer {
 
     private final FrameServer.Session mCaptureSession;
     private final ReentrantLock mCameraLock;
+    private final AtomicLong mSessionCount;
+    private final AtomicLong mLockWaitNanos;
 
     /**
      * @param captureSession The underlying session to manage access to. Note
@@ -83,6 +100,8 @@ public final class FrameServerImpl implements FrameServer {
     public FrameServerImpl(FrameServer.Session captureSession) {
         mCaptureSession = captureSession;
         mCameraLock = new ReentrantLock(true);
+        mSessionCount = new AtomicLong();
+        mLockWaitNanos = new AtomicLong();
     }
 
     @Override
@@ -90,7 +109,16 @@ public final class FrameServerImpl implements FrameServer {
     public Session createExclusiveSession() throws InterruptedException {
         checkState(!mCameraLock.isHeldByCurrentThread(), "Cannot acquire another " +
                 "FrameServer.Session on the same thread.");
+        long waitStartNanos = System.nanoTime();
         mCameraLock.lockInterruptibly();
+        long waitNanos = System.nanoTime() - waitStartNanos;
+        mSessionCount.incrementAndGet();
+        mLockWaitNanos.addAndGet(waitNanos);
+        long waitMs = TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        if (waitMs >= LOCK_WAIT_LOG_THRESHOLD_MS) {
+            Log.i(TAG, "Waited " + waitMs + "ms for an exclusive session, "
+                    + getQueueDepth() + " still waiting");
+        }
         return new Session();
     }
 
@@ -101,9 +129,34 @@ public final class FrameServerImpl implements FrameServer {
             return null;
         }
         if (mCameraLock.tryLock()) {
+            mSessionCount.incrementAndGet();
             return new Session();
         } else {
             return null;
         }
     }
+
+    /**
+     * @return An estimate of the number of threads currently blocked in
+     *         {@link #createExclusiveSession}.
+     */
+    public int getQueueDepth() {
+        return mCameraLock.getQueueLength();
+    }
+
+    /**
+     * @return The number of exclusive sessions created so far.
+     */
+    public long getSessionCount() {
+        return mSessionCount.get();
+    }
+
+    /**
+     * @return The total time, in nanoseconds, which
+     *         {@link #createExclusiveSession} spent waiting for the session to
+     *         be released.
+     */
+    public long getTotalLockWaitNanos() {
+        return mLockWaitNanos.get();
+    }
 }
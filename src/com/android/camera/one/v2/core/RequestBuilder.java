@@ -29,7 +29,7 @@ import android.hardware.camera2.TotalCaptureResult;
 import android.view.Surface;
 
 import com.android.camera.async.BufferQueue;
-import com.android.camera.async.ConcurrentBufferQueue;
+import com.android.camera.async.LockFreeBufferQueue;
 import com.android.camera.async.Updatable;
 import com.android.camera.one.v2.camera2proxy.CaptureRequestBuilderProxy;
 import com.android.camera.one.v2.camera2proxy.CaptureResultProxy;
@@ -166,7 +166,7 @@ public class RequestBuilder {
      * @param captureStream
      */
     public void addStream(CaptureStream captureStream) {
-        ConcurrentBufferQueue<Long> timestamps = new ConcurrentBufferQueue<>();
+        LockFreeBufferQueue<Long> timestamps = new LockFreeBufferQueue<>();
 
         mAllocations.add(new UnregisteredStreamProvider(captureStream,
                 timestamps, mBuilder));
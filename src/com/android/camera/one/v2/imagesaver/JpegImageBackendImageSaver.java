@@ -24,6 +24,8 @@ import android.net.Uri;
 import com.android.camera.Exif;
 import com.android.camera.app.OrientationManager;
 import com.android.camera.debug.Log;
+import com.android.camera.exif.ByteBufferInputStream;
+import com.android.camera.exif.ExifInterface;
 import com.android.camera.one.OneCamera;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
@@ -122,19 +124,21 @@ public class JpegImageBackendImageSaver implements ImageSaver.Builder {
                 // Just start the thumbnail now, since there's no earlier event.
 
                 // Downsample and convert the JPEG payload to a reasonably-sized
-                // Bitmap
+                // Bitmap. The payload may be the camera's own buffer, so it is
+                // decoded in place instead of being copied into an array.
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inSampleSize = JPEG_DOWNSAMPLE_FOR_FAST_INDICATOR;
-                final Bitmap bitmap = BitmapFactory.decodeByteArray(payload.data, 0,
-                        payload.data.length, options);
+                final Bitmap bitmap = BitmapFactory.decodeStream(
+                        new ByteBufferInputStream(payload.getBuffer()), null, options);
 
                 // If the rotation is implemented as an EXIF flag, we need to
                 // pass this information onto the UI call, since the rotation is
                 // NOT applied to the bitmap directly.
-                int rotation = Exif.getOrientation(payload.data);
+                ExifInterface exif = Exif.getExif(payload.getBuffer());
+                int rotation = Exif.getOrientation(exif);
                 mSession.updateCaptureIndicatorThumbnail(bitmap, rotation);
                 // Send image to remote devices
-                mPictureSaverCallback.onRemoteThumbnailAvailable(payload.data);
+                mPictureSaverCallback.onRemoteThumbnailAvailable(payload.getData());
             }
 
         }
@@ -126,7 +126,7 @@ public class YuvImageBackendImageSaver implements ImageSaver.Builder {
                 TaskImageContainer.CompressedPayload payload) {
             if (task.destination == TaskImageContainer.TaskInfo.Destination.FINAL_IMAGE) {
                 mSession.setProgress(PERCENTAGE_COMPRESSION_DONE);
-                mPictureSaverCallback.onRemoteThumbnailAvailable(payload.data);
+                mPictureSaverCallback.onRemoteThumbnailAvailable(payload.getData());
             }
         }
 
@@ -22,6 +22,7 @@ import android.hardware.camera2.CameraDevice;
 
 import com.android.camera.async.BufferQueue;
 import com.android.camera.async.MainThread;
+import com.android.camera.async.Updatable;
 import com.android.camera.debug.Logger;
 import com.android.camera.one.OneCamera;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
@@ -64,7 +65,8 @@ public class ZslPictureTakerFactory {
             BufferQueue<ImageProxy> ringBuffer,
             MetadataPool metadataPool,
             Supplier<OneCamera.PhotoCaptureParameters.Flash> flashMode,
-            ResponseManager globalResponseManager) {
+            ResponseManager globalResponseManager,
+            Updatable<Long> zslLookBackCallback) {
         // When flash is ON, always use the ConvergedImageCaptureCommand which
         // performs the AF & AE precapture sequence.
         ImageCaptureCommand flashOnCommand = new ConvergedImageCaptureCommand(
@@ -80,7 +82,8 @@ public class ZslPictureTakerFactory {
                 Arrays.asList(rootRequestBuilder), /* ae */false, /* af */true);
         ImageCaptureCommand flashOffCommand =
                 new ZslImageCaptureCommand(logFactory, ringBuffer, metadataPool, flashOffFallback,
-                        new AcceptableZslImageFilter(true, false), MAX_LOOKBACK_NANOS);
+                        new AcceptableZslImageFilter(true, false), MAX_LOOKBACK_NANOS,
+                        zslLookBackCallback);
         // When flash is Auto, use ZSL and filter images to require AF
         // convergence, and AE convergence.
         AutoFlashZslImageFilter autoFlashZslImageFilter = AutoFlashZslImageFilter.create(
@@ -88,7 +91,7 @@ public class ZslPictureTakerFactory {
         globalResponseManager.addResponseListener(forPartialMetadata(autoFlashZslImageFilter));
         ImageCaptureCommand flashAutoCommand =
                 new ZslImageCaptureCommand(logFactory, ringBuffer, metadataPool, flashOnCommand,
-                        autoFlashZslImageFilter, MAX_LOOKBACK_NANOS);
+                        autoFlashZslImageFilter, MAX_LOOKBACK_NANOS, zslLookBackCallback);
 
         ImageCaptureCommand flashBasedCommand = new FlashBasedPhotoCommand(logFactory, flashMode,
                 flashOnCommand, flashAutoCommand, flashOffCommand);
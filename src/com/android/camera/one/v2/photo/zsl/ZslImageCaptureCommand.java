@@ -58,19 +58,28 @@ public class ZslImageCaptureCommand implements ImageCaptureCommand {
     private final ImageCaptureCommand mFallbackCommand;
     private final Predicate<TotalCaptureResultProxy> mMetadataFilter;
     private final long mMaxLookBackNanos;
+    private final Updatable<Long> mLookBackCallback;
 
+    /**
+     * @param lookBackCallback Receives how far back, in nanoseconds from the
+     *            most recent image, the image used for each capture was.
+     *            Nothing is reported if no acceptable image was available,
+     *            since that does not tell how much history was needed.
+     */
     public ZslImageCaptureCommand(Logger.Factory logFactory,
             BufferQueue<ImageProxy> zslRingBuffer,
             MetadataPool zslMetadataPool,
             ImageCaptureCommand fallbackCommand,
             Predicate<TotalCaptureResultProxy> metadataFilter,
-            long maxLookBackNanos) {
+            long maxLookBackNanos,
+            Updatable<Long> lookBackCallback) {
         mZslRingBuffer = zslRingBuffer;
         mLog = logFactory.create(new Log.Tag("ZSLImageCaptureCmd"));
         mZslMetadataPool = zslMetadataPool;
         mFallbackCommand = fallbackCommand;
         mMetadataFilter = metadataFilter;
         mMaxLookBackNanos = maxLookBackNanos;
+        mLookBackCallback = lookBackCallback;
     }
 
     /**
@@ -153,6 +162,8 @@ public class ZslImageCaptureCommand implements ImageCaptureCommand {
         if (imageToSave == null) {
             return null;
         } else {
+            long mostRecentTimestamp = images.get(images.size() - 1).getTimestamp();
+            mLookBackCallback.update(mostRecentTimestamp - imageToSave.getTimestamp());
             return new Pair<>(imageToSave, metadata);
         }
     }
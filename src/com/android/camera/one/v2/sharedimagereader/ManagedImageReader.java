@@ -21,8 +21,8 @@ import android.view.Surface;
 
 import com.android.camera.async.BufferQueue;
 import com.android.camera.async.BufferQueueController;
-import com.android.camera.async.ConcurrentBufferQueue;
 import com.android.camera.async.Lifetime;
+import com.android.camera.async.LockFreeBufferQueue;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 import com.android.camera.one.v2.core.CaptureStream;
 import com.android.camera.one.v2.core.FrameServer;
@@ -97,7 +97,7 @@ public class ManagedImageReader {
         ReservableTicketPool ticketPool = new ReservableTicketPool(mTicketPool);
         mLifetime.add(ticketPool);
 
-        ConcurrentBufferQueue<ImageProxy> imageStream = new ConcurrentBufferQueue<>(new
+        LockFreeBufferQueue<ImageProxy> imageStream = new LockFreeBufferQueue<>(new
                 ImageCloser());
         mLifetime.add(imageStream);
 
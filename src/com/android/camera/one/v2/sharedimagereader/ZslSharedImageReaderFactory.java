@@ -19,10 +19,10 @@ package com.android.camera.one.v2.sharedimagereader;
 import static com.android.camera.one.v2.core.ResponseListeners.forFinalMetadata;
 import static com.android.camera.one.v2.core.ResponseListeners.forTimestamps;
 
+import com.android.camera.async.ConcurrentState;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
 import com.android.camera.async.Observable;
-import com.android.camera.async.Observables;
 import com.android.camera.async.Updatable;
 import com.android.camera.one.v2.camera2proxy.ImageReaderProxy;
 import com.android.camera.one.v2.core.ResponseListener;
@@ -32,6 +32,7 @@ import com.android.camera.one.v2.sharedimagereader.imagedistributor.ImageDistrib
 import com.android.camera.one.v2.sharedimagereader.imagedistributor.ImageStream;
 import com.android.camera.one.v2.sharedimagereader.metadatasynchronizer.MetadataPool;
 import com.android.camera.one.v2.sharedimagereader.metadatasynchronizer.MetadataPoolFactory;
+import com.android.camera.one.v2.sharedimagereader.ringbuffer.AdaptiveTicketBudget;
 import com.android.camera.one.v2.sharedimagereader.ringbuffer.DynamicRingBufferFactory;
 import com.android.camera.one.v2.sharedimagereader.ticketpool.FiniteTicketPool;
 import com.android.camera.one.v2.sharedimagereader.ticketpool.TicketPool;
@@ -39,13 +40,21 @@ import com.android.camera.one.v2.sharedimagereader.ticketpool.TicketPool;
 /**
  * Like {@link SharedImageReaderFactory}, but provides a single
  * {@link ImageStream} with a dynamic capacity which changes depending on demand
- * from the {@link ManagedImageReader}.
+ * from the {@link ManagedImageReader}, and whose maximum size is adapted at
+ * runtime by an {@link AdaptiveTicketBudget}.
  */
 public class ZslSharedImageReaderFactory {
+    /**
+     * The number of frames whose metadata may arrive before their image, in
+     * addition to the images which can be open at once.
+     */
+    private static final int METADATA_PIPELINE_DEPTH = 4;
+
     private final ManagedImageReader mSharedImageReader;
     private final ImageStream mZslCaptureStream;
     private final MetadataPool mMetadataPool;
     private final Observable<Integer> mAvailableImageCount;
+    private final AdaptiveTicketBudget mTicketBudget;
     private final ResponseListener mResponseListener;
 
     /**
@@ -56,6 +65,8 @@ public class ZslSharedImageReaderFactory {
      *            the resulting SharedImageReader instance.
      * @param handlerFactory Used for create handler threads on which to receive
      *            callbacks from the platform.
+     * @param minRingBufferSize The size of the ring-buffer under memory
+     *            pressure.
      * @param maxRingBufferSize Limits the size of the ring-buffer. This reduces
      *            steady-state memory consumption since ImageReader images are
      *            allocated on-demand, so no more than maxRingBufferSize + 2
@@ -63,7 +74,7 @@ public class ZslSharedImageReaderFactory {
      *            imageReader.getMaxImages().
      */
     public ZslSharedImageReaderFactory(Lifetime lifetime, ImageReaderProxy imageReader,
-            HandlerFactory handlerFactory, int maxRingBufferSize) {
+            HandlerFactory handlerFactory, int minRingBufferSize, int maxRingBufferSize) {
         ImageDistributorFactory imageDistributorFactory = new ImageDistributorFactory(lifetime,
                 imageReader, handlerFactory);
         ImageDistributor imageDistributor = imageDistributorFactory.provideImageDistributor();
@@ -73,13 +84,21 @@ public class ZslSharedImageReaderFactory {
         // TODO Try using 1 instead.
         // Leave 2 ImageReader Images available to allow ImageDistributor and
         // the camera system to have some slack to work with.
-        TicketPool rootTicketPool = new FiniteTicketPool(imageReader.getMaxImages() - 2);
+        int ticketCapacity = imageReader.getMaxImages() - 2;
+        TicketPool rootTicketPool = new FiniteTicketPool(ticketCapacity);
 
+        ConcurrentState<Integer> ringBufferMaxSize = new ConcurrentState<>(minRingBufferSize);
         DynamicRingBufferFactory ringBufferFactory = new DynamicRingBufferFactory(
-                new Lifetime(lifetime), rootTicketPool, Observables.of(maxRingBufferSize));
+                new Lifetime(lifetime), rootTicketPool, ringBufferMaxSize);
+
+        mTicketBudget = new AdaptiveTicketBudget(ringBufferMaxSize,
+                rootTicketPool.getAvailableTicketCount(),
+                ringBufferFactory.provideTicketPool().getAvailableTicketCount(),
+                ticketCapacity, minRingBufferSize, maxRingBufferSize);
 
         MetadataPoolFactory metadataPoolFactory = new MetadataPoolFactory(
-                ringBufferFactory.provideRingBufferInput());
+                ringBufferFactory.provideRingBufferInput(),
+                imageReader.getMaxImages() + METADATA_PIPELINE_DEPTH);
 
         mZslCaptureStream = new ImageStreamImpl(
                 ringBufferFactory.provideRingBufferOutput(),
@@ -94,11 +113,12 @@ public class ZslSharedImageReaderFactory {
 
         mAvailableImageCount = ringBufferFactory.provideTicketPool().getAvailableTicketCount();
 
-        // Create a ResponseListener which updates the global timestamp queue
-        // and the metadata callback.
+        // Create a ResponseListener which updates the global timestamp queue,
+        // the metadata callback and the ticket budget.
         mResponseListener = ResponseListeners.forListeners(
                 forTimestamps(globalTimestampQueue),
-                forFinalMetadata(metadataPoolFactory.provideMetadataCallback()));
+                forFinalMetadata(metadataPoolFactory.provideMetadataCallback()),
+                forTimestamps(mTicketBudget.provideTimestampCallback()));
     }
 
     public ManagedImageReader provideSharedImageReader() {
@@ -120,4 +140,8 @@ public class ZslSharedImageReaderFactory {
     public Observable<Integer> provideAvailableImageCount() {
         return mAvailableImageCount;
     }
+
+    public AdaptiveTicketBudget provideTicketBudget() {
+        return mTicketBudget;
+    }
 }
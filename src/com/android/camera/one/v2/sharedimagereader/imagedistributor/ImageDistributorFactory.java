@@ -18,9 +18,9 @@ package com.android.camera.one.v2.sharedimagereader.imagedistributor;
 
 import android.os.Handler;
 
-import com.android.camera.async.ConcurrentBufferQueue;
 import com.android.camera.async.HandlerFactory;
 import com.android.camera.async.Lifetime;
+import com.android.camera.async.LockFreeBufferQueue;
 import com.android.camera.async.Updatable;
 import com.android.camera.debug.Loggers;
 import com.android.camera.one.v2.camera2proxy.ImageReaderProxy;
@@ -40,7 +40,7 @@ public class ImageDistributorFactory {
      */
     public ImageDistributorFactory(Lifetime lifetime, ImageReaderProxy imageReader,
             HandlerFactory handlerFactory) {
-        ConcurrentBufferQueue<Long> globalTimestampStream = new ConcurrentBufferQueue<>();
+        LockFreeBufferQueue<Long> globalTimestampStream = new LockFreeBufferQueue<>();
         mTimestampStream = globalTimestampStream;
         lifetime.add(globalTimestampStream);
         mImageDistributor = new ImageDistributorImpl(Loggers.tagFactory(), globalTimestampStream);
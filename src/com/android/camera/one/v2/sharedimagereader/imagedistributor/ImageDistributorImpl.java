@@ -16,16 +16,15 @@
 
 package com.android.camera.one.v2.sharedimagereader.imagedistributor;
 
+import android.support.v4.util.LongSparseArray;
+
 import com.android.camera.async.BufferQueue;
 import com.android.camera.async.BufferQueueController;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Logger;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
@@ -33,9 +32,20 @@ import javax.annotation.concurrent.GuardedBy;
 /**
  * Distributes incoming images to output {@link BufferQueueController}s
  * according to their timestamp.
+ * <p>
+ * Routes are kept in a copy-on-write array. Once the next timestamp of a
+ * route is known, the route is indexed by that timestamp, so routing an image
+ * only visits the routes which expect it, and routes waiting for a later image
+ * are not touched at all. Routes whose next timestamp is not known yet must
+ * still be polled, since their timestamps arrive through a {@link BufferQueue}.
+ * <p>
+ * All images must be distributed from a single thread. Apart from the image
+ * wrappers handed to each stream, distributing an image does not allocate.
  */
 @ParametersAreNonnullByDefault
 class ImageDistributorImpl implements ImageDistributor {
+    private static final DispatchRecord[] NO_RECORDS = new DispatchRecord[0];
+
     /**
      * An input timestamp stream and an output image stream to receive images
      * with timestamps which match those found in the input stream.
@@ -44,22 +54,53 @@ class ImageDistributorImpl implements ImageDistributor {
         public final BufferQueue<Long> timestampBufferQueue;
         public final BufferQueueController<ImageProxy> imageStream;
 
+        /**
+         * Whether the next timestamp has been taken from
+         * {@link #timestampBufferQueue} and added to the dispatch index. This,
+         * and the fields below, are only accessed by the distributing thread.
+         */
+        private boolean indexed;
+        /** The timestamp of the next image to route, if indexed. */
+        private long expectedTimestamp;
+        /** The next record expecting the same timestamp, if indexed. */
+        private DispatchRecord nextInBucket;
+
         private DispatchRecord(BufferQueue<Long> timestampBufferQueue,
                 BufferQueueController<ImageProxy> imageStream) {
             this.timestampBufferQueue = timestampBufferQueue;
             this.imageStream = imageStream;
         }
+
+        private boolean isClosed() {
+            return timestampBufferQueue.isClosed() || imageStream.isClosed();
+        }
     }
 
     private final Logger mLogger;
 
+    private final Object mLock;
+
     /**
      * Contains pairs mapping {@link BufferQueue}s of timestamps of images to
      * the {@link BufferQueueController} to receive images with those
-     * timestamps.
+     * timestamps. This array is never modified, only replaced, so it can be
+     * iterated without holding the lock.
      */
-    @GuardedBy("mDispatchTable")
-    private final Set<DispatchRecord> mDispatchTable;
+    @GuardedBy("mLock")
+    private volatile DispatchRecord[] mDispatchTable;
+
+    /**
+     * Records with a known next timestamp, keyed by that timestamp. Each entry
+     * is the head of a list linked through {@link DispatchRecord#nextInBucket}.
+     * Only accessed by the distributing thread.
+     */
+    private final LongSparseArray<DispatchRecord> mDispatchIndex;
+
+    /**
+     * Scratch space for the records to receive the current image. Only
+     * accessed by the distributing thread.
+     */
+    private DispatchRecord[] mReceivers;
 
     /**
      * A stream to consume timestamps for all images captured by the underlying
@@ -68,6 +109,14 @@ class ImageDistributorImpl implements ImageDistributor {
      */
     private final BufferQueue<Long> mGlobalTimestampBufferQueue;
 
+    /**
+     * The most recent timestamp taken from
+     * {@link #mGlobalTimestampBufferQueue}. Only accessed by the distributing
+     * thread.
+     */
+    private long mLatestGlobalTimestamp;
+    private boolean mGlobalTimestampBufferQueueClosed;
+
     /*
      * @param globalTimestampStream A stream of timestamps for every capture
      * processed by the underlying {@link CaptureSession}. This is used to
@@ -78,7 +127,12 @@ class ImageDistributorImpl implements ImageDistributor {
             BufferQueue<Long> globalTimestampBufferQueue) {
         mLogger = logFactory.create(new Log.Tag("ImgDistributorImpl"));
         mGlobalTimestampBufferQueue = globalTimestampBufferQueue;
-        mDispatchTable = new HashSet<>();
+        mLock = new Object();
+        mDispatchTable = NO_RECORDS;
+        mDispatchIndex = new LongSparseArray<>();
+        mReceivers = NO_RECORDS;
+        mLatestGlobalTimestamp = Long.MIN_VALUE;
+        mGlobalTimestampBufferQueueClosed = false;
     }
 
     /**
@@ -105,11 +159,11 @@ class ImageDistributorImpl implements ImageDistributor {
         // this assumes that {@link #mGlobalImageTimestamp} and each timestamp
         // stream associated with a {@link DispatchRecord} are updated on the
         // same thread in order.
+        // A timestamp taken while waiting for an earlier image may already
+        // satisfy this, so the latest one is remembered.
         try {
-            while (true) {
-                if (mGlobalTimestampBufferQueue.getNext() > timestamp) {
-                    break;
-                }
+            while (!mGlobalTimestampBufferQueueClosed && mLatestGlobalTimestamp <= timestamp) {
+                mLatestGlobalTimestamp = mGlobalTimestampBufferQueue.getNext();
             }
         } catch (InterruptedException e) {
             image.close();
@@ -117,79 +171,175 @@ class ImageDistributorImpl implements ImageDistributor {
         } catch (BufferQueue.BufferQueueClosedException e) {
             // If the stream is closed, then all other timestamp streams must be
             // up-to-date.
+            mGlobalTimestampBufferQueueClosed = true;
         }
 
-        List<BufferQueueController<ImageProxy>> streamsToReceiveImage = new ArrayList<>();
-        Set<DispatchRecord> deadRecords = new HashSet<>();
-
-        // mDispatchTable may be modified in {@link #addRoute} while iterating,
-        // so to avoid unnecessary locking, make a copy to iterate over.
-        Set<DispatchRecord> recordsToProcess;
-        synchronized (mDispatchTable) {
-            recordsToProcess = new HashSet<>(mDispatchTable);
-        }
-        for (DispatchRecord dispatchRecord : recordsToProcess) {
+        // Index the next timestamp of every route which is not yet indexed.
+        boolean foundClosedRecord = false;
+        for (DispatchRecord dispatchRecord : mDispatchTable) {
             // If either the input timestampBufferQueue or the output
             // imageStream is closed, then the route can be removed.
-            if (dispatchRecord.timestampBufferQueue.isClosed() ||
-                    dispatchRecord.imageStream.isClosed()) {
-                deadRecords.add(dispatchRecord);
-            }
-            Long requestedImageTimestamp = dispatchRecord.timestampBufferQueue.peekNext();
-            while (requestedImageTimestamp != null && requestedImageTimestamp < timestamp) {
-                // This branch should only run if there is an error in the
-                // camera framework/driver. (Technically, we could get here if
-                // an ImageStream was not registered with the ImageDistributor
-                // before the image arrived, or if the timestamp stream was not
-                // updated appropriately. Both of these conditions would be
-                // serious app-level bugs, however, and are less likely
-                // than a framework/driver error.)
-                // If the current image is newer than the image requested by a
-                // stream in the dispatch table, then the driver must have
-                // skipped the requested image.
-
-                mLogger.e(String.format("Image (%d) expected, but never received!  Instead, " +
-                        "received (%d)!  This is likely a camera driver error.",
-                        requestedImageTimestamp, timestamp), new RuntimeException());
-
-                // TODO There may be threads blocked, waiting to receive the
-                // requested image.
-                // This should propagate the absent-image through
-                // dispatchRecord.imageStream to avoid starvation.
-
-                dispatchRecord.timestampBufferQueue.discardNext();
-                requestedImageTimestamp = dispatchRecord.timestampBufferQueue.peekNext();
-            }
-            if (requestedImageTimestamp == null) {
-                continue;
+            if (dispatchRecord.isClosed()) {
+                foundClosedRecord = true;
+            } else if (!dispatchRecord.indexed) {
+                indexNextTimestamp(dispatchRecord, timestamp);
             }
-            if (requestedImageTimestamp == timestamp) {
-                // Discard the value we just looked at.
-                dispatchRecord.timestampBufferQueue.discardNext();
-                streamsToReceiveImage.add(dispatchRecord.imageStream);
+        }
+        if (foundClosedRecord) {
+            removeClosedRecords();
+        }
+
+        // Routes which expected an earlier image will never receive it.
+        while (mDispatchIndex.size() > 0 && mDispatchIndex.keyAt(0) < timestamp) {
+            DispatchRecord missedRecord = mDispatchIndex.valueAt(0);
+            mDispatchIndex.removeAt(0);
+            while (missedRecord != null) {
+                DispatchRecord nextRecord = missedRecord.nextInBucket;
+                missedRecord.nextInBucket = null;
+                missedRecord.indexed = false;
+                logMissedImage(missedRecord.expectedTimestamp, timestamp);
+                indexNextTimestamp(missedRecord, timestamp);
+                missedRecord = nextRecord;
             }
         }
 
-        synchronized (mDispatchTable) {
-            mDispatchTable.removeAll(deadRecords);
+        int receiverCount = 0;
+        int bucket = mDispatchIndex.indexOfKey(timestamp);
+        if (bucket >= 0) {
+            DispatchRecord dispatchRecord = mDispatchIndex.valueAt(bucket);
+            mDispatchIndex.removeAt(bucket);
+            while (dispatchRecord != null) {
+                DispatchRecord nextRecord = dispatchRecord.nextInBucket;
+                dispatchRecord.nextInBucket = null;
+                dispatchRecord.indexed = false;
+                if (!dispatchRecord.isClosed()) {
+                    if (receiverCount == mReceivers.length) {
+                        mReceivers = Arrays.copyOf(mReceivers, Math.max(4, 2 * receiverCount));
+                    }
+                    mReceivers[receiverCount++] = dispatchRecord;
+                }
+                dispatchRecord = nextRecord;
+            }
         }
 
-        int streamsToReceiveImageSize = streamsToReceiveImage.size();
         // If nobody needs the image, just close the image.
-        if (streamsToReceiveImageSize == 0) {
+        if (receiverCount == 0) {
             image.close();
             return;
         }
 
-        RefCountedImageProxy sharedImage = new RefCountedImageProxy(image,
-                streamsToReceiveImageSize);
-        for (BufferQueueController<ImageProxy> outputStream : streamsToReceiveImage) {
+        if (receiverCount == 1) {
+            mReceivers[0].imageStream.update(new SingleCloseImageProxy(image));
+            mReceivers[0] = null;
+            return;
+        }
+
+        RefCountedImageProxy sharedImage = new RefCountedImageProxy(image, receiverCount);
+        for (int i = 0; i < receiverCount; i++) {
             // Wrap shared image to ensure that *each* stream must close the
             // image before the underlying reference count is decremented,
             // regardless of how many times it is closed from each stream.
             ImageProxy singleCloseImage = new SingleCloseImageProxy(sharedImage);
-            outputStream.update(singleCloseImage);
+            mReceivers[i].imageStream.update(singleCloseImage);
+            mReceivers[i] = null;
+        }
+    }
+
+    /**
+     * Takes the next timestamp, which is not older than the current image,
+     * from the record's timestamp queue and indexes the record by it.
+     */
+    private void indexNextTimestamp(DispatchRecord dispatchRecord, long timestamp) {
+        BufferQueue<Long> timestamps = dispatchRecord.timestampBufferQueue;
+        Long requestedImageTimestamp = timestamps.peekNext();
+        while (requestedImageTimestamp != null && requestedImageTimestamp < timestamp) {
+            logMissedImage(requestedImageTimestamp, timestamp);
+            timestamps.discardNext();
+            requestedImageTimestamp = timestamps.peekNext();
+        }
+        if (requestedImageTimestamp == null) {
+            return;
+        }
+        // The timestamp now lives in the index.
+        timestamps.discardNext();
+
+        long expectedTimestamp = requestedImageTimestamp;
+        dispatchRecord.expectedTimestamp = expectedTimestamp;
+        dispatchRecord.indexed = true;
+        int bucket = mDispatchIndex.indexOfKey(expectedTimestamp);
+        if (bucket >= 0) {
+            dispatchRecord.nextInBucket = mDispatchIndex.valueAt(bucket);
+            mDispatchIndex.setValueAt(bucket, dispatchRecord);
+        } else {
+            dispatchRecord.nextInBucket = null;
+            mDispatchIndex.put(expectedTimestamp, dispatchRecord);
+        }
+    }
+
+    /**
+     * Removes closed records from the dispatch table and the dispatch index.
+     */
+    private void removeClosedRecords() {
+        synchronized (mLock) {
+            DispatchRecord[] records = mDispatchTable;
+            DispatchRecord[] openRecords = new DispatchRecord[records.length];
+            int openCount = 0;
+            for (DispatchRecord dispatchRecord : records) {
+                if (dispatchRecord.isClosed()) {
+                    if (dispatchRecord.indexed) {
+                        unindex(dispatchRecord);
+                    }
+                } else {
+                    openRecords[openCount++] = dispatchRecord;
+                }
+            }
+            mDispatchTable = Arrays.copyOf(openRecords, openCount);
+        }
+    }
+
+    private void unindex(DispatchRecord dispatchRecord) {
+        int bucket = mDispatchIndex.indexOfKey(dispatchRecord.expectedTimestamp);
+        if (bucket >= 0) {
+            DispatchRecord head = mDispatchIndex.valueAt(bucket);
+            if (head == dispatchRecord) {
+                if (dispatchRecord.nextInBucket == null) {
+                    mDispatchIndex.removeAt(bucket);
+                } else {
+                    mDispatchIndex.setValueAt(bucket, dispatchRecord.nextInBucket);
+                }
+            } else {
+                DispatchRecord previous = head;
+                while (previous != null && previous.nextInBucket != dispatchRecord) {
+                    previous = previous.nextInBucket;
+                }
+                if (previous != null) {
+                    previous.nextInBucket = dispatchRecord.nextInBucket;
+                }
+            }
         }
+        dispatchRecord.nextInBucket = null;
+        dispatchRecord.indexed = false;
+    }
+
+    private void logMissedImage(long requestedImageTimestamp, long timestamp) {
+        // This should only happen if there is an error in the camera
+        // framework/driver. (Technically, we could get here if an ImageStream
+        // was not registered with the ImageDistributor before the image
+        // arrived, or if the timestamp stream was not updated appropriately.
+        // Both of these conditions would be serious app-level bugs, however,
+        // and are less likely than a framework/driver error.)
+        // If the current image is newer than the image requested by a stream
+        // in the dispatch table, then the driver must have skipped the
+        // requested image.
+
+        mLogger.e(String.format("Image (%d) expected, but never received!  Instead, " +
+                "received (%d)!  This is likely a camera driver error.",
+                requestedImageTimestamp, timestamp), new RuntimeException());
+
+        // TODO There may be threads blocked, waiting to receive the
+        // requested image.
+        // This should propagate the absent-image through
+        // dispatchRecord.imageStream to avoid starvation.
     }
 
     /**
@@ -208,8 +358,12 @@ class ImageDistributorImpl implements ImageDistributor {
     @Override
     public void addRoute(BufferQueue<Long> inputTimestampBufferQueue,
             BufferQueueController<ImageProxy> outputStream) {
-        synchronized (mDispatchTable) {
-            mDispatchTable.add(new DispatchRecord(inputTimestampBufferQueue, outputStream));
+        synchronized (mLock) {
+            DispatchRecord[] records = mDispatchTable;
+            DispatchRecord[] newRecords = Arrays.copyOf(records, records.length + 1);
+            newRecords[records.length] = new DispatchRecord(inputTimestampBufferQueue,
+                    outputStream);
+            mDispatchTable = newRecords;
         }
     }
 }
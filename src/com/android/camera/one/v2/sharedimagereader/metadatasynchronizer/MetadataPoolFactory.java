@@ -26,8 +26,14 @@ public class MetadataPoolFactory {
     private final BufferQueueController<ImageProxy> mImageQueue;
     private final MetadataPoolImpl mMetadataPool;
 
-    public MetadataPoolFactory(BufferQueueController<ImageProxy> imageQueue) {
-        mMetadataPool = new MetadataPoolImpl();
+    /**
+     * @param imageQueue The queue of images whose metadata is pooled.
+     * @param capacity The maximum number of frames to hold metadata for. This
+     *            should cover every image which may be open at once, plus the
+     *            frames whose metadata arrives before their image.
+     */
+    public MetadataPoolFactory(BufferQueueController<ImageProxy> imageQueue, int capacity) {
+        mMetadataPool = new MetadataPoolImpl(capacity);
         mImageQueue = new MetadataReleasingImageQueue(imageQueue, mMetadataPool);
     }
 
@@ -17,31 +17,59 @@
 package com.android.camera.one.v2.sharedimagereader.metadatasynchronizer;
 
 import android.hardware.camera2.CaptureResult;
+import android.support.v4.util.LongSparseArray;
 
 import com.android.camera.async.Futures2;
 import com.android.camera.async.Updatable;
 import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
 
+/**
+ * A {@link MetadataPool} which holds the metadata of at most a fixed number of
+ * the most recent frames.
+ * <p/>
+ * Entries are kept sorted by timestamp, so the oldest entry can be expired in
+ * constant time whenever the metadata of a new frame arrives. Since no more
+ * images than the ring-buffer can hold may be open at once, the capacity only
+ * needs to cover the ring-buffer depth plus the frames in flight; the metadata
+ * of older frames can no longer be requested by anyone.
+ * <p/>
+ * Futures of expired entries which are still pending are cancelled, so callers
+ * never wait for metadata which will never arrive.
+ */
 @ParametersAreNonnullByDefault
 public class MetadataPoolImpl implements Updatable<TotalCaptureResultProxy>, MetadataPool {
     @GuardedBy("mLock")
-    private final Map<Long, SettableFuture<TotalCaptureResultProxy>> mMetadataFutures;
+    private final LongSparseArray<SettableFuture<TotalCaptureResultProxy>> mMetadataFutures;
+    /**
+     * Entries whose timestamp is at or below this have been expired and must
+     * not be recreated.
+     */
+    @GuardedBy("mLock")
+    private long mExpiredTimestamp;
+    private final int mCapacity;
     private final Object mLock;
 
-    public MetadataPoolImpl() {
-        mMetadataFutures = new HashMap<>();
+    /**
+     * @param capacity The maximum number of entries to hold.
+     */
+    public MetadataPoolImpl(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive.");
+        mCapacity = capacity;
+        mMetadataFutures = new LongSparseArray<>(capacity + 1);
+        mExpiredTimestamp = Long.MIN_VALUE;
         mLock = new Object();
     }
 
@@ -52,43 +80,90 @@ public class MetadataPoolImpl implements Updatable<TotalCaptureResultProxy>, Met
         }
     }
 
+    @GuardedBy("mLock")
     private SettableFuture<TotalCaptureResultProxy> getOrCreateFuture(long timestamp) {
-        SettableFuture<TotalCaptureResultProxy> metadataFuture;
-        synchronized (mLock) {
-            if (!mMetadataFutures.containsKey(timestamp)) {
-                mMetadataFutures.put(timestamp, SettableFuture.<TotalCaptureResultProxy> create());
-            }
-
-            metadataFuture = mMetadataFutures.get(timestamp);
+        SettableFuture<TotalCaptureResultProxy> metadataFuture = mMetadataFutures.get(timestamp);
+        if (metadataFuture == null) {
+            metadataFuture = SettableFuture.create();
+            mMetadataFutures.put(timestamp, metadataFuture);
         }
         return metadataFuture;
     }
 
+    /**
+     * Removes the oldest entries until the pool is within its capacity.
+     *
+     * @return The futures of expired entries which had not completed yet.
+     */
+    @GuardedBy("mLock")
+    private List<SettableFuture<TotalCaptureResultProxy>> expireOldEntries() {
+        List<SettableFuture<TotalCaptureResultProxy>> pending = null;
+        while (mMetadataFutures.size() > mCapacity) {
+            SettableFuture<TotalCaptureResultProxy> expired = mMetadataFutures.valueAt(0);
+            mExpiredTimestamp = mMetadataFutures.keyAt(0);
+            mMetadataFutures.removeAt(0);
+            if (!expired.isDone()) {
+                if (pending == null) {
+                    pending = new ArrayList<>();
+                }
+                pending.add(expired);
+            }
+        }
+        return pending;
+    }
+
     @Nonnull
     @Override
     public ListenableFuture<TotalCaptureResultProxy> removeMetadataFuture(final long timestamp) {
-        ListenableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp);
-        // Remove the future from the map when it is done to free the memory.
-        Futures.addCallback(future, new FutureCallback<TotalCaptureResultProxy>() {
-            @Override
-            public void onSuccess(TotalCaptureResultProxy totalCaptureResultProxy) {
-                synchronized (mLock) {
-                    mMetadataFutures.remove(timestamp);
-                }
+        final SettableFuture<TotalCaptureResultProxy> future;
+        synchronized (mLock) {
+            if (timestamp <= mExpiredTimestamp && mMetadataFutures.indexOfKey(timestamp) < 0) {
+                // The metadata, if it ever arrives, would be expired right
+                // away.
+                return Futures.immediateCancelledFuture();
             }
-
-            @Override
-            public void onFailure(Throwable throwable) {
-                throw new UnsupportedOperationException();
+            future = getOrCreateFuture(timestamp);
+            if (future.isDone()) {
+                mMetadataFutures.remove(timestamp);
             }
-        });
+        }
+        if (!future.isDone()) {
+            // Remove the future from the map when it is done to free the
+            // memory.
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                        if (mMetadataFutures.get(timestamp) == future) {
+                            mMetadataFutures.remove(timestamp);
+                        }
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
         return Futures2.nonCancellationPropagating(future);
     }
 
     @Override
     public void update(@Nonnull TotalCaptureResultProxy metadata) {
         long timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP);
-        SettableFuture<TotalCaptureResultProxy> future = getOrCreateFuture(timestamp);
+        SettableFuture<TotalCaptureResultProxy> future;
+        List<SettableFuture<TotalCaptureResultProxy>> expired;
+        synchronized (mLock) {
+            if (timestamp <= mExpiredTimestamp && mMetadataFutures.indexOfKey(timestamp) < 0) {
+                // Arrived too late to be of use.
+                return;
+            }
+            future = getOrCreateFuture(timestamp);
+            expired = expireOldEntries();
+        }
+        // Complete futures outside of the lock since their listeners may
+        // re-enter the pool.
         future.set(metadata);
+        if (expired != null) {
+            for (SettableFuture<TotalCaptureResultProxy> expiredFuture : expired) {
+                expiredFuture.cancel(false);
+            }
+        }
     }
 }
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.ringbuffer;
+
+import com.android.camera.app.MemoryManager;
+import com.android.camera.async.Observable;
+import com.android.camera.async.Updatable;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Adapts the maximum size of a dynamic ring-buffer at runtime.
+ * <p>
+ * The ring-buffer is sized to hold as much history as its consumer has
+ * recently needed, measured as the look-back of the images it used and
+ * converted to a number of frames using the observed capture rate. Until a
+ * look-back is reported it holds only the most recent frame; once the
+ * consumer has needed older frames, one spare frame is kept on top of them.
+ * <p>
+ * The size is capped so that, whatever tickets other streams of the shared
+ * ImageReader hold, {@link #HEADROOM_TICKETS} tickets remain free, and it drops
+ * to the minimum size while the {@link MemoryManager} reports low memory.
+ * <p>
+ * The size is re-evaluated once per captured frame, on the thread delivering
+ * timestamps, so it never changes while callers of the ticket pools hold
+ * their locks.
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class AdaptiveTicketBudget implements MemoryManager.MemoryListener {
+    /**
+     * The number of tickets left free for other streams before the
+     * ring-buffer shrinks.
+     */
+    private static final int HEADROOM_TICKETS = 1;
+    /** Extra frames of history to keep once the consumer looks back. */
+    private static final int SPARE_FRAMES = 1;
+    /** How much the remembered consumer look-back decays per capture. */
+    private static final float LOOK_BACK_DECAY = 0.75f;
+    /** Smoothing weight of the latest frame interval. */
+    private static final float FRAME_INTERVAL_WEIGHT = 0.125f;
+    /** How long to stay at the minimum size after a low memory warning. */
+    private static final long LOW_MEMORY_HOLD_NANOS = TimeUnit.SECONDS.toNanos(10);
+    /** The period over which each utilization history sample is averaged. */
+    private static final long UTILIZATION_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** The number of utilization history samples to retain. */
+    private static final int UTILIZATION_HISTORY_SIZE = 60;
+
+    /**
+     * A snapshot of ticket utilization.
+     */
+    public static final class Metrics {
+        private final int mRingBufferMaxSize;
+        private final int mTicketCapacity;
+        private final int mBufferedTickets;
+        private final int mTicketsHeldByOthers;
+        private final float mCaptureRate;
+        private final long mConsumerLookBackNanos;
+        private final boolean mLowMemory;
+        private final float mPeakUtilization;
+        private final float[] mUtilizationHistory;
+
+        private Metrics(int ringBufferMaxSize, int ticketCapacity, int bufferedTickets,
+                int ticketsHeldByOthers, float captureRate, long consumerLookBackNanos,
+                boolean lowMemory, float peakUtilization, float[] utilizationHistory) {
+            mRingBufferMaxSize = ringBufferMaxSize;
+            mTicketCapacity = ticketCapacity;
+            mBufferedTickets = bufferedTickets;
+            mTicketsHeldByOthers = ticketsHeldByOthers;
+            mCaptureRate = captureRate;
+            mConsumerLookBackNanos = consumerLookBackNanos;
+            mLowMemory = lowMemory;
+            mPeakUtilization = peakUtilization;
+            mUtilizationHistory = utilizationHistory;
+        }
+
+        /**
+         * @return The current maximum size of the ring-buffer.
+         */
+        public int getRingBufferMaxSize() {
+            return mRingBufferMaxSize;
+        }
+
+        /**
+         * @return The total number of tickets shared by all streams.
+         */
+        public int getTicketCapacity() {
+            return mTicketCapacity;
+        }
+
+        /**
+         * @return The number of tickets held by images in the ring-buffer.
+         */
+        public int getBufferedTickets() {
+            return mBufferedTickets;
+        }
+
+        /**
+         * @return The number of tickets held by streams other than the
+         *         ring-buffer.
+         */
+        public int getTicketsHeldByOthers() {
+            return mTicketsHeldByOthers;
+        }
+
+        /**
+         * @return The observed capture rate in frames per second, or 0 if
+         *         unknown.
+         */
+        public float getCaptureRate() {
+            return mCaptureRate;
+        }
+
+        /**
+         * @return The look-back, in nanoseconds, the consumer has recently
+         *         needed.
+         */
+        public long getConsumerLookBackNanos() {
+            return mConsumerLookBackNanos;
+        }
+
+        /**
+         * @return True if the ring-buffer is held at its minimum size due to
+         *         low memory.
+         */
+        public boolean isLowMemory() {
+            return mLowMemory;
+        }
+
+        /**
+         * @return The highest fraction of tickets in use at any frame.
+         */
+        public float getPeakUtilization() {
+            return mPeakUtilization;
+        }
+
+        /**
+         * @return The average fraction of tickets in use over each of the
+         *         most recent one second periods, ordered from oldest to most
+         *         recent.
+         */
+        public float[] getUtilizationHistory() {
+            return mUtilizationHistory.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("AdaptiveTicketBudget.Metrics[maxSize=%d, buffered=%d, " +
+                    "others=%d, capacity=%d, fps=%.1f, lookBackMs=%d, lowMemory=%b, peak=%.2f]",
+                    mRingBufferMaxSize, mBufferedTickets, mTicketsHeldByOthers, mTicketCapacity,
+                    mCaptureRate, TimeUnit.NANOSECONDS.toMillis(mConsumerLookBackNanos),
+                    mLowMemory, mPeakUtilization);
+        }
+    }
+
+    private final Updatable<Integer> mRingBufferMaxSize;
+    private final Observable<Integer> mRootAvailableTickets;
+    private final Observable<Integer> mRingBufferAvailableTickets;
+    private final int mTicketCapacity;
+    private final int mMinSize;
+    private final int mMaxSize;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private int mTargetSize;
+    @GuardedBy("mLock")
+    private long mLastTimestampNanos;
+    @GuardedBy("mLock")
+    private float mFrameIntervalNanos;
+    @GuardedBy("mLock")
+    private long mLookBackNanos;
+    @GuardedBy("mLock")
+    private boolean mLowMemoryState;
+    @GuardedBy("mLock")
+    private boolean mLowMemoryWarning;
+    @GuardedBy("mLock")
+    private long mLowMemoryUntilNanos;
+    @GuardedBy("mLock")
+    private float mPeakUtilization;
+    @GuardedBy("mLock")
+    private double mPeriodUtilizationSum;
+    @GuardedBy("mLock")
+    private long mPeriodStartNanos;
+    @GuardedBy("mLock")
+    private final float[] mUtilizationHistory = new float[UTILIZATION_HISTORY_SIZE];
+    @GuardedBy("mLock")
+    private int mUtilizationHistoryCount;
+
+    /**
+     * @param ringBufferMaxSize Receives the maximum size of the ring-buffer.
+     * @param rootAvailableTickets The number of tickets available in the pool
+     *            shared by all streams.
+     * @param ringBufferAvailableTickets The number of tickets available from
+     *            the ring-buffer, including those held by buffered images.
+     * @param ticketCapacity The total number of tickets in the shared pool.
+     * @param minSize The size of the ring-buffer under memory pressure.
+     * @param maxSize The largest size the ring-buffer may grow to.
+     */
+    public AdaptiveTicketBudget(Updatable<Integer> ringBufferMaxSize,
+            Observable<Integer> rootAvailableTickets,
+            Observable<Integer> ringBufferAvailableTickets,
+            int ticketCapacity, int minSize, int maxSize) {
+        Preconditions.checkArgument(minSize >= 0);
+        Preconditions.checkArgument(maxSize >= minSize);
+        mRingBufferMaxSize = ringBufferMaxSize;
+        mRootAvailableTickets = rootAvailableTickets;
+        mRingBufferAvailableTickets = ringBufferAvailableTickets;
+        mTicketCapacity = ticketCapacity;
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mTargetSize = minSize;
+        mRingBufferMaxSize.update(minSize);
+    }
+
+    /**
+     * @return A callback for the sensor timestamp of every captured frame.
+     */
+    @Nonnull
+    public Updatable<Long> provideTimestampCallback() {
+        return new Updatable<Long>() {
+            @Override
+            public void update(@Nonnull Long timestamp) {
+                onFrameCaptured(timestamp);
+            }
+        };
+    }
+
+    /**
+     * @return A callback for the consumer of the ring-buffer to report how far
+     *         back, in nanoseconds from the most recent image, the image it
+     *         needed was.
+     */
+    @Nonnull
+    public Updatable<Long> provideLookBackCallback() {
+        return new Updatable<Long>() {
+            @Override
+            public void update(@Nonnull Long lookBackNanos) {
+                synchronized (mLock) {
+                    mLookBackNanos = Math.max(lookBackNanos,
+                            (long) (mLookBackNanos * LOOK_BACK_DECAY));
+                }
+            }
+        };
+    }
+
+    @Override
+    public void onMemoryStateChanged(int state) {
+        synchronized (mLock) {
+            mLowMemoryState = (state == MemoryManager.STATE_LOW_MEMORY);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        synchronized (mLock) {
+            // The deadline is set relative to the next frame timestamp.
+            mLowMemoryWarning = true;
+        }
+    }
+
+    /**
+     * @return A snapshot of the current ticket utilization.
+     */
+    @Nonnull
+    public Metrics getMetrics() {
+        int rootAvailable = mRootAvailableTickets.get();
+        int ringBufferAvailable = mRingBufferAvailableTickets.get();
+        synchronized (mLock) {
+            float[] history = new float[Math.min(mUtilizationHistoryCount,
+                    UTILIZATION_HISTORY_SIZE)];
+            int first = mUtilizationHistoryCount < UTILIZATION_HISTORY_SIZE ? 0
+                    : mUtilizationHistoryCount % UTILIZATION_HISTORY_SIZE;
+            for (int i = 0; i < history.length; i++) {
+                history[i] = mUtilizationHistory[(first + i) % UTILIZATION_HISTORY_SIZE];
+            }
+            float captureRate = mFrameIntervalNanos > 0
+                    ? TimeUnit.SECONDS.toNanos(1) / mFrameIntervalNanos : 0f;
+            return new Metrics(mTargetSize, mTicketCapacity,
+                    Math.max(0, ringBufferAvailable - rootAvailable),
+                    Math.max(0, mTicketCapacity - ringBufferAvailable),
+                    captureRate, mLookBackNanos, isLowMemory(mLastTimestampNanos),
+                    mPeakUtilization, history);
+        }
+    }
+
+    private void onFrameCaptured(long timestampNanos) {
+        int rootAvailable = mRootAvailableTickets.get();
+        int ringBufferAvailable = mRingBufferAvailableTickets.get();
+        int targetSize;
+        synchronized (mLock) {
+            if (mLastTimestampNanos != 0 && timestampNanos > mLastTimestampNanos) {
+                long interval = timestampNanos - mLastTimestampNanos;
+                if (mFrameIntervalNanos == 0) {
+                    mFrameIntervalNanos = interval;
+                } else {
+                    mFrameIntervalNanos += FRAME_INTERVAL_WEIGHT *
+                            (interval - mFrameIntervalNanos);
+                }
+                recordUtilization(timestampNanos, interval, rootAvailable);
+            }
+            mLastTimestampNanos = timestampNanos;
+            if (mLowMemoryWarning) {
+                mLowMemoryWarning = false;
+                mLowMemoryUntilNanos = timestampNanos + LOW_MEMORY_HOLD_NANOS;
+            }
+
+            if (isLowMemory(timestampNanos)) {
+                targetSize = mMinSize;
+            } else {
+                targetSize = computeTargetSize(mLookBackNanos, mFrameIntervalNanos,
+                        mTicketCapacity, ringBufferAvailable, mMinSize, mMaxSize);
+            }
+            if (targetSize == mTargetSize) {
+                return;
+            }
+            mTargetSize = targetSize;
+        }
+        // Update outside of the lock, since shrinking the ring-buffer closes
+        // images and releases tickets synchronously.
+        mRingBufferMaxSize.update(targetSize);
+    }
+
+    @GuardedBy("mLock")
+    private boolean isLowMemory(long timestampNanos) {
+        return mLowMemoryState || mLowMemoryWarning || timestampNanos < mLowMemoryUntilNanos;
+    }
+
+    /**
+     * Computes the size of the ring-buffer while memory is plentiful.
+     *
+     * @param lookBackNanos The look-back the consumer has recently needed.
+     * @param frameIntervalNanos The observed frame interval, or 0 if unknown.
+     * @param ticketCapacity The total number of tickets in the shared pool.
+     * @param ringBufferAvailable The number of tickets available from the
+     *            ring-buffer, including those held by buffered images.
+     * @param minSize The smallest size of the ring-buffer.
+     * @param maxSize The largest size of the ring-buffer.
+     * @return The number of images the ring-buffer should hold.
+     */
+    static int computeTargetSize(long lookBackNanos, float frameIntervalNanos,
+            int ticketCapacity, int ringBufferAvailable, int minSize, int maxSize) {
+        // The most recent frame.
+        int demand = 1;
+        if (frameIntervalNanos > 0) {
+            // Look-backs are whole frame intervals apart, so rounding absorbs
+            // timestamp jitter and lets a decayed look-back reach zero.
+            int framesBack = Math.round(lookBackNanos / frameIntervalNanos);
+            if (framesBack > 0) {
+                demand += framesBack + SPARE_FRAMES;
+            }
+        }
+        // Tickets which are neither free nor held by the ring-buffer are held
+        // by other streams. Leave them some headroom before the ImageReader
+        // runs out of images.
+        int heldByOthers = ticketCapacity - ringBufferAvailable;
+        int limit = ticketCapacity - heldByOthers - HEADROOM_TICKETS;
+        return Math.max(minSize, Math.min(Math.min(demand, limit), maxSize));
+    }
+
+    @GuardedBy("mLock")
+    private void recordUtilization(long timestampNanos, long intervalNanos,
+            int rootAvailable) {
+        if (mTicketCapacity <= 0) {
+            return;
+        }
+        float utilization = (float) (mTicketCapacity - rootAvailable) / mTicketCapacity;
+        mPeakUtilization = Math.max(mPeakUtilization, utilization);
+        if (mPeriodStartNanos == 0) {
+            mPeriodStartNanos = timestampNanos - intervalNanos;
+        }
+        mPeriodUtilizationSum += (double) utilization * intervalNanos;
+        long periodNanos = timestampNanos - mPeriodStartNanos;
+        if (periodNanos >= UTILIZATION_PERIOD_NANOS) {
+            mUtilizationHistory[mUtilizationHistoryCount % UTILIZATION_HISTORY_SIZE] =
+                    (float) (mPeriodUtilizationSum / periodNanos);
+            mUtilizationHistoryCount++;
+            if (mUtilizationHistoryCount == 2 * UTILIZATION_HISTORY_SIZE) {
+                // Keep the count bounded while preserving the write position.
+                mUtilizationHistoryCount = UTILIZATION_HISTORY_SIZE;
+            }
+            mPeriodUtilizationSum = 0;
+            mPeriodStartNanos = timestampNanos;
+        }
+    }
+}
@@ -31,6 +31,9 @@ import android.support.v4.content.LocalBroadcastManager;
 
 import com.android.camera.app.CameraServices;
 import com.android.camera.app.CameraServicesImpl;
+import com.android.camera.app.MemoryManager;
+import com.android.camera.app.MemoryManager.MemoryListener;
+import com.android.camera.async.AndroidPriorityThread;
 import com.android.camera.debug.Log;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.session.CaptureSession.ProgressListener;
@@ -38,12 +41,29 @@ import com.android.camera.session.CaptureSessionManager;
 import com.android.camera.util.AndroidServices;
 import com.android.camera2.R;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 /**
- * A service that processes a {@code ProcessingTask}. The service uses a fifo
- * queue so that only one {@code ProcessingTask} is processed at a time.
+ * A service that processes a {@code ProcessingTask}. The service takes tasks
+ * from a fifo queue and processes up to a bounded number of them in parallel.
+ * The bound is derived from the native memory budget reported by the
+ * {@link MemoryManager}, and drops to a single task at a time while memory is
+ * low.
+ * <p>
+ * The tasks of one {@link CaptureSession} are processed one at a time and in
+ * queue order, so an {@code ImageShadowTask} still blocks the other tasks of
+ * its session, and a session occupies at most one of the parallel slots.
  * <p>
  * The service is meant to be called via {@code ProcessingService.addTask},
  * which takes care of starting the service and enqueueing the
@@ -55,8 +75,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * ProcessingService.addTask(task);
  * }
  * </pre>
+ * <p>
+ * The notification shows the average progress of the running tasks and the
+ * status message of the one which started first.
  */
-public class ProcessingService extends Service implements ProgressListener {
+public class ProcessingService extends Service implements MemoryListener,
+        ProcessingServiceManager.TaskQueueListener {
     /**
      * Class used to receive broadcast and control the service accordingly.
      */
@@ -74,8 +98,32 @@ public class ProcessingService extends Service implements ProgressListener {
     private static final Log.Tag TAG = new Log.Tag("ProcessingService");
     private static final int THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
     private static final int CAMERA_NOTIFICATION_ID = 2;
+    /** Upper bound on the number of tasks processed in parallel. */
+    private static final int MAX_PARALLEL_TASKS = 3;
+    /** Pixels of the largest captures processed by a task, 16MP. */
+    private static final int MAX_TASK_PIXELS = 4608 * 3456;
+    /**
+     * Bytes per pixel a task holds at its peak: a YUV_420_888 frame (1.5)
+     * and an ARGB_8888 bitmap (4) of the capture, e.g. while a panorama or
+     * HDR+ result is rendered.
+     */
+    private static final float TASK_BYTES_PER_PIXEL = 1.5f + 4f;
+    /**
+     * Estimate of the native memory used by a single processing task (in
+     * megabytes), used to derive the number of parallel tasks. This comes to
+     * 84MB.
+     */
+    private static final int ESTIMATED_TASK_MEMORY_MB =
+            (int) Math.ceil(MAX_TASK_PIXELS * TASK_BYTES_PER_PIXEL / (1024 * 1024));
+
+    /** Guards the notification builder, which is not thread-safe. */
+    private final Object mNotificationLock = new Object();
+    @GuardedBy("mNotificationLock")
     private Notification.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
+    /** The progress of the running tasks, in the order they started. */
+    @GuardedBy("mNotificationLock")
+    private final List<TaskProgress> mTaskProgress = new ArrayList<TaskProgress>();
 
     /** Sending this broadcast intent will cause the processing to pause. */
     public static final String ACTION_PAUSE_PROCESSING_SERVICE =
@@ -93,16 +141,54 @@ public class ProcessingService extends Service implements ProgressListener {
     /** Manages the capture session. */
     private CaptureSessionManager mSessionManager;
 
+    private MemoryManager mMemoryManager;
+
     private ProcessingServiceManager mProcessingServiceManager;
     private Thread mProcessingThread;
+    private ExecutorService mTaskExecutor;
     private volatile boolean mPaused = false;
-    private ProcessingTask mCurrentTask;
+    private final Set<ProcessingTask> mCurrentTasks = new HashSet<ProcessingTask>();
     private final Lock mSuspendStatusLock = new ReentrantLock();
 
+    /**
+     * Guards the dispatch state below and is notified when a task is queued
+     * or ends, and when the memory state changes.
+     */
+    private final Object mDispatchLock = new Object();
+    /** The number of tasks allowed to run in parallel when memory is OK. */
+    private int mMaxParallelTasks = 1;
+    /** The number of tasks currently being processed. */
+    @GuardedBy("mDispatchLock")
+    private int mTasksInFlight = 0;
+    /** The sessions of the tasks currently being processed. */
+    @GuardedBy("mDispatchLock")
+    private final Set<CaptureSession> mRunningSessions = new HashSet<CaptureSession>();
+    /** Whether the service was started again while the dispatcher was exiting. */
+    private boolean mRestartRequested = false;
+    /** The id of the latest start request, which the dispatcher stops with. */
+    private int mLastStartId;
+    /** Whether the app is currently low on memory. */
+    private volatile boolean mLowMemory = false;
+    /** Whether a garbage collection should run before the next task. */
+    private volatile boolean mCollectGarbage = false;
+
     @Override
     public void onCreate() {
         mProcessingServiceManager = ProcessingServiceManager.instance();
         mSessionManager = getServices().getCaptureSessionManager();
+        mMemoryManager = getServices().getMemoryManager();
+        mMemoryManager.addListener(this);
+        mProcessingServiceManager.setTaskQueueListener(this);
+
+        mMaxParallelTasks = computeMaxParallelTasks(
+                mMemoryManager.getMaxAllowedNativeMemoryAllocation());
+        Log.d(TAG, "Processing up to " + mMaxParallelTasks + " tasks in parallel.");
+        mTaskExecutor = Executors.newFixedThreadPool(mMaxParallelTasks, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new AndroidPriorityThread(THREAD_PRIORITY, r);
+            }
+        });
 
         // Keep CPU awake while allowing screen and keyboard to switch off.
         PowerManager powerManager = AndroidServices.instance().providePowerManager();
@@ -113,7 +199,9 @@ public class ProcessingService extends Service implements ProgressListener {
         intentFilter.addAction(ACTION_PAUSE_PROCESSING_SERVICE);
         intentFilter.addAction(ACTION_RESUME_PROCESSING_SERVICE);
         LocalBroadcastManager.getInstance(this).registerReceiver(mServiceController, intentFilter);
-        mNotificationBuilder = createInProgressNotificationBuilder();
+        synchronized (mNotificationLock) {
+            mNotificationBuilder = createInProgressNotificationBuilder();
+        }
         mNotificationManager = AndroidServices.instance().provideNotificationManager();
     }
 
@@ -128,6 +216,9 @@ public class ProcessingService extends Service implements ProgressListener {
             mWakeLock.release();
         }
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mServiceController);
+        mMemoryManager.removeListener(this);
+        mProcessingServiceManager.setTaskQueueListener(null);
+        mTaskExecutor.shutdown();
         stopForeground(true);
     }
 
@@ -137,9 +228,11 @@ public class ProcessingService extends Service implements ProgressListener {
 
         // We need to start this service in foreground so that it's not getting
         // killed easily when memory pressure is building up.
-        startForeground(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
+        synchronized (mNotificationLock) {
+            startForeground(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
+        }
 
-        asyncProcessAllTasksAndShutdown();
+        asyncProcessAllTasksAndShutdown(startId);
 
         // We want this service to continue running until it is explicitly
         // stopped, so return sticky.
@@ -157,8 +250,8 @@ public class ProcessingService extends Service implements ProgressListener {
         try {
             mSuspendStatusLock.lock();
             mPaused = true;
-            if (mCurrentTask != null) {
-                mCurrentTask.suspend();
+            for (ProcessingTask task : mCurrentTasks) {
+                task.suspend();
             }
         } finally {
             mSuspendStatusLock.unlock();
@@ -170,45 +263,216 @@ public class ProcessingService extends Service implements ProgressListener {
         try {
             mSuspendStatusLock.lock();
             mPaused = false;
-            if (mCurrentTask != null) {
-                mCurrentTask.resume();
+            for (ProcessingTask task : mCurrentTasks) {
+                task.resume();
             }
         } finally {
             mSuspendStatusLock.unlock();
         }
     }
 
+    @Override
+    public void onMemoryStateChanged(int state) {
+        mLowMemory = (state != MemoryManager.STATE_OK);
+        if (mLowMemory) {
+            mCollectGarbage = true;
+        }
+        synchronized (mDispatchLock) {
+            mDispatchLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mCollectGarbage = true;
+    }
+
+    @Override
+    public void onTaskQueued() {
+        synchronized (mDispatchLock) {
+            mDispatchLock.notifyAll();
+        }
+    }
+
     /**
-     * Starts a thread to process all tasks. When no more tasks are in the
-     * queue, it exits the thread and shuts down the service.
+     * Derives the number of tasks that may be processed in parallel from the
+     * native memory budget of the app.
+     *
+     * @param maxNativeMemoryMb the native memory budget, in megabytes.
      */
-    private void asyncProcessAllTasksAndShutdown() {
-        if (mProcessingThread != null) {
-            return;
+    private static int computeMaxParallelTasks(int maxNativeMemoryMb) {
+        int byMemory = maxNativeMemoryMb / ESTIMATED_TASK_MEMORY_MB;
+        int byCores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(MAX_PARALLEL_TASKS, Math.min(byMemory, byCores)));
+    }
+
+    /**
+     * @return the number of tasks that may currently run in parallel.
+     */
+    private int getParallelTaskLimit() {
+        return mLowMemory ? 1 : mMaxParallelTasks;
+    }
+
+    /**
+     * Starts a thread to dispatch all tasks to the task executor. When no more
+     * tasks are in the queue and all running tasks are done, it exits the
+     * thread and shuts down the service.
+     *
+     * @param startId the id of the start request.
+     */
+    private void asyncProcessAllTasksAndShutdown(int startId) {
+        synchronized (mDispatchLock) {
+            mLastStartId = startId;
+            if (mProcessingThread != null) {
+                // The dispatcher may be about to exit; make it look at the
+                // queue again.
+                mRestartRequested = true;
+                mDispatchLock.notifyAll();
+                return;
+            }
+            mProcessingThread = new Thread("CameraProcessingThread") {
+                @Override
+                public void run() {
+                    // Set the thread priority
+                    android.os.Process.setThreadPriority(THREAD_PRIORITY);
+
+                    int stopId;
+                    do {
+                        dispatchAllTasks();
+                        stopId = awaitIdleOrRestart();
+                    } while (stopId == -1);
+                    // The service may have been started again since, with a
+                    // new dispatcher. Only stop if it was not, as stopping
+                    // shuts down the task executor under the new dispatcher.
+                    stopSelfResult(stopId);
+                }
+            };
+            mProcessingThread.start();
         }
-        mProcessingThread = new Thread("CameraProcessingThread") {
-            @Override
-            public void run() {
-                // Set the thread priority
-                android.os.Process.setThreadPriority(THREAD_PRIORITY);
+    }
+
+    /**
+     * Hands tasks to the task executor as long as the queue has tasks,
+     * keeping at most {@link #getParallelTaskLimit()} of them in flight.
+     */
+    private void dispatchAllTasks() {
+        while (true) {
+            final ProcessingTask task;
+            synchronized (mDispatchLock) {
+                try {
+                    task = awaitNextTaskLocked();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while waiting to dispatch a task.");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (task == null) {
+                    return;
+                }
+                mTasksInFlight++;
+                if (task.getSession() != null) {
+                    mRunningSessions.add(task.getSession());
+                }
+            }
+            try {
+                mSuspendStatusLock.lock();
+                mCurrentTasks.add(task);
+                if (mPaused) {
+                    task.suspend();
+                }
+            } finally {
+                mSuspendStatusLock.unlock();
+            }
 
-                ProcessingTask task;
-                while ((task = mProcessingServiceManager.popNextSession()) != null) {
-                    mCurrentTask = task;
+            collectGarbageIfRequested();
+            mTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        mSuspendStatusLock.lock();
-                        if (mPaused) {
-                            mCurrentTask.suspend();
-                        }
+                        processAndNotify(task);
                     } finally {
-                        mSuspendStatusLock.unlock();
+                        try {
+                            mSuspendStatusLock.lock();
+                            mCurrentTasks.remove(task);
+                        } finally {
+                            mSuspendStatusLock.unlock();
+                        }
+                        synchronized (mDispatchLock) {
+                            mTasksInFlight--;
+                            mRunningSessions.remove(task.getSession());
+                            mDispatchLock.notifyAll();
+                        }
                     }
-                    processAndNotify(task);
                 }
-                stopSelf();
+            });
+        }
+    }
+
+    /**
+     * Waits until a task may start: a parallel slot is free and the queue has
+     * a task of a session which is not being processed. While the queue is
+     * empty, also waits for running tasks to finish, so that the service is
+     * reported as running until all of them are done.
+     *
+     * @return the task to start, or null if the queue is empty and no task is
+     *         running.
+     */
+    @GuardedBy("mDispatchLock")
+    @Nullable
+    private ProcessingTask awaitNextTaskLocked() throws InterruptedException {
+        while (true) {
+            if (mTasksInFlight == 0) {
+                // Any queued task may start. If there is none, this also
+                // marks the service as stopped.
+                return mProcessingServiceManager.popNextSession();
+            }
+            if (mTasksInFlight < getParallelTaskLimit()) {
+                ProcessingTask task =
+                        mProcessingServiceManager.popNextSessionExcept(mRunningSessions);
+                if (task != null) {
+                    return task;
+                }
             }
-        };
-        mProcessingThread.start();
+            mDispatchLock.wait();
+        }
+    }
+
+    /**
+     * Waits for all running tasks to finish.
+     *
+     * @return -1 if the service was started again in the meantime and the
+     *         dispatcher should look at the queue again, or otherwise the id
+     *         of the latest start request, to stop the service with.
+     */
+    private int awaitIdleOrRestart() {
+        synchronized (mDispatchLock) {
+            try {
+                while (mTasksInFlight > 0) {
+                    mDispatchLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for tasks to finish.");
+                Thread.currentThread().interrupt();
+            }
+            if (mRestartRequested) {
+                mRestartRequested = false;
+                return -1;
+            }
+            mProcessingThread = null;
+            return mLastStartId;
+        }
+    }
+
+    /**
+     * Runs a garbage collection if memory pressure was signalled since the
+     * last one, rather than before every task.
+     */
+    private void collectGarbageIfRequested() {
+        if (mCollectGarbage) {
+            mCollectGarbage = false;
+            Log.d(TAG, "Collecting garbage due to memory pressure.");
+            System.gc();
+        }
     }
 
     /**
@@ -227,21 +491,26 @@ public class ProcessingService extends Service implements ProgressListener {
             // TODO: Timestamp is not required right now, refactor this to make it clearer.
             session = mSessionManager.createNewSession(task.getName(), 0, task.getLocation());
         }
-        resetNotification();
+        TaskProgress progress = new TaskProgress();
+        synchronized (mNotificationLock) {
+            mTaskProgress.add(progress);
+            postNotificationLocked();
+        }
 
         // Adding the listener also causes it to get called for the session's
         // current status message and percent completed.
-        session.addProgressListener(this);
-
-        System.gc();
-        Log.d(TAG, "Processing start");
-        task.process(this, getServices(), session);
-        Log.d(TAG, "Processing done");
-    }
-
-    private void resetNotification() {
-        mNotificationBuilder.setContentText("…").setProgress(100, 0, false);
-        postNotification();
+        session.addProgressListener(progress);
+        try {
+            Log.d(TAG, "Processing start");
+            task.process(this, getServices(), session);
+            Log.d(TAG, "Processing done");
+        } finally {
+            session.removeProgressListener(progress);
+            synchronized (mNotificationLock) {
+                mTaskProgress.remove(progress);
+                postNotificationLocked();
+            }
+        }
     }
 
     /**
@@ -251,7 +520,23 @@ public class ProcessingService extends Service implements ProgressListener {
         return CameraServicesImpl.instance();
     }
 
-    private void postNotification() {
+    /**
+     * Updates the notification from the progress of the running tasks, and
+     * posts it.
+     */
+    @GuardedBy("mNotificationLock")
+    private void postNotificationLocked() {
+        int progress = 0;
+        CharSequence text = "…";
+        if (!mTaskProgress.isEmpty()) {
+            for (TaskProgress taskProgress : mTaskProgress) {
+                progress += taskProgress.mProgress;
+            }
+            progress /= mTaskProgress.size();
+            int messageId = mTaskProgress.get(0).mMessageId;
+            text = messageId > 0 ? getString(messageId) : "";
+        }
+        mNotificationBuilder.setContentText(text).setProgress(100, progress, false);
         mNotificationManager.notify(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
@@ -266,15 +551,30 @@ public class ProcessingService extends Service implements ProgressListener {
                 .setContentTitle(this.getText(R.string.app_name));
     }
 
-    @Override
-    public void onProgressChanged(int progress) {
-        mNotificationBuilder.setProgress(100, progress, false);
-        postNotification();
-    }
+    /**
+     * The progress of a single running task. Tasks run in parallel, so each
+     * reports to its own listener rather than to the shared notification.
+     */
+    private class TaskProgress implements ProgressListener {
+        @GuardedBy("mNotificationLock")
+        private int mProgress;
+        @GuardedBy("mNotificationLock")
+        private int mMessageId;
 
-    @Override
-    public void onStatusMessageChanged(int messageId) {
-        mNotificationBuilder.setContentText(messageId > 0 ? getString(messageId) : "");
-        postNotification();
+        @Override
+        public void onProgressChanged(int progress) {
+            synchronized (mNotificationLock) {
+                mProgress = progress;
+                postNotificationLocked();
+            }
+        }
+
+        @Override
+        public void onStatusMessageChanged(int messageId) {
+            synchronized (mNotificationLock) {
+                mMessageId = messageId;
+                postNotificationLocked();
+            }
+        }
     }
 }
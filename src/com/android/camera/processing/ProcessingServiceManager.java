@@ -21,10 +21,15 @@ import android.content.Intent;
 
 import com.android.camera.debug.Log;
 import com.android.camera.processing.imagebackend.ImageBackend;
+import com.android.camera.session.CaptureSession;
 import com.android.camera.util.AndroidContext;
 import com.android.camera2.R;
 
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Set;
+
+import javax.annotation.Nullable;
 
 /**
  * Manages a queue of processing tasks as well as the processing service
@@ -36,6 +41,14 @@ import java.util.LinkedList;
 public class ProcessingServiceManager implements ProcessingTaskConsumer {
     private static final Log.Tag TAG = new Log.Tag("ProcessingSvcMgr");
 
+    /**
+     * Is notified when a task may have become available to the running
+     * service.
+     */
+    public interface TaskQueueListener {
+        public void onTaskQueued();
+    }
+
     private static class Singleton {
         private static final ProcessingServiceManager INSTANCE = new ProcessingServiceManager(
               AndroidContext.instance().get());
@@ -59,13 +72,18 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
 
     private final ImageBackend mImageBackend;
 
+    /** The listener of the running service, if any. */
+    private TaskQueueListener mTaskQueueListener;
+
     private ProcessingServiceManager(Context context) {
         mAppContext = context;
 
         // Read and set the round thumbnail diameter value from resources.
         int tinyThumbnailSize = context.getResources()
               .getDimensionPixelSize(R.dimen.rounded_thumbnail_diameter_max);
-        mImageBackend = new ImageBackend(this, tinyThumbnailSize);
+        // The image savers copy preview results into bitmaps before their
+        // listeners return, so the preview color arrays can be reused.
+        mImageBackend = new ImageBackend(this, tinyThumbnailSize, true /* reuseColorArrays */);
     }
 
     /**
@@ -75,15 +93,33 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
      * @param task The task to be enqueued.
      */
     @Override
-    public synchronized void enqueueTask(ProcessingTask task) {
-        mQueue.add(task);
-        Log.d(TAG, "Task added. Queue size now: " + mQueue.size());
+    public void enqueueTask(ProcessingTask task) {
+        TaskQueueListener listener;
+        synchronized (this) {
+            mQueue.add(task);
+            Log.d(TAG, "Task added. Queue size now: " + mQueue.size());
 
-        if (!mServiceRunning && !mHoldProcessing) {
-            startService();
+            if (!mServiceRunning && !mHoldProcessing) {
+                startService();
+            }
+            listener = mTaskQueueListener;
+        }
+        // Called without holding this lock, as the listener may call back
+        // into the manager while holding its own lock.
+        if (listener != null) {
+            listener.onTaskQueued();
         }
     }
 
+    /**
+     * Sets the listener which is notified whenever a task is enqueued.
+     *
+     * @param listener the listener, or null to remove it.
+     */
+    public synchronized void setTaskQueueListener(@Nullable TaskQueueListener listener) {
+        mTaskQueueListener = listener;
+    }
+
     /**
      * Remove the next task from the queue and return it.
      *
@@ -104,6 +140,35 @@ public class ProcessingServiceManager implements ProcessingTaskConsumer {
         }
     }
 
+    /**
+     * Removes the first task from the queue which does not belong to one of
+     * the given sessions, so that the tasks of a session are processed one
+     * at a time and in order. Unlike {@link #popNextSession()}, this does not
+     * mark the service as stopped when no task is returned.
+     *
+     * @param runningSessions the sessions which currently have a task being
+     *            processed.
+     * @return The task, or <code>null</code> if there is none or we have a
+     *         processing hold.
+     */
+    @Nullable
+    public synchronized ProcessingTask popNextSessionExcept(Set<CaptureSession> runningSessions) {
+        if (mHoldProcessing) {
+            return null;
+        }
+        Iterator<ProcessingTask> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            ProcessingTask task = iterator.next();
+            CaptureSession session = task.getSession();
+            if (session == null || !runningSessions.contains(session)) {
+                iterator.remove();
+                Log.d(TAG, "Popping a session. Remaining: " + mQueue.size());
+                return task;
+            }
+        }
+        return null;
+    }
+
     /**
      * @return Whether the service has queued items or is running.
      */
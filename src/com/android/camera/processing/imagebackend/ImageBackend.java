@@ -16,12 +16,10 @@
 
 package com.android.camera.processing.imagebackend;
 
-import android.os.Process;
-
-import com.android.camera.async.AndroidPriorityThread;
 import com.android.camera.debug.Log;
 import com.android.camera.processing.ProcessingTaskConsumer;
-import com.android.camera.processing.memory.ByteBufferDirectPool;
+import com.android.camera.processing.memory.ByteBufferDirectArena;
+import com.android.camera.processing.memory.IntArrayPool;
 import com.android.camera.processing.memory.LruResourcePool;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.Size;
@@ -32,13 +30,17 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
 /**
  * This ImageBackend is created for the purpose of creating a task-running
  * infrastructure that has two-level of priority and doing the book-keeping to
@@ -89,37 +91,48 @@ import java.util.concurrent.locks.ReentrantLock;
 public class ImageBackend implements ImageConsumer, ImageTaskManager {
     private static final Log.Tag TAG = new Log.Tag("ImageBackend");
 
-    protected static final int NUM_THREADS_FAST = 2;
-    protected static final int NUM_THREADS_AVERAGE = 2;
-    protected static final int NUM_THREADS_SLOW = 2;
-
-    private static final int FAST_THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
-    private static final int AVERAGE_THREAD_PRIORITY = Process.THREAD_PRIORITY_DEFAULT
-            + Process.THREAD_PRIORITY_LESS_FAVORABLE;
-    private static final int SLOW_THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND
-            + Process.THREAD_PRIORITY_MORE_FAVORABLE;
+    /**
+     * Byte budget for idle direct buffers kept around for JPEG encoding. The
+     * output buffer of a 16MP capture falls in the 24MB size class, so this
+     * keeps two of them for back-to-back shots.
+     */
+    private static final int IMAGE_BACKEND_DIRECT_BUFFER_BUDGET_BYTES = 48 * 1024 * 1024;
 
-    private static final int IMAGE_BACKEND_HARD_REF_POOL_SIZE = 2;
+    /**
+     * Byte budget for idle preview color arrays. This covers a filmstrip
+     * preview and a few tiny thumbnails at current sensor resolutions.
+     */
+    private static final int IMAGE_BACKEND_COLOR_ARRAY_BUDGET_BYTES = 8 * 1024 * 1024;
 
     protected final ProcessingTaskConsumer mProcessingTaskConsumer;
 
     /**
-     * Map for TaskImageContainer and the release of ImageProxy Book-keeping
+     * Map for TaskImageContainer and the release of ImageProxy Book-keeping.
+     * This is a concurrent map, and reference counts are kept atomically in
+     * each protocol, so worker threads do not serialize on a single monitor.
      */
-    protected final Map<ImageToProcess, ImageReleaseProtocol> mImageSemaphoreMap;
+    protected final ConcurrentMap<ImageToProcess, ImageReleaseProtocol> mImageSemaphoreMap;
     /**
      * Map for ImageShadowTask and release of blocking on
      * ImageShadowTask::process
      */
-    protected final Map<CaptureSession, ImageShadowTask> mShadowTaskMap;
+    protected final ConcurrentMap<CaptureSession, ImageShadowTask> mShadowTaskMap;
 
-    // The available threadpools for scheduling
+    // The available threadpools for scheduling. By default, these are views
+    // of a single ProcessingPriorityScheduler shared by all priorities.
     protected final ExecutorService mThreadPoolFast;
     protected final ExecutorService mThreadPoolAverage;
     protected final ExecutorService mThreadPoolSlow;
 
     private final LruResourcePool<Integer, ByteBuffer> mByteBufferDirectPool;
 
+    /**
+     * Pool for the ARGB results of RGB preview tasks, or null if every task
+     * allocates its own result array.
+     */
+    @Nullable
+    private final LruResourcePool<Integer, int[]> mColorArrayPool;
+
     /**
      * Approximate viewable size (in pixels) for the fast thumbnail in the
      * current UX definition of the product. Note that these values will be the
@@ -138,25 +151,44 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
     // Some invariants to know that we're keeping track of everything
     // that reflect the state of mImageSemaphoreMap
-    private int mOutstandingImageRefs = 0;
+    private final AtomicInteger mOutstandingImageRefs = new AtomicInteger();
 
-    private int mOutstandingImageOpened = 0;
+    private final AtomicInteger mOutstandingImageOpened = new AtomicInteger();
 
-    private int mOutstandingImageClosed = 0;
+    private final AtomicInteger mOutstandingImageClosed = new AtomicInteger();
 
     // Objects that may be registered to this objects events.
     private ImageProcessorProxyListener mProxyListener = null;
 
     // Default constructor, values are conservatively targeted to the Nexus 6
     public ImageBackend(ProcessingTaskConsumer processingTaskConsumer, int tinyThumbnailSize) {
-        mThreadPoolFast = Executors.newFixedThreadPool(NUM_THREADS_FAST, new FastThreadFactory());
-        mThreadPoolAverage = Executors.newFixedThreadPool(NUM_THREADS_AVERAGE,
-                new AverageThreadFactory());
-        mThreadPoolSlow = Executors.newFixedThreadPool(NUM_THREADS_SLOW, new SlowThreadFactory());
-        mByteBufferDirectPool = new ByteBufferDirectPool(IMAGE_BACKEND_HARD_REF_POOL_SIZE);
+        this(processingTaskConsumer, tinyThumbnailSize, false);
+    }
+
+    /**
+     * Constructor with an opt-in allocation-free mode for RGB preview tasks.
+     *
+     * @param processingTaskConsumer consumer of processing tasks
+     * @param tinyThumbnailSize size of the fast thumbnail in pixels
+     * @param reuseColorArrays true to draw RGB preview results from a pool
+     *            and reclaim them once listeners return. Registered
+     *            listeners must then copy uncompressed payloads before
+     *            returning from onResultUncompressed.
+     */
+    public ImageBackend(ProcessingTaskConsumer processingTaskConsumer, int tinyThumbnailSize,
+            boolean reuseColorArrays) {
+        ProcessingPriorityScheduler scheduler = new ProcessingPriorityScheduler();
+        mThreadPoolFast = scheduler.getExecutor(TaskImageContainer.ProcessingPriority.FAST);
+        mThreadPoolAverage = scheduler.getExecutor(TaskImageContainer.ProcessingPriority.AVERAGE);
+        mThreadPoolSlow = scheduler.getExecutor(TaskImageContainer.ProcessingPriority.SLOW);
+        mByteBufferDirectPool = new ByteBufferDirectArena(
+                IMAGE_BACKEND_DIRECT_BUFFER_BUDGET_BYTES);
+        mColorArrayPool = reuseColorArrays
+                ? new IntArrayPool(IMAGE_BACKEND_COLOR_ARRAY_BUDGET_BYTES)
+                : null;
         mProxyListener = new ImageProcessorProxyListener();
-        mImageSemaphoreMap = new HashMap<>();
-        mShadowTaskMap = new HashMap<>();
+        mImageSemaphoreMap = new ConcurrentHashMap<>();
+        mShadowTaskMap = new ConcurrentHashMap<>();
         mProcessingTaskConsumer = processingTaskConsumer;
         mTinyThumbnailTargetSize = new Size(tinyThumbnailSize, tinyThumbnailSize);
     }
@@ -180,9 +212,10 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         mThreadPoolAverage = averageService;
         mThreadPoolSlow = slowService;
         mByteBufferDirectPool = byteBufferDirectPool;
+        mColorArrayPool = null;
         mProxyListener = imageProcessorProxyListener;
-        mImageSemaphoreMap = new HashMap<>();
-        mShadowTaskMap = new HashMap<>();
+        mImageSemaphoreMap = new ConcurrentHashMap<>();
+        mShadowTaskMap = new ConcurrentHashMap<>();
         mProcessingTaskConsumer = processingTaskConsumer;
         mTinyThumbnailTargetSize = new Size(tinyThumbnailSize, tinyThumbnailSize);
     }
@@ -212,12 +245,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public int getNumberOfReservedOpenImages() {
-        synchronized (mImageSemaphoreMap) {
-            // since mOutstandingImageOpened, mOutstandingImageClosed reflect
-            // the historical state of mImageSemaphoreMap, we need to lock on
-            // before we return a value.
-            return mOutstandingImageOpened - mOutstandingImageClosed;
-        }
+        return mOutstandingImageOpened.get() - mOutstandingImageClosed.get();
     }
 
     /**
@@ -229,9 +257,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public int getNumberOfOutstandingCalls() {
-        synchronized (mShadowTaskMap) {
-            return mShadowTaskMap.size();
-        }
+        return mShadowTaskMap.size();
     }
 
     /**
@@ -248,42 +274,34 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     @Override
     public void releaseSemaphoreReference(final ImageToProcess img, Executor executor) {
-        synchronized (mImageSemaphoreMap) {
-            ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
-            if (protocol == null || protocol.getCount() <= 0) {
-                // That means task implementation has allowed an unbalanced
-                // semaphore release.
-                throw new RuntimeException(
-                        "ERROR: Task implementation did NOT balance its release.");
-            }
-
-            // Normal operation from here.
-            protocol.addCount(-1);
-            mOutstandingImageRefs--;
-            logWrapper("Ref release.  Total refs = " + mOutstandingImageRefs);
-            if (protocol.getCount() == 0) {
-                // Image is ready to be released
-                // Remove the image from the map so that it may be submitted
-                // again.
-                mImageSemaphoreMap.remove(img);
-
-                // Conditionally close the image, specified by initial
-                // receiveImage call
-                if (protocol.closeOnRelease) {
-                    closeImageExecutorSafe(img, executor);
-                    logWrapper("Ref release close.");
-                }
-
-                // Conditionally signal the blocking thread to go.
-                if (protocol.blockUntilRelease) {
-                    protocol.signal();
-                }
+        ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
+        int remaining = (protocol == null) ? -1 : protocol.addCount(-1);
+        if (remaining < 0) {
+            // That means task implementation has allowed an unbalanced
+            // semaphore release.
+            throw new RuntimeException(
+                    "ERROR: Task implementation did NOT balance its release.");
+        }
+
+        // Normal operation from here.
+        int outstandingRefs = mOutstandingImageRefs.decrementAndGet();
+        logWrapper("Ref release.  Total refs = " + outstandingRefs);
+        if (remaining == 0) {
+            // Image is ready to be released
+            // Remove the image from the map so that it may be submitted
+            // again.
+            mImageSemaphoreMap.remove(img, protocol);
+
+            // Conditionally close the image, specified by initial
+            // receiveImage call, and finish the release once it is closed.
+            if (protocol.closeOnRelease) {
+                closeImageExecutorSafe(img, executor, protocol);
+                logWrapper("Ref release close.");
             } else {
-                // Image is still being held by other tasks.
-                // Otherwise, update the semaphore
-                mImageSemaphoreMap.put(img, protocol);
+                finishRelease(protocol);
             }
         }
+        // Otherwise, image is still being held by other tasks.
     }
 
     /**
@@ -502,7 +520,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
                 // JPEG compression of the YUV Image, and writes the result to
                 // disk
                 tasksToExecute.add(new TaskPreviewChainedJpeg(img, executor, this, session,
-                        FILMSTRIP_THUMBNAIL_TARGET_SIZE, mByteBufferDirectPool));
+                        FILMSTRIP_THUMBNAIL_TARGET_SIZE, mByteBufferDirectPool,
+                        mColorArrayPool));
             } else {
                 // Request job that only does JPEG compression and writes the
                 // result to disk
@@ -516,7 +535,8 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             tasksToExecute.add(new TaskConvertImageToRGBPreview(img, executor,
                     this, TaskImageContainer.ProcessingPriority.FAST, session,
                     mTinyThumbnailTargetSize,
-                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET));
+                    TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET,
+                    mColorArrayPool));
         }
 
         // Wrap the listener in a runnable that will be fired when all tasks are
@@ -557,7 +577,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
             TaskConvertImageToRGBPreview.ThumbnailShape thumbnailShape) {
         return new TaskConvertImageToRGBPreview(image, executor, imageBackend,
                 TaskImageContainer.ProcessingPriority.FAST, session,
-                mTinyThumbnailTargetSize, thumbnailShape);
+                mTinyThumbnailTargetSize, thumbnailShape, mColorArrayPool);
     }
 
     public TaskCompressImageToJpeg createTaskCompressImageToJpeg(ImageToProcess image,
@@ -572,6 +592,7 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
     @Override
     public void shutdown() {
         mThreadPoolSlow.shutdown();
+        mThreadPoolAverage.shutdown();
         mThreadPoolFast.shutdown();
     }
 
@@ -601,16 +622,14 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
         // Create a new blocking semaphore for each set of tasks on a given
         // session.
-        synchronized (mShadowTaskMap) {
-            for (CaptureSession captureSession : sessionSet) {
-                BlockSignalProtocol protocol = new BlockSignalProtocol();
-                protocol.setCount(sessionTaskCount.get(captureSession));
-                final ImageShadowTask shadowTask;
-                shadowTask = new ImageShadowTask(protocol, captureSession,
-                            runnableWhenDone);
-                mShadowTaskMap.put(captureSession, shadowTask);
-                mProcessingTaskConsumer.enqueueTask(shadowTask);
-            }
+        for (CaptureSession captureSession : sessionSet) {
+            BlockSignalProtocol protocol = new BlockSignalProtocol();
+            protocol.setCount(sessionTaskCount.get(captureSession));
+            final ImageShadowTask shadowTask;
+            shadowTask = new ImageShadowTask(protocol, captureSession,
+                        runnableWhenDone);
+            mShadowTaskMap.put(captureSession, shadowTask);
+            mProcessingTaskConsumer.enqueueTask(shadowTask);
         }
     }
 
@@ -622,16 +641,14 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected void incrementTaskDone(Set<TaskImageContainer> tasks) throws RuntimeException {
         // TODO: Add invariant test so that all sessions are the same.
-        synchronized (mShadowTaskMap) {
-            for (TaskImageContainer task : tasks) {
-                ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
-                if (shadowTask == null) {
-                    throw new RuntimeException(
-                            "Session NOT previously registered."
-                                    + " ImageShadowTask booking-keeping is incorrect.");
-                }
-                shadowTask.getProtocol().addCount(1);
+        for (TaskImageContainer task : tasks) {
+            ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
+            if (shadowTask == null) {
+                throw new RuntimeException(
+                        "Session NOT previously registered."
+                                + " ImageShadowTask booking-keeping is incorrect.");
             }
+            shadowTask.getProtocol().addCount(1);
         }
     }
 
@@ -644,17 +661,16 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      * @return whether all the tasks associated with an ImageShadowTask are done
      */
     protected boolean decrementTaskDone(ImageShadowTask imageShadowTask) {
-        synchronized (mShadowTaskMap) {
-            int remainingTasks = imageShadowTask.getProtocol().addCount(-1);
-            if (remainingTasks == 0) {
-                mShadowTaskMap.remove(imageShadowTask.getSession());
-                imageShadowTask.getProtocol().signal();
-                return true;
-            } else {
-                return false;
-            }
+        int remainingTasks = imageShadowTask.getProtocol().addCount(-1);
+        if (remainingTasks == 0) {
+            // Only remove the mapping if a newer shadow task has not replaced
+            // it for the same session.
+            mShadowTaskMap.remove(imageShadowTask.getSession(), imageShadowTask);
+            imageShadowTask.getProtocol().signal();
+            return true;
+        } else {
+            return false;
         }
-
     }
 
     /**
@@ -664,29 +680,27 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      * @param tasks The set of tasks to be run
      */
     protected void scheduleTasks(Set<TaskImageContainer> tasks) {
-        synchronized (mShadowTaskMap) {
-            for (TaskImageContainer task : tasks) {
-                ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
-                if (shadowTask == null) {
-                    throw new IllegalStateException("Scheduling a task with a unknown session.");
-                }
-                // Before scheduling, wrap TaskImageContainer inside of the
-                // TaskDoneWrapper to add
-                // instrumentation for managing ImageShadowTasks
-                switch (task.getProcessingPriority()) {
-                    case FAST:
-                        mThreadPoolFast.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    case AVERAGE:
-                        mThreadPoolAverage.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    case SLOW:
-                        mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                    default:
-                        mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
-                        break;
-                }
+        for (TaskImageContainer task : tasks) {
+            ImageShadowTask shadowTask = mShadowTaskMap.get(task.mSession);
+            if (shadowTask == null) {
+                throw new IllegalStateException("Scheduling a task with a unknown session.");
+            }
+            // Before scheduling, wrap TaskImageContainer inside of the
+            // TaskDoneWrapper to add
+            // instrumentation for managing ImageShadowTasks
+            switch (task.getProcessingPriority()) {
+                case FAST:
+                    mThreadPoolFast.execute(new TaskDoneWrapper(this, shadowTask, task));
+                    break;
+                case AVERAGE:
+                    mThreadPoolAverage.execute(new TaskDoneWrapper(this, shadowTask, task));
+                    break;
+                case SLOW:
+                    mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
+                    break;
+                default:
+                    mThreadPoolSlow.execute(new TaskDoneWrapper(this, shadowTask, task));
+                    break;
             }
         }
     }
@@ -699,27 +713,24 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected ImageReleaseProtocol setSemaphoreReferenceCount(ImageToProcess img, int count,
             boolean blockUntilRelease, boolean closeOnRelease) throws RuntimeException {
-        synchronized (mImageSemaphoreMap) {
-            if (mImageSemaphoreMap.get(img) != null) {
-                throw new RuntimeException(
-                        "ERROR: Rewriting of Semaphore Lock."
-                                + "  Image references may not freed properly");
-            }
-
-            // Create the new booking-keeping object.
-            ImageReleaseProtocol protocol = new ImageReleaseProtocol(blockUntilRelease,
-                    closeOnRelease);
-            protocol.setCount(count);
-
-            mImageSemaphoreMap.put(img, protocol);
-            mOutstandingImageRefs += count;
-            mOutstandingImageOpened++;
-            logWrapper("Received an opened image: " + mOutstandingImageOpened + "/"
-                    + mOutstandingImageClosed);
-            logWrapper("Setting an image reference count of " + count + "   Total refs = "
-                    + mOutstandingImageRefs);
-            return protocol;
-        }
+        // Create the new booking-keeping object.
+        ImageReleaseProtocol protocol = new ImageReleaseProtocol(blockUntilRelease,
+                closeOnRelease);
+        protocol.setCount(count);
+
+        if (mImageSemaphoreMap.putIfAbsent(img, protocol) != null) {
+            throw new RuntimeException(
+                    "ERROR: Rewriting of Semaphore Lock."
+                            + "  Image references may not freed properly");
+        }
+
+        int outstandingRefs = mOutstandingImageRefs.addAndGet(count);
+        int opened = mOutstandingImageOpened.incrementAndGet();
+        logWrapper("Received an opened image: " + opened + "/"
+                + mOutstandingImageClosed.get());
+        logWrapper("Setting an image reference count of " + count + "   Total refs = "
+                + outstandingRefs);
+        return protocol;
     }
 
     /**
@@ -734,18 +745,14 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      */
     protected void incrementSemaphoreReferenceCount(ImageToProcess img, int count)
             throws RuntimeException {
-        synchronized (mImageSemaphoreMap) {
-            ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
-            if (mImageSemaphoreMap.get(img) == null) {
-                throw new RuntimeException(
-                        "Image Reference has already been released or has never been held.");
-            }
-
-            protocol.addCount(count);
-            mImageSemaphoreMap.put(img, protocol);
-
-            mOutstandingImageRefs += count;
+        ImageReleaseProtocol protocol = mImageSemaphoreMap.get(img);
+        if (protocol == null) {
+            throw new RuntimeException(
+                    "Image Reference has already been released or has never been held.");
         }
+
+        protocol.addCount(count);
+        mOutstandingImageRefs.addAndGet(count);
     }
 
     /**
@@ -755,15 +762,19 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
      * @param img Image to be closed
      * @param executor Executor to be used, if executor is null, the close is
      *            run on the task thread
+     * @param protocol The release protocol of the image, whose release is
+     *            finished once the image is closed.
      */
-    private void closeImageExecutorSafe(final ImageToProcess img, Executor executor) {
+    private void closeImageExecutorSafe(final ImageToProcess img, Executor executor,
+            final ImageReleaseProtocol protocol) {
         Runnable closeTask = new Runnable() {
             @Override
             public void run() {
                 img.proxy.close();
-                mOutstandingImageClosed++;
+                int closed = mOutstandingImageClosed.incrementAndGet();
                 logWrapper("Release of image occurred.  Good fun. " + "Total Images Open/Closed = "
-                        + mOutstandingImageOpened + "/" + mOutstandingImageClosed);
+                        + mOutstandingImageOpened.get() + "/" + closed);
+                finishRelease(protocol);
             }
         };
         if (executor == null) {
@@ -774,6 +785,16 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
         }
     }
 
+    /**
+     * Signals the thread blocked on the release of an image, if any, now that
+     * the image has been removed from the map and closed if requested.
+     */
+    private void finishRelease(ImageReleaseProtocol protocol) {
+        if (protocol.blockUntilRelease) {
+            protocol.signal();
+        }
+    }
+
     /**
      * Calculates the number of new Image references in a set of dependent
      * tasks. Checks to make sure no new image references are being introduced.
@@ -844,70 +865,75 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
     /**
      * Encapsulates all synchronization for semaphore signaling and blocking.
+     * <p>
+     * The count is atomic so that reference counting never takes the lock.
+     * Waiting is not on the count but on an explicit release, which the
+     * releasing thread signals once it has finished acting on the count
+     * reaching zero. A blocked thread therefore never wakes up while the
+     * releasing thread is still using the protocol.
      */
     static public class BlockSignalProtocol {
-        private int count;
+        private final AtomicInteger count;
 
         private final ReentrantLock mLock = new ReentrantLock();
 
-        private Condition mSignal;
+        private final Condition mSignal;
+
+        @GuardedBy("mLock")
+        private boolean mReleased;
+
+        BlockSignalProtocol() {
+            count = new AtomicInteger(0);
+            mSignal = mLock.newCondition();
+        }
 
         public void setCount(int value) {
-            mLock.lock();
-            count = value;
-            mLock.unlock();
+            count.set(value);
         }
 
         public int getCount() {
-            int value;
-            mLock.lock();
-            value = count;
-            mLock.unlock();
-            return value;
+            return count.get();
         }
 
         public int addCount(int value) {
-            mLock.lock();
-            try {
-                count += value;
-                return count;
-            } finally {
-                mLock.unlock();
-            }
-        }
-
-        BlockSignalProtocol() {
-            count = 0;
-            mSignal = mLock.newCondition();
+            return count.addAndGet(value);
         }
 
+        /**
+         * Blocks until {@link #signal()} is called.
+         */
         public void block() throws InterruptedException {
             mLock.lock();
             try {
-                while (count != 0) {
-                    // Spin to deal with spurious signals.
+                while (!mReleased) {
+                    // Loop to deal with spurious signals.
                     mSignal.await();
                 }
-            } catch (InterruptedException e) {
-                // TODO: on interruption, figure out what to do.
-                throw (e);
             } finally {
                 mLock.unlock();
             }
         }
 
+        /**
+         * Releases the threads blocked in {@link #block()}. This must be the
+         * last use of the protocol by the releasing thread.
+         */
         public void signal() {
             mLock.lock();
-            mSignal.signal();
-            mLock.unlock();
+            try {
+                mReleased = true;
+                mSignal.signalAll();
+            } finally {
+                mLock.unlock();
+            }
         }
-
     }
 
     /**
      * A simple tuple class to keep track of image reference, and whether to
-     * block and/or close on final image release. Instantiated on every task
-     * submission call.
+     * block and/or close on final image release. A new one is created for
+     * every receiveImage call, so a stale reference can never change the
+     * count of another image.
      */
     static public class ImageReleaseProtocol extends BlockSignalProtocol {
 
@@ -923,29 +949,4 @@ public class ImageBackend implements ImageConsumer, ImageTaskManager {
 
     }
 
-    // Thread factories for a default constructor
-    private class FastThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(FAST_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
-    private class AverageThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(AVERAGE_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
-    private class SlowThreadFactory implements ThreadFactory {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new AndroidPriorityThread(SLOW_THREAD_PRIORITY, r);
-            return t;
-        }
-    }
-
 }
@@ -50,7 +50,9 @@ public interface ImageProcessorListener {
      * Called when uncompressed image conversion is done and is ready for further processing
      *
      * @param task Task specification that includes unique content id
-     * @param payload 32-bit Integer array that contains the uncompressed image data
+     * @param payload 32-bit Integer array that contains the uncompressed image data.
+     *            The array may be reused once this call returns, so it must be
+     *            copied if it is needed afterwards.
      */
     public void onResultUncompressed(TaskImageContainer.TaskInfo task,
             TaskImageContainer.UncompressedPayload payload);
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.os.Process;
+
+import com.android.camera.debug.Log;
+import com.android.camera.processing.imagebackend.TaskImageContainer.ProcessingPriority;
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A single pool of worker threads shared by all {@link ProcessingPriority}
+ * levels of the ImageBackend.
+ * <p>
+ * All workers take their tasks from one priority queue guarded by a single
+ * lock, so an idle worker always picks up pending work of any priority and
+ * higher priority tasks preempt lower priority ones at task boundaries.
+ * Tasks run for milliseconds, so the lock is held for a tiny fraction of the
+ * time, and the shared queue makes per-worker queues and work stealing
+ * unnecessary.
+ * <p>
+ * Tasks are ordered by the time they must run by: their queueing time plus
+ * the aging limit of their priority, which is zero for FAST tasks. A lower
+ * priority task therefore runs ahead of every higher priority task queued
+ * after its aging limit ran out, which keeps SLOW work from starving behind
+ * a steady stream of FAST tasks.
+ * <p>
+ * The Android thread priority of a worker is set from the priority of the
+ * task it is running. A task which throws a RuntimeException is logged and
+ * does not take its worker down with it.
+ */
+@ThreadSafe
+public class ProcessingPriorityScheduler {
+    private static final Log.Tag TAG = new Log.Tag("ProcScheduler");
+
+    private static final int FAST_THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
+    private static final int AVERAGE_THREAD_PRIORITY = Process.THREAD_PRIORITY_DEFAULT
+            + Process.THREAD_PRIORITY_LESS_FAVORABLE;
+    private static final int SLOW_THREAD_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND
+            + Process.THREAD_PRIORITY_MORE_FAVORABLE;
+
+    /** Queueing time after which an AVERAGE task is run ahead of FAST tasks. */
+    private static final long AVERAGE_AGING_LIMIT_NS = TimeUnit.MILLISECONDS.toNanos(250);
+    /** Queueing time after which a SLOW task is run ahead of all other tasks. */
+    private static final long SLOW_AGING_LIMIT_NS = TimeUnit.MILLISECONDS.toNanos(750);
+
+    private final Worker[] mWorkers;
+
+    private final ReentrantLock mLock;
+
+    /** Signalled when a task is queued or the scheduler is shut down. */
+    private final Condition mTaskQueued;
+
+    @GuardedBy("mLock")
+    private final PriorityQueue<QueuedTask> mQueue;
+
+    /** Breaks ties between tasks with the same run-by time in FIFO order. */
+    @GuardedBy("mLock")
+    private long mNextSequence;
+
+    private final AtomicInteger mActiveTasks;
+
+    private volatile boolean mShutdown;
+
+    /**
+     * Creates a scheduler with one worker per available processor.
+     */
+    public ProcessingPriorityScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param numThreads the number of worker threads.
+     */
+    public ProcessingPriorityScheduler(int numThreads) {
+        Preconditions.checkArgument(numThreads > 0);
+
+        mLock = new ReentrantLock();
+        mTaskQueued = mLock.newCondition();
+        mQueue = new PriorityQueue<>();
+        mActiveTasks = new AtomicInteger();
+        mWorkers = new Worker[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Returns an ExecutorService that runs all of its tasks on this scheduler
+     * with the given priority. Shutting down the returned service shuts down
+     * the whole scheduler.
+     */
+    public ExecutorService getExecutor(ProcessingPriority priority) {
+        return new PriorityExecutor(priority);
+    }
+
+    /**
+     * Queues a task to be run at the given priority.
+     */
+    public void execute(Runnable task, ProcessingPriority priority) {
+        Preconditions.checkNotNull(task);
+
+        long runByNs = System.nanoTime() + agingLimitNs(priority);
+        mLock.lock();
+        try {
+            if (mShutdown) {
+                throw new RejectedExecutionException("Scheduler has been shut down.");
+            }
+            mQueue.add(new QueuedTask(task, priority, runByNs, mNextSequence++));
+            mTaskQueued.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks that are queued but not yet running.
+     */
+    public int getQueuedTaskCount() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of tasks that are currently running.
+     */
+    public int getActiveTaskCount() {
+        return mActiveTasks.get();
+    }
+
+    /**
+     * @return the number of worker threads.
+     */
+    public int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Stops accepting new tasks. Queued tasks still run.
+     */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mShutdown = true;
+            // Wake up every worker so that they can observe the shutdown once
+            // the queues are drained.
+            mTaskQueued.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting new tasks and drops all queued tasks.
+     *
+     * @return the tasks that were dropped.
+     */
+    public List<Runnable> shutdownNow() {
+        List<Runnable> dropped = new ArrayList<>();
+        mLock.lock();
+        try {
+            shutdown();
+            QueuedTask task;
+            while ((task = mQueue.poll()) != null) {
+                dropped.add(task.mTask);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return dropped;
+    }
+
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    public boolean isTerminated() {
+        if (!mShutdown) {
+            return false;
+        }
+        for (Worker worker : mWorkers) {
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : mWorkers) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return isTerminated();
+            }
+            worker.join(remainingMs);
+        }
+        return isTerminated();
+    }
+
+    /**
+     * Removes the next task to run, waiting until one is queued.
+     *
+     * @return the next task, or null if the scheduler is shut down and no
+     *         tasks are left.
+     */
+    @Nullable
+    private QueuedTask takeTask() {
+        mLock.lock();
+        try {
+            while (true) {
+                QueuedTask task = mQueue.poll();
+                if (task != null || mShutdown) {
+                    return task;
+                }
+                mTaskQueued.awaitUninterruptibly();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static long agingLimitNs(ProcessingPriority priority) {
+        switch (priority) {
+            case AVERAGE:
+                return AVERAGE_AGING_LIMIT_NS;
+            case SLOW:
+                return SLOW_AGING_LIMIT_NS;
+            default:
+                return 0;
+        }
+    }
+
+    private static int androidThreadPriority(ProcessingPriority priority) {
+        switch (priority) {
+            case FAST:
+                return FAST_THREAD_PRIORITY;
+            case AVERAGE:
+                return AVERAGE_THREAD_PRIORITY;
+            default:
+                return SLOW_THREAD_PRIORITY;
+        }
+    }
+
+    private static final class QueuedTask implements Comparable<QueuedTask> {
+        final Runnable mTask;
+        final ProcessingPriority mPriority;
+        final long mRunByNs;
+        final long mSequence;
+
+        QueuedTask(Runnable task, ProcessingPriority priority, long runByNs, long sequence) {
+            mTask = task;
+            mPriority = priority;
+            mRunByNs = runByNs;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+            // Compare the difference, as System.nanoTime() may overflow.
+            long difference = mRunByNs - other.mRunByNs;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final class Worker extends Thread {
+        private int mCurrentThreadPriority = Integer.MIN_VALUE;
+
+        Worker(int index) {
+            super("ImageBackend-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                QueuedTask task = takeTask();
+                if (task == null) {
+                    // Shut down and drained.
+                    break;
+                }
+                int threadPriority = androidThreadPriority(task.mPriority);
+                if (threadPriority != mCurrentThreadPriority) {
+                    Process.setThreadPriority(threadPriority);
+                    mCurrentThreadPriority = threadPriority;
+                }
+
+                mActiveTasks.incrementAndGet();
+                try {
+                    task.mTask.run();
+                } catch (RuntimeException e) {
+                    // Unlike a thread pool, the scheduler has no way to
+                    // replace a worker, so it must not die with the task.
+                    // Errors are left to take the worker down.
+                    Log.e(TAG, "Task at priority " + task.mPriority + " failed", e);
+                } finally {
+                    mActiveTasks.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * ExecutorService view of the scheduler for a single priority.
+     */
+    private final class PriorityExecutor extends AbstractExecutorService {
+        private final ProcessingPriority mPriority;
+
+        PriorityExecutor(ProcessingPriority priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            ProcessingPriorityScheduler.this.execute(command, mPriority);
+        }
+
+        @Override
+        public void shutdown() {
+            ProcessingPriorityScheduler.this.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return ProcessingPriorityScheduler.this.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return ProcessingPriorityScheduler.this.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return ProcessingPriorityScheduler.this.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return ProcessingPriorityScheduler.this.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.net.Uri;
 
 import com.android.camera.Exif;
 import com.android.camera.app.OrientationManager.DeviceOrientation;
+import com.android.camera.debug.DebugPropertyHelper;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.one.v2.camera2proxy.CaptureResultProxy;
@@ -45,6 +46,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Implements the conversion of a YUV_420_888 image to compressed JPEG byte
@@ -60,6 +62,18 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
      *  footprint for encoding the final jpg.
      */
     private static final int MINIMUM_EXPECTED_JPG_COMPRESSION_FACTOR = 2;
+
+    /**
+     * The maximum number of threads to compress a single image with, if
+     * parallel compression is enabled. Stripes are at least 128 rows high, so
+     * large captures benefit the most. The extra threads compete with the
+     * preview and other captures, so a single thread is used by default.
+     */
+    private static final int MAX_COMPRESSION_THREADS = 4;
+    private static final int COMPRESSION_THREADS =
+            DebugPropertyHelper.isParallelJpegEnabled() ? Math.max(1, Math.min(
+                    MAX_COMPRESSION_THREADS, Runtime.getRuntime().availableProcessors())) : 1;
+
     private final LruResourcePool<Integer, ByteBuffer> mByteBufferDirectPool;
 
     /**
@@ -84,7 +98,8 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
      */
     public int compressJpegFromYUV420Image(ImageProxy img, ByteBuffer outBuf, int quality,
             Rect crop, int degrees) {
-        return JpegUtilNative.compressJpegFromYUV420Image(img, outBuf, quality, crop, degrees);
+        return JpegUtilNative.compressJpegFromYUV420Image(img, outBuf, quality, crop, degrees,
+                COMPRESSION_THREADS);
     }
 
     /**
@@ -113,7 +128,10 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
         // orientation.
 
         TaskImage inputImage, resultImage;
-        byte[] writeOut;
+        byte[] writeOut = null;
+        // The untouched JPEG plane, when it is passed through to disk. The
+        // image backs this buffer, so it is held until the save completes.
+        ByteBuffer passThroughData = null;
         int numBytes;
         ByteBuffer compressedData;
         ExifInterface exifData = null;
@@ -125,40 +143,23 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                     // In the cases, we will request a zero-oriented JPEG from
                     // the HAL; the HAL may deliver its orientation in the JPEG
                     // encoding __OR__ EXIF -- we don't know. We need to read
-                    // the EXIF setting from byte payload and the EXIF reader
-                    // doesn't work on direct buffers. So, we make a local
-                    // copy in a non-direct buffer.
+                    // the EXIF setting from byte payload. The EXIF reader
+                    // parses the direct buffer in place, so the payload is
+                    // not copied unless it has to be cropped.
                     ByteBuffer origBuffer = img.proxy.getPlanes().get(0).getBuffer();
-                    compressedData = ByteBuffer.allocate(origBuffer.limit());
-
-                    // On memory allocation failure, fail gracefully.
-                    if (compressedData == null) {
-                        // TODO: Put memory allocation failure code here.
-                        mSession.finishWithFailure(-1, true);
-                        return;
-                    }
-
-                    origBuffer.rewind();
-                    compressedData.put(origBuffer);
                     origBuffer.rewind();
-                    compressedData.rewind();
 
                     // For JPEG, always use the EXIF orientation as ground
-                    // truth on orientation, width and height.
-                    Integer exifOrientation = null;
-                    Integer exifPixelXDimension = null;
-                    Integer exifPixelYDimension = null;
-
-                    if (compressedData.array() != null) {
-                        exifData = Exif.getExif(compressedData.array());
-                        Map<Integer, Integer> minimalExifTags = exifGetMinimalTags(exifData);
-
-                        exifOrientation = minimalExifTags.get(ExifInterface.TAG_ORIENTATION);
-                        exifPixelXDimension = minimalExifTags
-                                .get(ExifInterface.TAG_PIXEL_X_DIMENSION);
-                        exifPixelYDimension = minimalExifTags
-                                .get(ExifInterface.TAG_PIXEL_Y_DIMENSION);
-                    }
+                    // truth on orientation, width and height. The full EXIF
+                    // is parsed since it is carried over into the output.
+                    exifData = Exif.getExif(origBuffer);
+                    Map<Integer, Integer> minimalExifTags = exifGetMinimalTags(exifData);
+
+                    Integer exifOrientation = minimalExifTags.get(ExifInterface.TAG_ORIENTATION);
+                    Integer exifPixelXDimension = minimalExifTags
+                            .get(ExifInterface.TAG_PIXEL_X_DIMENSION);
+                    Integer exifPixelYDimension = minimalExifTags
+                            .get(ExifInterface.TAG_PIXEL_Y_DIMENSION);
 
                     final DeviceOrientation exifDerivedRotation;
                     if (exifOrientation == null) {
@@ -210,27 +211,30 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                                 safeCrop.height(),
                                 img.proxy.getFormat(), null);
 
-                        byte[] croppedResult = decompressCropAndRecompressJpegData(
-                                compressedData.array(), safeCrop,
-                                getJpegCompressionQuality());
+                        byte[] jpegData = new byte[origBuffer.limit()];
+                        origBuffer.get(jpegData);
+                        origBuffer.rewind();
 
-                        compressedData = ByteBuffer.allocate(croppedResult.length);
-                        compressedData.put(ByteBuffer.wrap(croppedResult));
-                        compressedData.rewind();
+                        writeOut = decompressCropAndRecompressJpegData(jpegData, safeCrop,
+                                getJpegCompressionQuality());
                     } else {
-                        // Pass-though the JPEG data
+                        // Pass-though the JPEG data, which is written to disk
+                        // straight from the image's buffer.
                         resultImage = inputImage;
+                        passThroughData = origBuffer.duplicate();
                     }
                 } finally {
                     // Release the image now that you have a usable copy in
                     // local memory
                     // Or you failed to process
-                    mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
+                    if (passThroughData == null) {
+                        mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
+                    }
                 }
 
-                onStart(mId, inputImage, resultImage, TaskInfo.Destination.FINAL_IMAGE);
-
-                numBytes = compressedData.limit();
+                if (passThroughData == null) {
+                    onStart(mId, inputImage, resultImage, TaskInfo.Destination.FINAL_IMAGE);
+                }
                 break;
             case ImageFormat.YUV_420_888:
                 safeCrop = guaranteedSafeCrop(img.proxy, img.crop);
@@ -286,7 +290,7 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                     // actual number of bytes will be returned.
                     if (numBytes > jpgBufferSize) {
                         byteBufferResource.close();
-                        mByteBufferDirectPool.acquire(maxPossibleJpgSize);
+                        byteBufferResource = mByteBufferDirectPool.acquire(maxPossibleJpgSize);
                         compressedData = byteBufferResource.get();
 
                         // On memory allocation failure, fail gracefully.
@@ -307,6 +311,10 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                         throw new RuntimeException("Error compressing jpeg.");
                     }
                     compressedData.limit(numBytes);
+                    writeOut = new byte[numBytes];
+                    compressedData.get(writeOut);
+                    compressedData.rewind();
+                    byteBufferResource.close();
                 } finally {
                     // Release the image now that you have a usable copy in local memory
                     // Or you failed to process
@@ -319,17 +327,6 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
                         "Unsupported input image format for TaskCompressImageToJpeg");
         }
 
-        writeOut = new byte[numBytes];
-        compressedData.get(writeOut);
-        compressedData.rewind();
-
-        if (byteBufferResource != null) {
-            byteBufferResource.close();
-        }
-
-        onJpegEncodeDone(mId, inputImage, resultImage, writeOut,
-                TaskInfo.Destination.FINAL_IMAGE);
-
         // In rare cases, TaskCompressImageToJpeg might complete before
         // TaskConvertImageToRGBPreview. However, session should take care
         // of out-of-order completion.
@@ -337,11 +334,20 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
         final TaskImage finalInput = inputImage;
         final TaskImage finalResult = resultImage;
 
-        final ExifInterface exif = createExif(Optional.fromNullable(exifData), resultImage,
-                img.metadata);
-        mSession.getCollector().decorateAtTimeWriteToDisk(exif);
-        ListenableFuture<Optional<Uri>> futureUri = mSession.saveAndFinish(writeOut,
-                resultImage.width, resultImage.height, resultImage.orientation.getDegrees(), exif);
+        ListenableFuture<Optional<Uri>> futureUri;
+        if (passThroughData != null) {
+            futureUri = saveAndReleasePassThroughImage(img, passThroughData, inputImage,
+                    resultImage, exifData);
+        } else {
+            onJpegEncodeDone(mId, inputImage, resultImage, writeOut,
+                    TaskInfo.Destination.FINAL_IMAGE);
+
+            final ExifInterface exif = createExif(Optional.fromNullable(exifData), resultImage,
+                    img.metadata);
+            mSession.getCollector().decorateAtTimeWriteToDisk(exif);
+            futureUri = mSession.saveAndFinish(writeOut, resultImage.width, resultImage.height,
+                    resultImage.orientation.getDegrees(), exif);
+        }
         Futures.addCallback(futureUri, new FutureCallback<Optional<Uri>>() {
             @Override
             public void onSuccess(Optional<Uri> uriOptional) {
@@ -378,6 +384,44 @@ public class TaskCompressImageToJpeg extends TaskJpegEncode {
         }
     }
 
+    /**
+     * Saves a JPEG that is passed through unchanged from the capture device,
+     * writing it straight from the image's buffer, and releases the image as
+     * soon as the session no longer reads it, which is once the data is on
+     * disk rather than once the media store has been updated.
+     *
+     * @param img The image holding the JPEG data.
+     * @param jpegData The image's JPEG plane.
+     * @return A future that will provide the URI of the saved image.
+     */
+    private ListenableFuture<Optional<Uri>> saveAndReleasePassThroughImage(
+            final ImageToProcess img, ByteBuffer jpegData, TaskImage inputImage,
+            TaskImage resultImage, ExifInterface exifData) {
+        final AtomicBoolean released = new AtomicBoolean(false);
+        Runnable releaseImage = new Runnable() {
+            @Override
+            public void run() {
+                if (released.compareAndSet(false, true)) {
+                    mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
+                }
+            }
+        };
+        try {
+            onStart(mId, inputImage, resultImage, TaskInfo.Destination.FINAL_IMAGE);
+            onJpegEncodeDone(mId, inputImage, resultImage, jpegData,
+                    TaskInfo.Destination.FINAL_IMAGE);
+
+            final ExifInterface exif = createExif(Optional.fromNullable(exifData), resultImage,
+                    img.metadata);
+            mSession.getCollector().decorateAtTimeWriteToDisk(exif);
+            return mSession.saveAndFinish(jpegData, resultImage.width, resultImage.height,
+                    resultImage.orientation.getDegrees(), exif, releaseImage);
+        } catch (RuntimeException e) {
+            releaseImage.run();
+            throw e;
+        }
+    }
+
     /**
      * Wraps a possible log message to be overridden for testability purposes.
      *
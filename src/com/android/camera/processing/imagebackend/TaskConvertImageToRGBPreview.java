@@ -19,13 +19,16 @@ package com.android.camera.processing.imagebackend;
 import android.graphics.Rect;
 import com.android.camera.debug.Log;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.LruResourcePool;
+import com.android.camera.processing.memory.LruResourcePool.Resource;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.Size;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.Executor;
 
+import javax.annotation.Nullable;
+
 /**
  * Implements the conversion of a YUV_420_888 image to subsampled image targeted
  * toward a given resolution. The task automatically calculates the largest
@@ -43,6 +46,11 @@ import java.util.concurrent.Executor;
  * </ol>
  * This task does NOT implement rotation at the byte-level, since it is best
  * implemented when displayed at the view level.
+ * <p>
+ * If constructed with a color array pool, the resultant color array is drawn
+ * from the pool and returned to it as soon as onPreviewDone returns, so
+ * listeners must copy the uncompressed payload (e.g. into a Bitmap) before
+ * returning from onResultUncompressed.
  */
 public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     public enum ThumbnailShape {
@@ -76,6 +84,14 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     protected final ThumbnailShape mThumbnailShape;
     protected final Size mTargetSize;
 
+    /** Pool of result color arrays, or null to allocate a new array per task. */
+    @Nullable
+    private final LruResourcePool<Integer, int[]> mColorArrayPool;
+
+    /** Pooled array currently held by this task, returned by releaseColorArray. */
+    @Nullable
+    private Resource<int[]> mColorArrayResource;
+
     /**
      * Constructor
      *
@@ -92,9 +108,34 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
     TaskConvertImageToRGBPreview(ImageToProcess image, Executor executor,
             ImageTaskManager imageTaskManager, ProcessingPriority processingPriority,
             CaptureSession captureSession, Size targetSize, ThumbnailShape thumbnailShape) {
+        this(image, executor, imageTaskManager, processingPriority, captureSession, targetSize,
+                thumbnailShape, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param image Image that the computation is dependent on
+     * @param executor Executor to fire off an events
+     * @param imageTaskManager Image task manager that allows reference counting
+     *            and task spawning
+     * @param captureSession Capture session that bound to this image
+     * @param targetSize Approximate viewable pixel dimensions of the desired
+     *            preview Image (Resultant image may NOT be of this width)
+     * @param thumbnailShape the desired thumbnail shape for resultant image
+     *            artifact
+     * @param colorArrayPool pool that result color arrays are drawn from and
+     *            returned to after onPreviewDone, or null to allocate a new
+     *            array for every conversion
+     */
+    TaskConvertImageToRGBPreview(ImageToProcess image, Executor executor,
+            ImageTaskManager imageTaskManager, ProcessingPriority processingPriority,
+            CaptureSession captureSession, Size targetSize, ThumbnailShape thumbnailShape,
+            @Nullable LruResourcePool<Integer, int[]> colorArrayPool) {
         super(image, executor, imageTaskManager, processingPriority, captureSession);
         mTargetSize = targetSize;
         mThumbnailShape = thumbnailShape;
+        mColorArrayPool = colorArrayPool;
     }
 
     public void logWrapper(String message) {
@@ -108,6 +149,32 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
         return (value / 2) * 2;
     }
 
+    /**
+     * Returns a zeroed color array of the given length, drawn from the color
+     * array pool if one was provided. A task holds at most one pooled array
+     * at a time.
+     */
+    protected int[] acquireColorArray(int len) {
+        if (mColorArrayPool == null) {
+            return new int[len];
+        }
+
+        releaseColorArray();
+        mColorArrayResource = mColorArrayPool.acquire(len);
+        return mColorArrayResource.get();
+    }
+
+    /**
+     * Returns the pooled color array, if any, to the color array pool. The
+     * array must not be referenced after this call.
+     */
+    protected void releaseColorArray() {
+        if (mColorArrayResource != null) {
+            mColorArrayResource.close();
+            mColorArrayResource = null;
+        }
+    }
+
     /**
      * Way to calculate the resultant image sizes of inscribed circles:
      * colorInscribedDataCircleFromYuvImage,
@@ -119,7 +186,7 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
      *         functions in question to return the image size as a tuple for
      *         these functions, or re-use an general purpose holder object.
      */
-    protected int inscribedCircleRadius(int width, int height) {
+    protected static int inscribedCircleRadius(int width, int height) {
         return (Math.min(height, width) / 2) + 1;
     }
 
@@ -184,6 +251,35 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
                 + (inscribedXMin / colorSubsample) * pixelStride;
     }
 
+    /**
+     * Sets up the row-band kernel parameters shared by the circular and
+     * rectangular conversions.
+     */
+    private static YuvToRgbPreviewKernel.Params createKernelParams(
+            List<ImageProxy.Plane> planeList, int subsample, int inputHorizontalOffset,
+            int inputVerticalOffset, int inscribedXMin, int inscribedXMax, int inscribedYMin,
+            int inscribedYMax, int outputPixelStride) {
+        YuvToRgbPreviewKernel.Params params = new YuvToRgbPreviewKernel.Params();
+        params.bufY = planeList.get(0).getBuffer();
+        params.bufU = planeList.get(1).getBuffer(); // Downsampled by 2
+        params.bufV = planeList.get(2).getBuffer(); // Downsampled by 2
+        params.yByteStride = planeList.get(0).getRowStride() * subsample;
+        params.uByteStride = planeList.get(1).getRowStride() * subsample;
+        params.vByteStride = planeList.get(2).getRowStride() * subsample;
+        params.yPixelStride = planeList.get(0).getPixelStride() * subsample;
+        params.uPixelStride = planeList.get(1).getPixelStride() * subsample;
+        params.vPixelStride = planeList.get(2).getPixelStride() * subsample;
+        params.subsample = subsample;
+        params.inputHorizontalOffset = inputHorizontalOffset;
+        params.inputVerticalOffset = inputVerticalOffset;
+        params.inscribedXMin = inscribedXMin;
+        params.inscribedXMax = inscribedXMax;
+        params.inscribedYMin = inscribedYMin;
+        params.inscribedYMax = inscribedYMax;
+        params.outputPixelStride = outputPixelStride;
+        return params;
+    }
+
     /**
      * Converts an Android Image to a inscribed circle bitmap of ARGB_8888 in a
      * super-optimized loop unroll. Guarantees only one subsampled pass over the
@@ -233,6 +329,32 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
                     + ") in YUV Image Object");
         }
 
+        YuvToRgbPreviewKernel.Params params =
+                createInscribedCircleParams(planeList, crop, subsample);
+        int r = params.radius;
+        int len = r * r * 4;
+        int[] colors = acquireColorArray(len);
+
+        logWrapper("TIMER_BEGIN Starting Native Java YUV420-to-RGB Circular Conversion");
+        logWrapper("\t Y-Plane Size=" + crop.width() / subsample + "x"
+                + crop.height() / subsample);
+        logWrapper("\t U-Plane Size=" + planeList.get(1).getRowStride() + " Pixel Stride="
+                + planeList.get(1).getPixelStride());
+        logWrapper("\t V-Plane Size=" + planeList.get(2).getRowStride() + " Pixel Stride="
+                + planeList.get(2).getPixelStride());
+        YuvToRgbPreviewKernel.convert(params, colors);
+        logWrapper("TIMER_END Starting Native Java YUV420-to-RGB Circular Conversion");
+
+        return colors;
+    }
+
+    /**
+     * Sets up the kernel to convert the given safe crop of an image to an
+     * inscribed circle, as colorInscribedDataCircleFromYuvImage does. The
+     * output is a square of params.radius * 2 pixels.
+     */
+    static YuvToRgbPreviewKernel.Params createInscribedCircleParams(
+            List<ImageProxy.Plane> planeList, Rect crop, int subsample) {
         int inputWidth = crop.width();
         int inputHeight = crop.height();
         int outputWidth = inputWidth / subsample;
@@ -264,226 +386,14 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
             inscribedYMax = quantizeBy2(h / 2 + r);
         }
 
-        ByteBuffer buf0 = planeList.get(0).getBuffer();
-        ByteBuffer bufU = planeList.get(1).getBuffer(); // Downsampled by 2
-        ByteBuffer bufV = planeList.get(2).getBuffer(); // Downsampled by 2
-        int yByteStride = planeList.get(0).getRowStride() * subsample;
-        int uByteStride = planeList.get(1).getRowStride() * subsample;
-        int vByteStride = planeList.get(2).getRowStride() * subsample;
-        int yPixelStride = planeList.get(0).getPixelStride() * subsample;
-        int uPixelStride = planeList.get(1).getPixelStride() * subsample;
-        int vPixelStride = planeList.get(2).getPixelStride() * subsample;
-        int outputPixelStride = r * 2;
-        int centerY = h / 2;
-        int centerX = w / 2;
-
-        int len = r * r * 4;
-        int[] colors = new int[len];
-        int alpha = 255 << 24;
-
-        logWrapper("TIMER_BEGIN Starting Native Java YUV420-to-RGB Circular Conversion");
-        logWrapper("\t Y-Plane Size=" + w + "x" + h);
-        logWrapper("\t U-Plane Size=" + planeList.get(1).getRowStride() + " Pixel Stride="
-                + planeList.get(1).getPixelStride());
-        logWrapper("\t V-Plane Size=" + planeList.get(2).getRowStride() + " Pixel Stride="
-                + planeList.get(2).getPixelStride());
-        // Take in vertical lines by factor of two because of the u/v component
-        // subsample
-        for (int j = inscribedYMin; j < inscribedYMax; j += 2) {
-            int offsetColor = (j - inscribedYMin) * (outputPixelStride);
-            int offsetY = calculateMemoryOffsetFromPixelOffsets(inscribedXMin, j, subsample,
-                    1 /* YComponent */, yByteStride, yPixelStride, inputHorizontalOffset,
-                    inputVerticalOffset);
-            int offsetU = calculateMemoryOffsetFromPixelOffsets(inscribedXMin, j, subsample,
-                    2 /* U Component downsampled by 2 */, uByteStride, uPixelStride,
-                    inputHorizontalOffset / 2, inputVerticalOffset / 2);
-            int offsetV = calculateMemoryOffsetFromPixelOffsets(inscribedXMin, j, subsample,
-                    2 /* v Component downsampled by 2 */, vByteStride, vPixelStride,
-                    inputHorizontalOffset / 2, inputVerticalOffset / 2);
-
-            // Parametrize the circle boundaries w.r.t. the y component.
-            // Find the subsequence of pixels we need for each horizontal raster
-            // line.
-            int circleHalfWidth0 =
-                    (int) (Math.sqrt((float) (r * r - (j - centerY) * (j - centerY))) + 0.5f);
-            int circleMin0 = centerX - (circleHalfWidth0);
-            int circleMax0 = centerX + circleHalfWidth0;
-            int circleHalfWidth1 = (int) (Math.sqrt((float) (r * r - (j + 1 - centerY)
-                    * (j + 1 - centerY))) + 0.5f);
-            int circleMin1 = centerX - (circleHalfWidth1);
-            int circleMax1 = centerX + circleHalfWidth1;
-
-            // Take in horizontal lines by factor of two because of the u/v
-            // component subsample
-            // and everything as 2x2 blocks.
-            for (int i = inscribedXMin; i < inscribedXMax; i += 2, offsetY += 2 * yPixelStride,
-                    offsetColor += 2, offsetU += uPixelStride, offsetV += vPixelStride) {
-                // Note i and j are in terms of pixels of the subsampled image
-                // offsetY, offsetU, and offsetV are in terms of bytes of the
-                // image
-                // offsetColor, output_pixel stride are in terms of the packed
-                // output image
-                if ((i > circleMax0 && i > circleMax1) || (i + 1 < circleMin0 && i < circleMin1)) {
-                    colors[offsetColor] = OUT_OF_BOUNDS_COLOR;
-                    colors[offsetColor + 1] = OUT_OF_BOUNDS_COLOR;
-                    colors[offsetColor + outputPixelStride] = OUT_OF_BOUNDS_COLOR;
-                    colors[offsetColor + outputPixelStride + 1] = OUT_OF_BOUNDS_COLOR;
-                    continue;
-                }
-
-                // calculate the RGB component of the u/v channels and use it
-                // for all pixels in the 2x2 block
-                int u = (int) (bufU.get(offsetU) & 255) - 128;
-                int v = (int) (bufV.get(offsetV) & 255) - 128;
-                int redDiff = (v * V_FACTOR_FOR_R) >> SHIFT_APPROXIMATION;
-                int greenDiff =
-                        ((u * U_FACTOR_FOR_G + v * V_FACTOR_FOR_G) >> SHIFT_APPROXIMATION);
-                int blueDiff = (u * U_FACTOR_FOR_B) >> SHIFT_APPROXIMATION;
-
-                if (i > circleMax0 || i < circleMin0) {
-                    colors[offsetColor] = OUT_OF_BOUNDS_COLOR;
-                } else {
-                    // Do a little alpha feathering on the edges
-                    int alpha00 = (i == circleMax0 || i == circleMin0) ? (128 << 24) : (255 << 24);
-
-                    int y00 = (int) (buf0.get(offsetY) & 255);
-
-                    int green00 = y00 + greenDiff;
-                    int blue00 = y00 + blueDiff;
-                    int red00 = y00 + redDiff;
-
-                    // Get the railing correct
-                    if (green00 < 0) {
-                        green00 = 0;
-                    }
-                    if (red00 < 0) {
-                        red00 = 0;
-                    }
-                    if (blue00 < 0) {
-                        blue00 = 0;
-                    }
-
-                    if (green00 > 255) {
-                        green00 = 255;
-                    }
-                    if (red00 > 255) {
-                        red00 = 255;
-                    }
-                    if (blue00 > 255) {
-                        blue00 = 255;
-                    }
-
-                    colors[offsetColor] = (red00 & 255) << 16 | (green00 & 255) << 8
-                            | (blue00 & 255) | alpha00;
-                }
-
-                if (i + 1 > circleMax0 || i + 1 < circleMin0) {
-                    colors[offsetColor + 1] = OUT_OF_BOUNDS_COLOR;
-                } else {
-                    int alpha01 = ((i + 1) == circleMax0 || (i + 1) == circleMin0) ? (128 << 24)
-                            : (255 << 24);
-                    int y01 = (int) (buf0.get(offsetY + yPixelStride) & 255);
-                    int green01 = y01 + greenDiff;
-                    int blue01 = y01 + blueDiff;
-                    int red01 = y01 + redDiff;
-
-                    // Get the railing correct
-                    if (green01 < 0) {
-                        green01 = 0;
-                    }
-                    if (red01 < 0) {
-                        red01 = 0;
-                    }
-                    if (blue01 < 0) {
-                        blue01 = 0;
-                    }
-
-                    if (green01 > 255) {
-                        green01 = 255;
-                    }
-                    if (red01 > 255) {
-                        red01 = 255;
-                    }
-                    if (blue01 > 255) {
-                        blue01 = 255;
-                    }
-                    colors[offsetColor + 1] = (red01 & 255) << 16 | (green01 & 255) << 8
-                            | (blue01 & 255) | alpha01;
-                }
-
-                if (i > circleMax1 || i < circleMin1) {
-                    colors[offsetColor + outputPixelStride] = OUT_OF_BOUNDS_COLOR;
-                } else {
-                    int alpha10 = (i == circleMax1 || i == circleMin1) ? (128 << 24) : (255 << 24);
-                    int y10 = (int) (buf0.get(offsetY + yByteStride) & 255);
-                    int green10 = y10 + greenDiff;
-                    int blue10 = y10 + blueDiff;
-                    int red10 = y10 + redDiff;
-
-                    // Get the railing correct
-                    if (green10 < 0) {
-                        green10 = 0;
-                    }
-                    if (red10 < 0) {
-                        red10 = 0;
-                    }
-                    if (blue10 < 0) {
-                        blue10 = 0;
-                    }
-                    if (green10 > 255) {
-                        green10 = 255;
-                    }
-                    if (red10 > 255) {
-                        red10 = 255;
-                    }
-                    if (blue10 > 255) {
-                        blue10 = 255;
-                    }
-
-                    colors[offsetColor + outputPixelStride] = (red10 & 255) << 16
-                            | (green10 & 255) << 8 | (blue10 & 255) | alpha10;
-                }
-
-                if (i + 1 > circleMax1 || i + 1 < circleMin1) {
-                    colors[offsetColor + outputPixelStride + 1] = OUT_OF_BOUNDS_COLOR;
-                } else {
-                    int alpha11 = ((i + 1) == circleMax1 || (i + 1) == circleMin1) ? (128 << 24)
-                            : (255 << 24);
-                    int y11 = (int) (buf0.get(offsetY + yByteStride + yPixelStride) & 255);
-                    int green11 = y11 + greenDiff;
-                    int blue11 = y11 + blueDiff;
-                    int red11 = y11 + redDiff;
-
-                    // Get the railing correct
-                    if (green11 < 0) {
-                        green11 = 0;
-                    }
-                    if (red11 < 0) {
-                        red11 = 0;
-                    }
-                    if (blue11 < 0) {
-                        blue11 = 0;
-                    }
-
-                    if (green11 > 255) {
-                        green11 = 255;
-                    }
-
-                    if (red11 > 255) {
-                        red11 = 255;
-                    }
-                    if (blue11 > 255) {
-                        blue11 = 255;
-                    }
-                    colors[offsetColor + outputPixelStride + 1] = (red11 & 255) << 16
-                            | (green11 & 255) << 8 | (blue11 & 255) | alpha11;
-                }
-
-            }
-        }
-        logWrapper("TIMER_END Starting Native Java YUV420-to-RGB Circular Conversion");
-
-        return colors;
+        YuvToRgbPreviewKernel.Params params = createKernelParams(planeList, subsample,
+                inputHorizontalOffset, inputVerticalOffset, inscribedXMin, inscribedXMax,
+                inscribedYMin, inscribedYMax, r * 2);
+        params.circular = true;
+        params.centerX = w / 2;
+        params.centerY = h / 2;
+        params.radius = r;
+        return params;
     }
 
     /**
@@ -546,27 +456,44 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
                     + ") in YUV Image Object");
         }
 
+        int outputWidth = crop.width() / subsample;
+        int outputHeight = crop.height() / subsample;
+        YuvToRgbPreviewKernel.Params params =
+                createSubSampleParams(planeList, crop, subsample, enableSquareInscribe);
+        final int len;
+        if (enableSquareInscribe) {
+            len = params.outputPixelStride * params.outputPixelStride;
+        } else {
+            len = outputWidth * outputHeight;
+        }
+        int[] colors = acquireColorArray(len);
+
+        logWrapper("TIMER_BEGIN Starting Native Java YUV420-to-RGB Rectangular Conversion");
+        logWrapper("\t Y-Plane Size=" + outputWidth + "x" + outputHeight);
+        logWrapper("\t U-Plane Size=" + planeList.get(1).getRowStride() + " Pixel Stride="
+                + planeList.get(1).getPixelStride());
+        logWrapper("\t V-Plane Size=" + planeList.get(2).getRowStride() + " Pixel Stride="
+                + planeList.get(2).getPixelStride());
+        YuvToRgbPreviewKernel.convert(params, colors);
+        logWrapper("TIMER_END Starting Native Java YUV420-to-RGB Rectangular Conversion");
+
+        return colors;
+    }
+
+    /**
+     * Sets up the kernel to subsample the given safe crop of an image, as
+     * colorSubSampleFromYuvImage does.
+     */
+    static YuvToRgbPreviewKernel.Params createSubSampleParams(
+            List<ImageProxy.Plane> planeList, Rect crop, int subsample,
+            boolean enableSquareInscribe) {
         int inputWidth = crop.width();
         int inputHeight = crop.height();
         int outputWidth = inputWidth / subsample;
         int outputHeight = inputHeight / subsample;
 
-        // Set up input read boundaries.
-
-        ByteBuffer bufY = planeList.get(0).getBuffer();
-        ByteBuffer bufU = planeList.get(1).getBuffer(); // Downsampled by 2
-        ByteBuffer bufV = planeList.get(2).getBuffer(); // Downsampled by 2
-        int yByteStride = planeList.get(0).getRowStride() * subsample;
-        int uByteStride = planeList.get(1).getRowStride() * subsample;
-        int vByteStride = planeList.get(2).getRowStride() * subsample;
-        int yPixelStride = planeList.get(0).getPixelStride() * subsample;
-        int uPixelStride = planeList.get(1).getPixelStride() * subsample;
-        int vPixelStride = planeList.get(2).getPixelStride() * subsample;
-
-
         // Set up default input read boundaries.
         final int outputPixelStride;
-        final int len;
         final int inscribedXMin;
         final int inscribedXMax;
         final int inscribedYMin;
@@ -576,7 +503,6 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
 
         if (enableSquareInscribe) {
             int r = inscribedCircleRadius(outputWidth, outputHeight);
-            len = r * r * 4;
             outputPixelStride = r * 2;
 
             if (outputWidth > outputHeight) {
@@ -594,180 +520,15 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
             }
         } else {
             outputPixelStride = outputWidth;
-            len = outputWidth * outputHeight;
             inscribedXMin = 0;
             inscribedXMax = quantizeBy2(outputWidth);
             inscribedYMin = 0;
             inscribedYMax = quantizeBy2(outputHeight);
         }
 
-        int[] colors = new int[len];
-        int alpha = 255 << 24;
-
-        logWrapper("TIMER_BEGIN Starting Native Java YUV420-to-RGB Rectangular Conversion");
-        logWrapper("\t Y-Plane Size=" + outputWidth + "x" + outputHeight);
-        logWrapper("\t U-Plane Size=" + planeList.get(1).getRowStride() + " Pixel Stride="
-                + planeList.get(1).getPixelStride());
-        logWrapper("\t V-Plane Size=" + planeList.get(2).getRowStride() + " Pixel Stride="
-                + planeList.get(2).getPixelStride());
-        // Take in vertical lines by factor of two because of the u/v component
-        // subsample
-        for (int j = inscribedYMin; j < inscribedYMax; j += 2) {
-            int offsetColor = (j - inscribedYMin) * (outputPixelStride);
-            int offsetY = calculateMemoryOffsetFromPixelOffsets(inscribedXMin, j, subsample,
-                    1 /* YComponent */, yByteStride, yPixelStride, inputHorizontalOffset,
-                    inputVerticalOffset);
-            int offsetU = calculateMemoryOffsetFromPixelOffsets(inscribedXMin, j, subsample,
-                    2 /* U Component downsampled by 2 */, uByteStride, uPixelStride,
-                    inputHorizontalOffset / 2, inputVerticalOffset / 2);
-            int offsetV = calculateMemoryOffsetFromPixelOffsets(inscribedXMin, j, subsample,
-                    2 /* v Component downsampled by 2 */, vByteStride, vPixelStride,
-                    inputHorizontalOffset / 2, inputVerticalOffset / 2);
-
-            // Take in horizontal lines by factor of two because of the u/v
-            // component subsample
-            // and everything as 2x2 blocks.
-            for (int i = inscribedXMin; i < inscribedXMax; i += 2, offsetY += 2 * yPixelStride,
-                    offsetColor += 2, offsetU += uPixelStride, offsetV += vPixelStride) {
-                // Note i and j are in terms of pixels of the subsampled image
-                // offsetY, offsetU, and offsetV are in terms of bytes of the
-                // image
-                // offsetColor, output_pixel stride are in terms of the packed
-                // output image
-
-                // calculate the RGB component of the u/v channels and use it
-                // for all pixels in the 2x2 block
-                int u = (int) (bufU.get(offsetU) & 255) - 128;
-                int v = (int) (bufV.get(offsetV) & 255) - 128;
-                int redDiff = (v * V_FACTOR_FOR_R) >> SHIFT_APPROXIMATION;
-                int greenDiff = ((u * U_FACTOR_FOR_G + v * V_FACTOR_FOR_G) >> SHIFT_APPROXIMATION);
-                int blueDiff = (u * U_FACTOR_FOR_B) >> SHIFT_APPROXIMATION;
-
-                // Do a little alpha feathering on the edges
-                int alpha00 = (255 << 24);
-
-                int y00 = (int) (bufY.get(offsetY) & 255);
-
-                int green00 = y00 + greenDiff;
-                int blue00 = y00 + blueDiff;
-                int red00 = y00 + redDiff;
-
-                // Get the railing correct
-                if (green00 < 0) {
-                    green00 = 0;
-                }
-                if (red00 < 0) {
-                    red00 = 0;
-                }
-                if (blue00 < 0) {
-                    blue00 = 0;
-                }
-
-                if (green00 > 255) {
-                    green00 = 255;
-                }
-                if (red00 > 255) {
-                    red00 = 255;
-                }
-                if (blue00 > 255) {
-                    blue00 = 255;
-                }
-
-                colors[offsetColor] = (red00 & 255) << 16 | (green00 & 255) << 8
-                        | (blue00 & 255) | alpha00;
-
-                int alpha01 = (255 << 24);
-                int y01 = (int) (bufY.get(offsetY + yPixelStride) & 255);
-                int green01 = y01 + greenDiff;
-                int blue01 = y01 + blueDiff;
-                int red01 = y01 + redDiff;
-
-                // Get the railing correct
-                if (green01 < 0) {
-                    green01 = 0;
-                }
-                if (red01 < 0) {
-                    red01 = 0;
-                }
-                if (blue01 < 0) {
-                    blue01 = 0;
-                }
-
-                if (green01 > 255) {
-                    green01 = 255;
-                }
-                if (red01 > 255) {
-                    red01 = 255;
-                }
-                if (blue01 > 255) {
-                    blue01 = 255;
-                }
-                colors[offsetColor + 1] = (red01 & 255) << 16 | (green01 & 255) << 8
-                        | (blue01 & 255) | alpha01;
-
-                int alpha10 = (255 << 24);
-                int y10 = (int) (bufY.get(offsetY + yByteStride) & 255);
-                int green10 = y10 + greenDiff;
-                int blue10 = y10 + blueDiff;
-                int red10 = y10 + redDiff;
-
-                // Get the railing correct
-                if (green10 < 0) {
-                    green10 = 0;
-                }
-                if (red10 < 0) {
-                    red10 = 0;
-                }
-                if (blue10 < 0) {
-                    blue10 = 0;
-                }
-                if (green10 > 255) {
-                    green10 = 255;
-                }
-                if (red10 > 255) {
-                    red10 = 255;
-                }
-                if (blue10 > 255) {
-                    blue10 = 255;
-                }
-
-                colors[offsetColor + outputPixelStride] = (red10 & 255) << 16
-                        | (green10 & 255) << 8 | (blue10 & 255) | alpha10;
-
-                int alpha11 = (255 << 24);
-                int y11 = (int) (bufY.get(offsetY + yByteStride + yPixelStride) & 255);
-                int green11 = y11 + greenDiff;
-                int blue11 = y11 + blueDiff;
-                int red11 = y11 + redDiff;
-
-                // Get the railing correct
-                if (green11 < 0) {
-                    green11 = 0;
-                }
-                if (red11 < 0) {
-                    red11 = 0;
-                }
-                if (blue11 < 0) {
-                    blue11 = 0;
-                }
-
-                if (green11 > 255) {
-                    green11 = 255;
-                }
-
-                if (red11 > 255) {
-                    red11 = 255;
-                }
-                if (blue11 > 255) {
-                    blue11 = 255;
-                }
-                colors[offsetColor + outputPixelStride + 1] = (red11 & 255) << 16
-                        | (green11 & 255) << 8 | (blue11 & 255) | alpha11;
-            }
-        }
-        logWrapper("TIMER_END Starting Native Java YUV420-to-RGB Rectangular Conversion");
-
-        return colors;
+        return createKernelParams(planeList, subsample, inputHorizontalOffset,
+                inputVerticalOffset, inscribedXMin, inscribedXMax, inscribedYMin, inscribedYMax,
+                outputPixelStride);
     }
 
     /**
@@ -785,7 +546,7 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
         int h = img.getHeight() / subsample;
         int r = inscribedCircleRadius(w, h);
         int len = r * r * 4;
-        int[] colors = new int[len];
+        int[] colors = acquireColorArray(len);
 
         // Make a fun test pattern.
         for (int i = 0; i < len; i++) {
@@ -887,7 +648,13 @@ public class TaskConvertImageToRGBPreview extends TaskImageContainer {
             // Signal backend that reference has been released
             mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
         }
-        onPreviewDone(resultImage, inputImage, convertedImage, TaskInfo.Destination.FAST_THUMBNAIL);
+
+        try {
+            onPreviewDone(resultImage, inputImage, convertedImage,
+                    TaskInfo.Destination.FAST_THUMBNAIL);
+        } finally {
+            releaseColorArray();
+        }
     }
 
     /**
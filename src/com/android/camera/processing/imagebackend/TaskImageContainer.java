@@ -22,6 +22,7 @@ import com.android.camera.debug.Log;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 import com.android.camera.session.CaptureSession;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
@@ -47,14 +48,44 @@ public abstract class TaskImageContainer implements Runnable {
     }
 
     /**
-     * Simple helper class to encapsulate compressed payloads. Could be more
-     * complex in the future.
+     * Simple helper class to encapsulate compressed payloads. The data is held
+     * either in an array or in a (possibly direct) buffer, such as the plane
+     * of a JPEG image passed through from the camera. Buffer-backed payloads
+     * are only valid for the duration of the listener callback.
      */
     static public class CompressedPayload {
-        final public byte[] data;
+        private final ByteBuffer mBuffer;
+        private byte[] mData;
 
         CompressedPayload(byte[] passData) {
-            data = passData;
+            mData = passData;
+            mBuffer = ByteBuffer.wrap(passData);
+        }
+
+        CompressedPayload(ByteBuffer passData) {
+            mData = null;
+            mBuffer = passData.duplicate();
+        }
+
+        /**
+         * @return A read-only view of the compressed data, which does not
+         *         copy it.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return The compressed data as an array. If the payload is backed by
+         *         a buffer, the data is copied the first time this is called,
+         *         so prefer {@link #getBuffer} where an array is not needed.
+         */
+        public synchronized byte[] getData() {
+            if (mData == null) {
+                mData = new byte[mBuffer.remaining()];
+                mBuffer.duplicate().get(mData);
+            }
+            return mData;
         }
     }
 
@@ -214,6 +214,19 @@ public abstract class TaskJpegEncode extends TaskImageContainer {
         listener.onResultCompressed(job, new CompressedPayload(data));
     }
 
+    /**
+     * Like {@link #onJpegEncodeDone(long, TaskImage, TaskImage, byte[],
+     * TaskInfo.Destination)}, but passes the JPEG data in a (possibly direct)
+     * buffer without copying it. The buffer only needs to stay valid until
+     * this returns.
+     */
+    public void onJpegEncodeDone(long id, TaskImage input, TaskImage result, ByteBuffer data,
+            TaskInfo.Destination aDestination) {
+        TaskInfo job = new TaskInfo(id, input, result, aDestination);
+        final ImageProcessorListener listener = mImageTaskManager.getProxyListener();
+        listener.onResultCompressed(job, new CompressedPayload(data));
+    }
+
     /**
      * Wraps the onResultUri listener for ease of use.
      *
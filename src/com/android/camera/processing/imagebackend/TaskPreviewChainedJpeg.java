@@ -25,6 +25,8 @@ import com.android.camera.util.Size;
 import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
 
+import javax.annotation.Nullable;
+
 /**
  * Implements the conversion of a YUV_420_888 image to subsampled image
  * inscribed in a circle.
@@ -41,15 +43,20 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
      *            and task spawning
      * @param captureSession Capture session that bound to this image
      * @param targetSize Approximate viewable pixel demensions of the desired
-     *            preview Image     */
+     *            preview Image
+     * @param byteBufferResourcePool pool for the chained JPEG output buffer
+     * @param colorArrayPool pool for the preview color array, or null to
+     *            allocate a new array
+     */
     TaskPreviewChainedJpeg(ImageToProcess image,
             Executor executor,
             ImageTaskManager imageTaskManager,
             CaptureSession captureSession,
             Size targetSize,
-            LruResourcePool<Integer, ByteBuffer> byteBufferResourcePool) {
+            LruResourcePool<Integer, ByteBuffer> byteBufferResourcePool,
+            @Nullable LruResourcePool<Integer, int[]> colorArrayPool) {
         super(image, executor, imageTaskManager, ProcessingPriority.AVERAGE, captureSession,
-                targetSize , ThumbnailShape.MAINTAIN_ASPECT_NO_INSET);
+                targetSize , ThumbnailShape.MAINTAIN_ASPECT_NO_INSET, colorArrayPool);
         mByteBufferDirectPool = byteBufferResourcePool;
     }
 
@@ -88,8 +95,12 @@ public class TaskPreviewChainedJpeg extends TaskConvertImageToRGBPreview {
             mImageTaskManager.releaseSemaphoreReference(img, mExecutor);
         }
 
-        onPreviewDone(resultImage, inputImage, convertedImage,
-                TaskInfo.Destination.INTERMEDIATE_THUMBNAIL);
+        try {
+            onPreviewDone(resultImage, inputImage, convertedImage,
+                    TaskInfo.Destination.INTERMEDIATE_THUMBNAIL);
+        } finally {
+            releaseColorArray();
+        }
     }
 
 
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.os.Process;
+
+import com.android.camera.async.AndroidPriorityThread;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Row-band parallel YUV420 to ARGB_8888 subsampling kernel used by
+ * {@link TaskConvertImageToRGBPreview}.
+ * <p>
+ * The output is split into horizontal bands of 2-row blocks that are
+ * converted concurrently by the calling thread and a small shared pool of
+ * helper threads. Each source row needed by a block row is copied in bulk into a per-thread scratch array, and the
+ * inner conversion loop clamps without branches. Circular thumbnails are
+ * converted as squares and then masked per row, using the exact boundary
+ * rules of the original scalar implementation, so the output is bit-identical
+ * to it.
+ */
+final class YuvToRgbPreviewKernel {
+    private static final int OPAQUE_ALPHA = 255 << 24;
+    private static final int FEATHERED_ALPHA = 128 << 24;
+    private static final int RGB_MASK = 0x00FFFFFF;
+
+    /** Outputs smaller than this are converted on the calling thread. */
+    private static final int PARALLEL_THRESHOLD_PIXELS = 256 * 256;
+    /** Minimum number of 2-row blocks handled by one band. */
+    private static final int MIN_BLOCK_ROWS_PER_BAND = 8;
+
+    /**
+     * The most threads the pool adds to the calling thread. The caller is
+     * already one of the ProcessingPriorityScheduler workers, which run one
+     * per core, so the kernel only borrows a couple more.
+     */
+    private static final int MAX_HELPER_THREADS = 2;
+
+    private static final int HELPER_THREADS = Math.max(1,
+            Math.min(MAX_HELPER_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+
+    /** Idle helper threads exit after this long. */
+    private static final long HELPER_KEEP_ALIVE_SECONDS = 10;
+
+    private static final Executor sHelperExecutor = createHelperExecutor();
+
+    /** Per-thread row scratch buffers: Y row 0, Y row 1, U, V. */
+    private static final ThreadLocal<byte[][]> sScratch = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[4][0];
+        }
+    };
+
+    /**
+     * Describes one conversion. All strides are in bytes and already
+     * multiplied by the subsample factor; all bounds are in output pixels.
+     */
+    static final class Params {
+        ByteBuffer bufY;
+        ByteBuffer bufU;
+        ByteBuffer bufV;
+        int yByteStride;
+        int uByteStride;
+        int vByteStride;
+        int yPixelStride;
+        int uPixelStride;
+        int vPixelStride;
+        int subsample;
+        int inputHorizontalOffset;
+        int inputVerticalOffset;
+        int inscribedXMin;
+        int inscribedXMax;
+        int inscribedYMin;
+        int inscribedYMax;
+        int outputPixelStride;
+
+        /** Whether to mask the output to an inscribed, feathered circle. */
+        boolean circular;
+        int centerX;
+        int centerY;
+        int radius;
+    }
+
+    private YuvToRgbPreviewKernel() {
+    }
+
+    /**
+     * Converts the image described by params into colors.
+     */
+    static void convert(Params params, int[] colors) {
+        int blockRows = Math.max(0, (params.inscribedYMax - params.inscribedYMin + 1) / 2);
+        int outputPixels = blockRows * 2
+                * Math.max(0, params.inscribedXMax - params.inscribedXMin);
+        if (outputPixels < PARALLEL_THRESHOLD_PIXELS
+                || blockRows < (HELPER_THREADS + 1) * MIN_BLOCK_ROWS_PER_BAND) {
+            convertBand(params, colors, 0, blockRows);
+        } else {
+            convertInBands(params, colors, blockRows);
+        }
+    }
+
+    /**
+     * Splits the block rows into one band per helper thread plus one for the
+     * calling thread, which converts its band instead of idling until the
+     * helpers are done.
+     */
+    private static void convertInBands(final Params params, final int[] colors,
+            int blockRows) {
+        int bands = HELPER_THREADS + 1;
+        final CountDownLatch helpersDone = new CountDownLatch(HELPER_THREADS);
+        final AtomicReference<RuntimeException> helperFailure = new AtomicReference<>();
+        for (int band = 1; band < bands; band++) {
+            final int firstBlockRow = blockRows * band / bands;
+            final int endBlockRow = blockRows * (band + 1) / bands;
+            sHelperExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        convertBand(params, colors, firstBlockRow, endBlockRow);
+                    } catch (RuntimeException e) {
+                        helperFailure.compareAndSet(null, e);
+                    } finally {
+                        helpersDone.countDown();
+                    }
+                }
+            });
+        }
+        convertBand(params, colors, 0, blockRows / bands);
+
+        // The helpers write into colors, so they must be done before it is
+        // handed back, even if this thread is interrupted.
+        boolean interrupted = false;
+        while (true) {
+            try {
+                helpersDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (helperFailure.get() != null) {
+            throw helperFailure.get();
+        }
+    }
+
+    private static Executor createHelperExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(HELPER_THREADS, HELPER_THREADS,
+                HELPER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new AndroidPriorityThread(
+                                Process.THREAD_PRIORITY_DEFAULT, runnable);
+                        thread.setName("YuvToRgbKernel");
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Converts the 2-row blocks [firstBlockRow, endBlockRow).
+     */
+    private static void convertBand(Params p, int[] colors, int firstBlockRow,
+            int endBlockRow) {
+        // Each band reads through its own views, since bulk gets move the
+        // buffer position.
+        ByteBuffer bufY = p.bufY.duplicate();
+        ByteBuffer bufU = p.bufU.duplicate();
+        ByteBuffer bufV = p.bufV.duplicate();
+
+        int blocks = Math.max(0, (p.inscribedXMax - p.inscribedXMin + 1) / 2);
+        if (blocks == 0) {
+            return;
+        }
+        int ySpan = (2 * blocks - 1) * p.yPixelStride + 1;
+        int uSpan = (blocks - 1) * p.uPixelStride + 1;
+        int vSpan = (blocks - 1) * p.vPixelStride + 1;
+
+        byte[][] scratch = sScratch.get();
+        if (scratch[0].length < ySpan) {
+            scratch[0] = new byte[ySpan];
+            scratch[1] = new byte[ySpan];
+        }
+        if (scratch[2].length < uSpan) {
+            scratch[2] = new byte[uSpan];
+        }
+        if (scratch[3].length < vSpan) {
+            scratch[3] = new byte[vSpan];
+        }
+        byte[] y0 = scratch[0];
+        byte[] y1 = scratch[1];
+        byte[] u = scratch[2];
+        byte[] v = scratch[3];
+
+        final int yPixelStride = p.yPixelStride;
+        final int uPixelStride = p.uPixelStride;
+        final int vPixelStride = p.vPixelStride;
+        final int outputPixelStride = p.outputPixelStride;
+
+        for (int blockRow = firstBlockRow; blockRow < endBlockRow; blockRow++) {
+            int j = p.inscribedYMin + 2 * blockRow;
+            int offsetColor = (j - p.inscribedYMin) * outputPixelStride;
+            int offsetY = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    p.inscribedXMin, j, p.subsample, 1 /* YComponent */, p.yByteStride,
+                    yPixelStride, p.inputHorizontalOffset, p.inputVerticalOffset);
+            int offsetU = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    p.inscribedXMin, j, p.subsample, 2 /* U Component downsampled by 2 */,
+                    p.uByteStride, uPixelStride, p.inputHorizontalOffset / 2,
+                    p.inputVerticalOffset / 2);
+            int offsetV = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    p.inscribedXMin, j, p.subsample, 2 /* v Component downsampled by 2 */,
+                    p.vByteStride, vPixelStride, p.inputHorizontalOffset / 2,
+                    p.inputVerticalOffset / 2);
+
+            bufY.position(offsetY);
+            bufY.get(y0, 0, ySpan);
+            bufY.position(offsetY + p.yByteStride);
+            bufY.get(y1, 0, ySpan);
+            bufU.position(offsetU);
+            bufU.get(u, 0, uSpan);
+            bufV.position(offsetV);
+            bufV.get(v, 0, vSpan);
+
+            int row0 = offsetColor;
+            int row1 = offsetColor + outputPixelStride;
+            for (int b = 0, iy = 0, iu = 0, iv = 0, out = 0; b < blocks;
+                    b++, iy += 2 * yPixelStride, iu += uPixelStride, iv += vPixelStride,
+                    out += 2) {
+                // calculate the RGB component of the u/v channels and use it
+                // for all pixels in the 2x2 block
+                int uValue = (u[iu] & 255) - 128;
+                int vValue = (v[iv] & 255) - 128;
+                int redDiff = (vValue * TaskConvertImageToRGBPreview.V_FACTOR_FOR_R)
+                        >> TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+                int greenDiff = (uValue * TaskConvertImageToRGBPreview.U_FACTOR_FOR_G
+                        + vValue * TaskConvertImageToRGBPreview.V_FACTOR_FOR_G)
+                        >> TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+                int blueDiff = (uValue * TaskConvertImageToRGBPreview.U_FACTOR_FOR_B)
+                        >> TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+
+                colors[row0 + out] = toArgb(y0[iy] & 255, redDiff, greenDiff, blueDiff);
+                colors[row0 + out + 1] = toArgb(y0[iy + yPixelStride] & 255, redDiff,
+                        greenDiff, blueDiff);
+                colors[row1 + out] = toArgb(y1[iy] & 255, redDiff, greenDiff, blueDiff);
+                colors[row1 + out + 1] = toArgb(y1[iy + yPixelStride] & 255, redDiff,
+                        greenDiff, blueDiff);
+            }
+
+            if (p.circular) {
+                maskCircleRows(p, colors, j, row0, row1, 2 * blocks);
+            }
+        }
+    }
+
+    /**
+     * Applies the inscribed circle to one 2-row block of the output. The
+     * scalar implementation skipped a whole 2x2 block when it was outside the
+     * circle in both rows, which can drop the first in-circle pixel of the
+     * second row; that rule is reproduced here.
+     */
+    private static void maskCircleRows(Params p, int[] colors, int j, int row0, int row1,
+            int width) {
+        int r = p.radius;
+        int centerX = p.centerX;
+        int centerY = p.centerY;
+        int circleHalfWidth0 =
+                (int) (Math.sqrt((float) (r * r - (j - centerY) * (j - centerY))) + 0.5f);
+        int circleMin0 = centerX - (circleHalfWidth0);
+        int circleMax0 = centerX + circleHalfWidth0;
+        int circleHalfWidth1 = (int) (Math.sqrt((float) (r * r - (j + 1 - centerY)
+                * (j + 1 - centerY))) + 0.5f);
+        int circleMin1 = centerX - (circleHalfWidth1);
+        int circleMax1 = centerX + circleHalfWidth1;
+
+        int firstVisible1 = circleMin1;
+        if (((circleMin1 - p.inscribedXMin) & 1) == 1 && circleMin1 < circleMin0) {
+            firstVisible1++;
+        }
+
+        maskRow(colors, row0, width, p.inscribedXMin, circleMin0, circleMax0, circleMin0);
+        maskRow(colors, row1, width, p.inscribedXMin, circleMin1, circleMax1, firstVisible1);
+    }
+
+    /**
+     * Clears all pixels of an output row outside [firstVisible, circleMax] and
+     * feathers the alpha of the pixels on the circle boundary.
+     */
+    private static void maskRow(int[] colors, int rowOffset, int width, int xMin,
+            int circleMin, int circleMax, int firstVisible) {
+        int lo = clamp(firstVisible - xMin, 0, width);
+        int hi = clamp(circleMax - xMin + 1, lo, width);
+        Arrays.fill(colors, rowOffset, rowOffset + lo,
+                TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR);
+        Arrays.fill(colors, rowOffset + hi, rowOffset + width,
+                TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR);
+
+        int minColumn = circleMin - xMin;
+        if (minColumn >= lo && minColumn < hi) {
+            colors[rowOffset + minColumn] =
+                    (colors[rowOffset + minColumn] & RGB_MASK) | FEATHERED_ALPHA;
+        }
+        int maxColumn = circleMax - xMin;
+        if (maxColumn >= lo && maxColumn < hi) {
+            colors[rowOffset + maxColumn] =
+                    (colors[rowOffset + maxColumn] & RGB_MASK) | FEATHERED_ALPHA;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Packs an opaque pixel, clamping each channel to [0, 255] without
+     * branches.
+     */
+    private static int toArgb(int y, int redDiff, int greenDiff, int blueDiff) {
+        return clampChannel(y + redDiff) << 16 | clampChannel(y + greenDiff) << 8
+                | clampChannel(y + blueDiff) | OPAQUE_ALPHA;
+    }
+
+    private static int clampChannel(int value) {
+        // Negative values become 0, values above 255 become 255.
+        value &= ~(value >> 31);
+        return (value | ((255 - value) >> 31)) & 255;
+    }
+}
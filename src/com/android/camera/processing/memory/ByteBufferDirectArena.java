@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Resource pool for large, directly allocated byte buffers that is bounded by
+ * a byte budget rather than an entry count. The integer key represents the
+ * minimum size of the bytebuffer.
+ * <p>
+ * Requests are rounded up to a size class so that slightly different sizes
+ * (different crops or zoom levels) reuse the same backing allocation. Size
+ * classes are spaced at quarters of a power of two, which bounds the wasted
+ * space to 25% of the request. Callers receive a view of the backing buffer
+ * whose capacity is exactly the requested size.
+ */
+@ThreadSafe
+public final class ByteBufferDirectArena implements LruResourcePool<Integer, ByteBuffer> {
+    /** Requests smaller than this share a single size class. */
+    private static final int MIN_SIZE_CLASS_BYTES = 4 * 1024;
+
+    /** Idle backing buffers, keyed by size class and sized in bytes. */
+    private final LruPool<Integer, ByteBuffer> mLruPool;
+
+    private final AtomicLong mHitCount;
+    private final AtomicLong mMissCount;
+    private final AtomicLong mOutstandingBytes;
+
+    /**
+     * @param budgetBytes the maximum number of bytes held by idle buffers
+     *            in the arena. Buffers handed out to callers do not count
+     *            against this budget.
+     */
+    public ByteBufferDirectArena(int budgetBytes) {
+        Preconditions.checkArgument(budgetBytes > 0);
+
+        mLruPool = new LruPool<>(budgetBytes, new LruPool.Configuration<Integer, ByteBuffer>() {
+            @Override
+            int sizeOf(Integer sizeClass, ByteBuffer buffer) {
+                return buffer.capacity();
+            }
+        });
+        mHitCount = new AtomicLong();
+        mMissCount = new AtomicLong();
+        mOutstandingBytes = new AtomicLong();
+    }
+
+    @Override
+    public Resource<ByteBuffer> acquire(Integer bytes) {
+        Preconditions.checkArgument(bytes >= 0);
+
+        int sizeClass = sizeClassFor(bytes);
+        ByteBuffer backing = mLruPool.acquire(sizeClass);
+        if (backing != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+            backing = ByteBuffer.allocateDirect(sizeClass);
+        }
+        mOutstandingBytes.addAndGet(sizeClass);
+
+        // Reset byte buffer location and limits before handing out the view.
+        backing.clear();
+        backing.limit(bytes);
+        ByteBuffer view = backing.slice();
+        backing.clear();
+
+        return new ArenaResource(this, sizeClass, backing, view);
+    }
+
+    /**
+     * @return the number of acquisitions served by a pooled buffer.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of acquisitions that required a new allocation.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of bytes held by idle buffers in the arena.
+     */
+    public int getResidentBytes() {
+        return mLruPool.getSize();
+    }
+
+    /**
+     * @return the number of bytes held by buffers that are currently acquired
+     *         and not yet closed.
+     */
+    public long getOutstandingBytes() {
+        return mOutstandingBytes.get();
+    }
+
+    /**
+     * @return the maximum number of bytes that idle buffers may hold.
+     */
+    public int getBudgetBytes() {
+        return mLruPool.getMaxSize();
+    }
+
+    /**
+     * Rounds a request up to the next size class.
+     */
+    static int sizeClassFor(int bytes) {
+        if (bytes <= MIN_SIZE_CLASS_BYTES) {
+            return MIN_SIZE_CLASS_BYTES;
+        }
+
+        // Four classes per power of two: p, 1.25p, 1.5p, 1.75p.
+        int step = Integer.highestOneBit(bytes) >>> 2;
+        long rounded = ((long) bytes + step - 1) & ~((long) step - 1);
+        return (int) Math.min(rounded, Integer.MAX_VALUE);
+    }
+
+    private void release(int sizeClass, ByteBuffer backing) {
+        mOutstandingBytes.addAndGet(-sizeClass);
+        backing.clear();
+        mLruPool.add(sizeClass, backing);
+    }
+
+    /**
+     * Returns the backing buffer to the arena when closed. The view handed to
+     * callers must not be used after the resource is closed.
+     */
+    @ThreadSafe
+    private static final class ArenaResource implements Resource<ByteBuffer> {
+        private final Object mLock;
+        private final ByteBufferDirectArena mArena;
+        private final int mSizeClass;
+
+        @GuardedBy("mLock")
+        private ByteBuffer mBacking;
+
+        @GuardedBy("mLock")
+        private ByteBuffer mView;
+
+        public ArenaResource(ByteBufferDirectArena arena, int sizeClass, ByteBuffer backing,
+              ByteBuffer view) {
+            mArena = arena;
+            mSizeClass = sizeClass;
+            mBacking = backing;
+            mView = view;
+
+            mLock = new Object();
+        }
+
+        @Nullable
+        @Override
+        public ByteBuffer get() {
+            synchronized (mLock) {
+                return mView;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                if (mBacking != null) {
+                    mArena.release(mSizeClass, mBacking);
+                    mBacking = null;
+                    mView = null;
+                }
+            }
+        }
+    }
+}
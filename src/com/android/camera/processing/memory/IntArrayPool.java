@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Resource pool for int arrays, such as packed ARGB_8888 preview data, that
+ * is bounded by a byte budget. The integer key is the exact array length,
+ * since preview sizes are stable for a given capture configuration.
+ * <p>
+ * Arrays are zeroed before they are handed out, so callers observe the same
+ * contents they would from a freshly allocated array.
+ */
+@ThreadSafe
+public final class IntArrayPool implements LruResourcePool<Integer, int[]> {
+    private static final int BYTES_PER_INT = 4;
+
+    /** Idle arrays, keyed by length and sized in bytes. */
+    private final LruPool<Integer, int[]> mLruPool;
+
+    private final AtomicLong mHitCount;
+    private final AtomicLong mMissCount;
+
+    /**
+     * @param budgetBytes the maximum number of bytes held by idle arrays in
+     *            the pool. Arrays handed out to callers do not count against
+     *            this budget.
+     */
+    public IntArrayPool(int budgetBytes) {
+        Preconditions.checkArgument(budgetBytes > 0);
+
+        mLruPool = new LruPool<>(budgetBytes, new LruPool.Configuration<Integer, int[]>() {
+            @Override
+            int sizeOf(Integer length, int[] array) {
+                return array.length * BYTES_PER_INT;
+            }
+        });
+        mHitCount = new AtomicLong();
+        mMissCount = new AtomicLong();
+    }
+
+    @Override
+    public Resource<int[]> acquire(Integer length) {
+        Preconditions.checkArgument(length >= 0);
+
+        int[] array = mLruPool.acquire(length);
+        if (array != null) {
+            mHitCount.incrementAndGet();
+            Arrays.fill(array, 0);
+        } else {
+            mMissCount.incrementAndGet();
+            array = new int[length];
+        }
+
+        return new IntArrayResource(this, array);
+    }
+
+    /**
+     * @return the number of acquisitions served by a pooled array.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return the number of acquisitions that required a new allocation. Once
+     *         the pool is warm, this should stop increasing.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return the number of bytes held by idle arrays in the pool.
+     */
+    public int getResidentBytes() {
+        return mLruPool.getSize();
+    }
+
+    private void release(int[] array) {
+        mLruPool.add(array.length, array);
+    }
+
+    /**
+     * Returns the array to the pool when closed. The array must not be used
+     * after the resource is closed.
+     */
+    @ThreadSafe
+    private static final class IntArrayResource implements Resource<int[]> {
+        private final Object mLock;
+        private final IntArrayPool mPool;
+
+        @GuardedBy("mLock")
+        private int[] mArray;
+
+        public IntArrayResource(IntArrayPool pool, int[] array) {
+            mPool = pool;
+            mArray = array;
+
+            mLock = new Object();
+        }
+
+        @Nullable
+        @Override
+        public int[] get() {
+            synchronized (mLock) {
+                return mArray;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (mLock) {
+                if (mArray != null) {
+                    mPool.release(mArray);
+                    mArray = null;
+                }
+            }
+        }
+    }
+}
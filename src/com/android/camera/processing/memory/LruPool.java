@@ -19,8 +19,6 @@ package com.android.camera.processing.memory;
 import com.google.common.base.Preconditions;
 
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -38,12 +36,10 @@ import javax.annotation.concurrent.GuardedBy;
  * This class has multiple moving parts and should only be use to track and
  * reuse objects that are expensive to create or re-create.
  *
- * WARNING:
- * {@link #acquire(TKey)} is currently linear time, pending a better
- * implementation.
- *
- * TODO: Build a constant time acquire(TKey) method implementation.
- *
+ * Entries are tracked by an intrusive doubly linked list in global LRU order,
+ * and each distinct key keeps its own FIFO chain through the same entries, so
+ * {@link #acquire(TKey)}, {@link #add(TKey, TValue)} and eviction are all
+ * constant time.
  */
 public class LruPool<TKey, TValue> {
     public static class Configuration<TKey, TValue> {
@@ -82,20 +78,57 @@ public class LruPool<TKey, TValue> {
         }
     }
 
+    /**
+     * A single pooled value. Each entry is linked into the global LRU list and
+     * into the FIFO chain of the bucket for its key.
+     */
+    private static final class Entry<TKey, TValue> {
+        final TKey key;
+        final TValue value;
+        final int size;
+
+        /** Neighbor that was added more recently, across all keys. */
+        Entry<TKey, TValue> newer;
+        /** Neighbor that was added less recently, across all keys. */
+        Entry<TKey, TValue> older;
+        /** Next entry with the same key that was added more recently. */
+        Entry<TKey, TValue> newerSameKey;
+
+        Entry(TKey key, TValue value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Entries for a single key, from least to most recently added.
+     */
+    private static final class Bucket<TKey, TValue> {
+        Entry<TKey, TValue> oldest;
+        Entry<TKey, TValue> newest;
+    }
+
     private final Object mLock;
 
     /**
-     * Maintains an ordered list of keys by "most recently added". Duplicate
-     * keys can exist in the list.
+     * Most recently added entry in the pool, or null if the pool is empty.
+     */
+    @GuardedBy("mLock")
+    private Entry<TKey, TValue> mNewest;
+
+    /**
+     * Least recently added entry in the pool, and the next one to be evicted,
+     * or null if the pool is empty.
      */
     @GuardedBy("mLock")
-    private final LinkedList<TKey> mLruKeyList;
+    private Entry<TKey, TValue> mOldest;
 
     /**
      * Maintains individual pools for each distinct key type.
      */
     @GuardedBy("mLock")
-    private final HashMap<TKey, Queue<TValue>> mValuePool;
+    private final HashMap<TKey, Bucket<TKey, TValue>> mValuePool;
     private final Configuration<TKey, TValue> mConfiguration;
 
     private final int mMaxSize;
@@ -124,7 +157,6 @@ public class LruPool<TKey, TValue> {
         mConfiguration = configuration;
 
         mLock = new Object();
-        mLruKeyList = new LinkedList<>();
         mValuePool = new HashMap<>();
     }
 
@@ -133,12 +165,6 @@ public class LruPool<TKey, TValue> {
      * method is overridden. If an item cannot be retrieved or created, this method
      * will return null.
      *
-     * WARNING:
-     * This implementation is currently linear time, pending a better
-     * implementation.
-     *
-     * TODO: Build a constant time acquire(TKey) method implementation.
-     *
      * @param key the type of object to retrieve from the pool.
      * @return a value or null if none exists or can be created.
      */
@@ -149,9 +175,11 @@ public class LruPool<TKey, TValue> {
         TValue value;
 
         synchronized (mLock) {
-            if (mLruKeyList.removeLastOccurrence(key)) {
-                value = mValuePool.get(key).remove();
-                mSize -= checkedSizeOf(key, value);
+            Bucket<TKey, TValue> bucket = mValuePool.get(key);
+            if (bucket != null) {
+                Entry<TKey, TValue> entry = unsafeRemoveOldest(bucket);
+                value = entry.value;
+                mSize -= entry.size;
             } else {
                 value = mConfiguration.create(key);
             }
@@ -173,17 +201,29 @@ public class LruPool<TKey, TValue> {
         Preconditions.checkNotNull(value);
 
         synchronized (mLock) {
-            final Queue<TValue> pool;
+            Bucket<TKey, TValue> bucket = mValuePool.get(key);
+            if (bucket == null) {
+                bucket = new Bucket<>();
+                mValuePool.put(key, bucket);
+            }
 
-            mLruKeyList.push(key);
-            if (!mValuePool.containsKey(key)) {
-                pool = new LinkedList<>();
-                mValuePool.put(key, pool);
+            Entry<TKey, TValue> entry = new Entry<>(key, value, checkedSizeOf(key, value));
+            if (bucket.newest == null) {
+                bucket.oldest = entry;
             } else {
-                pool = mValuePool.get(key);
+                bucket.newest.newerSameKey = entry;
             }
-            pool.add(value);
-            mSize += checkedSizeOf(key, value);
+            bucket.newest = entry;
+
+            entry.older = mNewest;
+            if (mNewest == null) {
+                mOldest = entry;
+            } else {
+                mNewest.newer = entry;
+            }
+            mNewest = entry;
+
+            mSize += entry.size;
 
             unsafeTrimToSize(mMaxSize);
         }
@@ -224,29 +264,51 @@ public class LruPool<TKey, TValue> {
 
     @GuardedBy("mLock")
     private void unsafeTrimToSize(int trimToSize) {
-        while (mSize > trimToSize && !mLruKeyList.isEmpty()) {
-            TKey key = mLruKeyList.removeLast();
-            if (key == null) {
-                break;
-            }
-
-            Queue<TValue> pool = mValuePool.get(key);
-            TValue value = pool.remove();
+        while (mSize > trimToSize && mOldest != null) {
+            // The globally oldest entry is always the oldest entry of its key.
+            Entry<TKey, TValue> entry = unsafeRemoveOldest(mValuePool.get(mOldest.key));
 
-            if (pool.size() <= 0) {
-                mValuePool.remove(key);
-            }
-
-            mSize = mSize - checkedSizeOf(key, value);
-            mConfiguration.entryEvicted(key, value);
+            mSize = mSize - entry.size;
+            mConfiguration.entryEvicted(entry.key, entry.value);
         }
 
-        if (mSize < 0 || (mLruKeyList.isEmpty() && mSize != 0)) {
+        if (mSize < 0 || (mOldest == null && mSize != 0)) {
             throw new IllegalStateException("LruPool.sizeOf() is reporting "
                   + "inconsistent results!");
         }
     }
 
+    /**
+     * Unlinks the least recently added entry of a bucket from both the bucket
+     * and the global LRU list, dropping the bucket once it is empty.
+     */
+    @GuardedBy("mLock")
+    private Entry<TKey, TValue> unsafeRemoveOldest(Bucket<TKey, TValue> bucket) {
+        Entry<TKey, TValue> entry = bucket.oldest;
+
+        bucket.oldest = entry.newerSameKey;
+        if (bucket.oldest == null) {
+            bucket.newest = null;
+            mValuePool.remove(entry.key);
+        }
+
+        if (entry.newer == null) {
+            mNewest = entry.older;
+        } else {
+            entry.newer.older = entry.older;
+        }
+        if (entry.older == null) {
+            mOldest = entry.newer;
+        } else {
+            entry.older.newer = entry.newer;
+        }
+
+        entry.newer = null;
+        entry.older = null;
+        entry.newerSameKey = null;
+        return entry;
+    }
+
     private int checkedSizeOf(TKey key, TValue value) {
         int result = mConfiguration.sizeOf(key, value);
         Preconditions.checkArgument(result >= 0, "Size was < 0.");
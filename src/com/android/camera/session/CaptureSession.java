@@ -27,6 +27,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.nio.ByteBuffer;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -233,6 +235,27 @@ public interface CaptureSession {
     public ListenableFuture<Optional<Uri>> saveAndFinish(byte[] data, int width, int height,
             int orientation, ExifInterface exif);
 
+    /**
+     * Like {@link #saveAndFinish(byte[], int, int, int, ExifInterface)}, but
+     * takes JPEG data held in a (possibly direct) buffer, such as the plane of
+     * a JPEG image delivered by the camera. Where possible the data is written
+     * to disk straight from the buffer, without being copied onto the heap.
+     *
+     * @param data the JPEG data, between the buffer's position and limit. It
+     *            must not be modified or released until releaseData has run.
+     * @param width the width of the media item, in pixels.
+     * @param height the height of the media item, in pixels.
+     * @param orientation the orientaiton of the media item, in degrees.
+     * @param exif the EXIF information for this media item.
+     * @param releaseData run exactly once, as soon as the session no longer
+     *            reads data: once it is on disk or has been copied, or the
+     *            save failed. This may be well before the returned future is
+     *            done.
+     * @return A future that will provide the URI once the item is saved.
+     */
+    public ListenableFuture<Optional<Uri>> saveAndFinish(ByteBuffer data, int width, int height,
+            int orientation, ExifInterface exif, Runnable releaseData);
+
     /**
      * Will create and return a {@link StackSaver} for saving out a number of
      * media items to a stack. The name of the stack will be the title of this
@@ -35,6 +35,7 @@ import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 
 import javax.annotation.Nonnull;
@@ -321,24 +322,63 @@ public class CaptureSessionImpl implements CaptureSession {
             try {
                 mContentUri = mPlaceholderManager.finishPlaceholder(mPlaceHolder, mLocation,
                         orientation, exif, data, width, height, FilmstripItemData.MIME_TYPE_JPEG);
-                mSessionNotifier.notifyTaskDone(mUri);
-                futureResult.set(Optional.fromNullable(mUri));
-
-                if (mImageLifecycleListener != null) {
-                    mImageLifecycleListener.onCapturePersisted();
-                }
+                onPlaceholderFinished(futureResult);
             } catch (IOException e) {
-                Log.e(TAG, "Could not write file", e);
-                if (mImageLifecycleListener != null) {
-                    mImageLifecycleListener.onCaptureFailed();
-                }
-                finishWithFailure(-1, true);
-                futureResult.setException(e);
+                onPlaceholderFailed(futureResult, e);
             }
         }
         return futureResult;
     }
 
+    @Override
+    public synchronized ListenableFuture<Optional<Uri>> saveAndFinish(ByteBuffer data, int width,
+            int height, int orientation, ExifInterface exif, Runnable releaseData) {
+        if (mPlaceHolder == null) {
+            // The media saver writes the image in the background, after the
+            // caller may have released the buffer, so it needs its own copy.
+            byte[] jpeg = new byte[data.remaining()];
+            data.duplicate().get(jpeg);
+            releaseData.run();
+            return saveAndFinish(jpeg, width, height, orientation, exif);
+        }
+
+        final SettableFuture<Optional<Uri>> futureResult = SettableFuture.create();
+
+        if (mImageLifecycleListener != null) {
+            mImageLifecycleListener.onProcessingComplete();
+        }
+
+        mIsFinished = true;
+        try {
+            mContentUri = mPlaceholderManager.finishPlaceholder(mPlaceHolder, mLocation,
+                    orientation, exif, data, width, height, FilmstripItemData.MIME_TYPE_JPEG,
+                    releaseData);
+            onPlaceholderFinished(futureResult);
+        } catch (IOException e) {
+            onPlaceholderFailed(futureResult, e);
+        }
+        return futureResult;
+    }
+
+    private void onPlaceholderFinished(SettableFuture<Optional<Uri>> futureResult) {
+        mSessionNotifier.notifyTaskDone(mUri);
+        futureResult.set(Optional.fromNullable(mUri));
+
+        if (mImageLifecycleListener != null) {
+            mImageLifecycleListener.onCapturePersisted();
+        }
+    }
+
+    private void onPlaceholderFailed(SettableFuture<Optional<Uri>> futureResult,
+            IOException e) {
+        Log.e(TAG, "Could not write file", e);
+        if (mImageLifecycleListener != null) {
+            mImageLifecycleListener.onCaptureFailed();
+        }
+        finishWithFailure(-1, true);
+        futureResult.setException(e);
+    }
+
     @Override
     public StackSaver getStackSaver() {
         return mStackSaver;
@@ -26,6 +26,7 @@ import android.net.Uri;
 import android.provider.MediaStore;
 
 import com.android.camera.Storage;
+import com.android.camera.data.CaptureThumbnailCache;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.CameraUtil;
@@ -33,6 +34,7 @@ import com.android.camera.util.Size;
 import com.google.common.base.Optional;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Handles placeholders in filmstrip that show up temporarily while a final
@@ -137,10 +139,42 @@ public class PlaceholderManager {
         Uri resultUri = Storage.updateImage(placeholder.outputUri, mContext.getContentResolver(),
                 placeholder.outputTitle, placeholder.time, location, orientation, exif, jpeg, width,
                 height, mimeType);
+        cacheThumbnail(placeholder, resultUri);
         CameraUtil.broadcastNewPicture(mContext, resultUri);
         return resultUri;
     }
 
+    /**
+     * Like {@link #finishPlaceholder(Placeholder, Location, int, ExifInterface,
+     * byte[], int, int, String)}, but writes the image straight from a
+     * (possibly direct) buffer, which must stay valid until onDataWritten has
+     * run. That happens once the file is written, before the media store is
+     * updated.
+     */
+    public Uri finishPlaceholder(Placeholder placeholder, Location location, int orientation,
+            ExifInterface exif, ByteBuffer jpeg, int width, int height, String mimeType,
+            Runnable onDataWritten) throws IOException {
+        Uri resultUri = Storage.updateImage(placeholder.outputUri, mContext.getContentResolver(),
+                placeholder.outputTitle, placeholder.time, location, orientation, exif, jpeg, width,
+                height, mimeType, onDataWritten);
+        cacheThumbnail(placeholder, resultUri);
+        CameraUtil.broadcastNewPicture(mContext, resultUri);
+        return resultUri;
+    }
+
+    /**
+     * Keeps the placeholder of a finished session as the thumbnail of the
+     * new media item, so the filmstrip doesn't have to decode the full image
+     * before the media store has a thumbnail.
+     */
+    private void cacheThumbnail(Placeholder placeholder, Uri contentUri) {
+        Optional<Bitmap> thumbnail = Storage.getPlaceholderForSession(placeholder.outputUri);
+        if (contentUri != null && thumbnail.isPresent()) {
+            CaptureThumbnailCache.instance(mContext).putInBackground(contentUri,
+                    thumbnail.get());
+        }
+    }
+
     /**
      * This changes the temporary placeholder jpeg without writing it to the media store
      *
@@ -102,6 +102,28 @@ public class JpegUtilNative {
             int cropLeft, int cropTop, int cropRight, int cropBottom,
             int rot90);
 
+    /**
+     * Like {@link #compressJpegFromYUV420pNative}, but compresses horizontal
+     * stripes of the image concurrently. Each stripe is a multiple of 128 rows
+     * high and is compressed with a restart marker after every row of MCUs, so
+     * the stripes can be joined into a single baseline jpeg. Each stripe is
+     * compressed directly into a share of outBuf proportional to its height;
+     * if one does not fit, the whole image is compressed again on the calling
+     * thread.
+     *
+     * @param numThreads the maximum number of threads to use. Images which
+     *            are too small to split are compressed on the calling thread.
+     */
+    private static native int compressJpegFromYUV420pParallelNative(
+            int width, int height,
+            Object yBuf, int yPStride, int yRStride,
+            Object cbBuf, int cbPStride, int cbRStride,
+            Object crBuf, int crPStride, int crRStride,
+            Object outBuf, int outBufCapacity,
+            int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom,
+            int rot90, int numThreads);
+
     /**
      * Copies the Image.Plane specified by planeBuf, pStride, and rStride to the
      * Bitmap.
@@ -143,6 +165,24 @@ public class JpegUtilNative {
             ByteBuffer crBuf, int crPStride, int crRStride,
             ByteBuffer outBuf, int quality,
             int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90) {
+        return compressJpegFromYUV420p(width, height, yBuf, yPStride, yRStride, cbBuf,
+                cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, quality, cropLeft,
+                cropTop, cropRight, cropBottom, rot90, 1);
+    }
+
+    /**
+     * @see JpegUtilNative#compressJpegFromYUV420pParallelNative(int, int,
+     *      Object, int, int, Object, int, int, Object, int, int, Object, int,
+     *      int, int, int, int, int, int, int)
+     */
+    public static int compressJpegFromYUV420p(
+            int width, int height,
+            ByteBuffer yBuf, int yPStride, int yRStride,
+            ByteBuffer cbBuf, int cbPStride, int cbRStride,
+            ByteBuffer crBuf, int crPStride, int crRStride,
+            ByteBuffer outBuf, int quality,
+            int cropLeft, int cropTop, int cropRight, int cropBottom, int rot90,
+            int numThreads) {
         Log.i(TAG, String.format(
                 "Compressing jpeg with size = (%d, %d); " +
                         "y-channel pixel stride = %d; " +
@@ -152,12 +192,19 @@ public class JpegUtilNative {
                         "cr-channel pixel stride = %d; " +
                         "cr-channel row stride =  %d; " +
                         "crop = [(%d, %d) - (%d, %d)]; " +
-                        "rotation = %d * 90 deg. ",
+                        "rotation = %d * 90 deg; " +
+                        "threads = %d. ",
                 width, height, yPStride, yRStride, cbPStride, cbRStride, crPStride, crRStride,
-                cropLeft, cropTop, cropRight, cropBottom, rot90));
-        return compressJpegFromYUV420pNative(width, height, yBuf, yPStride, yRStride, cbBuf,
-                cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, outBuf.capacity(),
-                quality, cropLeft, cropTop, cropRight, cropBottom, rot90);
+                cropLeft, cropTop, cropRight, cropBottom, rot90, numThreads));
+        if (numThreads <= 1) {
+            return compressJpegFromYUV420pNative(width, height, yBuf, yPStride, yRStride,
+                    cbBuf, cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf,
+                    outBuf.capacity(), quality, cropLeft, cropTop, cropRight, cropBottom, rot90);
+        }
+        return compressJpegFromYUV420pParallelNative(width, height, yBuf, yPStride, yRStride,
+                cbBuf, cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf,
+                outBuf.capacity(), quality, cropLeft, cropTop, cropRight, cropBottom, rot90,
+                numThreads);
     }
 
     /**
@@ -209,6 +256,20 @@ public class JpegUtilNative {
      */
     public static int compressJpegFromYUV420Image(ImageProxy img, ByteBuffer outBuf, int quality,
             Rect crop, int degrees) {
+        return compressJpegFromYUV420Image(img, outBuf, quality, crop, degrees, 1);
+    }
+
+    /**
+     * Like {@link #compressJpegFromYUV420Image(ImageProxy, ByteBuffer, int,
+     * Rect, int)}, but compresses horizontal stripes of the image
+     * concurrently.
+     *
+     * @param numThreads The maximum number of threads to compress with. The
+     *            calling thread is one of them.
+     * @return The number of bytes written to outBuf
+     */
+    public static int compressJpegFromYUV420Image(ImageProxy img, ByteBuffer outBuf, int quality,
+            Rect crop, int degrees, int numThreads) {
         Preconditions.checkState((degrees % 90) == 0, "Rotation must be a multiple of 90 degrees," +
                 " was " + degrees);
         // Handle negative angles by converting to positive.
@@ -266,7 +327,7 @@ public class JpegUtilNative {
                 planeBuf[1], pixelStride[1], rowStride[1],
                 planeBuf[2], pixelStride[2], rowStride[2],
                 outBuf, quality, cropLeft, cropTop, cropRight, cropBot,
-                rot90);
+                rot90, numThreads);
 
         outBuf.limit(numBytesWritten);
 
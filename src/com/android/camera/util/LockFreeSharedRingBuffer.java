@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.os.Handler;
+import android.util.Pair;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer.PinStateListener;
+import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A variant of {@link ConcurrentSharedRingBuffer} in which pinning and
+ * releasing elements never takes a lock.
+ * <p>
+ * Elements live in a fixed array of slots. Each slot has an atomic pin count,
+ * which is set to {@link #SLOT_SWAPPING} while the producer swaps the slot's
+ * element, so a slot is either pinned by consumers or being swapped, never
+ * both. Swaps are serialized with each other and with {@link #close},
+ * {@link #reopenBuffer} and {@link #releaseAll}, but never wait on consumers.
+ * It is meant for a single producer thread (e.g. the camera handler) calling
+ * {@link #swapLeast} for every frame while capture threads pin elements.
+ * <p>
+ * As with {@link ConcurrentSharedRingBuffer}, a new element can always be
+ * swapped in: a pin that would leave no unpinned slot is refused.
+ */
+public class LockFreeSharedRingBuffer<E> {
+    /** Pin count of a slot whose element is being swapped out. */
+    private static final int SLOT_SWAPPING = -1;
+
+    private final int mCapacity;
+    /** The keys of the elements, valid for slots below mSize. */
+    private final AtomicLongArray mKeys;
+    /** The elements, valid for slots below mSize. */
+    private final AtomicReferenceArray<E> mElements;
+    /** Number of pins held on each slot, or SLOT_SWAPPING. */
+    private final AtomicIntegerArray mPins;
+    /**
+     * Number of slots that are pinned, or about to be. This never undercounts
+     * the slots with a positive pin count.
+     */
+    private final AtomicInteger mPinnedSlots = new AtomicInteger(0);
+    /** Number of occupied slots. Only grows between close() calls. */
+    private volatile int mSize = 0;
+    /** Number of slots that may never be pinned, in addition to one. */
+    private volatile int mUnpinnedReservedSlotCount = 0;
+    private volatile boolean mClosed = false;
+
+    /** Allow only one swapping or lifecycle operation at a time. */
+    private final Object mSwapLock = new Object();
+    /** Used by close() to wait for outstanding pins to be released. */
+    private final Object mCloseMonitor = new Object();
+
+    private volatile Pair<Handler, PinStateListener> mPinStateListener = null;
+
+    /**
+     * Constructs a new ring buffer with the specified capacity.
+     *
+     * @param capacity the maximum number of elements to store.
+     */
+    public LockFreeSharedRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mCapacity = capacity;
+        mKeys = new AtomicLongArray(capacity);
+        mElements = new AtomicReferenceArray<E>(capacity);
+        mPins = new AtomicIntegerArray(capacity);
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#setListener
+     */
+    public void setListener(Handler handler, PinStateListener listener) {
+        mPinStateListener = Pair.create(handler, listener);
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#swapLeast
+     */
+    public boolean swapLeast(long newKey, SwapTask<E> swapper) {
+        synchronized (mSwapLock) {
+            if (mClosed) {
+                return false;
+            }
+
+            int size = mSize;
+            int existingSlot = findSlot(newKey, size);
+            if (existingSlot >= 0) {
+                swapper.update(mElements.get(existingSlot));
+                return true;
+            }
+
+            if (size < mCapacity) {
+                // If we are under capacity, insert the new element and return.
+                mElements.set(size, swapper.create());
+                mKeys.set(size, newKey);
+                mSize = size + 1;
+
+                // The new slot allows pinning another element.
+                if (getAvailablePins() == 1) {
+                    notifyPinStateChange(true);
+                }
+                return true;
+            }
+
+            long swapKey = swapper.getSwapKey();
+            // If swapKey is same as the inserted key return early.
+            if (swapKey == newKey) {
+                return false;
+            }
+
+            int slot = claimSlotToSwap(swapKey, size);
+            if (slot < 0) {
+                // We can get here if no unpinned element was found.
+                return false;
+            }
+
+            try {
+                mElements.set(slot, swapper.swap(mElements.get(slot)));
+            } finally {
+                // Publish the new key before the slot can be pinned again, so
+                // a consumer racing with the swap sees that its key is gone.
+                mKeys.set(slot, newKey);
+                mPins.set(slot, 0);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#tryPin
+     */
+    public Pair<Long, E> tryPin(long key) {
+        if (mClosed) {
+            return null;
+        }
+        int slot = findSlot(key, mSize);
+        if (slot < 0 || !pinSlot(slot)) {
+            return null;
+        }
+        // The slot may have been swapped between the lookup and the pin, or
+        // the buffer closed, in which case the pin must not be handed out.
+        if (mKeys.get(slot) != key || mClosed) {
+            unpinSlot(slot);
+            return null;
+        }
+        return Pair.create(key, mElements.get(slot));
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#release
+     */
+    public void release(long key) {
+        // Note that this must proceed even if the buffer has been closed.
+        int slot = findSlot(key, mSize);
+        if (slot < 0) {
+            throw new InvalidParameterException(
+                    "No entry found for the given key: " + key + ".");
+        }
+        unpinSlot(slot);
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#tryPinGreatest
+     */
+    public Pair<Long, E> tryPinGreatest() {
+        if (mClosed) {
+            return null;
+        }
+        int size = mSize;
+        if (size == 0) {
+            return null;
+        }
+        long greatest = mKeys.get(0);
+        for (int i = 1; i < size; i++) {
+            greatest = Math.max(greatest, mKeys.get(i));
+        }
+        return tryPin(greatest);
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#tryPinGreatestSelected
+     */
+    public Pair<Long, E> tryPinGreatestSelected(Selector<E> selector) {
+        if (mClosed) {
+            return null;
+        }
+        // (Quickly) get the list of elements to search through.
+        int size = mSize;
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = mKeys.get(i);
+        }
+        Arrays.sort(keys);
+
+        // Pin each element, from greatest key to least, until we find the one
+        // we want (the element with the greatest key for which
+        // selector.selected() returns true).
+        for (int i = size - 1; i >= 0; i--) {
+            Pair<Long, E> pinnedCandidate = tryPin(keys[i]);
+            if (pinnedCandidate != null) {
+                boolean selected = false;
+
+                try {
+                    selected = selector.select(pinnedCandidate.second);
+                } finally {
+                    // Don't leak pinnedCandidate if the above select() threw an
+                    // exception.
+                    if (selected) {
+                        return pinnedCandidate;
+                    } else {
+                        release(pinnedCandidate.first);
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#close
+     */
+    public void close(Task<E> task) throws InterruptedException {
+        // Ensure that any pending swap tasks complete before closing.
+        synchronized (mSwapLock) {
+            mClosed = true;
+        }
+
+        notifyPinStateChange(false);
+
+        // Wait for all pinned tasks to complete. Releases after mClosed was
+        // set signal mCloseMonitor once a slot becomes unpinned.
+        synchronized (mCloseMonitor) {
+            while (hasPinnedSlot()) {
+                mCloseMonitor.wait();
+            }
+        }
+
+        synchronized (mSwapLock) {
+            int size = mSize;
+            for (int i = 0; i < size; i++) {
+                task.run(mElements.get(i));
+                mElements.set(i, null);
+            }
+            mSize = 0;
+        }
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#tryGetPinned
+     */
+    public Pair<Long, E> tryGetPinned(long key) {
+        if (mClosed) {
+            return null;
+        }
+        int slot = findSlot(key, mSize);
+        if (slot < 0 || mPins.get(slot) <= 0) {
+            return null;
+        }
+        return Pair.create(key, mElements.get(slot));
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#reopenBuffer
+     */
+    public void reopenBuffer(int unpinnedReservedSlotCount) throws InterruptedException {
+        if (unpinnedReservedSlotCount < 0 || unpinnedReservedSlotCount >= mCapacity) {
+            throw new IllegalArgumentException("Invalid unpinned reserved slot count: " +
+                    unpinnedReservedSlotCount);
+        }
+
+        synchronized (mSwapLock) {
+            if (!mClosed) {
+                throw new IllegalStateException(
+                        "Attempt to reopen the buffer when it is not closed.");
+            }
+            mUnpinnedReservedSlotCount = unpinnedReservedSlotCount;
+            mClosed = false;
+        }
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#releaseIfPinned
+     */
+    public void releaseIfPinned(long key) {
+        int slot = findSlot(key, mSize);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Invalid key." + key);
+        }
+        if (mPins.get(slot) > 0) {
+            release(key);
+        }
+    }
+
+    /**
+     * @see ConcurrentSharedRingBuffer#releaseAll
+     */
+    public void releaseAll() {
+        synchronized (mSwapLock) {
+            if (mClosed) {
+                return;
+            }
+            int size = mSize;
+            for (int i = 0; i < size; i++) {
+                if (mPins.get(i) > 0) {
+                    release(mKeys.get(i));
+                }
+            }
+        }
+    }
+
+    private int findSlot(long key, int size) {
+        for (int i = 0; i < size; i++) {
+            if (mKeys.get(i) == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasPinnedSlot() {
+        int size = mSize;
+        for (int i = 0; i < size; i++) {
+            if (mPins.get(i) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getAvailablePins() {
+        return mSize - 1 - mUnpinnedReservedSlotCount - mPinnedSlots.get();
+    }
+
+    /**
+     * Claims the unpinned slot holding swapKey, or else the unpinned slot with
+     * the least key, by marking it as {@link #SLOT_SWAPPING}.
+     *
+     * @return the claimed slot, or -1 if every slot is pinned.
+     */
+    private int claimSlotToSwap(long swapKey, int size) {
+        while (true) {
+            int candidate = -1;
+            for (int i = 0; i < size; i++) {
+                if (mPins.get(i) != 0) {
+                    continue;
+                }
+                long key = mKeys.get(i);
+                if (key == swapKey) {
+                    candidate = i;
+                    break;
+                }
+                if (candidate < 0 || key < mKeys.get(candidate)) {
+                    candidate = i;
+                }
+            }
+            if (candidate < 0) {
+                return -1;
+            }
+            if (mPins.compareAndSet(candidate, 0, SLOT_SWAPPING)) {
+                return candidate;
+            }
+            // A consumer pinned the candidate after we looked at it.
+        }
+    }
+
+    /**
+     * Adds a pin to the slot. Pinning an unpinned slot takes one of the pin
+     * permits, which guarantee that a slot is left for the producer to swap.
+     */
+    private boolean pinSlot(int slot) {
+        while (true) {
+            int pins = mPins.get(slot);
+            if (pins == SLOT_SWAPPING) {
+                return false;
+            }
+            if (pins > 0) {
+                // If the element is already pinned by another task, simply
+                // increment the pin count.
+                if (mPins.compareAndSet(slot, pins, pins + 1)) {
+                    return true;
+                }
+                continue;
+            }
+
+            // We must ensure that there will still be an unpinned element
+            // after we pin this one.
+            if (!tryAcquirePinPermit()) {
+                return false;
+            }
+            if (mPins.compareAndSet(slot, 0, 1)) {
+                if (getAvailablePins() <= 0) {
+                    notifyPinStateChange(false);
+                }
+                return true;
+            }
+            mPinnedSlots.decrementAndGet();
+        }
+    }
+
+    private boolean tryAcquirePinPermit() {
+        while (true) {
+            int pinned = mPinnedSlots.get();
+            if (pinned >= mSize - 1 - mUnpinnedReservedSlotCount) {
+                return false;
+            }
+            if (mPinnedSlots.compareAndSet(pinned, pinned + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void unpinSlot(int slot) {
+        int pins;
+        do {
+            pins = mPins.get(slot);
+            if (pins <= 0) {
+                throw new IllegalArgumentException("Calling release() with unpinned element.");
+            }
+        } while (!mPins.compareAndSet(slot, pins, pins - 1));
+        if (pins != 1) {
+            return;
+        }
+        // If there are now 0 tasks pinning this element, allow pinning
+        // another element.
+        mPinnedSlots.decrementAndGet();
+        if (mClosed) {
+            synchronized (mCloseMonitor) {
+                mCloseMonitor.notifyAll();
+            }
+        } else if (getAvailablePins() == 1) {
+            notifyPinStateChange(true);
+        }
+    }
+
+    private void notifyPinStateChange(final boolean pinsAvailable) {
+        final Pair<Handler, PinStateListener> listener = mPinStateListener;
+        if (listener != null && listener.first != null) {
+            listener.first.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.second.onPinStateChange(pinsAvailable);
+                }
+            });
+        }
+    }
+}
@@ -21,6 +21,8 @@ import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
 import com.android.camera.debug.Log;
+import com.android.camera.exif.ByteBufferInputStream;
+import com.android.camera.exif.JpegSegments;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -29,6 +31,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -89,10 +92,13 @@ public class XmpUtil {
     }
 
     try {
-      return extractXMPMeta(new FileInputStream(filename));
+      return extractXMPMeta(JpegSegments.read(filename));
     } catch (FileNotFoundException e) {
       Log.e(TAG, "Could not read file: " + filename, e);
       return null;
+    } catch (IOException e) {
+      Log.d(TAG, "Could not parse file: " + filename, e);
+      return null;
     }
   }
 
@@ -103,27 +109,39 @@ public class XmpUtil {
    * @return Extracted XMPMeta or null.
    */
   public static XMPMeta extractXMPMeta(InputStream is) {
-    List<Section> sections = parse(is, true);
-    if (sections == null) {
+    try {
+      return extractXMPMeta(JpegSegments.read(is));
+    } catch (IOException e) {
+      Log.d(TAG, "Could not parse file.", e);
       return null;
-    }
-    // Now we don't support extended xmp.
-    for (Section section : sections) {
-      if (hasXMPHeader(section.data)) {
-        int end = getXMPContentEnd(section.data);
-        byte[] buffer = new byte[end - XMP_HEADER_SIZE];
-        System.arraycopy(
-            section.data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
-        try {
-          XMPMeta result = XMPMetaFactory.parseFromBuffer(buffer);
-          return result;
-        } catch (XMPException e) {
-          Log.d(TAG, "XMP parse error", e);
-          return null;
-        }
+    } finally {
+      try {
+        is.close();
+      } catch (IOException e) {
+        // Ignore.
       }
     }
-    return null;
+  }
+
+  /**
+   * Extracts XMPMeta from the segments of a JPEG image, without copying the
+   * XMP segment.
+   *
+   * @param segments the application segments of the JPEG image.
+   * @return Extracted XMPMeta or null.
+   */
+  private static XMPMeta extractXMPMeta(JpegSegments segments) {
+    ByteBuffer xmp = segments.getXmp();
+    if (xmp == null) {
+      return null;
+    }
+    xmp.limit(getXMPContentEnd(xmp));
+    try {
+      return XMPMetaFactory.parseFromStream(new ByteBufferInputStream(xmp));
+    } catch (XMPException e) {
+      Log.d(TAG, "XMP parse error", e);
+      return null;
+    }
   }
 
   /**
@@ -306,7 +324,7 @@ public class XmpUtil {
 
   /**
    * Gets the end of the xmp meta content. If there is no packet wrapper,
-   * return data.length, otherwise return 1 + the position of last '>'
+   * return the limit, otherwise return 1 + the position of last '>'
    * without '?' before it.
    * Usually the packet wrapper end is "<?xpacket end="w"?> but
    * javax.xml.parsers.DocumentBuilder fails to parse it in android.
@@ -314,16 +332,16 @@ public class XmpUtil {
    * @param data xmp metadata bytes.
    * @return The end of the xmp metadata content.
    */
-  private static int getXMPContentEnd(byte[] data) {
-    for (int i = data.length - 1; i >= 1; --i) {
-      if (data[i] == '>') {
-        if (data[i - 1] != '?') {
+  private static int getXMPContentEnd(ByteBuffer data) {
+    for (int i = data.limit() - 1; i >= data.position() + 1; --i) {
+      if (data.get(i) == '>') {
+        if (data.get(i - 1) != '?') {
           return i + 1;
         }
       }
     }
     // It should not reach here for a valid xmp meta.
-    return data.length;
+    return data.limit();
   }
 
   /**
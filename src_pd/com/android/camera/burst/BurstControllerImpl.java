@@ -16,40 +16,355 @@ package com.android.camera.burst;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 
+import com.android.camera.async.MainThread;
 import com.android.camera.burst.BurstResultsListener;
 import com.android.camera.burst.EvictionHandler;
 import com.android.camera.burst.BurstController.ImageStreamProperties;
+import com.android.camera.debug.DebugPropertyHelper;
+import com.android.camera.debug.Log;
+import com.android.camera.debug.Log.Tag;
 import com.android.camera.one.v2.camera2proxy.ImageProxy;
 import com.android.camera.one.v2.imagesaver.MetadataImage;
 import com.android.camera.session.CaptureSession;
+import com.android.camera.util.JpegUtilNative;
+import com.android.camera2.R;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Stub implementation for burst controller.
+ * Burst controller which keeps the best frames of a burst.
+ * <p/>
+ * While the burst runs, a {@link FrameQualityEvictionHandler} drops the lowest
+ * scoring frame whenever the image buffer is full, using the gyroscope to
+ * estimate motion blur. Once the burst completes, the highest scoring frames
+ * are encoded and reported as a single artifact.
  */
 class BurstControllerImpl implements BurstController {
+    private static final Tag TAG = new Tag("BurstCtrlImpl");
+
+    /** The artifact type of the frames selected from a burst. */
+    private static final String ARTIFACT_TYPE_BEST_SHOTS = "BestShots";
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+    private static final String JPEG_EXTENSION = "jpg";
+    private static final int JPEG_QUALITY = 95;
+
+    /** The maximum number of frames kept from a burst. */
+    private static final int MAX_SELECTED_FRAMES = 10;
+
+    private final Context mContext;
+    private final SensorManager mSensorManager;
+    private final MainThread mMainThread;
+
+    /** State of the running burst, guarded by this. */
+    private FrameQualityEvictionHandler mEvictionHandler;
+    private SensorEventListener mGyroListener;
+    private BurstResultsListener mResultsListener;
+    private ImageStreamProperties mImageStreamProperties;
+
+    public BurstControllerImpl(Context context) {
+        mContext = context;
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mMainThread = MainThread.create();
+    }
 
-    public BurstControllerImpl(Context context) {}
     /**
      * Returns true if burst mode is supported by camera.
+     * <p/>
+     * This build has no burst UI beyond the shutter, so burst is only enabled
+     * via {@link DebugPropertyHelper#isBurstEnabled()}.
      */
     public static boolean isBurstModeSupported(ContentResolver contentResolver) {
-        return false;
+        return DebugPropertyHelper.isBurstEnabled();
     }
 
     @Override
-    public EvictionHandler startBurst(SurfaceTexture surfaceTexture,
+    public synchronized EvictionHandler startBurst(SurfaceTexture surfaceTexture,
             ImageStreamProperties imageStreamProperties,
             BurstResultsListener resultsListener,
             CaptureSession captureSession) {
-        return null;
+        stopGyroUpdates();
+        final FrameQualityEvictionHandler evictionHandler = new FrameQualityEvictionHandler();
+        mEvictionHandler = evictionHandler;
+        mResultsListener = resultsListener;
+        mImageStreamProperties = imageStreamProperties;
+
+        Sensor gyro = mSensorManager != null
+                ? mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE) : null;
+        if (gyro != null) {
+            mGyroListener = new SensorEventListener() {
+                @Override
+                public void onSensorChanged(SensorEvent event) {
+                    evictionHandler.onGyroUpdate(event.timestamp, event.values[0],
+                            event.values[1], event.values[2]);
+                }
+
+                @Override
+                public void onAccuracyChanged(Sensor sensor, int accuracy) {
+                }
+            };
+            mSensorManager.registerListener(mGyroListener, gyro,
+                    SensorManager.SENSOR_DELAY_GAME);
+        }
+
+        resultsListener.onBurstStarted();
+        return evictionHandler;
     }
 
     @Override
     public void processBurstResults(List<MetadataImage> capturedImages) {
-        // no op
+        final FrameQualityEvictionHandler evictionHandler;
+        final BurstResultsListener resultsListener;
+        final ImageStreamProperties imageStreamProperties;
+        synchronized (this) {
+            stopGyroUpdates();
+            evictionHandler = mEvictionHandler;
+            resultsListener = mResultsListener;
+            imageStreamProperties = mImageStreamProperties;
+            mEvictionHandler = null;
+            mResultsListener = null;
+            mImageStreamProperties = null;
+        }
+        if (evictionHandler == null || resultsListener == null) {
+            closeAll(capturedImages);
+            return;
+        }
+
+        List<MetadataImage> selectedImages = selectBestFrames(capturedImages,
+                evictionHandler, MAX_SELECTED_FRAMES);
+        final List<BurstMediaItem> mediaItems = new ArrayList<>(selectedImages.size());
+        try {
+            File burstDirectory = new File(mContext.getExternalCacheDir(), "burst");
+            if (!burstDirectory.isDirectory() && !burstDirectory.mkdirs()) {
+                throw new IOException("Could not create " + burstDirectory);
+            }
+            for (MetadataImage image : selectedImages) {
+                mediaItems.add(writeJpeg(image, burstDirectory,
+                        imageStreamProperties.getImageRotation()));
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Could not save burst frames", e);
+            deleteAll(mediaItems);
+            mMainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resultsListener.onBurstError(e);
+                }
+            });
+            return;
+        } finally {
+            closeAll(selectedImages);
+        }
+
+        final BurstArtifact artifact = new BestShotsArtifact(
+                mContext.getString(R.string.burst_best_shots), mediaItems);
+        mMainThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Integer> artifactTypeCount = new HashMap<>();
+                artifactTypeCount.put(ARTIFACT_TYPE_BEST_SHOTS, 1);
+                resultsListener.onArtifactCountAvailable(artifactTypeCount);
+                resultsListener.onBurstCompleted(new SingleArtifactResult(artifact));
+            }
+        });
+    }
+
+    /**
+     * Keeps the {@code maxCount} highest scoring images and closes the rest.
+     *
+     * @return the kept images, in capture order.
+     */
+    private static List<MetadataImage> selectBestFrames(List<MetadataImage> images,
+            final FrameQualityEvictionHandler evictionHandler, int maxCount) {
+        List<MetadataImage> ranked = new ArrayList<>(images);
+        Collections.sort(ranked, new Comparator<MetadataImage>() {
+            @Override
+            public int compare(MetadataImage lhs, MetadataImage rhs) {
+                return Float.compare(evictionHandler.getFrameScore(rhs.getTimestamp()),
+                        evictionHandler.getFrameScore(lhs.getTimestamp()));
+            }
+        });
+        List<MetadataImage> selected = new ArrayList<>(ranked.subList(0,
+                Math.min(maxCount, ranked.size())));
+        closeAll(ranked.subList(selected.size(), ranked.size()));
+
+        Collections.sort(selected, new Comparator<MetadataImage>() {
+            @Override
+            public int compare(MetadataImage lhs, MetadataImage rhs) {
+                return Long.compare(lhs.getTimestamp(), rhs.getTimestamp());
+            }
+        });
+        return selected;
+    }
+
+    private static BurstMediaItem writeJpeg(ImageProxy image, File directory, int rotation)
+            throws IOException {
+        ByteBuffer jpeg;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (image.getFormat() == ImageFormat.JPEG) {
+            // Already encoded, the rotation is left to the Exif orientation.
+            jpeg = image.getPlanes().get(0).getBuffer().duplicate();
+        } else {
+            jpeg = ByteBuffer.allocateDirect(width * height * 3 / 2);
+            int size = JpegUtilNative.compressJpegFromYUV420Image(image, jpeg, JPEG_QUALITY,
+                    rotation);
+            if (size < 0) {
+                throw new IOException("Could not compress frame: " + size);
+            }
+            jpeg.limit(size);
+            if (rotation % 180 != 0) {
+                width = image.getHeight();
+                height = image.getWidth();
+            }
+        }
+
+        File file = new File(directory, "burst_" + image.getTimestamp() + "." + JPEG_EXTENSION);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            while (jpeg.hasRemaining()) {
+                out.getChannel().write(jpeg);
+            }
+        } finally {
+            out.close();
+        }
+        return new JpegMediaItem(file, width, height, image.getTimestamp());
+    }
+
+    private synchronized void stopGyroUpdates() {
+        if (mGyroListener != null) {
+            mSensorManager.unregisterListener(mGyroListener);
+            mGyroListener = null;
+        }
+    }
+
+    private static void closeAll(List<? extends ImageProxy> images) {
+        for (ImageProxy image : images) {
+            image.close();
+        }
+    }
+
+    private static void deleteAll(List<BurstMediaItem> mediaItems) {
+        for (BurstMediaItem mediaItem : mediaItems) {
+            if (!mediaItem.getFilePath().delete()) {
+                Log.w(TAG, "Could not delete " + mediaItem.getFilePath());
+            }
+        }
+    }
+
+    private static class JpegMediaItem implements BurstMediaItem {
+        private final File mFile;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mTimestamp;
+
+        JpegMediaItem(File file, int width, int height, long timestamp) {
+            mFile = file;
+            mWidth = width;
+            mHeight = height;
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public File getFilePath() {
+            return mFile;
+        }
+
+        @Override
+        public String getMimeType() {
+            return MIME_TYPE_JPEG;
+        }
+
+        @Override
+        public String getExtension() {
+            return JPEG_EXTENSION;
+        }
+
+        @Override
+        public boolean isSupportingExifData() {
+            return true;
+        }
+    }
+
+    private static class BestShotsArtifact implements BurstArtifact {
+        private final String mLocalizedName;
+        private final List<BurstMediaItem> mMediaItems;
+
+        BestShotsArtifact(String localizedName, List<BurstMediaItem> mediaItems) {
+            mLocalizedName = localizedName;
+            mMediaItems = Collections.unmodifiableList(mediaItems);
+        }
+
+        @Override
+        public List<BurstMediaItem> getMediaItems() {
+            return mMediaItems;
+        }
+
+        @Override
+        public String getType() {
+            return ARTIFACT_TYPE_BEST_SHOTS;
+        }
+
+        @Override
+        public String getLocalizedName() {
+            return mLocalizedName;
+        }
+    }
+
+    private static class SingleArtifactResult implements BurstResult {
+        private final BurstArtifact mArtifact;
+
+        SingleArtifactResult(BurstArtifact artifact) {
+            mArtifact = artifact;
+        }
+
+        @Override
+        public List<BurstArtifact> getArtifacts() {
+            return Collections.singletonList(mArtifact);
+        }
+
+        @Override
+        public Set<String> getTypes() {
+            return Collections.singleton(mArtifact.getType());
+        }
+
+        @Override
+        public List<BurstArtifact> getArtifactsByType(String type) {
+            if (mArtifact.getType().equals(type)) {
+                return Collections.singletonList(mArtifact);
+            }
+            return Collections.emptyList();
+        }
     }
 }
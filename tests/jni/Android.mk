@@ -0,0 +1,17 @@
+LOCAL_PATH:= $(call my-dir)
+
+# JpegUtil host benchmark. It links against the host's libjpeg, so it is not
+# part of the regular build; build it explicitly with
+# "mmm packages/apps/Camera2/tests/jni".
+include $(CLEAR_VARS)
+
+LOCAL_CFLAGS := -std=c++11 -O3
+LOCAL_MODULE    := jpegutil_benchmark
+LOCAL_MODULE_TAGS := tests
+LOCAL_SRC_FILES := ../../jni/jpegutil.cpp jpegutil_benchmark.cpp
+
+LOCAL_C_INCLUDES += $(LOCAL_PATH)/../../jni
+
+LOCAL_LDLIBS := -ljpeg -lpthread
+
+include $(BUILD_HOST_EXECUTABLE)
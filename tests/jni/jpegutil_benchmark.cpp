@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Host-side benchmark for jpegutil::CompressParallel.
+ *
+ * Compresses a synthetic YUV420 image with jpegutil::Compress and with
+ * jpegutil::CompressParallel, checks that the stitched output is a
+ * well-formed baseline JPEG with consecutive restart markers, and reports the
+ * time taken by each. It also compresses into a buffer barely larger than
+ * the sequential output, in which some stripes overflow their slice, to check
+ * the fallback to sequential compression.
+ *
+ * Usage: jpegutil_benchmark [width height threads iterations [out_prefix]]
+ *
+ * If out_prefix is given, the sequential and parallel outputs are written to
+ * out_prefix-sequential.jpg and out_prefix-parallel.jpg, so they can be
+ * decoded and compared with an external tool.
+ */
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <string>
+#include <vector>
+
+#include "jpegutil.h"
+
+using namespace std;
+
+namespace {
+
+struct YuvImage {
+  int width;
+  int height;
+  vector<unsigned char> y;
+  vector<unsigned char> cb;
+  vector<unsigned char> cr;
+};
+
+/**
+ * Creates a YUV420p image with gradients, edges and noise, so that it
+ * compresses roughly like a photo.
+ */
+YuvImage MakeSyntheticImage(int width, int height) {
+  YuvImage image{width, height, vector<unsigned char>(width * height),
+                 vector<unsigned char>((width / 2) * (height / 2)),
+                 vector<unsigned char>((width / 2) * (height / 2))};
+  unsigned int seed = 1;
+  for (int row = 0; row < height; row++) {
+    for (int col = 0; col < width; col++) {
+      seed = seed * 1103515245 + 12345;
+      int noise = (seed >> 16) % 16;
+      int checker = ((row / 64) + (col / 64)) % 2 == 0 ? 40 : 0;
+      int value = (col * 160 / width) + (row * 40 / height) + checker + noise;
+      image.y[row * width + col] = static_cast<unsigned char>(value);
+    }
+  }
+  for (int row = 0; row < height / 2; row++) {
+    for (int col = 0; col < width / 2; col++) {
+      image.cb[row * (width / 2) + col] =
+          static_cast<unsigned char>(128 + (col * 64 / width) - 16);
+      image.cr[row * (width / 2) + col] =
+          static_cast<unsigned char>(128 + (row * 64 / height) - 16);
+    }
+  }
+  return image;
+}
+
+/**
+ * Checks the marker structure of a JPEG: it must start with SOI, declare the
+ * expected size in SOF0, end with EOI and contain restart markers in order.
+ */
+bool IsWellFormed(const vector<unsigned char>& jpeg, size_t size, int width,
+                  int height, int* restartCount) {
+  if (size < 4 || jpeg[0] != 0xFF || jpeg[1] != 0xD8 ||
+      jpeg[size - 2] != 0xFF || jpeg[size - 1] != 0xD9) {
+    fprintf(stderr, "Missing SOI or EOI\n");
+    return false;
+  }
+  size_t pos = 2;
+  bool sawSof = false;
+  while (pos + 4 <= size) {
+    if (jpeg[pos] != 0xFF) {
+      fprintf(stderr, "Expected a marker at %zu\n", pos);
+      return false;
+    }
+    unsigned char type = jpeg[pos + 1];
+    size_t length = (jpeg[pos + 2] << 8) | jpeg[pos + 3];
+    if (type == 0xC0) {
+      int sofHeight = (jpeg[pos + 5] << 8) | jpeg[pos + 6];
+      int sofWidth = (jpeg[pos + 7] << 8) | jpeg[pos + 8];
+      if (sofWidth != width || sofHeight != height) {
+        fprintf(stderr, "SOF0 declares %dx%d\n", sofWidth, sofHeight);
+        return false;
+      }
+      sawSof = true;
+    }
+    pos += 2 + length;
+    if (type == 0xDA) {
+      break;
+    }
+  }
+  if (!sawSof) {
+    fprintf(stderr, "Missing SOF0\n");
+    return false;
+  }
+
+  // Within the scan, 0xFF is only followed by a stuffed 0x00 or a marker.
+  int expectedRestart = 0;
+  *restartCount = 0;
+  for (; pos + 2 < size; pos++) {
+    if (jpeg[pos] != 0xFF) {
+      continue;
+    }
+    unsigned char next = jpeg[pos + 1];
+    if (next == 0x00) {
+      pos++;
+    } else if (next >= 0xD0 && next <= 0xD7) {
+      if (next - 0xD0 != expectedRestart) {
+        fprintf(stderr, "Restart marker %d out of order at %zu\n",
+                next - 0xD0, pos);
+        return false;
+      }
+      expectedRestart = (expectedRestart + 1) % 8;
+      (*restartCount)++;
+      pos++;
+    } else {
+      fprintf(stderr, "Unexpected marker 0x%02x in scan at %zu\n", next, pos);
+      return false;
+    }
+  }
+  return true;
+}
+
+void WriteFile(const string& path, const vector<unsigned char>& data,
+               size_t size) {
+  FILE* file = fopen(path.c_str(), "wb");
+  if (file == nullptr) {
+    fprintf(stderr, "Could not open %s\n", path.c_str());
+    return;
+  }
+  fwrite(data.data(), 1, size, file);
+  fclose(file);
+}
+
+}  // namespace
+
+int main(int argc, char** argv) {
+  int width = 4160;
+  int height = 3120;
+  int threads = 4;
+  int iterations = 5;
+  if (argc >= 5) {
+    width = atoi(argv[1]);
+    height = atoi(argv[2]);
+    threads = atoi(argv[3]);
+    iterations = atoi(argv[4]);
+  }
+  const int quality = 95;
+
+  YuvImage image = MakeSyntheticImage(width, height);
+  vector<unsigned char> sequential(width * height * 3 / 2 + 64 * 1024);
+  vector<unsigned char> parallel(sequential.size());
+
+  auto compress = [&](int numThreads, vector<unsigned char>& out) -> int {
+    if (numThreads <= 0) {
+      return jpegutil::Compress(
+          width, height, image.y.data(), 1, width, image.cb.data(), 1,
+          width / 2, image.cr.data(), 1, width / 2, out.data(), out.size(),
+          quality, 0, 0, width, height, 0);
+    }
+    return jpegutil::CompressParallel(
+        width, height, image.y.data(), 1, width, image.cb.data(), 1,
+        width / 2, image.cr.data(), 1, width / 2, out.data(), out.size(),
+        quality, 0, 0, width, height, 0, numThreads);
+  };
+
+  double sequentialMs = 0;
+  double parallelMs = 0;
+  int sequentialSize = 0;
+  int parallelSize = 0;
+  // The first iteration warms up caches and is not measured.
+  for (int i = 0; i <= iterations; i++) {
+    auto start = chrono::steady_clock::now();
+    sequentialSize = compress(0, sequential);
+    auto middle = chrono::steady_clock::now();
+    parallelSize = compress(threads, parallel);
+    auto end = chrono::steady_clock::now();
+    if (i > 0) {
+      sequentialMs +=
+          chrono::duration<double, milli>(middle - start).count();
+      parallelMs += chrono::duration<double, milli>(end - middle).count();
+    }
+  }
+
+  if (sequentialSize < 0 || parallelSize < 0) {
+    fprintf(stderr, "Compression failed: %d, %d\n", sequentialSize,
+            parallelSize);
+    return 1;
+  }
+
+  int restartCount = 0;
+  if (!IsWellFormed(parallel, parallelSize, width, height, &restartCount)) {
+    return 1;
+  }
+  int mcuRows = (height + 15) / 16;
+  if (threads > 1 && height > 128 && restartCount != mcuRows - 1) {
+    fprintf(stderr, "Expected %d restart markers, found %d\n", mcuRows - 1,
+            restartCount);
+    return 1;
+  }
+
+  // Stripes compress into slices of the buffer in proportion to their rows.
+  // With hardly any spare room, one overflows and the whole image is
+  // compressed sequentially.
+  vector<unsigned char> tight(sequentialSize + 1024);
+  int tightSize = compress(threads, tight);
+  int tightRestartCount = 0;
+  if (tightSize < 0 ||
+      !IsWellFormed(tight, tightSize, width, height, &tightRestartCount)) {
+    fprintf(stderr, "Compression into a tight buffer failed\n");
+    return 1;
+  }
+
+  if (argc >= 6) {
+    string prefix = argv[5];
+    WriteFile(prefix + "-sequential.jpg", sequential, sequentialSize);
+    WriteFile(prefix + "-parallel.jpg", parallel, parallelSize);
+  }
+
+  printf("%dx%d, %d threads, %d iterations\n", width, height, threads,
+         iterations);
+  printf("sequential: %.1f ms, %d bytes\n", sequentialMs / iterations,
+         sequentialSize);
+  printf("parallel:   %.1f ms, %d bytes, %d restart markers\n",
+         parallelMs / iterations, parallelSize, restartCount);
+  printf("speedup:    %.2fx\n", sequentialMs / parallelMs);
+  printf("tight buffer: %d bytes, %d restart markers\n", tightSize,
+         tightRestartCount);
+  return 0;
+}
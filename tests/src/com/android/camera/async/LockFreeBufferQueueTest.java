@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.async;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.async.BufferQueue.BufferQueueClosedException;
+import com.android.camera.async.ConcurrentBufferQueue.UnusedElementProcessor;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link LockFreeBufferQueue}.
+ */
+public class LockFreeBufferQueueTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * Counts how many times each element is consumed or discarded.
+     */
+    private static class ElementCounter implements UnusedElementProcessor<Integer> {
+        private final AtomicIntegerArray mConsumed;
+        private final AtomicIntegerArray mDiscarded;
+
+        ElementCounter(int elementCount) {
+            mConsumed = new AtomicIntegerArray(elementCount);
+            mDiscarded = new AtomicIntegerArray(elementCount);
+        }
+
+        @Override
+        public void process(Integer element) {
+            mDiscarded.incrementAndGet(element);
+        }
+
+        void consume(Integer element) {
+            mConsumed.incrementAndGet(element);
+        }
+
+        void assertEachHandledOnce() {
+            for (int i = 0; i < mConsumed.length(); i++) {
+                assertEquals("Element " + i, 1, mConsumed.get(i) + mDiscarded.get(i));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testElementsAreReturnedInOrder() throws Exception {
+        LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>();
+        // Spans several segments.
+        for (int i = 0; i < 100; i++) {
+            queue.update(i);
+        }
+        assertEquals(Integer.valueOf(0), queue.peekNext());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), queue.getNext());
+        }
+        assertNull(queue.peekNext());
+    }
+
+    @SmallTest
+    public void testGetNextTimesOutWhenEmpty() throws Exception {
+        LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>();
+        try {
+            queue.getNext(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException e) {
+            // Expected.
+        }
+    }
+
+    @SmallTest
+    public void testBoundedQueueDropsOldest() throws Exception {
+        ElementCounter counter = new ElementCounter(10);
+        LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>(3, counter);
+        for (int i = 0; i < 10; i++) {
+            queue.update(i);
+        }
+        for (int i = 7; i < 10; i++) {
+            Integer element = queue.getNext();
+            assertEquals(Integer.valueOf(i), element);
+            counter.consume(element);
+        }
+        assertNull(queue.peekNext());
+        counter.assertEachHandledOnce();
+    }
+
+    @SmallTest
+    public void testCloseDiscardsRemainingElements() throws Exception {
+        ElementCounter counter = new ElementCounter(50);
+        LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>(counter);
+        for (int i = 0; i < 40; i++) {
+            queue.update(i);
+        }
+        queue.discardNext();
+        queue.close();
+        for (int i = 40; i < 50; i++) {
+            queue.update(i);
+        }
+        counter.assertEachHandledOnce();
+        assertTrue(queue.isClosed());
+        assertNull(queue.peekNext());
+        try {
+            queue.getNext();
+            fail();
+        } catch (BufferQueueClosedException e) {
+            // Expected.
+        }
+    }
+
+    @LargeTest
+    public void testDiscardNextRemovesPeekedElement() throws Exception {
+        final int elementCount = 200000;
+        for (final int capacity : new int[] { 0, 16 }) {
+            final ElementCounter counter = new ElementCounter(elementCount);
+            final AtomicReference<Integer> lastDiscarded = new AtomicReference<>();
+            final LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>(capacity,
+                    new UnusedElementProcessor<Integer>() {
+                        @Override
+                        public void process(Integer element) {
+                            lastDiscarded.set(element);
+                            counter.process(element);
+                        }
+                    });
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < elementCount; i++) {
+                        queue.update(i);
+                    }
+                }
+            });
+            producer.start();
+            // Consume like ImageDistributorImpl does with its timestamp
+            // queues, checking that each discard removes the peeked element.
+            int mismatches = 0;
+            while (producer.isAlive() || queue.peekNext() != null) {
+                Integer peeked = queue.peekNext();
+                if (peeked == null) {
+                    continue;
+                }
+                lastDiscarded.set(null);
+                queue.discardNext();
+                Integer discarded = lastDiscarded.get();
+                // With a capacity, the producer may drop the peeked element
+                // itself, in which case a newer one is discarded.
+                if (discarded == null || (capacity == 0 && !peeked.equals(discarded))
+                        || discarded < peeked) {
+                    mismatches++;
+                }
+            }
+            producer.join();
+            assertEquals(0, mismatches);
+            counter.assertEachHandledOnce();
+        }
+    }
+
+    @LargeTest
+    public void testCloseWakesBlockedConsumers() throws Exception {
+        for (int iteration = 0; iteration < 100; iteration++) {
+            final LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>();
+            final int consumerCount = 4;
+            final CountDownLatch started = new CountDownLatch(consumerCount);
+            final CountDownLatch closedExceptions = new CountDownLatch(consumerCount);
+            List<Thread> consumers = new ArrayList<>();
+            for (int i = 0; i < consumerCount; i++) {
+                final boolean withTimeout = i % 2 == 0;
+                Thread consumer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        try {
+                            if (withTimeout) {
+                                queue.getNext(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                            } else {
+                                queue.getNext();
+                            }
+                        } catch (BufferQueueClosedException e) {
+                            closedExceptions.countDown();
+                        } catch (InterruptedException | TimeoutException e) {
+                            // Leaves the latch unchanged, failing the test.
+                        }
+                    }
+                });
+                consumer.start();
+                consumers.add(consumer);
+            }
+            started.await();
+            queue.close();
+            assertTrue(closedExceptions.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            for (Thread consumer : consumers) {
+                consumer.join();
+            }
+        }
+    }
+
+    @LargeTest
+    public void testCloseWhileProducingAndConsuming() throws Exception {
+        final int producerCount = 3;
+        final int elementsPerProducer = 20000;
+        for (final int capacity : new int[] { 0, 16 }) {
+            final ElementCounter counter = new ElementCounter(
+                    producerCount * elementsPerProducer);
+            final LockFreeBufferQueue<Integer> queue = new LockFreeBufferQueue<>(capacity,
+                    counter);
+            List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < producerCount; p++) {
+                final int firstElement = p * elementsPerProducer;
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < elementsPerProducer; i++) {
+                            queue.update(firstElement + i);
+                        }
+                    }
+                }));
+            }
+            for (int c = 0; c < 2; c++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                Integer element = queue.getNext();
+                                counter.consume(element);
+                                queue.peekNext();
+                                queue.discardNext();
+                            }
+                        } catch (BufferQueueClosedException | InterruptedException e) {
+                            // Done.
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            // Close while the producers are still running.
+            Thread.sleep(5);
+            queue.close();
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                assertFalse(thread.isAlive());
+            }
+            counter.assertEachHandledOnce();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.burst;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link FrameQualityEvictionHandler}.
+ */
+@SmallTest
+public class FrameQualityEvictionHandlerTest extends TestCase {
+    private static final long MILLISECOND_NS = 1000000L;
+    private static final long EXPOSURE_NS = 10 * MILLISECOND_NS;
+
+    private static float scoreStill(int afState) {
+        return FrameQualityEvictionHandler.scoreFrame(afState, null,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED, EXPOSURE_NS, 0, 0f);
+    }
+
+    public void testFocusedFramesScoreHigher() {
+        assertTrue(scoreStill(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED)
+                > scoreStill(CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN));
+        assertTrue(scoreStill(CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN)
+                > scoreStill(CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED));
+    }
+
+    public void testMovingLensLowersScore() {
+        float moving = FrameQualityEvictionHandler.scoreFrame(
+                CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED, CaptureResult.LENS_STATE_MOVING,
+                CaptureResult.CONTROL_AE_STATE_CONVERGED, EXPOSURE_NS, 0, 0f);
+        assertTrue(moving < scoreStill(CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED));
+    }
+
+    public void testMotionBlurLowersScore() {
+        float still = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                EXPOSURE_NS, 0, 0f);
+        float shaking = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                EXPOSURE_NS, 0, 1f);
+        float longExposure = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                4 * EXPOSURE_NS, 0, 1f);
+        assertTrue(shaking < still);
+        assertTrue(longExposure < shaking);
+    }
+
+    public void testFacesRaiseScoreUpToALimit() {
+        float none = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                EXPOSURE_NS, 0, 0f);
+        float one = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                EXPOSURE_NS, 1, 0f);
+        float many = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                EXPOSURE_NS, 10, 0f);
+        float three = FrameQualityEvictionHandler.scoreFrame(null, null, null,
+                EXPOSURE_NS, 3, 0f);
+        assertTrue(one > none);
+        assertEquals(three, many, 0f);
+        assertTrue(many <= 1f);
+    }
+
+    public void testDropsLowestScoringFrame() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        for (long t = 1; t <= 3; t++) {
+            handler.onFrameInserted(t);
+        }
+        handler.onFrameScoreAvailable(1, 0.9f);
+        handler.onFrameScoreAvailable(2, 0.2f);
+        handler.onFrameScoreAvailable(3, 0.5f);
+        assertEquals(2, handler.selectFrameToDrop());
+
+        handler.onFrameDropped(2);
+        assertEquals(3, handler.selectFrameToDrop());
+        assertTrue(handler.getFrameScore(2) < 0f);
+    }
+
+    public void testRescoringReordersFrames() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        handler.onFrameInserted(1);
+        handler.onFrameInserted(2);
+        handler.onFrameScoreAvailable(1, 0.2f);
+        handler.onFrameScoreAvailable(2, 0.5f);
+        assertEquals(1, handler.selectFrameToDrop());
+
+        handler.onFrameScoreAvailable(1, 0.8f);
+        assertEquals(2, handler.selectFrameToDrop());
+        assertEquals(0.8f, handler.getFrameScore(1), 0f);
+    }
+
+    public void testUnscoredFramesAreKeptOverScoredOnes() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        handler.onFrameInserted(1);
+        handler.onFrameInserted(2);
+        handler.onFrameScoreAvailable(2, 1f);
+        assertEquals(2, handler.selectFrameToDrop());
+        assertTrue(handler.getFrameScore(1) < 0f);
+    }
+
+    public void testOldestFrameIsDroppedWhenNoneIsScored() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        handler.onFrameInserted(3);
+        handler.onFrameInserted(1);
+        handler.onFrameInserted(2);
+        assertEquals(1, handler.selectFrameToDrop());
+    }
+
+    public void testScoreArrivingBeforeItsFrameIsApplied() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        handler.onFrameScoreAvailable(5, 0.3f);
+        assertTrue(handler.getFrameScore(5) < 0f);
+
+        handler.onFrameInserted(4);
+        handler.onFrameInserted(5);
+        assertEquals(0.3f, handler.getFrameScore(5), 0f);
+        assertEquals(5, handler.selectFrameToDrop());
+    }
+
+    public void testAngularSpeedIsTakenDuringTheExposure() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        assertEquals(0f, handler.getAngularSpeed(0, EXPOSURE_NS), 0f);
+
+        // Still for 100ms, then rotating at 2 rad/s around one axis.
+        for (long t = 0; t <= 200; t += 5) {
+            float speed = t < 100 ? 0f : 2f;
+            handler.onGyroUpdate(t * MILLISECOND_NS, 0f, speed, 0f);
+        }
+        assertEquals(0f, handler.getAngularSpeed(40 * MILLISECOND_NS, EXPOSURE_NS), 0f);
+        assertEquals(2f, handler.getAngularSpeed(160 * MILLISECOND_NS, EXPOSURE_NS), 1e-6f);
+        // An exposure across the start of the rotation sees part of it.
+        float partial = handler.getAngularSpeed(90 * MILLISECOND_NS, EXPOSURE_NS);
+        assertTrue(partial > 0f && partial < 2f);
+    }
+
+    public void testAngularSpeedFallsBackToLatestReading() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        handler.onGyroUpdate(0, 1f, 0f, 0f);
+        handler.onGyroUpdate(5 * MILLISECOND_NS, 3f, 4f, 0f);
+        // A frame timestamp from a different clock matches no reading.
+        assertEquals(5f, handler.getAngularSpeed(1000000 * MILLISECOND_NS, EXPOSURE_NS),
+                1e-6f);
+    }
+
+    public void testOldGyroReadingsAreForgotten() {
+        FrameQualityEvictionHandler handler = new FrameQualityEvictionHandler();
+        handler.onGyroUpdate(0, 7f, 0f, 0f);
+        for (long t = 1000; t < 2000; t += 5) {
+            handler.onGyroUpdate(t * MILLISECOND_NS, 1f, 0f, 0f);
+        }
+        assertEquals(1f, handler.getAngularSpeed(0, EXPOSURE_NS), 1e-6f);
+    }
+}
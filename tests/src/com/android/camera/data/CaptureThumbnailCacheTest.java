@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.data.CaptureThumbnailCache.Level;
+import com.android.camera.util.Size;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link CaptureThumbnailCache}.
+ */
+@SmallTest
+public class CaptureThumbnailCacheTest extends TestCase {
+    private static final int THUMBNAIL_BYTES = 1000;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = File.createTempFile("thumbnails", "");
+        assertTrue(mDirectory.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private static Uri uri(long id) {
+        return Uri.parse("content://media/external/images/media/" + id);
+    }
+
+    private static byte[] thumbnail(long id) {
+        byte[] data = new byte[THUMBNAIL_BYTES];
+        data[0] = (byte) id;
+        return data;
+    }
+
+    private static int readFirstByte(CaptureThumbnailCache cache, Uri uri, Level level)
+            throws Exception {
+        InputStream stream = cache.open(uri, level);
+        try {
+            return stream.read();
+        } finally {
+            stream.close();
+        }
+    }
+
+    public void testLevelForSize() {
+        assertEquals(Level.TINY, Level.forSize(256, 256));
+        assertEquals(Level.TINY, Level.forSize(100, 200));
+        assertEquals(Level.THUMB, Level.forSize(512, 384));
+        assertEquals(Level.THUMB, Level.forSize(384, 512));
+        assertNull(Level.forSize(1024, 768));
+    }
+
+    public void testScalesToFitLevel() {
+        assertEquals(new Size(256, 192), Level.TINY.scale(4000, 3000));
+        assertEquals(new Size(384, 512), Level.THUMB.scale(3000, 4000));
+        // Never scales up.
+        assertEquals(new Size(100, 50), Level.THUMB.scale(100, 50));
+    }
+
+    public void testReadsWhatWasPut() throws Exception {
+        CaptureThumbnailCache cache = new CaptureThumbnailCache(mDirectory, 100000, DIRECT);
+        cache.put(uri(1), Level.TINY, thumbnail(1));
+        assertTrue(cache.contains(uri(1), Level.TINY));
+        assertFalse(cache.contains(uri(1), Level.THUMB));
+        assertFalse(cache.contains(uri(2), Level.TINY));
+        assertEquals(1, readFirstByte(cache, uri(1), Level.TINY));
+        try {
+            cache.open(uri(1), Level.THUMB);
+            fail();
+        } catch (FileNotFoundException e) {
+            // Expected.
+        }
+
+        cache.remove(uri(1));
+        assertFalse(cache.contains(uri(1), Level.TINY));
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    public void testRemovesLeastRecentlyUsed() throws Exception {
+        CaptureThumbnailCache cache = new CaptureThumbnailCache(mDirectory, 3 * THUMBNAIL_BYTES,
+                DIRECT);
+        cache.put(uri(1), Level.TINY, thumbnail(1));
+        cache.put(uri(2), Level.TINY, thumbnail(2));
+        cache.put(uri(3), Level.TINY, thumbnail(3));
+        readFirstByte(cache, uri(1), Level.TINY);
+        cache.put(uri(4), Level.TINY, thumbnail(4));
+
+        assertTrue(cache.contains(uri(1), Level.TINY));
+        assertFalse(cache.contains(uri(2), Level.TINY));
+        assertTrue(cache.contains(uri(3), Level.TINY));
+        assertTrue(cache.contains(uri(4), Level.TINY));
+        assertEquals(3 * THUMBNAIL_BYTES, cache.getSizeBytes());
+        assertEquals(3, mDirectory.listFiles().length);
+    }
+
+    public void testRestoresIndex() throws Exception {
+        CaptureThumbnailCache cache = new CaptureThumbnailCache(mDirectory, 100000, DIRECT);
+        cache.put(uri(1), Level.TINY, thumbnail(1));
+        cache.put(uri(1), Level.THUMB, thumbnail(1));
+        // A write which did not complete.
+        assertTrue(new File(mDirectory, "partial.tmp").createNewFile());
+
+        cache = new CaptureThumbnailCache(mDirectory, 100000, DIRECT);
+        // The index is not loaded until it is needed off the main thread.
+        assertFalse(cache.contains(uri(1), Level.TINY));
+        cache.loadIndex();
+        assertTrue(cache.contains(uri(1), Level.TINY));
+        assertTrue(cache.contains(uri(1), Level.THUMB));
+        assertEquals(2 * THUMBNAIL_BYTES, cache.getSizeBytes());
+        assertFalse(new File(mDirectory, "partial.tmp").exists());
+    }
+
+    public void testRestoredIndexIsTrimmed() throws Exception {
+        CaptureThumbnailCache cache = new CaptureThumbnailCache(mDirectory, 100000, DIRECT);
+        for (long id = 1; id <= 3; id++) {
+            cache.put(uri(id), Level.TINY, thumbnail(id));
+        }
+        // Thumbnail 1 was used least recently.
+        for (File file : mDirectory.listFiles()) {
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                file.setLastModified(stream.read() * 100000L);
+            } finally {
+                stream.close();
+            }
+        }
+
+        cache = new CaptureThumbnailCache(mDirectory, 2 * THUMBNAIL_BYTES, DIRECT);
+        cache.loadIndex();
+        assertFalse(cache.contains(uri(1), Level.TINY));
+        assertTrue(cache.contains(uri(2), Level.TINY));
+        assertTrue(cache.contains(uri(3), Level.TINY));
+        assertEquals(2 * THUMBNAIL_BYTES, cache.getSizeBytes());
+        assertEquals(2, mDirectory.listFiles().length);
+    }
+}
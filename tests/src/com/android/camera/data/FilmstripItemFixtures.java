@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.net.Uri;
+
+import com.android.camera.util.Size;
+
+import java.util.Date;
+
+/**
+ * Creates the data of photos in the camera folder, for tests which need
+ * filmstrip items but not their files.
+ */
+final class FilmstripItemFixtures {
+    private static final String PHOTO_URI_PREFIX = "content://media/external/images/media/";
+
+    private FilmstripItemFixtures() {
+    }
+
+    /**
+     * @return The content uri of the photo with the given id.
+     */
+    static Uri photoUri(long id) {
+        return Uri.parse(PHOTO_URI_PREFIX + id);
+    }
+
+    /**
+     * @return A builder for a 640x480 JPEG of 1000 bytes, taken and modified
+     *         at the given id in milliseconds, so that newer ids sort first.
+     */
+    static FilmstripItemData.Builder photoData(long id) {
+        return photoData(id, photoUri(id));
+    }
+
+    /**
+     * Like {@link #photoData(long)}, but with the given content uri.
+     */
+    static FilmstripItemData.Builder photoData(long id, Uri uri) {
+        return new FilmstripItemData.Builder(uri)
+                .withContentId(id)
+                .withTitle("IMG_" + id)
+                .withMimeType("image/jpeg")
+                .withCreationDate(new Date(id))
+                .withLastModifiedDate(new Date(id))
+                .withFilePath("/sdcard/DCIM/Camera/IMG_" + id)
+                .withDimensions(new Size(640, 480))
+                .withSizeInBytes(1000)
+                .withOrientation(0)
+                .withLocation(Location.UNKNOWN);
+    }
+
+    /**
+     * @return A photo item for the given data, without a context or loaders.
+     */
+    static PhotoItem photo(FilmstripItemData data) {
+        return new PhotoItem(null, null, data, null);
+    }
+
+    /**
+     * @return A photo item for {@link #photoData(long)}.
+     */
+    static PhotoItem photo(long id) {
+        return photo(photoData(id).build());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link FilmstripItemList}.
+ */
+@SmallTest
+public class FilmstripItemListTest extends TestCase {
+    private static final Comparator<FilmstripItem> NEWEST_FIRST =
+            new NewestFirstComparator(new Date(1000000));
+
+    private static List<Long> ids(FilmstripItemList list) {
+        List<Long> ids = new ArrayList<>();
+        for (FilmstripItem item : list.snapshot()) {
+            ids.add(item.getData().getContentId());
+        }
+        return ids;
+    }
+
+    public void testAddsInSortedOrder() {
+        FilmstripItemList list = new FilmstripItemList();
+        for (long id : new long[] { 5, 9, 1, 7, 3 }) {
+            list.add(FilmstripItemFixtures.photo(id), NEWEST_FIRST);
+        }
+        assertEquals(Arrays.asList(9L, 7L, 5L, 3L, 1L), ids(list));
+        assertEquals(0, list.add(FilmstripItemFixtures.photo(10), NEWEST_FIRST));
+        assertEquals(6, list.add(FilmstripItemFixtures.photo(0), NEWEST_FIRST));
+        assertEquals(3, list.add(FilmstripItemFixtures.photo(6), NEWEST_FIRST));
+        assertEquals(Arrays.asList(10L, 9L, 7L, 6L, 5L, 3L, 1L, 0L), ids(list));
+    }
+
+    public void testIndexOfFollowsChanges() {
+        FilmstripItemList list = new FilmstripItemList();
+        for (long id = 0; id < 5; id++) {
+            list.add(FilmstripItemFixtures.photo(id));
+        }
+        assertEquals(3, list.indexOf(FilmstripItemFixtures.photoUri(3)));
+        assertEquals(-1, list.indexOf(FilmstripItemFixtures.photoUri(10)));
+
+        list.add(0, FilmstripItemFixtures.photo(10));
+        assertEquals(0, list.indexOf(FilmstripItemFixtures.photoUri(10)));
+        assertEquals(4, list.indexOf(FilmstripItemFixtures.photoUri(3)));
+
+        assertEquals(1L, list.remove(2).getData().getContentId());
+        assertEquals(-1, list.indexOf(FilmstripItemFixtures.photoUri(1)));
+        assertNull(list.get(FilmstripItemFixtures.photoUri(1)));
+        assertEquals(3, list.indexOf(FilmstripItemFixtures.photoUri(3)));
+
+        list.set(3, FilmstripItemFixtures.photo(11));
+        assertEquals(-1, list.indexOf(FilmstripItemFixtures.photoUri(3)));
+        assertEquals(3, list.indexOf(FilmstripItemFixtures.photoUri(11)));
+        assertEquals(11L, list.get(FilmstripItemFixtures.photoUri(11)).getData().getContentId());
+        assertEquals(Arrays.asList(10L, 0L, 2L, 11L, 4L), ids(list));
+    }
+
+    public void testRemoveOutOfBounds() {
+        FilmstripItemList list = new FilmstripItemList();
+        list.add(FilmstripItemFixtures.photo(0));
+        assertNull(list.remove(1));
+        assertNull(list.remove(-1));
+        assertEquals(1, list.size());
+    }
+
+    public void testSort() {
+        FilmstripItemList list = new FilmstripItemList();
+        list.addAll(Arrays.<FilmstripItem>asList(FilmstripItemFixtures.photo(2),
+                FilmstripItemFixtures.photo(8), FilmstripItemFixtures.photo(4)));
+        list.sort(NEWEST_FIRST);
+        assertEquals(Arrays.asList(8L, 4L, 2L), ids(list));
+        assertEquals(2, list.indexOf(FilmstripItemFixtures.photoUri(2)));
+    }
+
+    public void testMatchesArrayList() {
+        Random random = new Random(0);
+        FilmstripItemList list = new FilmstripItemList();
+        List<FilmstripItem> expected = new ArrayList<>();
+        long nextId = 0;
+        for (int i = 0; i < 2000; i++) {
+            int operation = random.nextInt(4);
+            if (operation < 2 || expected.isEmpty()) {
+                int pos = random.nextInt(expected.size() + 1);
+                FilmstripItem item = FilmstripItemFixtures.photo(nextId++);
+                list.add(pos, item);
+                expected.add(pos, item);
+            } else if (operation == 2) {
+                int pos = random.nextInt(expected.size());
+                assertSame(expected.remove(pos), list.remove(pos));
+            } else {
+                int pos = random.nextInt(expected.size());
+                FilmstripItem item = FilmstripItemFixtures.photo(nextId++);
+                list.set(pos, item);
+                expected.set(pos, item);
+            }
+            assertEquals(expected.size(), list.size());
+        }
+        assertEquals(expected, list.snapshot());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(expected.get(i), list.get(i));
+            assertEquals(i, list.indexOf(expected.get(i).getData().getUri()));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.data.FilmstripContentQueries.Page;
+import com.android.camera.data.FilmstripContentQueries.PagePosition;
+import com.android.camera.data.FilmstripContentQueries.PagedQuery;
+import com.android.camera.data.FilmstripContentQueries.Watermark;
+import com.android.camera.data.FilmstripPageLoader.Delta;
+import com.android.camera.util.Size;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compares loading the filmstrip a page at a time with {@link FilmstripPageLoader}
+ * to loading and sorting every item, over a synthetic media store with 50k
+ * rows, and checks that both produce the same order.
+ */
+@LargeTest
+public class FilmstripPageLoaderBenchmark extends TestCase {
+    private static final String TAG = "FilmstripPageLoaderBench";
+    private static final int ROW_COUNT = 50000;
+    /** One in this many rows is a video. */
+    private static final int VIDEO_INTERVAL = 10;
+    private static final int FIRST_PAGE_SIZE = 50;
+    private static final int PAGE_SIZE = 500;
+    private static final long NEWEST_DATE_MS = 1420070400000L;
+
+    /**
+     * Stands in for a media store table, keeping its rows in
+     * {@link FilmstripContentQueries#NEWEST_FIRST_ORDER} and creating an item
+     * for each row read, like a cursor would.
+     */
+    private static class FakePagedQuery implements PagedQuery<PhotoItem> {
+        private final String mUriPrefix;
+        /** {date taken, id, date modified in seconds}, newest first. */
+        private final List<long[]> mRows = new ArrayList<>();
+        private int mRowsRead;
+
+        FakePagedQuery(String uriPrefix) {
+            mUriPrefix = uriPrefix;
+        }
+
+        /** Adds a row which is older than all others. */
+        void appendRow(long dateTaken, long id, long dateModifiedSeconds) {
+            mRows.add(new long[] { dateTaken, id, dateModifiedSeconds });
+        }
+
+        void addRow(long dateTaken, long id, long dateModifiedSeconds) {
+            long[] row = new long[] { dateTaken, id, dateModifiedSeconds };
+            int index = 0;
+            while (index < mRows.size() && !isAfter(mRows.get(index), row)) {
+                index++;
+            }
+            mRows.add(index, row);
+        }
+
+        void removeRowAt(int index) {
+            mRows.remove(index);
+        }
+
+        long[] getRow(int index) {
+            return mRows.get(index);
+        }
+
+        int getRowsRead() {
+            return mRowsRead;
+        }
+
+        private static boolean isAfter(long[] row, long[] other) {
+            return new PagePosition(row[0], row[1]).precedes(new PagePosition(other[0], other[1]));
+        }
+
+        private PhotoItem toItem(long[] row) {
+            mRowsRead++;
+            long id = row[1];
+            return FilmstripItemFixtures.photo(
+                    FilmstripItemFixtures.photoData(id, Uri.parse(mUriPrefix + id))
+                            .withCreationDate(new Date(row[0]))
+                            .withLastModifiedDate(new Date(row[2] * 1000))
+                            .withDimensions(new Size(4160, 3120))
+                            .withSizeInBytes(3000000)
+                            .build());
+        }
+
+        @Override
+        public Page<PhotoItem> queryPage(PagePosition after, int limit) {
+            int start = 0;
+            if (after != null) {
+                // Binary search, as an index on the sort order would.
+                int low = 0;
+                int high = mRows.size();
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    long[] row = mRows.get(mid);
+                    if (after.precedes(new PagePosition(row[0], row[1]))) {
+                        high = mid;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                start = low;
+            }
+            int end = Math.min(mRows.size(), start + limit);
+            List<PhotoItem> items = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                items.add(toItem(mRows.get(i)));
+            }
+            PagePosition endPosition = null;
+            if (end > start) {
+                long[] last = mRows.get(end - 1);
+                endPosition = new PagePosition(last[0], last[1]);
+            }
+            return new Page<>(items, endPosition, end - start == limit);
+        }
+
+        @Override
+        public List<PhotoItem> queryChangedSince(Watermark watermark) {
+            List<PhotoItem> items = new ArrayList<>();
+            for (long[] row : mRows) {
+                if (row[1] > watermark.maxId || row[2] > watermark.maxDateModifiedSeconds) {
+                    items.add(toItem(row));
+                }
+            }
+            return items;
+        }
+
+        @Override
+        public long[] queryIds(PagePosition through) {
+            long[] ids = new long[mRows.size()];
+            int count = 0;
+            for (long[] row : mRows) {
+                if (through != null && through.precedes(new PagePosition(row[0], row[1]))) {
+                    break;
+                }
+                ids[count++] = row[1];
+            }
+            ids = Arrays.copyOf(ids, count);
+            Arrays.sort(ids);
+            return ids;
+        }
+
+        @Override
+        public Watermark queryWatermark() {
+            long maxId = FilmstripItemBase.QUERY_ALL_MEDIA_ID;
+            long maxDateModified = 0;
+            for (long[] row : mRows) {
+                maxId = Math.max(maxId, row[1]);
+                maxDateModified = Math.max(maxDateModified, row[2]);
+            }
+            return new Watermark(maxId, maxDateModified);
+        }
+
+        @Override
+        public boolean isResultOf(FilmstripItem item) {
+            return item.getData().getUri().toString().startsWith(mUriPrefix);
+        }
+
+        /** Reads every row, as the filmstrip did before it was paged. */
+        List<PhotoItem> queryAll() {
+            List<PhotoItem> items = new ArrayList<>(mRows.size());
+            for (long[] row : mRows) {
+                items.add(toItem(row));
+            }
+            return items;
+        }
+    }
+
+    private FakePagedQuery mPhotos;
+    private FakePagedQuery mVideos;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPhotos = new FakePagedQuery("content://media/external/images/media/");
+        mVideos = new FakePagedQuery("content://media/external/video/media/");
+        // Newest first, with newer rows having higher ids.
+        long dateTaken = NEWEST_DATE_MS;
+        for (int i = 0; i < ROW_COUNT; i++) {
+            long id = ROW_COUNT - i;
+            // Bursts share the date taken of the previous row.
+            if (i % 7 != 1) {
+                dateTaken -= 1000;
+            }
+            FakePagedQuery query = i % VIDEO_INTERVAL == 0 ? mVideos : mPhotos;
+            query.appendRow(dateTaken, id, NEWEST_DATE_MS / 1000 - i);
+        }
+    }
+
+    private List<PagedQuery<PhotoItem>> queries() {
+        List<PagedQuery<PhotoItem>> queries = new ArrayList<>();
+        queries.add(mPhotos);
+        queries.add(mVideos);
+        return queries;
+    }
+
+    public void testTimeToFirstPage() throws Exception {
+        Comparator<FilmstripItem> comparator = new NewestFirstComparator(
+                new Date(NEWEST_DATE_MS));
+
+        long usedBefore = usedMemory();
+        long start = System.nanoTime();
+        List<FilmstripItem> all = new ArrayList<>();
+        all.addAll(mPhotos.queryAll());
+        all.addAll(mVideos.queryAll());
+        Collections.sort(all, comparator);
+        long fullLoadNanos = System.nanoTime() - start;
+        long fullLoadMemory = usedMemory() - usedBefore;
+        assertEquals(ROW_COUNT, all.size());
+
+        FilmstripPageLoader loader = new FilmstripPageLoader(queries());
+        int rowsReadBefore = mPhotos.getRowsRead() + mVideos.getRowsRead();
+        usedBefore = usedMemory();
+        start = System.nanoTime();
+        List<FilmstripItem> firstPage = loader.loadNextPage(FIRST_PAGE_SIZE);
+        long firstPageNanos = System.nanoTime() - start;
+        long firstPageMemory = usedMemory() - usedBefore;
+        int firstPageRowsRead = mPhotos.getRowsRead() + mVideos.getRowsRead() - rowsReadBefore;
+
+        // Every page continues where the last one stopped, in the same order
+        // as sorting everything.
+        List<FilmstripItem> paged = new ArrayList<>(firstPage);
+        start = System.nanoTime();
+        while (loader.hasMore()) {
+            paged.addAll(loader.loadNextPage(PAGE_SIZE));
+        }
+        long remainingNanos = System.nanoTime() - start;
+        assertEquals(all.size(), paged.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals("Item " + i, all.get(i).getData().getUri(),
+                    paged.get(i).getData().getUri());
+        }
+
+        Log.i(TAG, String.format("%d rows, full load and sort: %.1f ms, %d KB",
+                ROW_COUNT, fullLoadNanos / 1e6, fullLoadMemory / 1024));
+        Log.i(TAG, String.format("first page of %d: %.1f ms, %d KB, %d rows read",
+                FIRST_PAGE_SIZE, firstPageNanos / 1e6, firstPageMemory / 1024,
+                firstPageRowsRead));
+        Log.i(TAG, String.format("remaining pages of %d: %.1f ms", PAGE_SIZE,
+                remainingNanos / 1e6));
+    }
+
+    public void testRefreshOnlyReadsChanges() throws Exception {
+        FilmstripPageLoader loader = new FilmstripPageLoader(queries());
+        List<FilmstripItem> shown = new ArrayList<>(loader.loadNextPage(FIRST_PAGE_SIZE));
+        shown.addAll(loader.loadNextPage(PAGE_SIZE));
+
+        // A new photo, a deleted photo within the shown range, and one beyond.
+        long newId = ROW_COUNT + 1;
+        mPhotos.addRow(NEWEST_DATE_MS + 1000, newId, NEWEST_DATE_MS / 1000 + 1);
+        long[] removedShown = mPhotos.getRow(10);
+        mPhotos.removeRowAt(10);
+        mPhotos.removeRowAt(ROW_COUNT / 2);
+
+        int rowsReadBefore = mPhotos.getRowsRead() + mVideos.getRowsRead();
+        long start = System.nanoTime();
+        Delta delta = loader.loadChanges(shown);
+        long refreshNanos = System.nanoTime() - start;
+        int rowsRead = mPhotos.getRowsRead() + mVideos.getRowsRead() - rowsReadBefore;
+
+        assertEquals(1, delta.changed.size());
+        assertEquals(newId, delta.changed.get(0).getData().getContentId());
+        assertEquals(1, delta.removed.size());
+        assertEquals(removedShown[1], delta.removed.get(0).getData().getContentId());
+        assertEquals(1, rowsRead);
+        assertEquals(newId, loader.getWatermark(mPhotos).maxId);
+
+        // Paging continues after the last item shown.
+        List<FilmstripItem> next = loader.loadNextPage(1);
+        FilmstripItem lastShown = shown.get(shown.size() - 1);
+        assertTrue(PagePosition.of(lastShown).precedes(PagePosition.of(next.get(0))));
+
+        Log.i(TAG, String.format("refresh of %d shown items: %.1f ms, %d rows read",
+                shown.size(), refreshNanos / 1e6, rowsRead));
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.common.base.Optional;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+
+/**
+ * Tests for {@link MetadataIndex}.
+ */
+@SmallTest
+public class MetadataIndexTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("metadata", ".idx");
+        assertTrue(mFile.delete());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static FilmstripItemData item(long id, long dateModified, long size) {
+        return FilmstripItemFixtures.photoData(id)
+                .withLastModifiedDate(new Date(dateModified))
+                .withSizeInBytes(size)
+                .build();
+    }
+
+    private static Metadata panorama() {
+        Metadata metadata = new Metadata();
+        metadata.setPanorama(true);
+        metadata.setPanorama360(true);
+        return metadata;
+    }
+
+    public void testRestoresAfterReopening() throws Exception {
+        MetadataIndex index = new MetadataIndex(mFile);
+        index.store(item(1, 1000, 100), panorama(), true);
+        Metadata video = new Metadata();
+        video.setVideoOrientation("90");
+        video.setVideoWidth(1920);
+        video.setVideoHeight(1080);
+        index.store(item(2, 2000, 200), video, true);
+        index.store(item(3, 3000, 300), new Metadata(), false);
+        index.close();
+
+        index = new MetadataIndex(mFile);
+        assertEquals(3, index.size());
+
+        Metadata restored = new Metadata();
+        assertEquals(Optional.of(true), index.restore(item(1, 1000, 100), restored));
+        assertTrue(restored.isPanorama());
+        assertTrue(restored.isPanorama360());
+        assertFalse(restored.isUsePanoramaViewer());
+        assertFalse(restored.isHasRgbzData());
+
+        restored = new Metadata();
+        assertEquals(Optional.of(true), index.restore(item(2, 2000, 200), restored));
+        assertTrue(restored.isVideoRotated());
+        assertEquals(1920, restored.getVideoWidth());
+        assertEquals(1080, restored.getVideoHeight());
+
+        restored = new Metadata();
+        assertEquals(Optional.of(false), index.restore(item(3, 3000, 300), restored));
+        assertEquals("", restored.getVideoOrientation());
+        index.close();
+    }
+
+    public void testIgnoresChangedItems() throws Exception {
+        MetadataIndex index = new MetadataIndex(mFile);
+        index.store(item(1, 1000, 100), panorama(), true);
+        assertFalse(index.restore(item(1, 1001, 100), new Metadata()).isPresent());
+        assertFalse(index.restore(item(1, 1000, 101), new Metadata()).isPresent());
+        assertFalse(index.restore(item(2, 1000, 100), new Metadata()).isPresent());
+        index.close();
+    }
+
+    public void testNewerEntriesSupersedeOlderOnes() throws Exception {
+        MetadataIndex index = new MetadataIndex(mFile);
+        // Enough to grow the file, with every item stored twice.
+        for (int i = 1; i <= 3000; i++) {
+            index.store(item(i, 1000, 100), new Metadata(), false);
+        }
+        for (int i = 1; i <= 3000; i++) {
+            index.store(item(i, 2000, 100), panorama(), true);
+        }
+        assertEquals(3000, index.size());
+        index.close();
+
+        index = new MetadataIndex(mFile);
+        assertEquals(3000, index.size());
+        for (int i = 1; i <= 3000; i++) {
+            Metadata restored = new Metadata();
+            assertEquals(Optional.of(true), index.restore(item(i, 2000, 100), restored));
+            assertTrue(restored.isPanorama());
+            assertFalse(index.restore(item(i, 1000, 100), new Metadata()).isPresent());
+        }
+        index.close();
+    }
+
+    public void testDiscardsInvalidFile() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 });
+        file.close();
+
+        MetadataIndex index = new MetadataIndex(mFile);
+        assertEquals(0, index.size());
+        index.store(item(1, 1000, 100), panorama(), true);
+        index.close();
+
+        index = new MetadataIndex(mFile);
+        assertTrue(index.restore(item(1, 1000, 100), new Metadata()).isPresent());
+        index.close();
+    }
+}
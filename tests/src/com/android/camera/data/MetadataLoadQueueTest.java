@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link MetadataLoadQueue}.
+ */
+@SmallTest
+public class MetadataLoadQueueTest extends TestCase {
+    /** Runs tasks when asked to, on the calling thread. */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mTasks.add(runnable);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final List<FilmstripItem> mLoaded = new ArrayList<>();
+    private final List<Integer> mNotifiedIndexes = new ArrayList<>();
+    private final List<Boolean> mNotifiedUpdates = new ArrayList<>();
+    private ManualExecutor mWorkerExecutor;
+
+    private final MetadataLoadQueue.Loader mLoader = new MetadataLoadQueue.Loader() {
+        @Override
+        public boolean load(FilmstripItem item) {
+            mLoaded.add(item);
+            return false;
+        }
+    };
+
+    private final MetadataLoadQueue.Listener mListener = new MetadataLoadQueue.Listener() {
+        @Override
+        public void onMetadataLoaded(FilmstripItem item, int index, boolean updated) {
+            mNotifiedIndexes.add(index);
+            mNotifiedUpdates.add(updated);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWorkerExecutor = new ManualExecutor();
+    }
+
+    private MetadataLoadQueue createQueue(int capacity) {
+        return new MetadataLoadQueue(mLoader, mWorkerExecutor, DIRECT, mListener, capacity, 1);
+    }
+
+    private List<Long> loadedIds() {
+        List<Long> ids = new ArrayList<>();
+        for (FilmstripItem item : mLoaded) {
+            ids.add(item.getData().getContentId());
+        }
+        return ids;
+    }
+
+    public void testLoadsClosestToFocusFirst() {
+        MetadataLoadQueue queue = createQueue(10);
+        queue.setFocus(10);
+        for (int index : new int[] { 0, 20, 9, 12, 10 }) {
+            queue.request(index, FilmstripItemFixtures.photo(index), false);
+        }
+        assertEquals(5, queue.getQueueDepth());
+        mWorkerExecutor.runAll();
+        // Equally distant items load in the order they were requested.
+        assertEquals(Arrays.asList(10L, 9L, 12L, 0L, 20L), loadedIds());
+        assertEquals(Arrays.asList(10, 9, 12, 0, 20), mNotifiedIndexes);
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    public void testFollowsFocusWhileWaiting() {
+        MetadataLoadQueue queue = createQueue(10);
+        for (int index = 0; index < 5; index++) {
+            queue.request(index, FilmstripItemFixtures.photo(index), false);
+        }
+        queue.setFocus(4);
+        mWorkerExecutor.runAll();
+        assertEquals(Arrays.asList(4L, 3L, 2L, 1L, 0L), loadedIds());
+    }
+
+    public void testMergesRequestsForSameIndex() {
+        MetadataLoadQueue queue = createQueue(10);
+        FilmstripItem item = FilmstripItemFixtures.photo(3);
+        MetadataLoadQueue.Request request = queue.request(3, item, false);
+        assertSame(request, queue.request(3, item, false));
+        assertSame(request, queue.request(3, item, true));
+        assertEquals(1, queue.getQueueDepth());
+        mWorkerExecutor.runAll();
+        assertEquals(1, mLoaded.size());
+        // A forced load is reported as an update.
+        assertEquals(Arrays.asList(true), mNotifiedUpdates);
+    }
+
+    public void testDropsFarthestWhenFull() {
+        MetadataLoadQueue queue = createQueue(4);
+        List<MetadataLoadQueue.Request> requests = new ArrayList<>();
+        for (int index = 0; index < 6; index++) {
+            requests.add(queue.request(index, FilmstripItemFixtures.photo(index), false));
+        }
+        assertEquals(4, queue.getQueueDepth());
+        assertEquals(4, queue.getMaxQueueDepth());
+        assertEquals(2, queue.getDroppedCount());
+        assertFalse(requests.get(3).isCancelled());
+        assertTrue(requests.get(4).isCancelled());
+        assertTrue(requests.get(5).isCancelled());
+        mWorkerExecutor.runAll();
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), loadedIds());
+    }
+
+    public void testCancelRemovesWaitingLoad() {
+        MetadataLoadQueue queue = createQueue(10);
+        MetadataLoadQueue.Request first = queue.request(0, FilmstripItemFixtures.photo(0), false);
+        queue.request(1, FilmstripItemFixtures.photo(1), false);
+        first.cancel();
+        assertTrue(first.isCancelled());
+        assertEquals(1, queue.getQueueDepth());
+        mWorkerExecutor.runAll();
+        assertEquals(Arrays.asList(1L), loadedIds());
+
+        queue.request(2, FilmstripItemFixtures.photo(2), false);
+        queue.cancelAll();
+        mWorkerExecutor.runAll();
+        assertEquals(Arrays.asList(1L), loadedIds());
+    }
+}
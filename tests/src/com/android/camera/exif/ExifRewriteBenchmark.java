@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares rewriting the exif header of 5, 15 and 40 MB JPEG files with
+ * {@link ExifInterface#streamRewriteExif(String)} to the copy that
+ * forceRewriteExif used to fall back to, which read the whole file onto the
+ * heap and wrote it back through the exif stream.
+ */
+@LargeTest
+public class ExifRewriteBenchmark extends TestCase {
+    private static final String TAG = "ExifRewriteBench";
+    private static final int MEGABYTE = 1024 * 1024;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("exif", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void test5Megabytes() throws Exception {
+        runBenchmark(5);
+    }
+
+    public void test15Megabytes() throws Exception {
+        runBenchmark(15);
+    }
+
+    public void test40Megabytes() throws Exception {
+        runBenchmark(40);
+    }
+
+    private void runBenchmark(int megabytes) throws Exception {
+        byte[] jpeg = SyntheticJpeg.create(true, megabytes * MEGABYTE, new Random(0));
+        SyntheticJpeg.write(jpeg, mFile);
+        jpeg = null;
+
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, "Rewritten"));
+
+        long copyNs = 0;
+        long streamNs = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            rewriteByCopy(exif, mFile);
+            long copyElapsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            exif.streamRewriteExif(mFile.getPath());
+            long streamElapsed = System.nanoTime() - start;
+
+            if (i >= WARMUP_ITERATIONS) {
+                copyNs += copyElapsed;
+                streamNs += streamElapsed;
+            }
+        }
+        Log.i(TAG, String.format("%d MB: copy %.1f ms with %d MB on the heap, stream %.1f ms",
+                megabytes, copyNs / 1e6 / MEASURED_ITERATIONS, mFile.length() / MEGABYTE,
+                streamNs / 1e6 / MEASURED_ITERATIONS));
+    }
+
+    /** The former fallback of forceRewriteExif. */
+    private static void rewriteByCopy(ExifInterface exif, File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[1024];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                bytes.write(buf, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        byte[] imageBytes = bytes.toByteArray();
+        OutputStream s = exif.getExifWriterStream(file.getPath());
+        try {
+            s.write(imageBytes, 0, imageBytes.length);
+            s.flush();
+        } finally {
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that the streaming exif rewrites produce exactly what writing the
+ * whole image through the exif stream does.
+ */
+@SmallTest
+public class ExifRewriteTest extends TestCase {
+    private static final int SCAN_LENGTH = 256 * 1024;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("exif", ".jpg");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static ExifInterface createExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION,
+                "A description which does not fit in the old header"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Camera"));
+        return exif;
+    }
+
+    /** @return The image written through the exif stream in one piece. */
+    private static byte[] writeWholeImage(byte[] jpeg) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        createExif().writeExif(jpeg, expected);
+        return expected.toByteArray();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new IOException("File truncated");
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void assertSameBytes(byte[] expected, byte[] actual) {
+        assertEquals(expected.length, actual.length);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+
+    public void testStreamRewriteMatchesWholeImageWrite() throws Exception {
+        for (boolean withExif : new boolean[] { true, false }) {
+            byte[] jpeg = SyntheticJpeg.create(withExif, SCAN_LENGTH, new Random(0));
+            SyntheticJpeg.write(jpeg, mFile);
+
+            createExif().streamRewriteExif(mFile.getPath());
+            assertSameBytes(writeWholeImage(jpeg), read(mFile));
+        }
+    }
+
+    public void testForceRewriteMatchesWholeImageWrite() throws Exception {
+        byte[] jpeg = SyntheticJpeg.create(true, SCAN_LENGTH, new Random(1));
+        SyntheticJpeg.write(jpeg, mFile);
+
+        ExifInterface exif = createExif();
+        // The new tags do not fit in place, so the file is streamed.
+        exif.forceRewriteExif(mFile.getPath());
+
+        // forceRewriteExif keeps the tags of the file it doesn't overwrite.
+        ExifInterface merged = new ExifInterface();
+        merged.readExif(jpeg);
+        merged.setTags(exif.getAllTags());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        merged.writeExif(jpeg, expected);
+        assertSameBytes(expected.toByteArray(), read(mFile));
+    }
+
+    public void testByteArrayWriteMatchesWholeImageWrite() throws Exception {
+        byte[] jpeg = SyntheticJpeg.create(true, SCAN_LENGTH, new Random(2));
+        createExif().writeExif(jpeg, mFile.getPath());
+        assertSameBytes(writeWholeImage(jpeg), read(mFile));
+    }
+
+    public void testByteBufferWriteMatchesWholeImageWrite() throws Exception {
+        byte[] jpeg = SyntheticJpeg.create(true, SCAN_LENGTH, new Random(3));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length);
+        buffer.put(jpeg);
+        buffer.flip();
+        createExif().writeExif(buffer, mFile.getPath());
+        assertSameBytes(writeWholeImage(jpeg), read(mFile));
+        assertEquals(0, buffer.position());
+    }
+}
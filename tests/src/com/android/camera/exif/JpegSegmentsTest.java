@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link JpegSegments}.
+ */
+@SmallTest
+public class JpegSegmentsTest extends TestCase {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int APP0 = 0xe0;
+    private static final int APP1 = 0xe1;
+    private static final int APP15 = 0xef;
+    private static final String GUID = "0123456789ABCDEF0123456789ABCDEF";
+    private static final String EXTENDED_XMP = "<x:xmpmeta>extended</x:xmpmeta>";
+    /** A big endian TIFF header and IFD0 with only an orientation of 6. */
+    private static final byte[] TIFF = new byte[] {
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            0, 1,
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 6, 0, 0,
+            0, 0, 0, 0 };
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] data) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((data.length + 2) >> 8);
+        out.write((data.length + 2) & 0xff);
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] concat(String identifier, byte[] data) {
+        byte[] header = identifier.getBytes(US_ASCII);
+        byte[] result = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, result, header.length, data.length);
+        return result;
+    }
+
+    private static byte[] extendedXmpChunk(int offset, int length) {
+        byte[] xmp = EXTENDED_XMP.getBytes(US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocate(GUID.length() + 8 + length);
+        chunk.put(GUID.getBytes(US_ASCII));
+        chunk.putInt(xmp.length);
+        chunk.putInt(offset);
+        chunk.put(xmp, offset, length);
+        return concat("http://ns.adobe.com/xmp/extension/\0", chunk.array());
+    }
+
+    /**
+     * Creates a JPEG with extended XMP, JFIF, EXIF and XMP segments, and a
+     * table segment which is not an application segment.
+     */
+    private static byte[] createJpeg() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, APP1, extendedXmpChunk(10, EXTENDED_XMP.length() - 10));
+        writeSegment(out, APP0, "JFIF\0\1\1".getBytes(US_ASCII));
+        writeSegment(out, APP1, concat("Exif\0\0", TIFF));
+        // Fill bytes may precede a marker.
+        out.write(0xff);
+        writeSegment(out, APP1,
+                concat("http://ns.adobe.com/xap/1.0/\0", "<x:xmpmeta/>".getBytes(US_ASCII)));
+        writeSegment(out, APP1, extendedXmpChunk(0, 10));
+        writeSegment(out, 0xdb, new byte[64]);
+        writeSegment(out, APP15, new byte[] { 1, 2, 3 });
+        writeSegment(out, 0xda, new byte[] { 1, 0, 0 });
+        out.write(new byte[] { 0x12, 0x34, (byte) 0xff, (byte) 0xd9 }, 0, 4);
+        return out.toByteArray();
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, US_ASCII);
+    }
+
+    public void testFindsStandardXmp() throws Exception {
+        JpegSegments segments = JpegSegments.read(new ByteArrayInputStream(createJpeg()));
+        ByteBuffer xmp = segments.getXmp();
+        assertEquals("<x:xmpmeta/>", toString(xmp));
+        assertTrue(xmp.isReadOnly());
+    }
+
+    public void testStopsAtStartOfScan() throws Exception {
+        ByteArrayInputStream stream = new ByteArrayInputStream(createJpeg());
+        JpegSegments.read(stream);
+        // Nothing after the start of scan marker is read.
+        assertEquals(9, stream.available());
+    }
+
+    public void testReturnsNullWithoutXmp() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        writeSegment(out, APP1, concat("Exif\0\0", TIFF));
+        writeSegment(out, 0xda, new byte[] { 1, 0, 0 });
+        assertNull(JpegSegments.read(new ByteArrayInputStream(out.toByteArray())).getXmp());
+    }
+
+    public void testKeepsSegmentsBeforeTruncation() throws Exception {
+        byte[] jpeg = createJpeg();
+        int xmpEnd = new String(jpeg, US_ASCII).indexOf("<x:xmpmeta/>")
+                + "<x:xmpmeta/>".length();
+        // Cut the XMP segment short, then the extended XMP segment after it.
+        byte[] truncated = Arrays.copyOf(jpeg, xmpEnd - 1);
+        assertNull(JpegSegments.read(new ByteArrayInputStream(truncated)).getXmp());
+        truncated = Arrays.copyOf(jpeg, xmpEnd + 20);
+        assertEquals("<x:xmpmeta/>",
+                toString(JpegSegments.read(new ByteArrayInputStream(truncated)).getXmp()));
+    }
+
+    public void testRejectsNonJpeg() throws Exception {
+        try {
+            JpegSegments.read(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
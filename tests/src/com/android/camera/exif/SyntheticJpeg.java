@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Creates JPEG files with the marker segments a camera writes and random
+ * entropy-coded data of a given size.
+ */
+final class SyntheticJpeg {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    /** A big endian TIFF header and IFD0 with only an orientation of 6. */
+    private static final byte[] TIFF = new byte[] {
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            0, 1,
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 6, 0, 0,
+            0, 0, 0, 0 };
+
+    private SyntheticJpeg() {
+    }
+
+    /**
+     * @param withExif Whether the image has an exif segment already.
+     * @param scanLength The number of bytes of entropy-coded data.
+     */
+    static byte[] create(boolean withExif, int scanLength, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(scanLength + 1024);
+        out.write(0xff);
+        out.write(JpegHeader.SOI & 0xff);
+        writeSegment(out, JpegHeader.APP0 & 0xff, "JFIF\0\1\1\0\0\1\0\1\0\0".getBytes(US_ASCII));
+        if (withExif) {
+            byte[] exif = new byte[6 + TIFF.length];
+            System.arraycopy("Exif\0\0".getBytes(US_ASCII), 0, exif, 0, 6);
+            System.arraycopy(TIFF, 0, exif, 6, TIFF.length);
+            writeSegment(out, JpegHeader.APP1 & 0xff, exif);
+        }
+        // Quantization table.
+        writeSegment(out, 0xdb, new byte[65]);
+        // Baseline frame of 4000x3000 with 3 components.
+        writeSegment(out, 0xc0, new byte[] {
+                8, 0x0b, (byte) 0xb8, 0x0f, (byte) 0xa0, 3,
+                1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+        writeSegment(out, 0xda, new byte[] { 3, 1, 0, 2, 0x11, 3, 0x11, 0, 0x3f, 0 });
+
+        byte[] scan = new byte[scanLength];
+        random.nextBytes(scan);
+        for (int i = 0; i < scan.length; i++) {
+            // Keep markers out of the entropy-coded data.
+            if (scan[i] == (byte) 0xff) {
+                scan[i] = 0;
+            }
+        }
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(JpegHeader.EOI & 0xff);
+        return out.toByteArray();
+    }
+
+    static void write(byte[] jpeg, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(jpeg);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] data) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((data.length + 2) >> 8);
+        out.write((data.length + 2) & 0xff);
+        out.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.core;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the contention metrics of {@link FrameServerImpl}.
+ */
+@SmallTest
+public class FrameServerImplTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    /** A capture session which drops every request. */
+    private static final FrameServer.Session NO_OP_SESSION = new FrameServer.Session() {
+        @Override
+        public void submitRequest(List<Request> burstRequests,
+                FrameServer.RequestType type) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    public void testCountsSessions() throws Exception {
+        FrameServerImpl frameServer = new FrameServerImpl(NO_OP_SESSION);
+        frameServer.createExclusiveSession().close();
+        frameServer.tryCreateExclusiveSession().close();
+
+        assertEquals(2, frameServer.getSessionCount());
+        assertEquals(0, frameServer.getQueueDepth());
+    }
+
+    public void testFailedTryCreateIsNotCounted() throws Exception {
+        final FrameServerImpl frameServer = new FrameServerImpl(NO_OP_SESSION);
+        FrameServer.Session session = frameServer.createExclusiveSession();
+        final FrameServer.Session[] tried = new FrameServer.Session[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tried[0] = frameServer.tryCreateExclusiveSession();
+            }
+        });
+        thread.start();
+        thread.join(TIMEOUT_MS);
+        session.close();
+
+        assertNull(tried[0]);
+        assertEquals(1, frameServer.getSessionCount());
+    }
+
+    public void testReportsBlockedSessionsAndWaitTime() throws Exception {
+        final FrameServerImpl frameServer = new FrameServerImpl(NO_OP_SESSION);
+        FrameServer.Session session = frameServer.createExclusiveSession();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    frameServer.createExclusiveSession().close();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waiter.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (frameServer.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, frameServer.getQueueDepth());
+        long heldNanos = System.nanoTime();
+        Thread.sleep(20);
+        heldNanos = System.nanoTime() - heldNanos;
+        session.close();
+
+        assertTrue(acquired.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, frameServer.getQueueDepth());
+        assertEquals(2, frameServer.getSessionCount());
+        assertTrue(frameServer.getTotalLockWaitNanos() >= heldNanos);
+    }
+}
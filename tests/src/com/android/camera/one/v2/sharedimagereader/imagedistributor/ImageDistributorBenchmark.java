@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.imagedistributor;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.async.ConcurrentBufferQueue;
+import com.android.camera.debug.Loggers;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the cost of routing images through {@link ImageDistributorImpl}
+ * with several concurrent image streams, simulating a 60 fps camera.
+ */
+@LargeTest
+public class ImageDistributorBenchmark extends TestCase {
+    private static final String TAG = "ImageDistributorBench";
+    private static final long FRAME_INTERVAL_NS = 1000000000L / 60;
+    private static final int WARMUP_FRAMES = 600;
+    private static final int MEASURED_FRAMES = 6000;
+
+    private static class FakeImage implements ImageProxy {
+        private final long mTimestamp;
+        private final AtomicInteger mClosedCount;
+
+        private FakeImage(long timestamp, AtomicInteger closedCount) {
+            mTimestamp = timestamp;
+            mClosedCount = closedCount;
+        }
+
+        @Override
+        public Rect getCropRect() {
+            return new Rect();
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            mClosedCount.incrementAndGet();
+        }
+    }
+
+    public void testOneStream() throws Exception {
+        runBenchmark(1);
+    }
+
+    public void testFourStreams() throws Exception {
+        runBenchmark(4);
+    }
+
+    public void testSixteenStreams() throws Exception {
+        runBenchmark(16);
+    }
+
+    /**
+     * Every stream requests every other frame, alternating between streams,
+     * so each image is routed to about half of the streams.
+     */
+    private void runBenchmark(int streamCount) throws Exception {
+        ConcurrentBufferQueue<Long> globalTimestamps = new ConcurrentBufferQueue<>();
+        ImageDistributorImpl distributor = new ImageDistributorImpl(Loggers.noOpFactory(),
+                globalTimestamps);
+
+        List<ConcurrentBufferQueue<Long>> routeTimestamps = new ArrayList<>();
+        List<ConcurrentBufferQueue<ImageProxy>> routeImages = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            ConcurrentBufferQueue<Long> timestamps = new ConcurrentBufferQueue<>();
+            ConcurrentBufferQueue<ImageProxy> images = new ConcurrentBufferQueue<>();
+            distributor.addRoute(timestamps, images);
+            routeTimestamps.add(timestamps);
+            routeImages.add(images);
+        }
+
+        AtomicInteger closedCount = new AtomicInteger();
+        int totalFrames = WARMUP_FRAMES + MEASURED_FRAMES;
+        long measuredNanos = 0;
+        int expectedDeliveries = 0;
+        int deliveries = 0;
+        publishTimestamps(0, routeTimestamps, globalTimestamps);
+        for (int frame = 0; frame < totalFrames; frame++) {
+            boolean measured = frame >= WARMUP_FRAMES;
+            for (int stream = 0; stream < streamCount; stream++) {
+                if (measured && isRequested(frame, stream)) {
+                    expectedDeliveries++;
+                }
+            }
+            // An image is only distributed once the timestamps of the next
+            // frame have been published.
+            publishTimestamps(frame + 1, routeTimestamps, globalTimestamps);
+
+            long start = System.nanoTime();
+            distributor.distributeImage(new FakeImage(timestampOf(frame), closedCount));
+            long elapsed = System.nanoTime() - start;
+            if (measured) {
+                measuredNanos += elapsed;
+            }
+
+            for (ConcurrentBufferQueue<ImageProxy> images : routeImages) {
+                while (images.peekNext() != null) {
+                    if (measured) {
+                        deliveries++;
+                    }
+                    images.getNext().close();
+                }
+            }
+        }
+
+        assertEquals(expectedDeliveries, deliveries);
+        assertEquals(totalFrames, closedCount.get());
+
+        long nanosPerFrame = measuredNanos / MEASURED_FRAMES;
+        Log.i(TAG, String.format("%d streams: %d ns per image, %.4f%% of a 60 fps frame",
+                streamCount, nanosPerFrame, 100.0 * nanosPerFrame / FRAME_INTERVAL_NS));
+    }
+
+    private static long timestampOf(int frame) {
+        return (frame + 1) * FRAME_INTERVAL_NS;
+    }
+
+    private static boolean isRequested(int frame, int stream) {
+        return (frame + stream) % 2 == 0;
+    }
+
+    /**
+     * Publishes the timestamps of a frame in the order a CaptureSession does:
+     * to the routes requesting the frame, then to the global timestamp stream.
+     */
+    private static void publishTimestamps(int frame,
+            List<ConcurrentBufferQueue<Long>> routeTimestamps,
+            ConcurrentBufferQueue<Long> globalTimestamps) {
+        long timestamp = timestampOf(frame);
+        for (int stream = 0; stream < routeTimestamps.size(); stream++) {
+            if (isRequested(frame, stream)) {
+                routeTimestamps.get(stream).update(timestamp);
+            }
+        }
+        globalTimestamps.update(timestamp);
+    }
+}
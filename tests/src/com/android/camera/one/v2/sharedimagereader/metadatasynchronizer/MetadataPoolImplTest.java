@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.metadatasynchronizer;
+
+import android.hardware.camera2.CaptureResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.one.v2.camera2proxy.CaptureRequestProxy;
+import com.android.camera.one.v2.camera2proxy.CaptureResultProxy;
+import com.android.camera.one.v2.camera2proxy.TotalCaptureResultProxy;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for {@link MetadataPoolImpl}.
+ */
+@SmallTest
+public class MetadataPoolImplTest extends TestCase {
+    private static final int CAPACITY = 3;
+
+    /** A capture result which only has a sensor timestamp. */
+    private static class FakeCaptureResult implements TotalCaptureResultProxy {
+        private final long mTimestamp;
+
+        FakeCaptureResult(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T get(CaptureResult.Key<T> key) {
+            if (key == CaptureResult.SENSOR_TIMESTAMP) {
+                return (T) Long.valueOf(mTimestamp);
+            }
+            return null;
+        }
+
+        @Override
+        public List<CaptureResult.Key<?>> getKeys() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public CaptureRequestProxy getRequest() {
+            return null;
+        }
+
+        @Override
+        public long getFrameNumber() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getSequenceId() {
+            return 0;
+        }
+
+        @Override
+        public List<CaptureResultProxy> getPartialResults() {
+            return Collections.emptyList();
+        }
+    }
+
+    private final MetadataPoolImpl mPool = new MetadataPoolImpl(CAPACITY);
+
+    public void testMetadataArrivingBeforeRequestIsReturned() throws Exception {
+        FakeCaptureResult metadata = new FakeCaptureResult(1);
+        mPool.update(metadata);
+        ListenableFuture<TotalCaptureResultProxy> future = mPool.removeMetadataFuture(1);
+        assertSame(metadata, future.get());
+        assertEquals(0, mPool.getMapSize());
+    }
+
+    public void testRequestCompletesWhenMetadataArrives() throws Exception {
+        ListenableFuture<TotalCaptureResultProxy> future = mPool.removeMetadataFuture(1);
+        assertFalse(future.isDone());
+        assertEquals(1, mPool.getMapSize());
+
+        FakeCaptureResult metadata = new FakeCaptureResult(1);
+        mPool.update(metadata);
+        assertSame(metadata, future.get());
+        assertEquals(0, mPool.getMapSize());
+    }
+
+    public void testOldestEntriesExpireAtCapacity() throws Exception {
+        for (long timestamp = 1; timestamp <= 5; timestamp++) {
+            mPool.update(new FakeCaptureResult(timestamp));
+            assertTrue(mPool.getMapSize() <= CAPACITY);
+        }
+        assertEquals(CAPACITY, mPool.getMapSize());
+        assertTrue(mPool.removeMetadataFuture(1).isCancelled());
+        assertTrue(mPool.removeMetadataFuture(2).isCancelled());
+        for (long timestamp = 3; timestamp <= 5; timestamp++) {
+            assertEquals(Long.valueOf(timestamp),
+                    mPool.removeMetadataFuture(timestamp).get().get(
+                            CaptureResult.SENSOR_TIMESTAMP));
+        }
+        assertEquals(0, mPool.getMapSize());
+    }
+
+    public void testOutOfOrderMetadataExpiresOldestTimestamp() throws Exception {
+        mPool.update(new FakeCaptureResult(4));
+        mPool.update(new FakeCaptureResult(2));
+        mPool.update(new FakeCaptureResult(3));
+        mPool.update(new FakeCaptureResult(5));
+        assertTrue(mPool.removeMetadataFuture(2).isCancelled());
+        assertTrue(mPool.removeMetadataFuture(4).isDone());
+        assertFalse(mPool.removeMetadataFuture(4).isCancelled());
+    }
+
+    public void testPendingRequestIsCancelledWhenItsEntryExpires() {
+        ListenableFuture<TotalCaptureResultProxy> future = mPool.removeMetadataFuture(1);
+        for (long timestamp = 2; timestamp <= CAPACITY; timestamp++) {
+            mPool.update(new FakeCaptureResult(timestamp));
+            assertFalse(future.isDone());
+        }
+        // The metadata of frame 1 never arrives.
+        mPool.update(new FakeCaptureResult(CAPACITY + 1));
+        assertTrue(future.isCancelled());
+        assertEquals(CAPACITY, mPool.getMapSize());
+    }
+
+    public void testCancellingRequestDoesNotAffectThePool() throws Exception {
+        ListenableFuture<TotalCaptureResultProxy> future = mPool.removeMetadataFuture(1);
+        assertFalse(future.cancel(true));
+        FakeCaptureResult metadata = new FakeCaptureResult(1);
+        mPool.update(metadata);
+        assertSame(metadata, future.get());
+    }
+
+    public void testExpiredTimestampsAreNotReAdded() {
+        for (long timestamp = 1; timestamp <= CAPACITY + 2; timestamp++) {
+            mPool.update(new FakeCaptureResult(timestamp));
+        }
+        int size = mPool.getMapSize();
+
+        // Late metadata of an expired frame is dropped.
+        mPool.update(new FakeCaptureResult(1));
+        assertEquals(size, mPool.getMapSize());
+        assertTrue(mPool.removeMetadataFuture(1).isCancelled());
+
+        // So is a request for a frame older than the expired ones.
+        assertTrue(mPool.removeMetadataFuture(0).isCancelled());
+        assertEquals(size, mPool.getMapSize());
+    }
+
+    public void testNewerTimestampsAreStillAdded() {
+        for (long timestamp = 1; timestamp <= CAPACITY + 1; timestamp++) {
+            mPool.update(new FakeCaptureResult(timestamp));
+        }
+        ListenableFuture<TotalCaptureResultProxy> future =
+                mPool.removeMetadataFuture(CAPACITY + 2);
+        assertFalse(future.isDone());
+        mPool.update(new FakeCaptureResult(CAPACITY + 2));
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.one.v2.sharedimagereader.ringbuffer;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.app.MemoryManager;
+import com.android.camera.async.ConcurrentState;
+import com.android.camera.async.Updatable;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link AdaptiveTicketBudget}.
+ */
+@SmallTest
+public class AdaptiveTicketBudgetTest extends TestCase {
+    private static final int CAPACITY = 10;
+    private static final int MIN_SIZE = 1;
+    private static final int MAX_SIZE = 8;
+    /** 30 fps. */
+    private static final long FRAME_INTERVAL_NANOS = 33333333L;
+
+    /** Records the latest ring-buffer size. */
+    private static class SizeRecorder implements Updatable<Integer> {
+        int mSize = -1;
+
+        @Override
+        public void update(Integer size) {
+            mSize = size;
+        }
+    }
+
+    private final SizeRecorder mSize = new SizeRecorder();
+    private final ConcurrentState<Integer> mRootAvailable = new ConcurrentState<>(CAPACITY);
+    private final ConcurrentState<Integer> mRingBufferAvailable =
+            new ConcurrentState<>(CAPACITY);
+    private long mTimestamp = TimeUnit.SECONDS.toNanos(1);
+
+    private AdaptiveTicketBudget createBudget() {
+        return new AdaptiveTicketBudget(mSize, mRootAvailable, mRingBufferAvailable,
+                CAPACITY, MIN_SIZE, MAX_SIZE);
+    }
+
+    private void captureFrames(AdaptiveTicketBudget budget, int count) {
+        Updatable<Long> timestamps = budget.provideTimestampCallback();
+        for (int i = 0; i < count; i++) {
+            mTimestamp += FRAME_INTERVAL_NANOS;
+            timestamps.update(mTimestamp);
+        }
+    }
+
+    private static int size(long lookBackNanos, int ringBufferAvailable) {
+        return AdaptiveTicketBudget.computeTargetSize(lookBackNanos, FRAME_INTERVAL_NANOS,
+                CAPACITY, ringBufferAvailable, MIN_SIZE, MAX_SIZE);
+    }
+
+    public void testHoldsOnlyNewestFrameWithoutLookBack() {
+        assertEquals(1, size(0, CAPACITY));
+        assertEquals(1, AdaptiveTicketBudget.computeTargetSize(0, 0f, CAPACITY, CAPACITY,
+                MIN_SIZE, MAX_SIZE));
+    }
+
+    public void testGrowsWithLookBack() {
+        // One frame back, plus the newest and a spare frame.
+        assertEquals(3, size(FRAME_INTERVAL_NANOS, CAPACITY));
+        assertEquals(5, size(3 * FRAME_INTERVAL_NANOS, CAPACITY));
+        // Timestamp jitter rounds to whole frames.
+        assertEquals(3, size(FRAME_INTERVAL_NANOS * 9 / 10, CAPACITY));
+        assertEquals(1, size(FRAME_INTERVAL_NANOS / 10, CAPACITY));
+    }
+
+    public void testIgnoresLookBackUntilFrameRateIsKnown() {
+        assertEquals(1, AdaptiveTicketBudget.computeTargetSize(FRAME_INTERVAL_NANOS, 0f,
+                CAPACITY, CAPACITY, MIN_SIZE, MAX_SIZE));
+    }
+
+    public void testClampsToMinAndMaxSize() {
+        assertEquals(MAX_SIZE, size(TimeUnit.SECONDS.toNanos(1), CAPACITY));
+        assertEquals(2, AdaptiveTicketBudget.computeTargetSize(0, FRAME_INTERVAL_NANOS,
+                CAPACITY, CAPACITY, 2, MAX_SIZE));
+    }
+
+    public void testLeavesHeadroomForOtherStreams() {
+        // Others hold 4 tickets, leaving 6 of which one is headroom.
+        assertEquals(5, size(TimeUnit.SECONDS.toNanos(1), CAPACITY - 4));
+        // The minimum size is kept even when others hold every ticket.
+        assertEquals(MIN_SIZE, size(TimeUnit.SECONDS.toNanos(1), 0));
+    }
+
+    public void testStartsAtMinimumAndStaysThereWithoutLookBack() {
+        AdaptiveTicketBudget budget = createBudget();
+        assertEquals(MIN_SIZE, mSize.mSize);
+        captureFrames(budget, 30);
+        assertEquals(1, mSize.mSize);
+        assertEquals(1, budget.getMetrics().getRingBufferMaxSize());
+    }
+
+    public void testLookBackGrowsAndThenDecays() {
+        AdaptiveTicketBudget budget = createBudget();
+        captureFrames(budget, 10);
+        budget.provideLookBackCallback().update(2 * FRAME_INTERVAL_NANOS);
+        captureFrames(budget, 1);
+        assertEquals(4, mSize.mSize);
+
+        // Captures which use the newest frame let the look-back decay.
+        for (int i = 0; i < 20; i++) {
+            budget.provideLookBackCallback().update(0L);
+        }
+        captureFrames(budget, 1);
+        assertEquals(1, mSize.mSize);
+    }
+
+    public void testLowMemoryHoldsMinimumSize() {
+        AdaptiveTicketBudget budget = createBudget();
+        captureFrames(budget, 10);
+        budget.provideLookBackCallback().update(4 * FRAME_INTERVAL_NANOS);
+        captureFrames(budget, 1);
+        assertEquals(6, mSize.mSize);
+
+        budget.onMemoryStateChanged(MemoryManager.STATE_LOW_MEMORY);
+        captureFrames(budget, 1);
+        assertEquals(MIN_SIZE, mSize.mSize);
+        assertTrue(budget.getMetrics().isLowMemory());
+
+        budget.onMemoryStateChanged(MemoryManager.STATE_OK);
+        captureFrames(budget, 1);
+        assertEquals(6, mSize.mSize);
+    }
+
+    public void testLowMemoryWarningHoldsMinimumSizeForAWhile() {
+        AdaptiveTicketBudget budget = createBudget();
+        captureFrames(budget, 10);
+        budget.provideLookBackCallback().update(4 * FRAME_INTERVAL_NANOS);
+        budget.onLowMemory();
+        captureFrames(budget, 1);
+        assertEquals(MIN_SIZE, mSize.mSize);
+
+        // Still held after 5 seconds, released after 10.
+        captureFrames(budget, 150);
+        assertEquals(MIN_SIZE, mSize.mSize);
+        captureFrames(budget, 160);
+        assertTrue(mSize.mSize > MIN_SIZE);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.app.OrientationManager;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the image reference tracking of {@link ImageBackend} with 2, 4
+ * and 8 workers releasing references at the same time, and compares it to
+ * the same tracking behind one global monitor, as ImageBackend used to do.
+ * <p>
+ * Each worker repeatedly takes a reference count on an image of its own,
+ * adds references as a task spawning dependent tasks does, and releases
+ * them all.
+ */
+@LargeTest
+public class ImageBackendContentionBenchmark extends TestCase {
+    private static final String TAG = "ImageBackendBench";
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int MEASURED_ROUNDS = 200000;
+    private static final long TIMEOUT_SECONDS = 120;
+
+    private static class FakeImage implements ImageProxy {
+        @Override
+        public Rect getCropRect() {
+            return new Rect();
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** ImageBackend without logging, so that only the tracking is measured. */
+    private static class QuietImageBackend extends ImageBackend {
+        QuietImageBackend() {
+            super(null, null, null, null, null, null, 64);
+        }
+
+        @Override
+        public void logWrapper(String message) {
+        }
+    }
+
+    /** Serializes all reference changes on one monitor. */
+    private static class GlobalMonitorImageBackend extends QuietImageBackend {
+        private final Object mMonitor = new Object();
+
+        @Override
+        protected ImageReleaseProtocol setSemaphoreReferenceCount(ImageToProcess img,
+                int count, boolean blockUntilRelease, boolean closeOnRelease) {
+            synchronized (mMonitor) {
+                return super.setSemaphoreReferenceCount(img, count, blockUntilRelease,
+                        closeOnRelease);
+            }
+        }
+
+        @Override
+        protected void incrementSemaphoreReferenceCount(ImageToProcess img, int count) {
+            synchronized (mMonitor) {
+                super.incrementSemaphoreReferenceCount(img, count);
+            }
+        }
+
+        @Override
+        public void releaseSemaphoreReference(ImageToProcess img, Executor executor) {
+            synchronized (mMonitor) {
+                super.releaseSemaphoreReference(img, executor);
+            }
+        }
+    }
+
+    public void testTwoThreads() throws Exception {
+        compare(2);
+    }
+
+    public void testFourThreads() throws Exception {
+        compare(4);
+    }
+
+    public void testEightThreads() throws Exception {
+        compare(8);
+    }
+
+    private void compare(int threadCount) throws Exception {
+        long monitorNs = run(new GlobalMonitorImageBackend(), threadCount);
+        long concurrentNs = run(new QuietImageBackend(), threadCount);
+        Log.i(TAG, String.format("%d threads: global monitor %d ns, ImageBackend %d ns"
+                + " per image", threadCount, monitorNs, concurrentNs));
+    }
+
+    /**
+     * @return The wall time per image of all threads together, in
+     *         nanoseconds.
+     */
+    private long run(final ImageBackend backend, int threadCount) throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ImageToProcess img = new ImageToProcess(new FakeImage(),
+                            OrientationManager.DeviceOrientation.CLOCKWISE_0, null, new Rect());
+                    runRounds(backend, img, WARMUP_ROUNDS);
+                    ready.countDown();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    runRounds(backend, img, MEASURED_ROUNDS);
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(ready.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long startNs = System.nanoTime();
+        start.countDown();
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long elapsedNs = System.nanoTime() - startNs;
+        assertEquals(0, backend.getNumberOfReservedOpenImages());
+        return elapsedNs / ((long) MEASURED_ROUNDS * threadCount);
+    }
+
+    private static void runRounds(ImageBackend backend, ImageToProcess img, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            backend.setSemaphoreReferenceCount(img, 1, false, true);
+            backend.incrementSemaphoreReferenceCount(img, 2);
+            for (int i = 0; i < 3; i++) {
+                backend.releaseSemaphoreReference(img, null);
+            }
+        }
+    }
+}
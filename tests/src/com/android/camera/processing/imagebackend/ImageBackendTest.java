@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.app.OrientationManager;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.ProcessingTask;
+import com.android.camera.processing.ProcessingTaskConsumer;
+import com.android.camera.session.CaptureSession;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the image release protocol of {@link ImageBackend}.
+ */
+@SmallTest
+public class ImageBackendTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+    /** How long closing an image takes, to widen the window of a race. */
+    private static final long CLOSE_DELAY_MS = 10;
+
+    private static class FakeImage implements ImageProxy {
+        private final Semaphore mClosed = new Semaphore(0);
+
+        @Override
+        public Rect getCropRect() {
+            return new Rect();
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            mClosed.release();
+        }
+    }
+
+    /** A task which only releases its reference to the image. */
+    private static class ReleasingTask extends TaskImageContainer {
+        ReleasingTask(ImageToProcess image, Executor executor, ImageTaskManager manager,
+                CaptureSession session) {
+            super(image, executor, manager, ProcessingPriority.FAST, session);
+        }
+
+        @Override
+        public void run() {
+            mImageTaskManager.releaseSemaphoreReference(mImage, mExecutor);
+        }
+    }
+
+    /** Closes images on a thread of their own, after a delay. */
+    private static final Executor DELAYED_CLOSE_EXECUTOR = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(CLOSE_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    command.run();
+                }
+            }).start();
+        }
+    };
+
+    private ExecutorService mExecutor;
+    private ImageBackend mImageBackend;
+    private CaptureSession mSession;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mImageBackend = new ImageBackend(mExecutor, mExecutor, mExecutor, null, null,
+                new ProcessingTaskConsumer() {
+                    @Override
+                    public void enqueueTask(ProcessingTask task) {
+                    }
+                }, 64);
+        mSession = createSession();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        assertTrue(mExecutor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        super.tearDown();
+    }
+
+    /**
+     * Only equals and hashCode are used, as ImageBackend keys its shadow
+     * tasks by session.
+     */
+    private static CaptureSession createSession() {
+        return (CaptureSession) Proxy.newProxyInstance(CaptureSession.class.getClassLoader(),
+                new Class<?>[] { CaptureSession.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private boolean submit(ImageToProcess img, Executor closeExecutor)
+            throws InterruptedException {
+        return mImageBackend.receiveImage(img,
+                new ReleasingTask(img, closeExecutor, mImageBackend, mSession), true, true);
+    }
+
+    public void testBlockingReceiveReturnsOnceImageIsClosed() throws Exception {
+        FakeImage image = new FakeImage();
+        ImageToProcess img = new ImageToProcess(image,
+                OrientationManager.DeviceOrientation.CLOCKWISE_0, null, new Rect());
+        for (int i = 0; i < 20; i++) {
+            // Resubmitting the image right away would fail if the image were
+            // still in the map, or its protocol still in use.
+            assertTrue(submit(img, DELAYED_CLOSE_EXECUTOR));
+            assertTrue(image.mClosed.tryAcquire());
+        }
+        assertTrue(mImageBackend.mImageSemaphoreMap.isEmpty());
+    }
+
+    public void testInterruptedReceiveStillReleasesImage() throws Exception {
+        FakeImage image = new FakeImage();
+        ImageToProcess img = new ImageToProcess(image,
+                OrientationManager.DeviceOrientation.CLOCKWISE_0, null, new Rect());
+        // Holds the close back until the blocked call has been interrupted.
+        final List<Runnable> pendingCloses = new ArrayList<>();
+        Executor heldCloseExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                synchronized (pendingCloses) {
+                    pendingCloses.add(command);
+                }
+            }
+        };
+        Thread.currentThread().interrupt();
+        try {
+            submit(img, heldCloseExecutor);
+            fail();
+        } catch (InterruptedException e) {
+            // Expected.
+        }
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        synchronized (pendingCloses) {
+            assertEquals(1, pendingCloses.size());
+            pendingCloses.get(0).run();
+        }
+        assertTrue(image.mClosed.tryAcquire());
+
+        assertTrue(submit(img, DELAYED_CLOSE_EXECUTOR));
+        assertTrue(image.mClosed.tryAcquire());
+    }
+}
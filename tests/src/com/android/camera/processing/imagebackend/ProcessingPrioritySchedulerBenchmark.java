@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.processing.imagebackend.TaskImageContainer.ProcessingPriority;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the tasks ImageBackend runs for a burst of captures on the three
+ * fixed pools it used to have and on a {@link ProcessingPriorityScheduler},
+ * and compares the time to finish the burst and the latency of each
+ * priority.
+ * <p>
+ * Per capture, the trace has the tasks TaskConvertImageToRGBPreview runs for
+ * the tiny thumbnail (FAST) and the filmstrip preview (AVERAGE), and the
+ * TaskCompressImageToJpeg run (SLOW). Their run times are simulated by
+ * keeping the CPU busy.
+ */
+@LargeTest
+public class ProcessingPrioritySchedulerBenchmark extends TestCase {
+    private static final String TAG = "ProcSchedulerBench";
+    private static final int OLD_THREADS_PER_POOL = 2;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    /** {capture interval, thumbnail, preview, jpeg} in microseconds. */
+    private static final long[] BURST_TRACE_US = { 100000, 3000, 9000, 70000 };
+    private static final int BURST_SHOTS = 30;
+
+    /** A single capture every so often, with a large JPEG. */
+    private static final long[] SINGLE_SHOT_TRACE_US = { 400000, 3000, 12000, 180000 };
+    private static final int SINGLE_SHOTS = 8;
+
+    private static class Result {
+        long mMakespanUs;
+        final long[][] mLatenciesUs = new long[ProcessingPriority.values().length][];
+    }
+
+    /** Runs tasks of each priority on an executor of its own. */
+    private interface PriorityExecutors {
+        ExecutorService get(ProcessingPriority priority);
+
+        void shutdown() throws InterruptedException;
+    }
+
+    public void testBurst() throws Exception {
+        compare("burst", BURST_TRACE_US, BURST_SHOTS);
+    }
+
+    public void testSingleShots() throws Exception {
+        compare("single shots", SINGLE_SHOT_TRACE_US, SINGLE_SHOTS);
+    }
+
+    private void compare(String name, long[] trace, int shots) throws Exception {
+        Result fixedPools = replay(createFixedPools(), trace, shots);
+        Result scheduler = replay(createScheduler(), trace, shots);
+        report(name + ", 3 fixed pools", fixedPools);
+        report(name + ", scheduler", scheduler);
+    }
+
+    private static PriorityExecutors createFixedPools() {
+        final ExecutorService[] pools = new ExecutorService[ProcessingPriority.values().length];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = Executors.newFixedThreadPool(OLD_THREADS_PER_POOL);
+        }
+        return new PriorityExecutors() {
+            @Override
+            public ExecutorService get(ProcessingPriority priority) {
+                return pools[priority.ordinal()];
+            }
+
+            @Override
+            public void shutdown() throws InterruptedException {
+                for (ExecutorService pool : pools) {
+                    pool.shutdown();
+                    pool.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+        };
+    }
+
+    private static PriorityExecutors createScheduler() {
+        final ProcessingPriorityScheduler scheduler = new ProcessingPriorityScheduler();
+        return new PriorityExecutors() {
+            @Override
+            public ExecutorService get(ProcessingPriority priority) {
+                return scheduler.getExecutor(priority);
+            }
+
+            @Override
+            public void shutdown() throws InterruptedException {
+                scheduler.shutdown();
+                scheduler.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        };
+    }
+
+    private static Result replay(PriorityExecutors executors, long[] trace, int shots)
+            throws Exception {
+        ProcessingPriority[] priorities = ProcessingPriority.values();
+        final Result result = new Result();
+        for (int p = 0; p < priorities.length; p++) {
+            result.mLatenciesUs[p] = new long[shots];
+        }
+        final CountDownLatch done = new CountDownLatch(shots * priorities.length);
+        long startNs = System.nanoTime();
+        for (int shot = 0; shot < shots; shot++) {
+            long dueNs = startNs + TimeUnit.MICROSECONDS.toNanos(shot * trace[0]);
+            long sleepMs = TimeUnit.NANOSECONDS.toMillis(dueNs - System.nanoTime());
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            }
+            final long submitNs = System.nanoTime();
+            for (int p = 0; p < priorities.length; p++) {
+                final long[] latencies = result.mLatenciesUs[p];
+                final int index = shot;
+                final long busyNs = TimeUnit.MICROSECONDS.toNanos(trace[p + 1]);
+                executors.get(priorities[p]).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        spin(busyNs);
+                        latencies[index] = TimeUnit.NANOSECONDS.toMicros(
+                                System.nanoTime() - submitNs);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        result.mMakespanUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNs);
+        executors.shutdown();
+        return result;
+    }
+
+    private static void spin(long durationNs) {
+        long endNs = System.nanoTime() + durationNs;
+        while (System.nanoTime() < endNs) {
+            // Busy, like an image conversion.
+        }
+    }
+
+    private static void report(String name, Result result) {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("%s: %d ms total", name, result.mMakespanUs / 1000));
+        ProcessingPriority[] priorities = ProcessingPriority.values();
+        for (int p = 0; p < priorities.length; p++) {
+            long[] latencies = result.mLatenciesUs[p].clone();
+            Arrays.sort(latencies);
+            long sum = 0;
+            for (long latency : latencies) {
+                sum += latency;
+            }
+            line.append(String.format(", %s mean %.1f ms p95 %.1f ms", priorities[p],
+                    sum / 1000.0 / latencies.length,
+                    latencies[(latencies.length * 95 - 1) / 100] / 1000.0));
+        }
+        Log.i(TAG, line.toString());
+    }
+}
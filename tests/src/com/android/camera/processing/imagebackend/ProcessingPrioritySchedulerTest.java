@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.processing.imagebackend.TaskImageContainer.ProcessingPriority;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ProcessingPriorityScheduler}.
+ */
+@SmallTest
+public class ProcessingPrioritySchedulerTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private ProcessingPriorityScheduler mScheduler;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mScheduler != null) {
+            mScheduler.shutdownNow();
+            assertTrue(mScheduler.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Queues a task which keeps the only worker busy until the returned latch
+     * is counted down.
+     */
+    private CountDownLatch blockWorker() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, ProcessingPriority.FAST);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    public void testWorkerSurvivesFailingTasks() throws Exception {
+        mScheduler = new ProcessingPriorityScheduler(1);
+        for (int i = 0; i < 3; i++) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("Task failure");
+                }
+            }, ProcessingPriority.SLOW);
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, ProcessingPriority.SLOW);
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, mScheduler.getQueuedTaskCount());
+    }
+
+    public void testRunsHigherPrioritiesFirst() throws Exception {
+        mScheduler = new ProcessingPriorityScheduler(1);
+        CountDownLatch gate = blockWorker();
+
+        final List<ProcessingPriority> order =
+                Collections.synchronizedList(new ArrayList<ProcessingPriority>());
+        final CountDownLatch done = new CountDownLatch(3);
+        for (final ProcessingPriority priority : new ProcessingPriority[] {
+                ProcessingPriority.SLOW, ProcessingPriority.AVERAGE, ProcessingPriority.FAST }) {
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(priority);
+                    done.countDown();
+                }
+            }, priority);
+        }
+        assertEquals(3, mScheduler.getQueuedTaskCount());
+        gate.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(ProcessingPriority.FAST, ProcessingPriority.AVERAGE,
+                ProcessingPriority.SLOW), order);
+    }
+
+    public void testAgedTasksRunAheadOfNewerFastTasks() throws Exception {
+        mScheduler = new ProcessingPriorityScheduler(1);
+        CountDownLatch gate = blockWorker();
+
+        final List<ProcessingPriority> order =
+                Collections.synchronizedList(new ArrayList<ProcessingPriority>());
+        final CountDownLatch done = new CountDownLatch(2);
+        Runnable recordSlow = new Runnable() {
+            @Override
+            public void run() {
+                order.add(ProcessingPriority.SLOW);
+                done.countDown();
+            }
+        };
+        Runnable recordFast = new Runnable() {
+            @Override
+            public void run() {
+                order.add(ProcessingPriority.FAST);
+                done.countDown();
+            }
+        };
+        mScheduler.execute(recordSlow, ProcessingPriority.SLOW);
+        // Longer than the aging limit of SLOW tasks.
+        Thread.sleep(1000);
+        mScheduler.execute(recordFast, ProcessingPriority.FAST);
+        gate.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(ProcessingPriority.SLOW, ProcessingPriority.FAST), order);
+    }
+
+    public void testRunsTasksOfOnePriorityInOrder() throws Exception {
+        mScheduler = new ProcessingPriorityScheduler(1);
+        CountDownLatch gate = blockWorker();
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+            mScheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                    done.countDown();
+                }
+            }, ProcessingPriority.AVERAGE);
+        }
+        gate.countDown();
+
+        assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+    }
+
+    public void testShutdownNowDropsQueuedTasks() throws Exception {
+        mScheduler = new ProcessingPriorityScheduler(1);
+        CountDownLatch gate = blockWorker();
+        Runnable queued = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        mScheduler.execute(queued, ProcessingPriority.AVERAGE);
+
+        assertEquals(Arrays.asList(queued), mScheduler.shutdownNow());
+        try {
+            mScheduler.execute(queued, ProcessingPriority.FAST);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected.
+        }
+        gate.countDown();
+        assertTrue(mScheduler.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The single-threaded scalar conversion which TaskConvertImageToRGBPreview
+ * ran before {@link YuvToRgbPreviewKernel}, reading every sample with
+ * {@link ByteBuffer#get(int)}. Kept as the reference the kernel must match.
+ */
+final class SequentialYuvToRgb {
+    private SequentialYuvToRgb() {
+    }
+
+    static void convert(YuvToRgbPreviewKernel.Params p, int[] colors) {
+        int r = p.radius;
+        for (int j = p.inscribedYMin; j < p.inscribedYMax; j += 2) {
+            int offsetColor = (j - p.inscribedYMin) * p.outputPixelStride;
+            int offsetY = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    p.inscribedXMin, j, p.subsample, 1, p.yByteStride, p.yPixelStride,
+                    p.inputHorizontalOffset, p.inputVerticalOffset);
+            int offsetU = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    p.inscribedXMin, j, p.subsample, 2, p.uByteStride, p.uPixelStride,
+                    p.inputHorizontalOffset / 2, p.inputVerticalOffset / 2);
+            int offsetV = TaskConvertImageToRGBPreview.calculateMemoryOffsetFromPixelOffsets(
+                    p.inscribedXMin, j, p.subsample, 2, p.vByteStride, p.vPixelStride,
+                    p.inputHorizontalOffset / 2, p.inputVerticalOffset / 2);
+
+            // Without a circle, every pixel of the row is inside.
+            int circleMin0 = Integer.MIN_VALUE;
+            int circleMax0 = Integer.MAX_VALUE - 1;
+            int circleMin1 = Integer.MIN_VALUE;
+            int circleMax1 = Integer.MAX_VALUE - 1;
+            if (p.circular) {
+                int circleHalfWidth0 = (int) (Math.sqrt((float) (r * r - (j - p.centerY)
+                        * (j - p.centerY))) + 0.5f);
+                circleMin0 = p.centerX - circleHalfWidth0;
+                circleMax0 = p.centerX + circleHalfWidth0;
+                int circleHalfWidth1 = (int) (Math.sqrt((float) (r * r - (j + 1 - p.centerY)
+                        * (j + 1 - p.centerY))) + 0.5f);
+                circleMin1 = p.centerX - circleHalfWidth1;
+                circleMax1 = p.centerX + circleHalfWidth1;
+            }
+
+            for (int i = p.inscribedXMin; i < p.inscribedXMax; i += 2,
+                    offsetY += 2 * p.yPixelStride, offsetColor += 2,
+                    offsetU += p.uPixelStride, offsetV += p.vPixelStride) {
+                int row1 = offsetColor + p.outputPixelStride;
+                if ((i > circleMax0 && i > circleMax1)
+                        || (i + 1 < circleMin0 && i < circleMin1)) {
+                    colors[offsetColor] = TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR;
+                    colors[offsetColor + 1] = TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR;
+                    colors[row1] = TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR;
+                    colors[row1 + 1] = TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR;
+                    continue;
+                }
+
+                int u = (p.bufU.get(offsetU) & 255) - 128;
+                int v = (p.bufV.get(offsetV) & 255) - 128;
+                int redDiff = (v * TaskConvertImageToRGBPreview.V_FACTOR_FOR_R)
+                        >> TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+                int greenDiff = (u * TaskConvertImageToRGBPreview.U_FACTOR_FOR_G
+                        + v * TaskConvertImageToRGBPreview.V_FACTOR_FOR_G)
+                        >> TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+                int blueDiff = (u * TaskConvertImageToRGBPreview.U_FACTOR_FOR_B)
+                        >> TaskConvertImageToRGBPreview.SHIFT_APPROXIMATION;
+
+                colors[offsetColor] = pixel(p.bufY.get(offsetY), i, circleMin0, circleMax0,
+                        redDiff, greenDiff, blueDiff);
+                colors[offsetColor + 1] = pixel(p.bufY.get(offsetY + p.yPixelStride), i + 1,
+                        circleMin0, circleMax0, redDiff, greenDiff, blueDiff);
+                colors[row1] = pixel(p.bufY.get(offsetY + p.yByteStride), i, circleMin1,
+                        circleMax1, redDiff, greenDiff, blueDiff);
+                colors[row1 + 1] = pixel(p.bufY.get(offsetY + p.yByteStride + p.yPixelStride),
+                        i + 1, circleMin1, circleMax1, redDiff, greenDiff, blueDiff);
+            }
+        }
+    }
+
+    private static int pixel(byte luma, int i, int circleMin, int circleMax, int redDiff,
+            int greenDiff, int blueDiff) {
+        if (i > circleMax || i < circleMin) {
+            return TaskConvertImageToRGBPreview.OUT_OF_BOUNDS_COLOR;
+        }
+        // Feather the edges of the circle.
+        int alpha = (i == circleMax || i == circleMin) ? (128 << 24) : (255 << 24);
+        int y = luma & 255;
+        return clamp(y + redDiff) << 16 | clamp(y + greenDiff) << 8 | clamp(y + blueDiff)
+                | alpha;
+    }
+
+    private static int clamp(int value) {
+        if (value < 0) {
+            return 0;
+        }
+        if (value > 255) {
+            return 255;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates the planes of YUV_420_888 images filled with random samples, laid
+ * out either planar or, as most camera HALs do, with interleaved U and V.
+ */
+final class SyntheticYuvPlanes {
+    private static class Plane implements ImageProxy.Plane {
+        private final int mRowStride;
+        private final int mPixelStride;
+        private final ByteBuffer mBuffer;
+
+        Plane(int rowStride, int pixelStride, ByteBuffer buffer) {
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+    }
+
+    /**
+     * Rows of slack after each plane, since the 2x2 blocks of an inscribed
+     * square may read one row and column past the crop.
+     */
+    private static final int SLACK_ROWS = 2;
+
+    private SyntheticYuvPlanes() {
+    }
+
+    /**
+     * @param rowPadding Bytes after each row, as a HAL aligning its rows adds.
+     * @param interleavedChroma Whether U and V share one buffer with a pixel
+     *            stride of 2, like NV21.
+     * @param direct Whether to allocate direct buffers, as camera images have.
+     */
+    static List<ImageProxy.Plane> create(int width, int height, int rowPadding,
+            boolean interleavedChroma, boolean direct, Random random) {
+        List<ImageProxy.Plane> planes = new ArrayList<>();
+        int yRowStride = width + rowPadding;
+        planes.add(new Plane(yRowStride, 1,
+                allocate(yRowStride * (height + SLACK_ROWS), direct, random)));
+
+        int chromaHeight = height / 2 + SLACK_ROWS;
+        if (interleavedChroma) {
+            int rowStride = width + rowPadding;
+            ByteBuffer vu = allocate(rowStride * chromaHeight + 1, direct, random);
+            ByteBuffer u = vu.duplicate();
+            u.position(1);
+            planes.add(new Plane(rowStride, 2, u.slice()));
+            planes.add(new Plane(rowStride, 2, vu));
+        } else {
+            int rowStride = width / 2 + rowPadding;
+            planes.add(new Plane(rowStride, 1,
+                    allocate(rowStride * chromaHeight, direct, random)));
+            planes.add(new Plane(rowStride, 1,
+                    allocate(rowStride * chromaHeight, direct, random)));
+        }
+        return planes;
+    }
+
+    private static ByteBuffer allocate(int size, boolean direct, Random random) {
+        byte[] samples = new byte[size];
+        random.nextBytes(samples);
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buffer.put(samples);
+        buffer.rewind();
+        return buffer;
+    }
+}
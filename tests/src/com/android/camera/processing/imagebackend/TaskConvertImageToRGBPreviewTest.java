@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.Rect;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.app.OrientationManager;
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+import com.android.camera.processing.memory.IntArrayPool;
+import com.android.camera.util.Size;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests that {@link TaskConvertImageToRGBPreview} stops allocating result
+ * arrays once its color array pool is warm.
+ */
+@SmallTest
+public class TaskConvertImageToRGBPreviewTest extends TestCase {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int WARMUP_FRAMES = 3;
+    private static final int MEASURED_FRAMES = 50;
+    /** YUV_420_888 */
+    private static final int YUV_FORMAT = 0x23;
+
+    private static class FakeImage implements ImageProxy {
+        private final List<Plane> mPlanes;
+        private final long mTimestamp;
+
+        FakeImage(List<Plane> planes, long timestamp) {
+            mPlanes = planes;
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public Rect getCropRect() {
+            return new Rect(0, 0, WIDTH, HEIGHT);
+        }
+
+        @Override
+        public void setCropRect(Rect cropRect) {
+        }
+
+        @Override
+        public int getFormat() {
+            return YUV_FORMAT;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public List<Plane> getPlanes() {
+            return mPlanes;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Only releases image references and reports results. */
+    private static class FakeImageTaskManager implements ImageTaskManager {
+        private final ImageProcessorProxyListener mProxyListener =
+                new ImageProcessorProxyListener();
+
+        @Override
+        public boolean appendTasks(ImageToProcess img, Set<TaskImageContainer> tasks) {
+            return false;
+        }
+
+        @Override
+        public boolean appendTasks(ImageToProcess img, TaskImageContainer task) {
+            return false;
+        }
+
+        @Override
+        public void releaseSemaphoreReference(ImageToProcess img, Executor executor) {
+        }
+
+        @Override
+        public ImageProcessorProxyListener getProxyListener() {
+            return mProxyListener;
+        }
+    }
+
+    /** Records the result array of every frame. */
+    private static class ResultListener implements ImageProcessorListener {
+        final List<int[]> mResults = new ArrayList<>();
+
+        @Override
+        public void onStart(TaskImageContainer.TaskInfo task) {
+        }
+
+        @Override
+        public void onResultCompressed(TaskImageContainer.TaskInfo task,
+                TaskImageContainer.CompressedPayload payload) {
+        }
+
+        @Override
+        public void onResultUncompressed(TaskImageContainer.TaskInfo task,
+                TaskImageContainer.UncompressedPayload payload) {
+            mResults.add(payload.data);
+        }
+
+        @Override
+        public void onResultUri(TaskImageContainer.TaskInfo task, Uri uri) {
+        }
+    }
+
+    public void testCircleDoesNotAllocateAfterWarmUp() {
+        assertNoAllocationsAfterWarmUp(
+                TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_CIRCULAR_INSET);
+    }
+
+    public void testSquareDoesNotAllocateAfterWarmUp() {
+        assertNoAllocationsAfterWarmUp(
+                TaskConvertImageToRGBPreview.ThumbnailShape.SQUARE_ASPECT_NO_INSET);
+    }
+
+    public void testRectangleDoesNotAllocateAfterWarmUp() {
+        assertNoAllocationsAfterWarmUp(
+                TaskConvertImageToRGBPreview.ThumbnailShape.MAINTAIN_ASPECT_NO_INSET);
+    }
+
+    private void assertNoAllocationsAfterWarmUp(
+            TaskConvertImageToRGBPreview.ThumbnailShape shape) {
+        IntArrayPool pool = new IntArrayPool(4 * 1024 * 1024);
+        FakeImageTaskManager manager = new FakeImageTaskManager();
+        ResultListener listener = new ResultListener();
+        manager.getProxyListener().registerListener(listener, null);
+        List<ImageProxy.Plane> planes =
+                SyntheticYuvPlanes.create(WIDTH, HEIGHT, 0, true, true, new Random(0));
+
+        long missCount = 0;
+        for (int frame = 0; frame < WARMUP_FRAMES + MEASURED_FRAMES; frame++) {
+            if (frame == WARMUP_FRAMES) {
+                missCount = pool.getMissCount();
+            }
+            ImageToProcess img = new ImageToProcess(new FakeImage(planes, frame),
+                    OrientationManager.DeviceOrientation.CLOCKWISE_0, null);
+            new TaskConvertImageToRGBPreview(img, null, manager,
+                    TaskImageContainer.ProcessingPriority.FAST, null, new Size(160, 160),
+                    shape, pool).run();
+        }
+
+        assertEquals(WARMUP_FRAMES + MEASURED_FRAMES, listener.mResults.size());
+        assertEquals(missCount, pool.getMissCount());
+        int[] pooled = listener.mResults.get(WARMUP_FRAMES);
+        for (int frame = WARMUP_FRAMES; frame < listener.mResults.size(); frame++) {
+            assertSame(pooled, listener.mResults.get(frame));
+        }
+    }
+}
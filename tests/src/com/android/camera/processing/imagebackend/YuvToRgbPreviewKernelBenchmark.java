@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares {@link YuvToRgbPreviewKernel} to the sequential conversion it
+ * replaced, on synthetic 12 and 16 megapixel images with interleaved chroma,
+ * at subsample factors 1 to 8, for circular and rectangular previews.
+ */
+@LargeTest
+public class YuvToRgbPreviewKernelBenchmark extends TestCase {
+    private static final String TAG = "YuvToRgbKernelBench";
+    private static final int WARMUP_ITERATIONS = 3;
+    /** Output pixels to convert per measurement, so that runs take similar time. */
+    private static final long MEASURED_PIXELS = 60000000L;
+
+    public void test12Megapixels() {
+        runBenchmark(4000, 3000);
+    }
+
+    public void test16Megapixels() {
+        runBenchmark(4608, 3456);
+    }
+
+    private void runBenchmark(int width, int height) {
+        List<ImageProxy.Plane> planes =
+                SyntheticYuvPlanes.create(width, height, 0, true, true, new Random(0));
+        Rect crop = new Rect(0, 0, width, height);
+        for (int subsample = 1; subsample <= 8; subsample++) {
+            measure(width, height, subsample, "circle",
+                    TaskConvertImageToRGBPreview.createInscribedCircleParams(planes, crop,
+                            subsample));
+            measure(width, height, subsample, "rectangle",
+                    TaskConvertImageToRGBPreview.createSubSampleParams(planes, crop, subsample,
+                            false));
+        }
+    }
+
+    private static void measure(int width, int height, int subsample, String shape,
+            YuvToRgbPreviewKernel.Params params) {
+        int rows = params.inscribedYMax - params.inscribedYMin + 2;
+        int[] colors = new int[params.outputPixelStride * rows + 2];
+        int iterations = (int) Math.max(1, MEASURED_PIXELS / colors.length);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            SequentialYuvToRgb.convert(params, colors);
+            YuvToRgbPreviewKernel.convert(params, colors);
+        }
+        long sequentialNs = 0;
+        long kernelNs = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            SequentialYuvToRgb.convert(params, colors);
+            sequentialNs += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            YuvToRgbPreviewKernel.convert(params, colors);
+            kernelNs += System.nanoTime() - start;
+        }
+        Log.i(TAG, String.format("%dx%d %s, subsample %d: sequential %.2f ms, kernel %.2f ms",
+                width, height, shape, subsample, sequentialNs / 1e6 / iterations,
+                kernelNs / 1e6 / iterations));
+    }
+}
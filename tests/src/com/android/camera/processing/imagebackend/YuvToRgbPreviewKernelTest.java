@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.imagebackend;
+
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.one.v2.camera2proxy.ImageProxy;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link YuvToRgbPreviewKernel} produces exactly the output of
+ * the sequential conversion it replaced.
+ */
+@SmallTest
+public class YuvToRgbPreviewKernelTest extends TestCase {
+    /** Marks the output pixels that neither conversion writes. */
+    private static final int UNWRITTEN = 0x12345678;
+
+    private static final int SHAPE_CIRCLE = 0;
+    private static final int SHAPE_SQUARE = 1;
+    private static final int SHAPE_RECTANGLE = 2;
+
+    public void testMatchesSequentialOnRandomLayouts() {
+        Random random = new Random(0);
+        for (int i = 0; i < 300; i++) {
+            int subsample = 1 + random.nextInt(8);
+            int width = 2 * subsample * (4 + random.nextInt(60));
+            int height = 2 * subsample * (4 + random.nextInt(60));
+            List<ImageProxy.Plane> planes = SyntheticYuvPlanes.create(width, height,
+                    random.nextInt(3) * 16, random.nextBoolean(), false, random);
+            // A crop of at least half the image, with even, subsampled sizes.
+            int cropWidth = 2 * subsample * (width / (4 * subsample)
+                    + random.nextInt(width / (4 * subsample) + 1));
+            int cropHeight = 2 * subsample * (height / (4 * subsample)
+                    + random.nextInt(height / (4 * subsample) + 1));
+            int left = random.nextInt(width - cropWidth + 1);
+            int top = random.nextInt(height - cropHeight + 1);
+            Rect crop = new Rect(left, top, left + cropWidth, top + cropHeight);
+            assertMatchesSequential(planes, crop, subsample, random.nextInt(3));
+        }
+    }
+
+    /** Large enough outputs to be converted in parallel. */
+    public void testMatchesSequentialOn12MegapixelImage() {
+        Random random = new Random(1);
+        int width = 4000;
+        int height = 3000;
+        List<ImageProxy.Plane> planes =
+                SyntheticYuvPlanes.create(width, height, 64, true, true, random);
+        Rect crop = new Rect(0, 0, width, height);
+        for (int subsample = 1; subsample <= 2; subsample++) {
+            assertMatchesSequential(planes, crop, subsample, SHAPE_CIRCLE);
+            assertMatchesSequential(planes, crop, subsample, SHAPE_SQUARE);
+            assertMatchesSequential(planes, crop, subsample, SHAPE_RECTANGLE);
+        }
+        assertMatchesSequential(planes, new Rect(500, 300, 3500, 2700), 1, SHAPE_CIRCLE);
+    }
+
+    private static void assertMatchesSequential(List<ImageProxy.Plane> planes, Rect crop,
+            int subsample, int shape) {
+        YuvToRgbPreviewKernel.Params params = shape == SHAPE_CIRCLE
+                ? TaskConvertImageToRGBPreview.createInscribedCircleParams(planes, crop,
+                        subsample)
+                : TaskConvertImageToRGBPreview.createSubSampleParams(planes, crop, subsample,
+                        shape == SHAPE_SQUARE);
+        // The last 2x2 blocks may reach a row and a column past the bounds.
+        int length = params.outputPixelStride
+                * (params.inscribedYMax - params.inscribedYMin + 2) + 2;
+        int[] expected = new int[length];
+        int[] actual = new int[length];
+        Arrays.fill(expected, UNWRITTEN);
+        Arrays.fill(actual, UNWRITTEN);
+
+        SequentialYuvToRgb.convert(params, expected);
+        YuvToRgbPreviewKernel.convert(params, actual);
+        if (!Arrays.equals(expected, actual)) {
+            fail("Output differs for crop " + crop.left + "," + crop.top + " " + crop.width()
+                    + "x" + crop.height() + ", subsample " + subsample + ", shape " + shape);
+        }
+    }
+}
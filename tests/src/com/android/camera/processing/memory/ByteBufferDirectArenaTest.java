@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.processing.memory.LruResourcePool.Resource;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link ByteBufferDirectArena}.
+ */
+@SmallTest
+public class ByteBufferDirectArenaTest extends TestCase {
+    private static final int MIN_SIZE_CLASS_BYTES = 4 * 1024;
+    private static final int MB = 1024 * 1024;
+
+    public void testSmallRequestsShareTheMinimumSizeClass() {
+        assertEquals(MIN_SIZE_CLASS_BYTES, ByteBufferDirectArena.sizeClassFor(0));
+        assertEquals(MIN_SIZE_CLASS_BYTES, ByteBufferDirectArena.sizeClassFor(1));
+        assertEquals(MIN_SIZE_CLASS_BYTES,
+                ByteBufferDirectArena.sizeClassFor(MIN_SIZE_CLASS_BYTES));
+    }
+
+    public void testSizeClassesAreQuartersOfPowersOfTwo() {
+        assertEquals(MB, ByteBufferDirectArena.sizeClassFor(MB));
+        assertEquals(MB + MB / 4, ByteBufferDirectArena.sizeClassFor(MB + 1));
+        assertEquals(MB + MB / 2, ByteBufferDirectArena.sizeClassFor(MB + MB / 4 + 1));
+        assertEquals(MB + 3 * MB / 4, ByteBufferDirectArena.sizeClassFor(MB + MB / 2 + 1));
+        assertEquals(2 * MB, ByteBufferDirectArena.sizeClassFor(MB + 3 * MB / 4 + 1));
+    }
+
+    public void testSizeClassWastesAtMostAQuarter() {
+        for (int bytes = MIN_SIZE_CLASS_BYTES + 1; bytes < 64 * MB; bytes += 7919) {
+            int sizeClass = ByteBufferDirectArena.sizeClassFor(bytes);
+            assertTrue(sizeClass >= bytes);
+            assertTrue(sizeClass - bytes <= bytes / 4);
+        }
+    }
+
+    public void testNearbyCropsShareASizeClass() {
+        // The JPEG output buffer of TaskCompressImageToJpeg is 3 * w * h / 2.
+        assertEquals(ByteBufferDirectArena.sizeClassFor(3 * 4000 * 3000 / 2),
+                ByteBufferDirectArena.sizeClassFor(3 * 3968 * 2976 / 2));
+    }
+
+    public void testSixteenMegapixelOutputBufferIsTwentyFourMegabytes() {
+        // ImageBackend's 48MB budget keeps two of these idle.
+        assertEquals(24 * MB, ByteBufferDirectArena.sizeClassFor(3 * 4608 * 3456 / 2));
+    }
+
+    public void testHandsOutDirectViewOfTheRequestedSize() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(MB);
+        Resource<ByteBuffer> resource = arena.acquire(1000);
+        ByteBuffer buffer = resource.get();
+
+        assertTrue(buffer.isDirect());
+        assertEquals(0, buffer.position());
+        assertEquals(1000, buffer.limit());
+        assertEquals(1000, buffer.capacity());
+        resource.close();
+    }
+
+    public void testReusesTheBackingBufferWithinASizeClass() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(MB);
+        Resource<ByteBuffer> first = arena.acquire(1000);
+        first.get().put(0, (byte) 42);
+        first.get().position(500);
+        first.close();
+
+        Resource<ByteBuffer> second = arena.acquire(3000);
+        ByteBuffer buffer = second.get();
+        assertEquals(42, buffer.get(0));
+        assertEquals(0, buffer.position());
+        assertEquals(3000, buffer.limit());
+        second.close();
+    }
+
+    public void testClosedResourceNoLongerHandsOutTheView() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(MB);
+        Resource<ByteBuffer> resource = arena.acquire(1000);
+        resource.close();
+
+        assertNull(resource.get());
+    }
+
+    public void testCountsHitsMissesAndBytes() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(MB);
+
+        Resource<ByteBuffer> first = arena.acquire(1000);
+        assertEquals(0, arena.getHitCount());
+        assertEquals(1, arena.getMissCount());
+        assertEquals(MIN_SIZE_CLASS_BYTES, arena.getOutstandingBytes());
+        assertEquals(0, arena.getResidentBytes());
+
+        first.close();
+        first.close();
+        assertEquals(0, arena.getOutstandingBytes());
+        assertEquals(MIN_SIZE_CLASS_BYTES, arena.getResidentBytes());
+
+        Resource<ByteBuffer> second = arena.acquire(2000);
+        assertEquals(1, arena.getHitCount());
+        assertEquals(1, arena.getMissCount());
+        assertEquals(MIN_SIZE_CLASS_BYTES, arena.getOutstandingBytes());
+        assertEquals(0, arena.getResidentBytes());
+
+        Resource<ByteBuffer> other = arena.acquire(MB);
+        assertEquals(2, arena.getMissCount());
+        assertEquals(MIN_SIZE_CLASS_BYTES + MB, arena.getOutstandingBytes());
+        second.close();
+        other.close();
+    }
+
+    public void testOutstandingBuffersDoNotCountAgainstTheBudget() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(MIN_SIZE_CLASS_BYTES);
+        Resource<ByteBuffer> first = arena.acquire(1000);
+        Resource<ByteBuffer> second = arena.acquire(1000);
+        Resource<ByteBuffer> third = arena.acquire(1000);
+
+        assertEquals(3 * MIN_SIZE_CLASS_BYTES, arena.getOutstandingBytes());
+        first.close();
+        second.close();
+        third.close();
+    }
+
+    public void testEvictsIdleBuffersBeyondTheBudget() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(2 * MIN_SIZE_CLASS_BYTES);
+        assertEquals(2 * MIN_SIZE_CLASS_BYTES, arena.getBudgetBytes());
+
+        Resource<ByteBuffer> first = arena.acquire(1000);
+        Resource<ByteBuffer> second = arena.acquire(1000);
+        Resource<ByteBuffer> third = arena.acquire(1000);
+        first.close();
+        second.close();
+        third.close();
+        assertEquals(2 * MIN_SIZE_CLASS_BYTES, arena.getResidentBytes());
+
+        arena.acquire(1000);
+        arena.acquire(1000);
+        arena.acquire(1000);
+        assertEquals(2, arena.getHitCount());
+        assertEquals(4, arena.getMissCount());
+    }
+
+    public void testEvictsTheLeastRecentlyReleasedSizeClass() {
+        int largeClass = ByteBufferDirectArena.sizeClassFor(5000);
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(2 * largeClass);
+
+        Resource<ByteBuffer> small = arena.acquire(1000);
+        Resource<ByteBuffer> large = arena.acquire(5000);
+        Resource<ByteBuffer> otherLarge = arena.acquire(5000);
+        small.close();
+        large.close();
+        otherLarge.close();
+        assertEquals(2 * largeClass, arena.getResidentBytes());
+
+        arena.acquire(1000);
+        assertEquals(0, arena.getHitCount());
+    }
+
+    public void testDoesNotKeepBuffersLargerThanTheBudget() {
+        ByteBufferDirectArena arena = new ByteBufferDirectArena(MIN_SIZE_CLASS_BYTES);
+        arena.acquire(MB).close();
+
+        assertEquals(0, arena.getResidentBytes());
+        assertEquals(0, arena.getOutstandingBytes());
+    }
+}
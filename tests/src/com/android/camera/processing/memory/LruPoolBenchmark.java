@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing.memory;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+
+/**
+ * Compares {@link LruPool} to the LinkedList based pool it replaced, at
+ * several pool sizes and numbers of distinct keys, and checks that both hand
+ * out the same values.
+ */
+@LargeTest
+public class LruPoolBenchmark extends TestCase {
+    private static final String TAG = "LruPoolBench";
+    private static final int WARMUP_OPERATIONS = 20000;
+    private static final int MEASURED_OPERATIONS = 200000;
+
+    /**
+     * The previous implementation, which keeps the keys in LRU order in a
+     * LinkedList and so finds the key to acquire in linear time.
+     */
+    private static class LinkedListLruPool<TKey, TValue> {
+        private final LinkedList<TKey> mLruKeyList = new LinkedList<>();
+        private final HashMap<TKey, Queue<TValue>> mValuePool = new HashMap<>();
+        private final int mMaxSize;
+        private int mSize;
+
+        LinkedListLruPool(int maxSize) {
+            mMaxSize = maxSize;
+        }
+
+        synchronized TValue acquire(TKey key) {
+            if (mLruKeyList.removeLastOccurrence(key)) {
+                mSize--;
+                return mValuePool.get(key).remove();
+            }
+            return null;
+        }
+
+        synchronized void add(TKey key, TValue value) {
+            mLruKeyList.push(key);
+            Queue<TValue> pool = mValuePool.get(key);
+            if (pool == null) {
+                pool = new LinkedList<>();
+                mValuePool.put(key, pool);
+            }
+            pool.add(value);
+            mSize++;
+            while (mSize > mMaxSize) {
+                TKey evicted = mLruKeyList.removeLast();
+                Queue<TValue> evictedPool = mValuePool.get(evicted);
+                evictedPool.remove();
+                if (evictedPool.isEmpty()) {
+                    mValuePool.remove(evicted);
+                }
+                mSize--;
+            }
+        }
+    }
+
+    public void testSmallPool() {
+        runBenchmark(2, 1);
+        runBenchmark(2, 4);
+    }
+
+    public void testMediumPool() {
+        runBenchmark(16, 4);
+        runBenchmark(16, 32);
+    }
+
+    public void testLargePool() {
+        runBenchmark(256, 4);
+        runBenchmark(256, 32);
+        runBenchmark(256, 512);
+    }
+
+    /**
+     * Replays the same mix of acquires and adds on both pools. Most adds
+     * return a value which was just acquired, as the compression tasks do
+     * with their output buffers, and the keys are skewed towards a few
+     * common sizes.
+     */
+    private void runBenchmark(int poolSize, int keyCount) {
+        int[] keys = createKeys(keyCount, WARMUP_OPERATIONS + MEASURED_OPERATIONS);
+
+        LinkedListLruPool<Integer, Integer> oldPool = new LinkedListLruPool<>(poolSize);
+        LruPool<Integer, Integer> newPool = new LruPool<>(poolSize);
+        fill(oldPool, newPool, poolSize, keyCount);
+
+        long oldNanos = 0;
+        long newNanos = 0;
+        int nextValue = poolSize;
+        for (int i = 0; i < keys.length; i++) {
+            Integer key = keys[i];
+            boolean measured = i >= WARMUP_OPERATIONS;
+
+            long start = System.nanoTime();
+            Integer oldValue = oldPool.acquire(key);
+            if (oldValue == null) {
+                oldValue = nextValue;
+            }
+            oldPool.add(key, oldValue);
+            long oldElapsed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Integer newValue = newPool.acquire(key);
+            if (newValue == null) {
+                newValue = nextValue;
+            }
+            newPool.add(key, newValue);
+            long newElapsed = System.nanoTime() - start;
+
+            assertEquals(oldValue, newValue);
+            if (oldValue == nextValue) {
+                nextValue++;
+            }
+            if (measured) {
+                oldNanos += oldElapsed;
+                newNanos += newElapsed;
+            }
+        }
+        assertEquals(oldPool.mSize, newPool.getSize());
+
+        Log.i(TAG, String.format("pool size %d, %d keys: LinkedList %d ns, LruPool %d ns"
+                + " per acquire and add", poolSize, keyCount, oldNanos / MEASURED_OPERATIONS,
+                newNanos / MEASURED_OPERATIONS));
+    }
+
+    private static void fill(LinkedListLruPool<Integer, Integer> oldPool,
+            LruPool<Integer, Integer> newPool, int poolSize, int keyCount) {
+        for (int value = 0; value < poolSize; value++) {
+            oldPool.add(value % keyCount, value);
+            newPool.add(value % keyCount, value);
+        }
+    }
+
+    /**
+     * @return Keys in which key k is about twice as common as key k + 1,
+     *         down to a uniform tail, so that both hits and misses occur.
+     */
+    private static int[] createKeys(int keyCount, int length) {
+        Random random = new Random(0);
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++) {
+            int key = 0;
+            while (key < keyCount - 1 && random.nextBoolean()) {
+                key++;
+            }
+            if (random.nextInt(4) == 0) {
+                key = random.nextInt(keyCount);
+            }
+            keys[i] = key;
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Pair;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares {@link LockFreeSharedRingBuffer} to
+ * {@link ConcurrentSharedRingBuffer} at 30, 60 and 120 fps. As in
+ * ImageCaptureManager, a producer swaps in the image and then the metadata of
+ * every frame, while capture threads pin the greatest selected frame, hold it
+ * and release it.
+ */
+@LargeTest
+public class LockFreeSharedRingBufferBenchmark extends TestCase {
+    private static final String TAG = "RingBufferBench";
+    private static final int CAPACITY = 8;
+    private static final int CONSUMER_COUNT = 2;
+    private static final int DURATION_SECONDS = 2;
+    private static final long HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /** The operations of the two buffers which the camera uses per frame. */
+    private interface RingBuffer {
+        boolean swapLeast(long newKey, SwapTask<long[]> swapper);
+
+        Pair<Long, long[]> tryPinGreatestSelected(Selector<long[]> selector);
+
+        void release(long key);
+    }
+
+    private static RingBuffer wrap(final ConcurrentSharedRingBuffer<long[]> buffer) {
+        return new RingBuffer() {
+            @Override
+            public boolean swapLeast(long newKey, SwapTask<long[]> swapper) {
+                return buffer.swapLeast(newKey, swapper);
+            }
+
+            @Override
+            public Pair<Long, long[]> tryPinGreatestSelected(Selector<long[]> selector) {
+                return buffer.tryPinGreatestSelected(selector);
+            }
+
+            @Override
+            public void release(long key) {
+                buffer.release(key);
+            }
+        };
+    }
+
+    private static RingBuffer wrap(final LockFreeSharedRingBuffer<long[]> buffer) {
+        return new RingBuffer() {
+            @Override
+            public boolean swapLeast(long newKey, SwapTask<long[]> swapper) {
+                return buffer.swapLeast(newKey, swapper);
+            }
+
+            @Override
+            public Pair<Long, long[]> tryPinGreatestSelected(Selector<long[]> selector) {
+                return buffer.tryPinGreatestSelected(selector);
+            }
+
+            @Override
+            public void release(long key) {
+                buffer.release(key);
+            }
+        };
+    }
+
+    /** Sets the image or the metadata timestamp of a frame, reusing arrays. */
+    private static class FrameSwapper implements SwapTask<long[]> {
+        private final long mKey;
+        private final int mField;
+
+        FrameSwapper(long key, int field) {
+            mKey = key;
+            mField = field;
+        }
+
+        @Override
+        public long[] create() {
+            long[] frame = new long[] { -1, -1 };
+            frame[mField] = mKey;
+            return frame;
+        }
+
+        @Override
+        public long[] swap(long[] oldElement) {
+            Arrays.fill(oldElement, -1);
+            oldElement[mField] = mKey;
+            return oldElement;
+        }
+
+        @Override
+        public void update(long[] existingElement) {
+            existingElement[mField] = mKey;
+        }
+
+        @Override
+        public long getSwapKey() {
+            return -1;
+        }
+    }
+
+    /** Selects frames which have both their image and metadata. */
+    private static final Selector<long[]> COMPLETE_FRAME = new Selector<long[]>() {
+        @Override
+        public boolean select(long[] frame) {
+            return frame[0] >= 0 && frame[1] >= 0;
+        }
+    };
+
+    public void test30Fps() throws Exception {
+        runBenchmark(30);
+    }
+
+    public void test60Fps() throws Exception {
+        runBenchmark(60);
+    }
+
+    public void test120Fps() throws Exception {
+        runBenchmark(120);
+    }
+
+    private void runBenchmark(int fps) throws Exception {
+        // Warm up both implementations.
+        measure(wrap(new ConcurrentSharedRingBuffer<long[]>(CAPACITY)), fps, 1);
+        measure(wrap(new LockFreeSharedRingBuffer<long[]>(CAPACITY)), fps, 1);
+
+        String locked = measure(wrap(new ConcurrentSharedRingBuffer<long[]>(CAPACITY)), fps,
+                DURATION_SECONDS);
+        String lockFree = measure(wrap(new LockFreeSharedRingBuffer<long[]>(CAPACITY)), fps,
+                DURATION_SECONDS);
+        Log.i(TAG, String.format("%d fps: locked %s", fps, locked));
+        Log.i(TAG, String.format("%d fps: lock-free %s", fps, lockFree));
+    }
+
+    private static String measure(final RingBuffer buffer, int fps, int seconds)
+            throws Exception {
+        final CountDownLatch producerDone = new CountDownLatch(1);
+        final AtomicLong pinNanos = new AtomicLong(0);
+        final AtomicLong pinCount = new AtomicLong(0);
+        final AtomicLong pinFailures = new AtomicLong(0);
+        List<Thread> consumers = new ArrayList<>();
+        for (int c = 0; c < CONSUMER_COUNT; c++) {
+            consumers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (producerDone.getCount() > 0) {
+                        long start = System.nanoTime();
+                        Pair<Long, long[]> pinned = buffer.tryPinGreatestSelected(
+                                COMPLETE_FRAME);
+                        pinNanos.addAndGet(System.nanoTime() - start);
+                        if (pinned == null) {
+                            pinFailures.incrementAndGet();
+                            Thread.yield();
+                            continue;
+                        }
+                        pinCount.incrementAndGet();
+                        long holdUntil = System.nanoTime() + HOLD_NANOS;
+                        while (System.nanoTime() < holdUntil) {
+                            Thread.yield();
+                        }
+                        buffer.release(pinned.first);
+                    }
+                }
+            }));
+        }
+        for (Thread consumer : consumers) {
+            consumer.start();
+        }
+
+        int frameCount = fps * seconds;
+        long framePeriod = TimeUnit.SECONDS.toNanos(1) / fps;
+        long[] swapNanos = new long[frameCount];
+        int failedSwaps = 0;
+        long nextFrame = System.nanoTime();
+        for (int frame = 0; frame < frameCount; frame++) {
+            long now = System.nanoTime();
+            if (nextFrame > now) {
+                TimeUnit.NANOSECONDS.sleep(nextFrame - now);
+            }
+            nextFrame += framePeriod;
+
+            long start = System.nanoTime();
+            if (!buffer.swapLeast(frame, new FrameSwapper(frame, 0))) {
+                failedSwaps++;
+            }
+            buffer.swapLeast(frame, new FrameSwapper(frame, 1));
+            swapNanos[frame] = System.nanoTime() - start;
+        }
+        producerDone.countDown();
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+
+        Arrays.sort(swapNanos);
+        long totalSwapNanos = 0;
+        for (long nanos : swapNanos) {
+            totalSwapNanos += nanos;
+        }
+        long pinAttempts = pinCount.get() + pinFailures.get();
+        return String.format("frame swaps mean %.1f us, p99 %.1f us, max %.1f us, "
+                + "%d failed; pins mean %.1f us, %d of %d succeeded",
+                totalSwapNanos / 1e3 / frameCount,
+                swapNanos[(int) (frameCount * 0.99)] / 1e3,
+                swapNanos[frameCount - 1] / 1e3, failedSwaps,
+                pinNanos.get() / 1e3 / Math.max(1, pinAttempts), pinCount.get(),
+                pinAttempts);
+    }
+}
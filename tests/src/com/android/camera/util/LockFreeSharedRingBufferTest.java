@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Pair;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link LockFreeSharedRingBuffer}.
+ */
+public class LockFreeSharedRingBufferTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /** An element which remembers the key it was last swapped in for. */
+    private static class Frame {
+        volatile long mKey;
+        final AtomicInteger mCloseCount = new AtomicInteger(0);
+
+        Frame(long key) {
+            mKey = key;
+        }
+    }
+
+    /** Reuses the swapped out frame for the new key. */
+    private static class FrameSwapper implements SwapTask<Frame> {
+        private final long mKey;
+        private final List<Frame> mCreated;
+
+        FrameSwapper(long key, List<Frame> created) {
+            mKey = key;
+            mCreated = created;
+        }
+
+        @Override
+        public Frame create() {
+            Frame frame = new Frame(mKey);
+            mCreated.add(frame);
+            return frame;
+        }
+
+        @Override
+        public Frame swap(Frame oldElement) {
+            oldElement.mKey = mKey;
+            return oldElement;
+        }
+
+        @Override
+        public void update(Frame existingElement) {
+        }
+
+        @Override
+        public long getSwapKey() {
+            return -1;
+        }
+    }
+
+    private static final Task<Frame> CLOSE_FRAME = new Task<Frame>() {
+        @Override
+        public void run(Frame frame) {
+            frame.mCloseCount.incrementAndGet();
+        }
+    };
+
+    @SmallTest
+    public void testSwapsLeastUnpinnedElement() {
+        LockFreeSharedRingBuffer<Frame> buffer = new LockFreeSharedRingBuffer<>(3);
+        List<Frame> created = new ArrayList<>();
+        for (long key = 0; key < 3; key++) {
+            assertTrue(buffer.swapLeast(key, new FrameSwapper(key, created)));
+        }
+        assertEquals(3, created.size());
+
+        Pair<Long, Frame> pinned = buffer.tryPin(0);
+        assertNotNull(pinned);
+        assertTrue(buffer.swapLeast(3, new FrameSwapper(3, created)));
+        // Frame 0 is pinned, so frame 1 was swapped out for 3.
+        assertEquals(0, pinned.second.mKey);
+        assertNull(buffer.tryPin(1));
+        assertEquals(Long.valueOf(3), buffer.tryPinGreatest().first);
+        assertEquals(3, created.size());
+    }
+
+    @SmallTest
+    public void testPinsLeaveOneElementUnpinned() {
+        LockFreeSharedRingBuffer<Frame> buffer = new LockFreeSharedRingBuffer<>(3);
+        List<Frame> created = new ArrayList<>();
+        for (long key = 0; key < 3; key++) {
+            buffer.swapLeast(key, new FrameSwapper(key, created));
+        }
+        assertNotNull(buffer.tryPin(0));
+        assertNotNull(buffer.tryPin(1));
+        assertNull(buffer.tryPin(2));
+        // Pinning an already pinned element does not take another slot.
+        assertNotNull(buffer.tryPin(1));
+
+        buffer.release(1);
+        assertNull(buffer.tryPin(2));
+        buffer.release(1);
+        assertNotNull(buffer.tryPin(2));
+    }
+
+    @SmallTest
+    public void testReservedSlotsAreNeverPinned() throws Exception {
+        LockFreeSharedRingBuffer<Frame> buffer = new LockFreeSharedRingBuffer<>(4);
+        List<Frame> created = new ArrayList<>();
+        buffer.close(CLOSE_FRAME);
+        buffer.reopenBuffer(2);
+        for (long key = 0; key < 4; key++) {
+            buffer.swapLeast(key, new FrameSwapper(key, created));
+        }
+        assertNotNull(buffer.tryPinGreatest());
+        assertNull(buffer.tryPin(0));
+    }
+
+    @SmallTest
+    public void testPinGreatestSelectedReleasesRejectedElements() {
+        LockFreeSharedRingBuffer<Frame> buffer = new LockFreeSharedRingBuffer<>(4);
+        List<Frame> created = new ArrayList<>();
+        for (long key = 0; key < 4; key++) {
+            buffer.swapLeast(key, new FrameSwapper(key, created));
+        }
+        Pair<Long, Frame> selected = buffer.tryPinGreatestSelected(new Selector<Frame>() {
+            @Override
+            public boolean select(Frame frame) {
+                return frame.mKey == 1;
+            }
+        });
+        assertEquals(Long.valueOf(1), selected.first);
+        assertNull(buffer.tryGetPinned(3));
+        assertNotNull(buffer.tryGetPinned(1));
+    }
+
+    @LargeTest
+    public void testCloseWaitsForPinsToBeReleased() throws Exception {
+        final LockFreeSharedRingBuffer<Frame> buffer = new LockFreeSharedRingBuffer<>(3);
+        final List<Frame> created = new ArrayList<>();
+        for (long key = 0; key < 3; key++) {
+            buffer.swapLeast(key, new FrameSwapper(key, created));
+        }
+        assertNotNull(buffer.tryPin(2));
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        Thread closer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buffer.close(CLOSE_FRAME);
+                    closed.countDown();
+                } catch (InterruptedException e) {
+                    // Leaves the latch unchanged, failing the test.
+                }
+            }
+        });
+        closer.start();
+        assertFalse(closed.await(100, TimeUnit.MILLISECONDS));
+        assertNull(buffer.tryPin(1));
+        assertFalse(buffer.swapLeast(3, new FrameSwapper(3, created)));
+
+        buffer.release(2);
+        assertTrue(closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        closer.join();
+        for (Frame frame : created) {
+            assertEquals(1, frame.mCloseCount.get());
+        }
+    }
+
+    /**
+     * Swaps in frames from one thread while others pin, hold and release
+     * them, and checks that a pinned frame is never swapped out and that a
+     * new frame can always be swapped in.
+     */
+    @LargeTest
+    public void testPinnedElementsAreNeverSwapped() throws Exception {
+        final int capacity = 5;
+        final int frameCount = 50000;
+        final int consumerCount = 3;
+        final LockFreeSharedRingBuffer<Frame> buffer =
+                new LockFreeSharedRingBuffer<>(capacity);
+        final List<Frame> created = new ArrayList<>();
+        final AtomicInteger failedSwaps = new AtomicInteger(0);
+        final AtomicInteger swappedWhilePinned = new AtomicInteger(0);
+        final AtomicInteger pins = new AtomicInteger(0);
+        final CountDownLatch producerDone = new CountDownLatch(1);
+
+        List<Thread> consumers = new ArrayList<>();
+        for (int c = 0; c < consumerCount; c++) {
+            final Random random = new Random(c);
+            final int mode = c;
+            consumers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (producerDone.getCount() > 0) {
+                        Pair<Long, Frame> pinned;
+                        if (mode == 0) {
+                            pinned = buffer.tryPinGreatest();
+                        } else if (mode == 1) {
+                            pinned = buffer.tryPinGreatestSelected(new Selector<Frame>() {
+                                @Override
+                                public boolean select(Frame frame) {
+                                    return random.nextBoolean();
+                                }
+                            });
+                        } else {
+                            Pair<Long, Frame> greatest = buffer.tryPinGreatest();
+                            if (greatest == null) {
+                                continue;
+                            }
+                            // Pin the same frame a second time, then an older one.
+                            pinned = buffer.tryPin(greatest.first);
+                            buffer.release(greatest.first);
+                            if (pinned == null) {
+                                continue;
+                            }
+                            Pair<Long, Frame> older = buffer.tryPin(
+                                    greatest.first - 1 - random.nextInt(capacity));
+                            if (older != null) {
+                                buffer.release(older.first);
+                            }
+                        }
+                        if (pinned == null) {
+                            continue;
+                        }
+                        pins.incrementAndGet();
+                        for (int spin = random.nextInt(100); spin > 0; spin--) {
+                            if (pinned.second.mKey != pinned.first) {
+                                swappedWhilePinned.incrementAndGet();
+                            }
+                        }
+                        if (pinned.second.mKey != pinned.first) {
+                            swappedWhilePinned.incrementAndGet();
+                        }
+                        buffer.release(pinned.first);
+                    }
+                }
+            }));
+        }
+        for (Thread consumer : consumers) {
+            consumer.start();
+        }
+        for (long key = 0; key < frameCount; key++) {
+            if (!buffer.swapLeast(key, new FrameSwapper(key, created))) {
+                failedSwaps.incrementAndGet();
+            }
+            if (key % 64 == 0) {
+                Thread.yield();
+            }
+        }
+        producerDone.countDown();
+        for (Thread consumer : consumers) {
+            consumer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse(consumer.isAlive());
+        }
+
+        assertEquals(0, failedSwaps.get());
+        assertEquals(0, swappedWhilePinned.get());
+        assertTrue(pins.get() > 0);
+        assertEquals(capacity, created.size());
+
+        // Every pin was released, so close() returns and closes each frame.
+        buffer.close(CLOSE_FRAME);
+        for (Frame frame : created) {
+            assertEquals(1, frame.mCloseCount.get());
+        }
+    }
+
+    /**
+     * Closes and reopens the buffer while consumers pin and release, and
+     * checks that close() always returns and every pin is released.
+     */
+    @LargeTest
+    public void testCloseWhilePinning() throws Exception {
+        for (int iteration = 0; iteration < 200; iteration++) {
+            final LockFreeSharedRingBuffer<Frame> buffer = new LockFreeSharedRingBuffer<>(4);
+            final List<Frame> created = new ArrayList<>();
+            for (long key = 0; key < 4; key++) {
+                buffer.swapLeast(key, new FrameSwapper(key, created));
+            }
+            final CountDownLatch started = new CountDownLatch(2);
+            final CountDownLatch stop = new CountDownLatch(1);
+            List<Thread> consumers = new ArrayList<>();
+            for (int c = 0; c < 2; c++) {
+                consumers.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        started.countDown();
+                        while (stop.getCount() > 0) {
+                            Pair<Long, Frame> pinned = buffer.tryPinGreatest();
+                            if (pinned != null) {
+                                buffer.release(pinned.first);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Thread consumer : consumers) {
+                consumer.start();
+            }
+            started.await();
+            buffer.close(CLOSE_FRAME);
+            stop.countDown();
+            for (Thread consumer : consumers) {
+                consumer.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+                assertFalse(consumer.isAlive());
+            }
+            assertNull(buffer.tryPinGreatest());
+            for (Frame frame : created) {
+                assertEquals(1, frame.mCloseCount.get());
+            }
+        }
+    }
+}